@@ -0,0 +1,171 @@
+package hr.matija.rtpStreamer.benchmarks;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import hr.matija.rtpStreamer.h264.NalUnit;
+import hr.matija.rtpStreamer.rtp.DirectBufferPool;
+import hr.matija.rtpStreamer.rtp.H264Packetizer;
+import hr.matija.rtpStreamer.rtp.RTPUdpTransport;
+import hr.matija.rtpStreamer.rtp.RTPUtil;
+import hr.matija.rtpStreamer.rtp.RTPUtil.RTPheader;
+import hr.matija.rtpStreamer.rtp.RTPUtil.RTPpacket;
+
+/**
+ * End-to-end send path of a stream over the loopback: every invocation packetizes one access unit,
+ * writes the RTP headers and sends the packets through an {@link RTPUdpTransport} to a receiver on
+ * this host which drains them on its own thread. Frames are not paced, so the score is the number of
+ * packets per second the sender can produce. Access unit always splits into {@value #PACKETS_PER_FRAME}
+ * packets and one operation is one packet, so running with <code>-prof gc</code> reports the bytes
+ * allocated per packet (<code>gc.alloc.rate.norm</code>). <code>receivedPackets</code> is the rate at
+ * which the packets arrived. <br>
+ * <code>arrays</code> builds every packet as a new byte array, <code>pooled</code> is the path of the
+ * stream workers (pooled direct buffers, headers written in place, one burst per access unit).
+ * @author Matija
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoopbackThroughputBenchmark {
+
+	/**
+	 * Number of packets of the access unit sent by one invocation
+	 */
+	public static final int PACKETS_PER_FRAME = 8;
+
+	private static final byte PAYLOAD_TYPE = 96;
+	private static final int SSRC = 0x12345678;
+
+	@Param({"arrays", "pooled"})
+	private String path;
+
+	private H264Packetizer packetizer = new H264Packetizer();
+	private List<NalUnit> accessUnit;
+	private DirectBufferPool pool;
+	private List<ByteBuffer> packets = new ArrayList<>();
+	private short seqNum;
+	private int timestamp;
+
+	private DatagramChannel receiver;
+	private Thread receiverThread;
+	private AtomicLong received = new AtomicLong();
+	private RTPUdpTransport transport;
+
+	/**
+	 * Rate of the packets which arrived to the receiver. Counter is updated by the benchmark thread
+	 * because counters are collected before the iteration is torn down.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Received {
+
+		public long receivedPackets;
+		private long start = -1;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			receivedPackets = 0;
+			start = -1;
+		}
+
+	}
+
+	@Setup
+	public void setup() throws IOException {
+		// one slice which fragments into exactly PACKETS_PER_FRAME FU-A packets
+		int fragment = packetizer.getMaxPayloadSize() - 2;
+		accessUnit = SyntheticAnnexB.accessUnit(false, 1 + PACKETS_PER_FRAME*fragment, 1);
+		if(packetizer.packetize(accessUnit).size()!=PACKETS_PER_FRAME) throw new IllegalStateException("Access unit is not " + PACKETS_PER_FRAME + " packets!");
+		pool = new DirectBufferPool(packetizer.getMaxPayloadSize() + RTPUtil.HEADER_SIZE, 64);
+
+		InetAddress loopback = InetAddress.getLoopbackAddress();
+		receiver = DatagramChannel.open();
+		receiver.bind(new InetSocketAddress(loopback, 0));
+		InetSocketAddress address = (InetSocketAddress) receiver.getLocalAddress();
+		transport = new RTPUdpTransport(address, new InetSocketAddress(loopback, address.getPort() + 1));
+
+		receiverThread = new Thread(() -> {
+			ByteBuffer buffer = ByteBuffer.allocateDirect(64*1024);
+			try {
+				while(true) {
+					buffer.clear();
+					receiver.receive(buffer);
+					received.incrementAndGet();
+				}
+			} catch (IOException closed) {
+				// benchmark finished
+			}
+		}, "receiver");
+		receiverThread.setDaemon(true);
+		receiverThread.start();
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		transport.close();
+		receiver.close();
+		receiverThread.join(1000);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(PACKETS_PER_FRAME)
+	public long send(Received counters) throws IOException {
+		timestamp += 3000;
+		long sent = path.equals("pooled") ? sendPooled() : sendArrays();
+		long now = received.get();
+		if(counters.start<0) counters.start = now;
+		counters.receivedPackets = now - counters.start;
+		return sent;
+	}
+
+	private long sendArrays() throws IOException {
+		List<byte[]> payloads = packetizer.packetize(accessUnit);
+		long sent = 0;
+		for(int i=0, n=payloads.size(); i<n; i++) {
+			RTPheader header = new RTPheader((byte) 2, false, false, (byte) 0, i==n-1, PAYLOAD_TYPE, seqNum++, timestamp, SSRC);
+			sent += transport.send(ByteBuffer.wrap(RTPUtil.createRTPpacket(new RTPpacket(header, payloads.get(i)))));
+		}
+		return sent;
+	}
+
+	private long sendPooled() throws IOException {
+		packetizer.packetize(accessUnit, pool, packets);
+		try {
+			for(int i=0, n=packets.size(); i<n; i++) {
+				RTPUtil.writeBasicHeaderRTP(packets.get(i), 0, (byte) 2, false, false, (byte) 0, i==n-1, PAYLOAD_TYPE, seqNum++, timestamp, SSRC);
+			}
+			return transport.sendAll(packets);
+		} finally {
+			for(int i=0, n=packets.size(); i<n; i++) pool.release(packets.get(i));
+			packets.clear();
+		}
+	}
+
+}
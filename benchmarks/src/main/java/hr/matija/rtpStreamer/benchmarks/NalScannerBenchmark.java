@@ -0,0 +1,88 @@
+package hr.matija.rtpStreamer.benchmarks;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import hr.matija.rtpStreamer.h264.H264FileLoader;
+import hr.matija.rtpStreamer.h264.H264Loader;
+import hr.matija.rtpStreamer.h264.H264MappedFileLoader;
+import hr.matija.rtpStreamer.h264.H264NalIndex;
+
+/**
+ * Measures one pass over all nal units of a synthetic file (300 pictures) with every loader:
+ * the stream based {@link H264FileLoader}, the start code scanning {@link H264MappedFileLoader}
+ * and the loader of a prebuilt {@link H264NalIndex} (building the index is not measured).
+ * Small slices stress the per nal unit overhead, large ones the start code scan.
+ * @author Matija
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NalScannerBenchmark {
+
+	private static final int FRAMES = 300;
+	private static final int GOP = 30;
+
+	@Param({"file", "mapped", "indexed"})
+	private String loader;
+
+	/**
+	 * Size of every slice in bytes
+	 */
+	@Param({"1200", "16000"})
+	private int sliceSize;
+
+	private Path file;
+	private ByteBuffer mapped;
+	private H264NalIndex index;
+
+	@Setup
+	public void setup() throws IOException {
+		file = SyntheticAnnexB.writeTemporary(SyntheticAnnexB.generate(FRAMES, GOP, sliceSize, 1));
+		mapped = H264MappedFileLoader.map(file);
+		index = H264NalIndex.build(mapped);
+	}
+
+	private H264Loader open() throws IOException {
+		switch(loader) {
+			case "file":
+				return new H264FileLoader(file);
+			case "mapped":
+				return new H264MappedFileLoader(mapped.duplicate());
+			default:
+				return index.newLoader();
+		}
+	}
+
+	@Benchmark
+	public int scan(Blackhole bh) throws Exception {
+		int count = 0;
+		try (H264Loader l = open()) {
+			while(l.nextNalUnit()) {
+				bh.consume(l.getNalUnit());
+				count++;
+			}
+		}
+		return count;
+	}
+
+}
@@ -0,0 +1,86 @@
+package hr.matija.rtpStreamer.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import hr.matija.rtpStreamer.h264.NalUnit;
+import hr.matija.rtpStreamer.rtp.DirectBufferPool;
+import hr.matija.rtpStreamer.rtp.H264Packetizer;
+import hr.matija.rtpStreamer.rtp.RTPUtil;
+import hr.matija.rtpStreamer.rtp.RTPUtil.RTPheader;
+import hr.matija.rtpStreamer.rtp.RTPUtil.RTPpacket;
+
+/**
+ * Compares the two ways of turning one access unit (a keyframe with its parameter sets) into RTP
+ * packets: payloads packetized into new byte arrays and copied into new packets behind new headers,
+ * and payloads packetized into pooled direct buffers with the headers written in place, which is
+ * what the stream workers do.
+ * @author Matija
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketizerBenchmark {
+
+	private static final byte PAYLOAD_TYPE = 96;
+	private static final int SSRC = 0x12345678;
+
+	/**
+	 * Size of the slice of the access unit in bytes
+	 */
+	@Param({"1000", "50000"})
+	private int sliceSize;
+
+	private List<NalUnit> accessUnit;
+	private H264Packetizer packetizer = new H264Packetizer();
+	private DirectBufferPool pool;
+	private List<ByteBuffer> packets = new ArrayList<>();
+	private short seqNum;
+
+	@Setup
+	public void setup() {
+		accessUnit = SyntheticAnnexB.accessUnit(true, sliceSize, 1);
+		pool = new DirectBufferPool(packetizer.getMaxPayloadSize() + RTPUtil.HEADER_SIZE, 256);
+	}
+
+	@Benchmark
+	public void arrays(Blackhole bh) {
+		List<byte[]> payloads = packetizer.packetize(accessUnit);
+		for(int i=0, n=payloads.size(); i<n; i++) {
+			RTPheader header = new RTPheader((byte) 2, false, false, (byte) 0, i==n-1, PAYLOAD_TYPE, seqNum++, 0, SSRC);
+			bh.consume(RTPUtil.createRTPpacket(new RTPpacket(header, payloads.get(i))));
+		}
+	}
+
+	@Benchmark
+	public void pooled(Blackhole bh) {
+		packetizer.packetize(accessUnit, pool, packets);
+		for(int i=0, n=packets.size(); i<n; i++) {
+			ByteBuffer packet = packets.get(i);
+			RTPUtil.writeBasicHeaderRTP(packet, 0, (byte) 2, false, false, (byte) 0, i==n-1, PAYLOAD_TYPE, seqNum++, 0, SSRC);
+			bh.consume(packet);
+			pool.release(packet);
+		}
+		packets.clear();
+	}
+
+}
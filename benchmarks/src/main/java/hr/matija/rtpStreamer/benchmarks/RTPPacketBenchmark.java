@@ -0,0 +1,82 @@
+package hr.matija.rtpStreamer.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import hr.matija.rtpStreamer.rtp.RTPUtil;
+import hr.matija.rtpStreamer.rtp.RTPUtil.RTPheader;
+import hr.matija.rtpStreamer.rtp.RTPUtil.RTPpacket;
+
+/**
+ * Compares building one RTP packet as a new byte array ({@link RTPUtil#constructBasicHeaderRTP(RTPheader)}
+ * and {@link RTPUtil#createRTPpacket(RTPpacket)}, header object and packet created for every packet)
+ * with writing the header in place ahead of a payload already in a direct buffer
+ * ({@link RTPUtil#writeBasicHeaderRTP(ByteBuffer, int, byte, boolean, boolean, byte, boolean, byte, short, int, int)}).
+ * @author Matija
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RTPPacketBenchmark {
+
+	private static final byte PAYLOAD_TYPE = 96;
+	private static final int SSRC = 0x12345678;
+
+	/**
+	 * Size of the RTP payload in bytes
+	 */
+	@Param({"100", "1460"})
+	private int payloadSize;
+
+	private byte[] payload;
+	private ByteBuffer packet;
+	private short seqNum;
+	private int timestamp;
+
+	@Setup
+	public void setup() {
+		payload = new byte[payloadSize];
+		for(int i=0; i<payloadSize; i++) payload[i] = (byte) i;
+		packet = ByteBuffer.allocateDirect(RTPUtil.HEADER_SIZE + payloadSize);
+		packet.position(RTPUtil.HEADER_SIZE);
+		packet.put(payload);
+		packet.flip();
+	}
+
+	@Benchmark
+	public byte[] constructHeader() {
+		seqNum++;
+		return RTPUtil.constructBasicHeaderRTP((byte) 2, false, false, (byte) 0, false, PAYLOAD_TYPE, seqNum, timestamp += 3000, SSRC);
+	}
+
+	@Benchmark
+	public byte[] createPacket() {
+		seqNum++;
+		RTPheader header = new RTPheader((byte) 2, false, false, (byte) 0, false, PAYLOAD_TYPE, seqNum, timestamp += 3000, SSRC);
+		return RTPUtil.createRTPpacket(new RTPpacket(header, payload));
+	}
+
+	@Benchmark
+	public ByteBuffer writeHeaderInPlace() {
+		seqNum++;
+		RTPUtil.writeBasicHeaderRTP(packet, 0, (byte) 2, false, false, (byte) 0, false, PAYLOAD_TYPE, seqNum, timestamp += 3000, SSRC);
+		return packet;
+	}
+
+}
@@ -0,0 +1,113 @@
+package hr.matija.rtpStreamer.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import hr.matija.rtpStreamer.rtsp.RTSPRequestParser;
+import hr.matija.rtpStreamer.rtsp.RTSPUtil;
+
+/**
+ * Compares the stream based rtsp request reader (byte by byte read into a string
+ * followed by regex based parsing) with the incremental {@link RTSPRequestParser}.
+ * Every invocation parses the whole session of requests a typical client sends
+ * (OPTIONS, DESCRIBE, SETUP, PLAY, GET_PARAMETER, TEARDOWN).
+ * @author Matija
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RTSPParserBenchmark {
+
+	static final String[] SESSION = {
+		"OPTIONS rtsp://192.168.1.2:8554/samplefullhd60 RTSP/1.0\r\n" +
+		"CSeq: 1\r\n" +
+		"User-Agent: LibVLC/3.0.11 (LIVE555 Streaming Media v2016.11.28)\r\n\r\n",
+
+		"DESCRIBE rtsp://192.168.1.2:8554/samplefullhd60 RTSP/1.0\r\n" +
+		"CSeq: 2\r\n" +
+		"User-Agent: LibVLC/3.0.11 (LIVE555 Streaming Media v2016.11.28)\r\n" +
+		"Accept: application/sdp\r\n\r\n",
+
+		"SETUP rtsp://192.168.1.2:8554/samplefullhd60 RTSP/1.0\r\n" +
+		"CSeq: 3\r\n" +
+		"User-Agent: LibVLC/3.0.11 (LIVE555 Streaming Media v2016.11.28)\r\n" +
+		"Transport: RTP/AVP;unicast;client_port=50426-50427\r\n\r\n",
+
+		"PLAY rtsp://192.168.1.2:8554/samplefullhd60 RTSP/1.0\r\n" +
+		"CSeq: 4\r\n" +
+		"User-Agent: LibVLC/3.0.11 (LIVE555 Streaming Media v2016.11.28)\r\n" +
+		"Session: 1436734281\r\n" +
+		"Range: npt=0.000-\r\n\r\n",
+
+		"GET_PARAMETER rtsp://192.168.1.2:8554/samplefullhd60 RTSP/1.0\r\n" +
+		"CSeq: 5\r\n" +
+		"User-Agent: LibVLC/3.0.11 (LIVE555 Streaming Media v2016.11.28)\r\n" +
+		"Session: 1436734281\r\n\r\n",
+
+		"TEARDOWN rtsp://192.168.1.2:8554/samplefullhd60 RTSP/1.0\r\n" +
+		"CSeq: 6\r\n" +
+		"User-Agent: LibVLC/3.0.11 (LIVE555 Streaming Media v2016.11.28)\r\n" +
+		"Session: 1436734281\r\n\r\n"
+	};
+
+	/**
+	 * Size of the reads in which the bytes arrive to the incremental parser
+	 */
+	@Param({"64", "1500"})
+	private int readSize;
+
+	private byte[] session;
+	private ByteBuffer buffer;
+	private RTSPRequestParser parser;
+
+	@Setup
+	public void setup() {
+		session = String.join("", SESSION).getBytes(StandardCharsets.ISO_8859_1);
+		buffer = ByteBuffer.allocate(session.length);
+		parser = new RTSPRequestParser();
+	}
+
+	@Benchmark
+	public void streamReader(Blackhole bh) throws IOException {
+		ByteArrayInputStream is = new ByteArrayInputStream(session);
+		for(int i=0; i<SESSION.length; i++) {
+			bh.consume(RTSPUtil.readNextRTSPRequest(is));
+		}
+	}
+
+	@Benchmark
+	public void incrementalParser(Blackhole bh) {
+		buffer.clear();
+		for(int offset=0; offset<session.length; offset+=readSize) {
+			// simulates one read of the channel
+			buffer.put(session, offset, Math.min(readSize, session.length - offset));
+			buffer.flip();
+			Object request;
+			while((request = parser.parse(buffer)) != null) {
+				bh.consume(request);
+			}
+			buffer.compact();
+		}
+	}
+
+}
@@ -0,0 +1,54 @@
+package hr.matija.rtpStreamer.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import hr.matija.rtpStreamer.rtsp.RTSPUtil;
+import hr.matija.rtpStreamer.rtsp.UriParser;
+
+/**
+ * Measures parsing of already framed requests: {@link RTSPUtil#parseRTSPRequest(String)} over the
+ * whole session of requests of {@link RTSPParserBenchmark} and {@link UriParser#parseUri(String)}
+ * over the uris a client sends (with and without the port, aggregate and track control uris).
+ * @author Matija
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RTSPRequestBenchmark {
+
+	private static final String[] URIS = {
+		"rtsp://192.168.1.2:8554/samplefullhd60",
+		"rtsp://192.168.1.2/samplefullhd60",
+		"rtsp://streamer.example.com:8554/samplefullhd60/trackID=0"
+	};
+
+	@Benchmark
+	public void parseRequest(Blackhole bh) {
+		for(int i=0; i<RTSPParserBenchmark.SESSION.length; i++) {
+			bh.consume(RTSPUtil.parseRTSPRequest(RTSPParserBenchmark.SESSION[i]));
+		}
+	}
+
+	@Benchmark
+	public void parseUri(Blackhole bh) {
+		for(int i=0; i<URIS.length; i++) {
+			bh.consume(UriParser.parseUri(URIS[i]));
+		}
+	}
+
+}
@@ -0,0 +1,103 @@
+package hr.matija.rtpStreamer.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import hr.matija.rtpStreamer.h264.H264NalIndex;
+import hr.matija.rtpStreamer.h264.NalUnit;
+
+/**
+ * Generator of synthetic h264 byte streams (annex B) laid out the way the streamer expects them:
+ * parameter sets first, an access unit delimiter ahead of every picture but the first, an IDR
+ * picture at the start of every group of pictures. Slices are filled with seeded random bytes
+ * which never form a start code, so the benchmarks run offline and always see the same input.
+ * Parameter sets and delimiters use the 4 byte start code and slices the 3 byte one, so the
+ * scanners meet both.
+ * @author Matija
+ *
+ */
+public class SyntheticAnnexB {
+
+	private static final byte[] SPS = {0x67, 0x42, (byte) 0xC0, 0x1F, (byte) 0xDA, 0x01, 0x40, 0x16, (byte) 0xE8, 0x40};
+	private static final byte[] PPS = {0x68, (byte) 0xCE, 0x3C, (byte) 0x80};
+	private static final byte[] AUD = {0x09, 0x10};
+	private static final byte IDR = 0x65;
+	private static final byte NON_IDR = 0x41;
+
+	private static final byte[] START_CODE_4 = {0, 0, 0, 1};
+	private static final byte[] START_CODE_3 = {0, 0, 1};
+
+	private SyntheticAnnexB() {
+	}
+
+	/**
+	 * Generates the byte stream
+	 * @param frames number of pictures (access units)
+	 * @param gop number of pictures in a group of pictures (distance between the IDR pictures)
+	 * @param sliceSize size of every slice nal unit in bytes
+	 * @param seed seed of the slice data
+	 * @return the byte stream
+	 */
+	public static byte[] generate(int frames, int gop, int sliceSize, long seed) {
+		Random random = new Random(seed);
+		ByteArrayOutputStream os = new ByteArrayOutputStream(frames * (sliceSize + 8) + 64);
+		os.writeBytes(START_CODE_4);
+		os.writeBytes(SPS);
+		os.writeBytes(START_CODE_4);
+		os.writeBytes(PPS);
+		for(int i=0; i<frames; i++) {
+			if(i>0) {
+				os.writeBytes(START_CODE_4);
+				os.writeBytes(AUD);
+			}
+			os.writeBytes(START_CODE_3);
+			os.writeBytes(slice(i%gop==0 ? IDR : NON_IDR, sliceSize, random));
+		}
+		return os.toByteArray();
+	}
+
+	/**
+	 * Returns one access unit: one slice of the given size, preceded by the parameter sets if it is a keyframe
+	 * @param keyframe true for an IDR picture with its parameter sets
+	 * @param sliceSize size of the slice nal unit in bytes
+	 * @param seed seed of the slice data
+	 * @return nal units of the access unit
+	 */
+	public static List<NalUnit> accessUnit(boolean keyframe, int sliceSize, long seed) {
+		List<NalUnit> accessUnit = new ArrayList<>();
+		if(keyframe) {
+			accessUnit.add(new NalUnit(ByteBuffer.wrap(SPS)));
+			accessUnit.add(new NalUnit(ByteBuffer.wrap(PPS)));
+		}
+		accessUnit.add(new NalUnit(ByteBuffer.wrap(slice(keyframe ? IDR : NON_IDR, sliceSize, new Random(seed)))));
+		return accessUnit;
+	}
+
+	private static byte[] slice(byte header, int size, Random random) {
+		byte[] slice = new byte[size];
+		slice[0] = header;
+		for(int i=1; i<size; i++) slice[i] = (byte) (1 + random.nextInt(255)); // no zero bytes, no start codes
+		return slice;
+	}
+
+	/**
+	 * Writes the byte stream into a temporary file which (together with its index) is deleted when the jvm exits
+	 * @param stream the byte stream
+	 * @return path of the file
+	 * @throws IOException if an I/O error occurs
+	 */
+	public static Path writeTemporary(byte[] stream) throws IOException {
+		Path file = Files.createTempFile("synthetic", ".h264");
+		file.toFile().deleteOnExit();
+		H264NalIndex.sidecarFor(file).toFile().deleteOnExit();
+		Files.write(file, stream);
+		return file;
+	}
+
+}
@@ -0,0 +1,323 @@
+package hr.matija.rtpStreamer.admin;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import hr.matija.rtpStreamer.console.ConsoleWriter;
+import hr.matija.rtpStreamer.server.H264RtpImpairmentProfile;
+import hr.matija.rtpStreamer.server.H264RtspServer;
+
+/**
+ * HTTP/JSON admin API of a server, the headless replacement of the server window. Connections are
+ * accepted and read by the non-blocking dispatcher of the JDK HTTP server; requests, and a snapshot
+ * of the server taken every second ({@link ServerSnapshot}), run on one daemon thread. Reads serve the
+ * latest snapshot, so polling many instances costs them one snapshot per second each. <br>
+ * <code>GET /api/server</code> state, settings and sessions of the server <br>
+ * <code>GET /api/sessions</code> sessions with the statistics of their streams <br>
+ * <code>GET /api/resources</code> resources of the server <br>
+ * <code>GET /api/settings</code> packet settings <br>
+ * <code>POST /api/settings</code> changes the settings given as form parameters (in the query or the body):
+ * <code>impairment</code> profile of all sessions ({@link H264RtpImpairmentProfile}) <br>
+ * <code>POST /api/server/start</code>, <code>/api/server/stop</code>, <code>/api/server/reload</code> <br>
+ * <code>DELETE /api/sessions/<em>id</em></code> closes the connection <br>
+ * <code>POST /api/sessions/<em>id</em>/impairment</code> sets the <code>profile</code> of the stream of one session <br>
+ * API has no authentication; it should be bound to the loopback (or a management) address only.
+ * @author Matija
+ *
+ */
+public class AdminHttpServer implements AutoCloseable {
+
+	/**
+	 * Path prefix of the API
+	 */
+	public static final String PATH = "/api";
+
+	private static final String CONTENT_TYPE = "application/json; charset=utf-8";
+	private static final long SNAPSHOT_PERIOD_MILLIS = 1000;
+	private static final int MAX_BODY_SIZE = 4096;
+
+	private H264RtspServer rtspServer;
+	private ConsoleWriter writer;
+	private HttpServer server;
+	private ScheduledExecutorService executor;
+	private volatile ServerSnapshot snapshot;
+
+	/**
+	 * Binds the API; it serves requests after {@link #start()}
+	 * @param address address and port of the API
+	 * @param rtspServer server controlled by the API
+	 * @param writer writer the actions of the API are logged to
+	 * @throws IOException if the address cannot be bound
+	 */
+	public AdminHttpServer(InetSocketAddress address, H264RtspServer rtspServer, ConsoleWriter writer) throws IOException {
+		this.rtspServer = Objects.requireNonNull(rtspServer);
+		this.writer = Objects.requireNonNull(writer);
+		executor = Executors.newSingleThreadScheduledExecutor((r) -> {
+			Thread t = new Thread(r, "admin");
+			t.setDaemon(true);
+			return t;
+		});
+		server = HttpServer.create(address, 0);
+		server.setExecutor(executor);
+		server.createContext(PATH, this::handle);
+		snapshot = ServerSnapshot.take(rtspServer);
+	}
+
+	/**
+	 * Starts the snapshot thread and serving the requests
+	 */
+	public void start() {
+		executor.scheduleAtFixedRate(this::refresh, SNAPSHOT_PERIOD_MILLIS, SNAPSHOT_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+		server.start();
+	}
+
+	/**
+	 * Returns the latest snapshot of the server
+	 * @return the latest snapshot
+	 */
+	public ServerSnapshot getSnapshot() {
+		return snapshot;
+	}
+
+	private void refresh() {
+		try {
+			snapshot = ServerSnapshot.take(rtspServer);
+		} catch (RuntimeException ex) { // an exception would cancel the periodic snapshots
+			writer.writeError("Admin snapshot failed: " + ex.getClass().getName() + " : " + ex.getMessage());
+		}
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		try { // HttpExchange is not AutoCloseable on Java 11
+			String method = exchange.getRequestMethod();
+			String path = exchange.getRequestURI().getPath();
+			if(path.length()>PATH.length()+1 && path.endsWith("/")) path = path.substring(0, path.length() - 1);
+			String resource = path.substring(PATH.length());
+
+			try {
+				if(resource.equals("/server")) {
+					requireMethod(method, "GET");
+					respond(exchange, 200, snapshot.toJson());
+				} else if(resource.equals("/sessions")) {
+					requireMethod(method, "GET");
+					respond(exchange, 200, snapshot.sessionsJson(new StringBuilder()).toString());
+				} else if(resource.startsWith("/sessions/") && resource.endsWith("/impairment")) {
+					requireMethod(method, "POST");
+					impairSession(exchange, resource.substring("/sessions/".length(), resource.length() - "/impairment".length()));
+				} else if(resource.startsWith("/sessions/")) {
+					requireMethod(method, "DELETE");
+					closeSession(exchange, resource.substring("/sessions/".length()));
+				} else if(resource.equals("/resources")) {
+					requireMethod(method, "GET");
+					respond(exchange, 200, resourcesJson());
+				} else if(resource.equals("/settings")) {
+					if(method.equals("POST")) {
+						changeSettings(readParameters(exchange));
+						refresh();
+					} else {
+						requireMethod(method, "GET");
+					}
+					respond(exchange, 200, snapshot.settingsJson(new StringBuilder()).toString());
+				} else if(resource.startsWith("/server/")) {
+					requireMethod(method, "POST");
+					control(resource.substring("/server/".length()));
+					refresh();
+					respond(exchange, 200, snapshot.toJson());
+				} else {
+					respond(exchange, 404, error("No such resource: " + path));
+				}
+			} catch (MethodNotAllowed ex) {
+				exchange.getResponseHeaders().set("Allow", ex.getMessage());
+				respond(exchange, 405, error("Method " + method + " not allowed, expected " + ex.getMessage()));
+			} catch (IllegalArgumentException ex) {
+				respond(exchange, 400, error(ex.getMessage()));
+			} catch (IllegalStateException ex) {
+				respond(exchange, 409, error(ex.getMessage()));
+			} catch (RuntimeException ex) {
+				respond(exchange, 500, error(ex.getClass().getName() + " : " + ex.getMessage()));
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private void control(String action) {
+		switch(action) {
+			case "start":
+				rtspServer.start();
+				writer.writeInfo("Admin: server started");
+				break;
+			case "stop":
+				if(!rtspServer.isRunning()) throw new IllegalStateException("Server is not running!");
+				rtspServer.stop();
+				writer.writeInfo("Admin: server stopped");
+				break;
+			case "reload":
+				try {
+					rtspServer.reloadResources();
+				} catch (IOException ex) {
+					throw new RuntimeException(ex);
+				}
+				writer.writeInfo("Admin: resources reloaded");
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown action: " + action);
+		}
+	}
+
+	private void closeSession(HttpExchange exchange, String id) throws IOException {
+		var handler = rtspServer.getReqHandlers().getHandler(parseSessionId(id));
+		if(handler==null) {
+			respond(exchange, 404, error("No such session: " + id));
+			return;
+		}
+		handler.close();
+		writer.writeInfo("Admin: closed connection " + handler);
+		refresh();
+		respond(exchange, 200, snapshot.sessionsJson(new StringBuilder()).toString());
+	}
+
+	private void impairSession(HttpExchange exchange, String id) throws IOException {
+		var handler = rtspServer.getReqHandlers().getHandler(parseSessionId(id));
+		var worker = handler==null ? null : handler.getCurrentStreamWorker();
+		if(worker==null) {
+			respond(exchange, 404, error("No stream of session: " + id));
+			return;
+		}
+		Map<String, String> parameters = readParameters(exchange);
+		if(!parameters.keySet().equals(Set.of("profile"))) throw new IllegalArgumentException("Expected the profile parameter only!");
+		var profile = H264RtpImpairmentProfile.parse(parameters.get("profile"));
+		worker.setImpairment(profile);
+		writer.writeInfo("Admin: impairment of " + handler + " set to " + profile);
+		refresh();
+		respond(exchange, 200, snapshot.sessionsJson(new StringBuilder()).toString());
+	}
+
+	private static int parseSessionId(String id) {
+		try {
+			return Integer.parseInt(id);
+		} catch (NumberFormatException ex) {
+			throw new IllegalArgumentException("Invalid session id: " + id);
+		}
+	}
+
+	/**
+	 * Validates all settings before changing any of them
+	 */
+	private void changeSettings(Map<String, String> parameters) {
+		H264RtpImpairmentProfile impairment = null;
+		for(var parameter : parameters.entrySet()) {
+			switch(parameter.getKey()) {
+				case "impairment":
+					impairment = H264RtpImpairmentProfile.parse(parameter.getValue());
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown setting: " + parameter.getKey());
+			}
+		}
+
+		if(impairment!=null) rtspServer.setImpairment(impairment);
+		writer.writeInfo("Admin: settings changed " + parameters);
+	}
+
+	private String resourcesJson() {
+		StringBuilder sb = new StringBuilder("[");
+		for(var res : rtspServer.getResources().getResources()) {
+			if(sb.length()>1) sb.append(',');
+			sb.append("{\"id\":").append(res.getId());
+			sb.append(",\"name\":").append(ServerSnapshot.string(res.getName()));
+			sb.append(",\"uri\":").append(ServerSnapshot.string(res.getUriMapping()));
+			sb.append(",\"fps\":").append(res.getFps());
+			sb.append(",\"bitrateKbps\":").append(res.getBitrate());
+			sb.append('}');
+		}
+		return sb.append(']').toString();
+	}
+
+	/**
+	 * Reads the form parameters of the query and of the (form encoded) body
+	 */
+	private static Map<String, String> readParameters(HttpExchange exchange) throws IOException {
+		Map<String, String> parameters = new HashMap<>();
+		parseForm(exchange.getRequestURI().getRawQuery(), parameters);
+		try (InputStream is = exchange.getRequestBody()) {
+			byte[] body = is.readNBytes(MAX_BODY_SIZE + 1);
+			if(body.length>MAX_BODY_SIZE) throw new IllegalArgumentException("Request body is too large!");
+			parseForm(new String(body, StandardCharsets.UTF_8), parameters);
+		}
+		return parameters;
+	}
+
+	private static void parseForm(String form, Map<String, String> parameters) {
+		if(form==null || form.isBlank()) return;
+		for(String pair : form.trim().split("&")) {
+			if(pair.isEmpty()) continue;
+			int eq = pair.indexOf('=');
+			if(eq<0) throw new IllegalArgumentException("Expected name=value: " + pair);
+			parameters.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+					URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+		}
+	}
+
+	private static void requireMethod(String method, String expected) {
+		if(!method.equals(expected)) throw new MethodNotAllowed(expected);
+	}
+
+	private static String error(String message) {
+		return "{\"error\":" + ServerSnapshot.string(message) + "}";
+	}
+
+	private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+		byte[] body = json.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+		exchange.getResponseHeaders().set("Cache-Control", "no-store");
+		exchange.sendResponseHeaders(status, body.length);
+		try (OutputStream os = exchange.getResponseBody()) {
+			os.write(body);
+		}
+	}
+
+	/**
+	 * Returns the address the API is bound to
+	 * @return the bound address
+	 */
+	public InetSocketAddress getAddress() {
+		return server.getAddress();
+	}
+
+	/**
+	 * Stops the API and its snapshot thread; requests being served are given up to one second to complete
+	 */
+	@Override
+	public void close() {
+		server.stop(1);
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Thrown when a resource of the API does not support the method of the request
+	 */
+	@SuppressWarnings("serial")
+	private static class MethodNotAllowed extends RuntimeException {
+
+		private MethodNotAllowed(String allowed) {
+			super(allowed);
+		}
+
+	}
+
+}
@@ -0,0 +1,255 @@
+package hr.matija.rtpStreamer.admin;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import hr.matija.rtpStreamer.server.H264RtpImpairment;
+import hr.matija.rtpStreamer.server.H264RtpStreamBandwidthSupplier;
+import hr.matija.rtpStreamer.server.H264RtpStreamWorkerCollection;
+import hr.matija.rtpStreamer.server.H264RtpStreamWorkerCollection.H264RtpStreamWorker;
+import hr.matija.rtpStreamer.server.H264RtspReqHandlerCollection.H264RtspReqHandler;
+import hr.matija.rtpStreamer.server.H264RtspServer;
+
+/**
+ * Immutable state of a server at one moment: whether it runs, its packet settings and every
+ * connection with the statistics of its stream ({@link H264RtpStreamBandwidthSupplier}). Snapshots are
+ * taken by the snapshot thread of the {@link AdminHttpServer}, so requests of the admin API only
+ * serialize the latest snapshot and never walk the connections of the server.
+ * @author Matija
+ *
+ */
+public class ServerSnapshot {
+
+	private long timestamp;
+	private boolean running;
+	private int port;
+	private String impairment;
+	private int activeWorkers;
+	private int activeSessions;
+	private List<Session> sessions;
+
+	private ServerSnapshot() {
+	}
+
+	/**
+	 * Takes the snapshot of the server
+	 * @param server server whose state is taken
+	 * @return the snapshot
+	 */
+	public static ServerSnapshot take(H264RtspServer server) {
+		ServerSnapshot snapshot = new ServerSnapshot();
+		H264RtpStreamWorkerCollection workers = server.getReqHandlers().getStreamWorkerCollection();
+		snapshot.timestamp = System.currentTimeMillis();
+		snapshot.running = server.isRunning();
+		snapshot.port = server.getServerPort();
+		snapshot.impairment = workers.getImpairment().toString();
+		snapshot.activeWorkers = workers.getActiveWorkerCount();
+		snapshot.activeSessions = server.getReqHandlers().getSessionCount();
+
+		List<Session> sessions = new ArrayList<>();
+		for(var handler : server.getReqHandlers().getAllHandlers()) {
+			sessions.add(new Session(handler, snapshot.timestamp));
+		}
+		snapshot.sessions = Collections.unmodifiableList(sessions);
+		return snapshot;
+	}
+
+	/**
+	 * Returns the whole snapshot as a JSON object
+	 * @return the JSON of the snapshot
+	 */
+	public String toJson() {
+		StringBuilder sb = new StringBuilder(256 + 512*sessions.size());
+		sb.append("{\"timestamp\":").append(timestamp);
+		sb.append(",\"running\":").append(running);
+		sb.append(",\"port\":").append(port);
+		sb.append(",\"activeConnections\":").append(sessions.size());
+		sb.append(",\"activeWorkers\":").append(activeWorkers);
+		sb.append(",\"activeSessions\":").append(activeSessions);
+		sb.append(",\"settings\":");
+		settingsJson(sb);
+		sb.append(",\"sessions\":");
+		sessionsJson(sb);
+		return sb.append('}').toString();
+	}
+
+	/**
+	 * Appends the packet settings as a JSON object
+	 * @param sb builder the JSON is appended to
+	 * @return the builder
+	 */
+	public StringBuilder settingsJson(StringBuilder sb) {
+		sb.append("{\"impairment\":").append(string(impairment));
+		return sb.append('}');
+	}
+
+	/**
+	 * Appends the sessions as a JSON array
+	 * @param sb builder the JSON is appended to
+	 * @return the builder
+	 */
+	public StringBuilder sessionsJson(StringBuilder sb) {
+		sb.append('[');
+		for(int i=0; i<sessions.size(); i++) {
+			if(i>0) sb.append(',');
+			sessions.get(i).toJson(sb);
+		}
+		return sb.append(']');
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	public List<Session> getSessions() {
+		return sessions;
+	}
+
+	/**
+	 * Formats a double as a JSON number; NaN and infinities (not allowed in JSON) become null
+	 * @param value the value
+	 * @return the JSON number
+	 */
+	static String number(double value) {
+		if(Double.isNaN(value) || Double.isInfinite(value)) return "null";
+		return String.format(Locale.ROOT, "%.3f", value);
+	}
+
+	/**
+	 * Quotes a string as a JSON string
+	 * @param value the value, may be null
+	 * @return the JSON string or null
+	 */
+	static String string(String value) {
+		if(value==null) return "null";
+		StringBuilder sb = new StringBuilder(value.length() + 2).append('"');
+		for(int i=0; i<value.length(); i++) {
+			char c = value.charAt(i);
+			if(c=='"' || c=='\\') sb.append('\\').append(c);
+			else if(c<0x20) sb.append(String.format("\\u%04x", (int) c));
+			else sb.append(c);
+		}
+		return sb.append('"').toString();
+	}
+
+	/**
+	 * One connection of the snapshot and the statistics of its stream
+	 */
+	public static class Session {
+
+		private int id;
+		private String address;
+		private String session;
+		private long idleMillis;
+		private boolean hasStream;
+		private String resource;
+		private boolean streaming;
+		private boolean paused;
+		private double momentBandwidth;
+		private double averageBandwidth;
+		private double minimumBandwidth;
+		private double maximumBandwidth;
+		private double packetLoss;
+		private long cumulativePacketLoss;
+		private double jitter;
+		private double roundTripTime;
+		private long packets;
+		private long octets;
+		private long droppedFrames;
+		private String impairment;
+		private long impairedLost;
+		private long impairedDuplicated;
+		private long impairedReordered;
+		private long impairedDelayed;
+		private long impairedOverflowed;
+
+		private Session(H264RtspReqHandler handler, long now) {
+			id = handler.getId();
+			address = handler.getInetAddress().getHostAddress();
+			session = handler.getSession();
+			idleMillis = now - handler.getLastActivity();
+
+			H264RtpStreamWorker worker = handler.getCurrentStreamWorker();
+			if(worker==null) return;
+			hasStream = true;
+			resource = worker.getResource().getUriMapping();
+			streaming = worker.isStreaming();
+			paused = worker.isPaused();
+			momentBandwidth = worker.getMomentBandwidth();
+			averageBandwidth = worker.getAverageBandwidth();
+			minimumBandwidth = worker.getMinimumBandwidth();
+			maximumBandwidth = worker.getMaximumBandwidth();
+			packetLoss = worker.getPacketLoss();
+			cumulativePacketLoss = worker.getCumulativePacketLoss();
+			jitter = worker.getJitter();
+			roundTripTime = worker.getRoundTripTime();
+			if(worker.getMetrics()!=null) {
+				packets = worker.getMetrics().getPackets();
+				octets = worker.getMetrics().getOctets();
+				droppedFrames = worker.getMetrics().getDroppedFrames();
+			}
+			H264RtpImpairment stage = worker.getImpairment();
+			if(stage!=null) {
+				impairment = stage.getProfile().toString();
+				impairedLost = stage.getLost();
+				impairedDuplicated = stage.getDuplicated();
+				impairedReordered = stage.getReordered();
+				impairedDelayed = stage.getDelayed();
+				impairedOverflowed = stage.getOverflowed();
+			}
+		}
+
+		private void toJson(StringBuilder sb) {
+			sb.append("{\"id\":").append(id);
+			sb.append(",\"address\":").append(string(address));
+			sb.append(",\"session\":").append(string(session));
+			sb.append(",\"idleMillis\":").append(idleMillis);
+			if(!hasStream) {
+				sb.append(",\"stream\":null}");
+				return;
+			}
+			sb.append(",\"stream\":{\"resource\":").append(string(resource));
+			sb.append(",\"streaming\":").append(streaming);
+			sb.append(",\"paused\":").append(paused);
+			sb.append(",\"momentBandwidthMbps\":").append(number(momentBandwidth));
+			sb.append(",\"averageBandwidthMbps\":").append(number(averageBandwidth));
+			sb.append(",\"minimumBandwidthMbps\":").append(number(minimumBandwidth));
+			sb.append(",\"maximumBandwidthMbps\":").append(number(maximumBandwidth));
+			sb.append(",\"packetLoss\":").append(number(packetLoss));
+			sb.append(",\"cumulativePacketLoss\":").append(cumulativePacketLoss);
+			sb.append(",\"jitterMillis\":").append(number(jitter));
+			sb.append(",\"roundTripMillis\":").append(roundTripTime<0 ? "null" : number(roundTripTime));
+			sb.append(",\"packetsSent\":").append(packets);
+			sb.append(",\"bytesSent\":").append(octets);
+			sb.append(",\"framesDropped\":").append(droppedFrames);
+			sb.append(",\"impairment\":");
+			if(impairment==null) {
+				sb.append("null}}");
+				return;
+			}
+			sb.append("{\"profile\":").append(string(impairment));
+			sb.append(",\"lost\":").append(impairedLost);
+			sb.append(",\"duplicated\":").append(impairedDuplicated);
+			sb.append(",\"reordered\":").append(impairedReordered);
+			sb.append(",\"delayed\":").append(impairedDelayed);
+			sb.append(",\"overflowed\":").append(impairedOverflowed);
+			sb.append("}}}");
+		}
+
+		public int getId() {
+			return id;
+		}
+
+		public String getSession() {
+			return session;
+		}
+
+	}
+
+}
@@ -2,21 +2,66 @@ package hr.matija.rtpStreamer.console;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writer of the server log. Messages are only put into a bounded lock-free ring, so the rtsp and
+ * stream threads never wait for the output streams. One drain thread takes the messages out of the
+ * ring in batches and writes every batch to every output stream with one write and one flush. When
+ * the ring is full the message is dropped and counted; the drain thread reports the number of dropped
+ * messages with the next batch. An output stream which fails is reported once to the standard error
+ * and skipped by later batches.
+ * @author Matija
+ *
+ */
+public class ConsoleWriter implements AutoCloseable {
+
+	/**
+	 * Number of messages the ring holds
+	 */
+	public static final int DEFAULT_CAPACITY = 8192;
+
+	private static final int MAX_BATCH = 256;
+	private static final long IDLE_PARK_NANOS = 100_000_000L;
+	private static final String NEWLINE = System.lineSeparator();
 
-public class ConsoleWriter {
-	
 	private List<OutputStream> outputStreams;
-	
+	private Ring ring;
+	private LongAdder dropped = new LongAdder();
+	private Thread drainer;
+	private volatile boolean idle;
+	private volatile boolean closed;
+
 	public ConsoleWriter(List<OutputStream> outputStreams) {
-		this.outputStreams = Objects.requireNonNull(outputStreams);
+		this(outputStreams, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates the writer and starts its drain thread
+	 * @param outputStreams output streams the log is written to; more can be added later with {@link #addOutputStream(OutputStream)}
+	 * @param capacity number of messages the ring holds (rounded up to a power of two)
+	 */
+	public ConsoleWriter(List<OutputStream> outputStreams, int capacity) {
+		this.outputStreams = new CopyOnWriteArrayList<>(Objects.requireNonNull(outputStreams));
+		this.ring = new Ring(capacity);
+		drainer = new Thread(this::drain, "console-writer");
+		drainer.setDaemon(true);
+		drainer.start();
 	}
-	
+
 	public void writeInfo(String info) {
 		writeln("[INFO] " + info);
 	}
-	
+
 	public void writeWarning(String warning) {
 		writeln("[WARNING] " + warning);
 	}
@@ -24,26 +69,150 @@ public class ConsoleWriter {
 	public void writeError(String error) {
 		writeln("[ERROR] " + error);
 	}
-	
+
+	/**
+	 * Returns the output streams the log is written to. Returned list is safe to modify while the log is written.
+	 * @return the output streams
+	 */
 	public List<OutputStream> getOutputStreams() {
 		return outputStreams;
 	}
-		
+
+	/**
+	 * Adds an output stream; it receives the messages of the next batch on
+	 * @param os the output stream
+	 */
+	public void addOutputStream(OutputStream os) {
+		outputStreams.add(Objects.requireNonNull(os));
+	}
+
+	/**
+	 * Queues the message; it never blocks
+	 * @param msg the message
+	 */
 	public void write(String msg) {
-		byte[] m = msg.getBytes();
-		for(var os : outputStreams) {
-			try {
-				os.write(m);
-				os.flush();
-			} catch (IOException ex) {
-				throw new RuntimeException(ex);
-			}
+		if(closed || !ring.offer(msg)) {
+			dropped.increment();
+			return;
 		}
+		if(idle) LockSupport.unpark(drainer);
 	}
-	
+
 	public void writeln(String msg) {
-		msg = String.format("%s%n", msg);
-		write(msg);
+		write(msg + NEWLINE);
+	}
+
+	/**
+	 * Returns the number of messages dropped because the ring was full
+	 * @return the number of dropped messages since the last report of the drain thread
+	 */
+	public long getDropped() {
+		return dropped.sum();
+	}
+
+	/**
+	 * Writes the queued messages and stops the drain thread (waits for it up to one second).
+	 * Messages written after this are dropped.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		LockSupport.unpark(drainer);
+		try {
+			drainer.join(1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void drain() {
+		StringBuilder batch = new StringBuilder(8192);
+		List<OutputStream> failed = new ArrayList<>();
+		while(true) {
+			String msg = ring.poll();
+			if(msg==null) {
+				if(closed) break;
+				idle = true;
+				msg = ring.poll(); // message queued before the idle flag was seen
+				if(msg==null) {
+					LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+					idle = false;
+					continue;
+				}
+				idle = false;
+			}
+
+			batch.setLength(0);
+			long lost = dropped.sumThenReset();
+			if(lost>0) batch.append("[WARNING] ").append(lost).append(" log messages dropped").append(NEWLINE);
+			batch.append(msg);
+			for(int n=1; n<MAX_BATCH && (msg = ring.poll())!=null; n++) batch.append(msg);
+
+			byte[] bytes = batch.toString().getBytes(Charset.defaultCharset());
+			for(var os : outputStreams) {
+				if(failed.contains(os)) continue;
+				try {
+					os.write(bytes);
+					os.flush();
+				} catch (IOException | RuntimeException ex) {
+					failed.add(os);
+					System.err.println("Log output stream failed and is skipped: " + ex);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Bounded lock-free ring with many producers and one consumer. Every slot has a sequence number
+	 * which tells whose turn it is: producer of position p claims the slot when its sequence is p,
+	 * publishes it by setting the sequence to p+1, and the consumer frees it by setting the sequence
+	 * to p+capacity.
+	 */
+	private static class Ring {
+
+		private AtomicReferenceArray<String> slots;
+		private AtomicLongArray sequences;
+		private int mask;
+		private AtomicLong tail = new AtomicLong();
+		private long head;              // consumer only
+
+		private Ring(int capacity) {
+			if(capacity<=0) throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+			int size = Integer.highestOneBit(capacity);
+			if(size<capacity) size <<= 1;
+			slots = new AtomicReferenceArray<>(size);
+			sequences = new AtomicLongArray(size);
+			for(int i=0; i<size; i++) sequences.set(i, i);
+			mask = size - 1;
+		}
+
+		private boolean offer(String msg) {
+			while(true) {
+				long position = tail.get();
+				int index = (int) (position & mask);
+				long difference = sequences.get(index) - position;
+				if(difference==0) {
+					if(tail.compareAndSet(position, position + 1)) {
+						slots.lazySet(index, msg);
+						sequences.set(index, position + 1);
+						return true;
+					}
+				} else if(difference<0) {
+					return false; // full
+				}
+			}
+		}
+
+		private String poll() {
+			int index = (int) (head & mask);
+			if(sequences.get(index)!=head + 1) return null;
+			String msg = slots.get(index);
+			slots.lazySet(index, null);
+			sequences.set(index, head + mask + 1);
+			head++;
+			return msg;
+		}
+
 	}
 
 }
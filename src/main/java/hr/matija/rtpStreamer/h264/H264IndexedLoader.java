@@ -0,0 +1,67 @@
+package hr.matija.rtpStreamer.h264;
+
+import java.util.Objects;
+
+/**
+ * Loader of the h264 nal units of an already indexed file. Acts as a cheap cursor
+ * over the shared {@link H264NalIndex}; nal units are views of the shared file data.
+ * @author Matija
+ *
+ */
+public class H264IndexedLoader implements H264Loader {
+
+	private H264NalIndex index;
+	private int position = -1;
+
+	private NalUnit nextNal;
+
+	/**
+	 * Initializes the loader at the beginning of the indexed file
+	 * @param index index of the file
+	 */
+	public H264IndexedLoader(H264NalIndex index) {
+		this.index = Objects.requireNonNull(index);
+	}
+
+	@Override
+	public boolean nextNalUnit() {
+		if(position+1>=index.getNalUnitCount()) {
+			position = index.getNalUnitCount();
+			nextNal = null;
+			return false;
+		}
+
+		nextNal = index.getNalUnit(++position);
+		return true;
+	}
+
+	@Override
+	public NalUnit getNalUnit() {
+		if(nextNal==null) throw new IllegalStateException("No NAL units to return!");
+		return nextNal;
+	}
+
+	/**
+	 * Moves the loader to the beginning of the given access unit; the following
+	 * {@link #nextNalUnit()} returns its first nal unit.
+	 * @param accessUnit index of the access unit
+	 */
+	public void seekToAccessUnit(int accessUnit) {
+		position = index.getAccessUnitStart(accessUnit) - 1;
+		nextNal = null;
+	}
+
+	/**
+	 * Returns the index this loader reads from
+	 * @return the index this loader reads from
+	 */
+	public H264NalIndex getIndex() {
+		return index;
+	}
+
+	@Override
+	public void close() {
+		nextNal = null;
+	}
+
+}
@@ -2,92 +2,301 @@ package hr.matija.rtpStreamer.h264;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import hr.matija.rtpStreamer.h264.NalUnit.NalUnitType;
 
+/**
+ * Loader of the h264 nal units of a live feed captured by an external process (ffmpeg by default)
+ * which writes the annex B byte stream to its standard output. A dedicated reader thread drains the
+ * output of the process in bulk reads into a ring buffer, so the process never stalls on a full pipe,
+ * and {@link #nextNalUnit()} splits the buffered bytes into nal units incrementally (every byte is
+ * scanned once). When the process ends (camera unplugged, replayed file finished) it is started again
+ * after a delay which doubles with every restart that did not produce any data. <br>
+ * Nal unit is complete when the start code of the next one arrives, so the last slice of a picture
+ * is loaded together with the access unit delimiter of the following picture.
+ * @author Matija
+ *
+ */
 public class H264LiveCameraLoader implements H264Loader {
-	
-	private static int kibi64 = 64*1024;
-	
-	private NalUnit nextNal;
-	private boolean firstNal = true;
-	
+
+	/**
+	 * Capacity of the ring buffer between the reader thread and the nal unit splitter
+	 */
+	public static final int BUFFER_CAPACITY = 4*1024*1024;
+
+	private static final int READ_SIZE = 64*1024;
+	private static final long MIN_RESTART_DELAY_MILLIS = 500;
+	private static final long MAX_RESTART_DELAY_MILLIS = 30_000;
+	private static final byte[] START_CODE = {0, 0, 1};
+
+	private List<String> command;
 	private ProcessBuilder pb;
-	private Process currentProcess;
-	private InputStream is;
-	
+	private volatile Process currentProcess;
+	private Thread reader;
+	private volatile boolean closed;
+	private volatile long restarts;
+
+	private byte[] ring = new byte[BUFFER_CAPACITY];
+	private int mask = BUFFER_CAPACITY - 1;
+	private long written;    // bytes written by the reader thread, guarded by the lock
+	private long consumed;   // bytes released by the splitter, guarded by the lock
+	private ReentrantLock lock = new ReentrantLock();
+	private Condition dataWritten = lock.newCondition();
+	private Condition spaceReleased = lock.newCondition();
+
+	private long scanned;        // bytes already searched for a start code
+	private long nalStart = -1;  // first byte of the current nal unit, -1 before the first start code
+	private boolean firstNal = true;
+	private NalUnit nextNal;
+
+	/**
+	 * Captures the given camera with ffmpeg, using the capture device of the platform (dshow on
+	 * Windows, avfoundation on macOS and v4l2 elsewhere)
+	 * @param cameraName name of the camera (on linux the path of the device, e.g. <code>/dev/video0</code>)
+	 * @throws IOException if the capture process cannot be started
+	 */
 	public H264LiveCameraLoader(String cameraName) throws IOException {
-		pb = new ProcessBuilder(("ffmpeg -f dshow -i video=\"" + cameraName + "\" "
-				+ "-c:v libx264 -preset ultrafast -tune zerolatency -x264opts aud=1 -bsf "
-				+ "h264_mp4toannexb -an -f h264 pipe:1").split(" "));
-		currentProcess = pb.start();
-		is = currentProcess.getInputStream();
+		this(defaultCommand(cameraName));
 	}
 
-	@Override
-	public void close() throws Exception {
-		if(is!=null) is.close();
-		if(currentProcess!=null) currentProcess.destroy();
+	/**
+	 * Runs the given capture command. Command must write raw h264 in the annex B format with access
+	 * unit delimiters to its standard output, for example
+	 * <code>ffmpeg -re -f lavfi -i testsrc=size=640x480:rate=30 -c:v libx264 -tune zerolatency -x264opts aud=1 -f h264 pipe:1</code>
+	 * @param command program and its arguments
+	 * @throws IOException if the capture process cannot be started
+	 */
+	public H264LiveCameraLoader(List<String> command) throws IOException {
+		if(command.isEmpty()) throw new IllegalArgumentException("Capture command is empty!");
+		this.command = List.copyOf(command);
+		pb = new ProcessBuilder(this.command);
+		pb.redirectError(ProcessBuilder.Redirect.DISCARD); // a full stderr pipe would block ffmpeg
+		currentProcess = startProcess();
+
+		reader = new Thread(this::read, "capture " + this.command.get(0));
+		reader.setDaemon(true);
+		reader.start();
 	}
 
-	@Override
-	public boolean nextNalUnit() throws IOException {
-		
-		byte[] data = new byte[kibi64];
-		int dataLen = 0;
-		
-		int state = 0;
-outer:	while(true) {
-	
-			int next;
-			next = is.read();
-	
-			if(is.available()==0) {
-				System.out.println("change");
-				is.close();
+	/**
+	 * Returns the ffmpeg command capturing the given camera with the capture device of this platform
+	 * @param cameraName name of the camera
+	 * @return the capture command
+	 */
+	public static List<String> defaultCommand(String cameraName) {
+		String os = System.getProperty("os.name", "").toLowerCase(Locale.ROOT);
+		List<String> command = new ArrayList<>(List.of("ffmpeg", "-nostdin", "-loglevel", "error"));
+		if(os.contains("win")) command.addAll(List.of("-f", "dshow", "-i", "video=" + cameraName));
+		else if(os.contains("mac")) command.addAll(List.of("-f", "avfoundation", "-i", cameraName));
+		else command.addAll(List.of("-f", "v4l2", "-i", cameraName));
+		command.addAll(List.of("-c:v", "libx264", "-preset", "ultrafast", "-tune", "zerolatency", "-x264opts", "aud=1",
+				"-bsf:v", "h264_mp4toannexb", "-an", "-f", "h264", "pipe:1"));
+		return command;
+	}
+
+	/**
+	 * Splits the command line into the program and its arguments. Arguments are separated by
+	 * whitespace; double quotes group an argument containing whitespace.
+	 * @param commandLine command line
+	 * @return the program and its arguments
+	 * @throws IllegalArgumentException if a quote is not closed
+	 */
+	public static List<String> parseCommand(String commandLine) {
+		List<String> command = new ArrayList<>();
+		StringBuilder arg = new StringBuilder();
+		boolean quoted = false;
+		boolean inArg = false;
+		for(int i=0; i<commandLine.length(); i++) {
+			char c = commandLine.charAt(i);
+			if(c=='"') {
+				quoted = !quoted;
+				inArg = true;
+			} else if(Character.isWhitespace(c) && !quoted) {
+				if(inArg) command.add(arg.toString());
+				arg.setLength(0);
+				inArg = false;
+			} else {
+				arg.append(c);
+				inArg = true;
+			}
+		}
+		if(quoted) throw new IllegalArgumentException("Unclosed quote: " + commandLine);
+		if(inArg) command.add(arg.toString());
+		return command;
+	}
+
+	private Process startProcess() throws IOException {
+		Process process = pb.start();
+		process.getOutputStream().close(); // nothing is ever typed into the capture process
+		return process;
+	}
+
+	/**
+	 * Reader thread: drains the output of the capture process into the ring buffer and restarts the
+	 * process when its output ends
+	 */
+	private void read() {
+		byte[] chunk = new byte[READ_SIZE];
+		long delay = MIN_RESTART_DELAY_MILLIS;
+		try {
+			while(!closed) {
+				boolean produced = false;
+				try (InputStream is = currentProcess.getInputStream()) {
+					int n;
+					while((n = is.read(chunk))>0) {
+						write(chunk, n);
+						produced = true;
+					}
+				} catch (IOException ex) {
+					if(closed) return; // stream closed by close()
+				}
 				currentProcess.destroy();
-				try {
-					currentProcess.waitFor();
-				} catch (InterruptedException e) {
-					throw new RuntimeException(e);
+				if(closed) return;
+
+				// start code ends the last nal unit of the finished process
+				write(START_CODE, START_CODE.length);
+				if(produced) delay = MIN_RESTART_DELAY_MILLIS;
+				Thread.sleep(delay);
+				delay = Math.min(delay*2, MAX_RESTART_DELAY_MILLIS);
+
+				while(!closed) {
+					try {
+						currentProcess = startProcess();
+						restarts++;
+						break;
+					} catch (IOException ex) {
+						Thread.sleep(delay); // capture program is (temporarily) not available
+						delay = Math.min(delay*2, MAX_RESTART_DELAY_MILLIS);
+					}
+				}
+			}
+		} catch (InterruptedException ex) {
+			// closed
+		} finally {
+			if(closed && currentProcess!=null) currentProcess.destroy();
+		}
+	}
+
+	private void write(byte[] chunk, int length) throws InterruptedException {
+		int off = 0;
+		while(off<length) {
+			long position;
+			int n;
+			lock.lock();
+			try {
+				while(written - consumed == ring.length) {
+					if(closed) return;
+					spaceReleased.await();
 				}
-				currentProcess = pb.start();
-				is = currentProcess.getInputStream();
+				position = written;
+				n = (int) Math.min(length - off, ring.length - (written - consumed));
+			} finally {
+				lock.unlock();
 			}
 
-			if(next==-1) break;
-			
-			byte nextByte = (byte) next;
-			data[dataLen++] = nextByte;
-			switch(state) {
-				case 0: if(nextByte==0) state = 1; break;
-				case 1: if(nextByte==0) state = 2;
-						else state = 0;
-						break;
-				case 2: if(nextByte!=0 && nextByte!=1) {state = 0; break;}
-						if(nextByte==0) next = is.read(); //eat the next 0x1
-						dataLen-=3;
-						break outer;
+			int index = (int) (position & mask);
+			int first = Math.min(n, ring.length - index);
+			System.arraycopy(chunk, off, ring, index, first);
+			System.arraycopy(chunk, off + first, ring, 0, n - first);
+			off += n;
+
+			lock.lock();
+			try {
+				written += n;
+				dataWritten.signalAll();
+			} finally {
+				lock.unlock();
 			}
 		}
-		
-		if(dataLen==0 && firstNal) {
-			firstNal = false;
-			boolean ret = nextNalUnit();
-			if(ret==false) return false;
-			if(getNalUnit().getType() == NalUnitType.ACCESS_UNIT_DELIMITER) return nextNalUnit();
+	}
+
+	@Override
+	public boolean nextNalUnit() throws IOException {
+		while(true) {
+			long end = findStartCode();
+			if(end<0) {
+				nextNal = null;
+				return false; // closed
+			}
+
+			long start = nalStart;
+			nalStart = end + START_CODE.length;
+			long nalEnd = end;
+			while(nalEnd>start && start>=0 && ring[(int) ((nalEnd-1) & mask)]==0) nalEnd--; // trailing zeros and zero of the 4 byte start code
+			if(start<0 || nalEnd==start) { // bytes before the first start code, empty nal unit between two processes
+				release(nalStart);
+				continue;
+			}
+
+			byte[] data = new byte[(int) (nalEnd - start)];
+			int index = (int) (start & mask);
+			int first = Math.min(data.length, ring.length - index);
+			System.arraycopy(ring, index, data, 0, first);
+			System.arraycopy(ring, 0, data, first, data.length - first);
+			release(nalStart);
+			nextNal = new NalUnit(ByteBuffer.wrap(data));
+
+			if(firstNal) {
+				firstNal = false;
+				if(nextNal.getType()==NalUnitType.ACCESS_UNIT_DELIMITER) continue; // stream must not start with a delimiter
+			}
 			return true;
 		}
-		firstNal = false;
-		
-		if(dataLen!=0) {
-			nextNal = new NalUnit(data, dataLen);
-			return true;
-		} else {
-			nextNal = null;
-			return false;
+	}
+
+	/**
+	 * Waits for the next start code and returns its position. Scanning continues where the previous
+	 * call stopped; a nal unit longer than the ring buffer is dropped.
+	 * @return position of the next start code or -1 if the loader is closed
+	 */
+	private long findStartCode() {
+		while(true) {
+			long available;
+			lock.lock();
+			try {
+				while(written - scanned < START_CODE.length && !closed) dataWritten.await();
+				if(closed) return -1;
+				available = written;
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				return -1;
+			} finally {
+				lock.unlock();
+			}
+
+			for(; scanned + START_CODE.length <= available; scanned++) {
+				if(ring[(int) ((scanned+2) & mask)]==1 && ring[(int) ((scanned+1) & mask)]==0 && ring[(int) (scanned & mask)]==0) {
+					long position = scanned;
+					scanned += START_CODE.length;
+					return position;
+				}
+			}
+
+			if(nalStart>=0 && available - nalStart >= ring.length - START_CODE.length) {
+				nalStart = -1; // oversized nal unit, resynchronize on the next start code
+				release(scanned);
+			} else if(nalStart<0) {
+				release(scanned);
+			}
+		}
+	}
+
+	private void release(long position) {
+		lock.lock();
+		try {
+			if(position>consumed) {
+				consumed = position;
+				spaceReleased.signalAll();
+			}
+		} finally {
+			lock.unlock();
 		}
-		
 	}
 
 	@Override
@@ -96,4 +305,35 @@ outer:	while(true) {
 		return nextNal;
 	}
 
+	/**
+	 * Returns the number of times the capture process was started again after its output ended
+	 * @return the number of restarts of the capture process
+	 */
+	public long getRestartCount() {
+		return restarts;
+	}
+
+	/**
+	 * Returns the capture command
+	 * @return the program and its arguments
+	 */
+	public List<String> getCommand() {
+		return command;
+	}
+
+	@Override
+	public void close() throws Exception {
+		closed = true;
+		Process process = currentProcess;
+		if(process!=null) process.destroy();
+		if(reader!=null) reader.interrupt();
+		lock.lock();
+		try {
+			dataWritten.signalAll();
+			spaceReleased.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
 }
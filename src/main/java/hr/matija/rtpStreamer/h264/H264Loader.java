@@ -21,5 +21,14 @@ public interface H264Loader extends AutoCloseable{
 	 * @return nal unit on which the cursor is currently poining.
 	 */
 	NalUnit getNalUnit();
+	
+	/**
+	 * Returns true iff the next access unit can be loaded without waiting for the source
+	 * (e.g. a live feed). Loaders reading from a file are always ready.
+	 * @return true iff loading the next access unit will not block
+	 */
+	default boolean isAccessUnitReady() {
+		return true;
+	}
 
 }
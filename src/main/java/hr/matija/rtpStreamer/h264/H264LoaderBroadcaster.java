@@ -0,0 +1,475 @@
+package hr.matija.rtpStreamer.h264;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import hr.matija.rtpStreamer.h264.NalUnit.NalUnitType;
+
+/**
+ * Broadcast hub which reads the nal units from one source loader exactly once and
+ * publishes them, grouped into access units, into a ring buffer shared by all subscribers.
+ * Source is opened when the first subscriber arrives and closed when the last one leaves.
+ * Every subscriber reads the ring with its own cursor; subscriber that falls behind by more
+ * than the capacity of the ring does not block the producer, it skips to the next access
+ * unit containing an IDR slice instead. <br>
+ * The ring doubles as the cache of the latest group of pictures: new subscriber starts at the
+ * most recent IDR access unit still in the ring (and catches up from there), and the latest
+ * sequence and picture parameter sets are sent ahead of its first keyframe, so a late joiner
+ * can decode its very first frame even if the source sends the parameter sets only once. <br>
+ * Subscribers which must not block (streams sent from the scheduler) check {@link Subscription#isAccessUnitReady()}
+ * and register a wakeup with {@link Subscription#onAccessUnit(Runnable)}, which the producer runs when it
+ * publishes the next access unit.
+ * @author Matija
+ *
+ */
+public class H264LoaderBroadcaster implements AutoCloseable {
+
+	/**
+	 * Default number of access units kept in the ring
+	 */
+	public static final int DEFAULT_CAPACITY = 512;
+
+	private String name;
+	private Callable<H264Loader> sourceFactory;
+
+	private AccessUnit[] ring;
+	private int mask;
+	private volatile long published;            // number of access units published so far
+	private volatile boolean finished = true;   // producer is not running
+	private volatile Exception failure;
+	private volatile long lastKeyframe = -1;    // sequence of the latest published IDR access unit
+	private volatile NalUnit sps;               // latest sequence parameter set of the source
+	private volatile NalUnit pps;               // latest picture parameter set of the source
+
+	private int subscribers;
+	private List<Subscription> subscriptions = new CopyOnWriteArrayList<>(); // woken up by the producer
+	private volatile Thread producer;
+	private H264Loader source;
+
+	private ReentrantLock lock = new ReentrantLock();
+	private Condition newAccessUnit = lock.newCondition();
+
+	/**
+	 * Creates the broadcaster with the {@link #DEFAULT_CAPACITY}
+	 * @param name name of the broadcaster (used for naming the producer thread)
+	 * @param sourceFactory opens the source loader when the first subscriber arrives
+	 */
+	public H264LoaderBroadcaster(String name, Callable<H264Loader> sourceFactory) {
+		this(name, sourceFactory, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates the broadcaster
+	 * @param name name of the broadcaster (used for naming the producer thread)
+	 * @param sourceFactory opens the source loader when the first subscriber arrives
+	 * @param capacity number of access units kept in the ring, must be a power of two
+	 */
+	public H264LoaderBroadcaster(String name, Callable<H264Loader> sourceFactory, int capacity) {
+		if(capacity<=0 || Integer.bitCount(capacity)!=1) throw new IllegalArgumentException("Capacity must be a power of two!");
+		this.name = Objects.requireNonNull(name);
+		this.sourceFactory = Objects.requireNonNull(sourceFactory);
+		this.ring = new AccessUnit[capacity];
+		this.mask = capacity - 1;
+	}
+
+	/**
+	 * Subscribes to the broadcast. Subscription starts with the latest IDR access unit still in the
+	 * ring, or with the next IDR access unit if there is none. If this is the first subscriber,
+	 * source is opened and the producer is started.
+	 * @return new subscription which needs to be closed when no longer used
+	 * @throws IOException if the source cannot be opened
+	 */
+	public synchronized Subscription subscribe() throws IOException {
+		if(subscribers==0) start();
+		subscribers++;
+		
+		long keyframe = lastKeyframe;
+		Subscription subscription = keyframe>=0 && published - keyframe < ring.length
+				? new Subscription(keyframe, false) : new Subscription(published, true);
+		subscriptions.add(subscription);
+		return subscription;
+	}
+
+	private synchronized void unsubscribe(Subscription subscription) {
+		subscriptions.remove(subscription);
+		if(--subscribers==0) stop();
+	}
+
+	private void start() throws IOException {
+		try {
+			source = sourceFactory.call();
+		} catch (IOException ex) {
+			throw ex;
+		} catch (Exception ex) {
+			throw new IOException(ex);
+		}
+
+		Thread producer = new Thread(this::produce, "broadcaster " + name);
+		producer.setDaemon(true);
+		this.producer = producer;
+		failure = null;
+		lastKeyframe = -1; // ring holds the pictures of the previous run of the source
+		sps = null;
+		pps = null;
+		finished = false;
+		producer.start();
+	}
+
+	private void stop() {
+		Thread producer = this.producer;
+		this.producer = null;
+		if(producer!=null) producer.interrupt();
+		try {
+			if(source!=null) source.close();
+		} catch (Exception ignorable) {
+		}
+		source = null;
+	}
+
+	/**
+	 * Reads the source and publishes its access units until the source ends or the producer is stopped
+	 */
+	private void produce() {
+		H264Loader source = this.source;
+		Thread self = Thread.currentThread();
+		List<NalUnit> nalUnits = new ArrayList<>();
+		boolean keyframe = false;
+
+		try {
+			while(producer==self) {
+				boolean hasNext = source.nextNalUnit();
+				if(hasNext && source.getNalUnit().getType()!=NalUnitType.ACCESS_UNIT_DELIMITER) {
+					NalUnit nal = source.getNalUnit();
+					if(nal.getType()==NalUnitType.CODED_SLICE_IDR) keyframe = true;
+					else if(nal.getType()==NalUnitType.SEQUENCE_PARAMETER_SET) sps = nal;
+					else if(nal.getType()==NalUnitType.PICTURE_PARAMETER_SET) pps = nal;
+					nalUnits.add(nal);
+					continue;
+				}
+
+				if(!nalUnits.isEmpty()) {
+					publish(new AccessUnit(published, nalUnits, hasNext ? source.getNalUnit() : null, keyframe));
+					nalUnits = new ArrayList<>();
+					keyframe = false;
+				}
+				if(!hasNext) break;
+			}
+		} catch (Exception ex) {
+			if(producer==self) failure = ex;
+		} finally {
+			lock.lock();
+			try {
+				if(producer==self || producer==null) finished = true; // else the producer has already been restarted
+				newAccessUnit.signalAll();
+			} finally {
+				lock.unlock();
+			}
+			wakeSubscribers();
+		}
+	}
+
+	private void publish(AccessUnit accessUnit) {
+		ring[(int) (accessUnit.sequence & mask)] = accessUnit;
+		if(accessUnit.keyframe) lastKeyframe = accessUnit.sequence;
+		lock.lock();
+		try {
+			published = accessUnit.sequence + 1;
+			newAccessUnit.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		wakeSubscribers();
+	}
+
+	private void wakeSubscribers() {
+		for(Subscription subscription : subscriptions) {
+			subscription.wake();
+		}
+	}
+
+	/**
+	 * Returns the number of current subscribers
+	 * @return the number of current subscribers
+	 */
+	public synchronized int getSubscriberCount() {
+		return subscribers;
+	}
+
+	/**
+	 * Returns the sequence of the latest published IDR access unit
+	 * @return the sequence of the latest IDR access unit or -1 if there is none
+	 */
+	public long getLastKeyframe() {
+		return lastKeyframe;
+	}
+
+	/**
+	 * Returns the latest sequence and picture parameter set of the source
+	 * @return the parameter sets in decoding order (SPS first), empty if the source has not sent them yet
+	 */
+	public List<NalUnit> getParameterSets() {
+		NalUnit sps = this.sps;
+		NalUnit pps = this.pps;
+		List<NalUnit> parameterSets = new ArrayList<>(2);
+		if(sps!=null) parameterSets.add(sps);
+		if(pps!=null) parameterSets.add(pps);
+		return parameterSets;
+	}
+
+	/**
+	 * Returns the number of access units published since the source was opened for the first time
+	 * @return the number of published access units
+	 */
+	public long getPublishedCount() {
+		return published;
+	}
+
+	@Override
+	public synchronized void close() {
+		stop();
+	}
+
+	/**
+	 * Access unit published into the ring. Fields are final: a lagging subscriber may read a slot the
+	 * producer has just reused, before the write of {@link #published} which would order the two, and
+	 * final fields guarantee it sees the unit fully constructed (its sequence then tells it is too new).
+	 */
+	private static class AccessUnit {
+		private final long sequence;
+		private final List<NalUnit> nalUnits;
+		private final NalUnit delimiter;
+		private final boolean keyframe;
+
+		private AccessUnit(long sequence, List<NalUnit> nalUnits, NalUnit delimiter, boolean keyframe) {
+			this.sequence = sequence;
+			this.nalUnits = Collections.unmodifiableList(nalUnits);
+			this.delimiter = delimiter;
+			this.keyframe = keyframe;
+		}
+	}
+
+	/**
+	 * Subscription to the broadcast. Acts as a loader of the broadcasted nal units; access units
+	 * are separated by the access unit delimiters just like in the source.
+	 * @author Matija
+	 *
+	 */
+	public class Subscription implements H264Loader {
+
+		private long cursor;             // sequence of the next access unit to read
+		private AccessUnit current;
+		private int nalPosition;
+		private boolean resync;
+		private AccessUnit ready;              // deliverable access unit found by isAccessUnitReady, read next
+		private boolean decoderReset = true;   // next keyframe starts the decoding, parameter sets must precede it
+		private Deque<NalUnit> parameterSets = new ArrayDeque<>(2);
+		private long skipped;
+
+		private NalUnit nextNal;
+		private boolean closed;
+		private AtomicReference<Runnable> wakeup = new AtomicReference<>();
+
+		private Subscription(long cursor, boolean resync) {
+			this.cursor = cursor;
+			this.resync = resync;
+		}
+
+		@Override
+		public boolean nextNalUnit() throws IOException {
+			if(closed) throw new IllegalStateException("Subscription is closed!");
+
+			if(!parameterSets.isEmpty()) {
+				nextNal = parameterSets.poll();
+				return true;
+			}
+			if(current!=null) {
+				if(nalPosition<current.nalUnits.size()) {
+					nextNal = current.nalUnits.get(nalPosition++);
+					return true;
+				}
+				AccessUnit previous = current;
+				current = null;
+				if(previous.delimiter!=null) {
+					nextNal = previous.delimiter;
+					return true;
+				}
+			}
+
+			current = take();
+			if(current==null) {
+				nextNal = null;
+				return false;
+			}
+			if(decoderReset && current.keyframe) {
+				decoderReset = false;
+				addMissingParameterSet(NalUnitType.SEQUENCE_PARAMETER_SET, sps);
+				addMissingParameterSet(NalUnitType.PICTURE_PARAMETER_SET, pps);
+				if(!parameterSets.isEmpty()) {
+					nalPosition = 0;
+					nextNal = parameterSets.poll();
+					return true;
+				}
+			}
+			nalPosition = 1;
+			nextNal = current.nalUnits.get(0);
+			return true;
+		}
+
+		private void addMissingParameterSet(NalUnitType type, NalUnit parameterSet) {
+			if(parameterSet==null) return;
+			for(NalUnit nal : current.nalUnits) {
+				if(nal.getType()==type) return;
+			}
+			parameterSets.add(parameterSet);
+		}
+
+		/**
+		 * Takes the next access unit from the ring, waiting for the producer if needed. Access unit found
+		 * by {@link #isAccessUnitReady()} is returned without waiting.
+		 * @return the next access unit or null if the broadcast has ended
+		 * @throws IOException if the source has failed
+		 */
+		private AccessUnit take() throws IOException {
+			while(true) {
+				AccessUnit accessUnit = poll();
+				if(accessUnit!=null) return accessUnit;
+				if(finished && cursor>=published) {
+					if(failure!=null) throw new IOException("Broadcast source failed", failure);
+					return null;
+				}
+				awaitAccessUnit();
+			}
+		}
+
+		/**
+		 * Takes the next access unit which can be delivered without waiting for the producer. Access units
+		 * overwritten by the producer are skipped, and so are the ones without an IDR slice while resynchronizing.
+		 * @return the next deliverable access unit or null if the producer has not published it yet
+		 */
+		private AccessUnit poll() {
+			if(ready!=null) {
+				AccessUnit accessUnit = ready;
+				ready = null;
+				return accessUnit;
+			}
+
+			while(true) {
+				long published = H264LoaderBroadcaster.this.published;
+				if(cursor>=published) return null;
+
+				if(published-cursor>ring.length) {
+					// overrun; producer has overwritten unread access units
+					skipped += published - ring.length + 1 - cursor;
+					cursor = published - ring.length + 1;
+					resync = true;
+					decoderReset = true;
+				}
+
+				AccessUnit accessUnit = ring[(int) (cursor & mask)];
+				if(accessUnit==null || accessUnit.sequence!=cursor) {
+					resync = true; // overwritten while reading
+					decoderReset = true;
+					cursor++;
+					skipped++;
+					continue;
+				}
+				cursor++;
+
+				if(resync && !accessUnit.keyframe) {
+					skipped++;
+					continue;
+				}
+				resync = false;
+				return accessUnit;
+			}
+		}
+
+		private void awaitAccessUnit() throws IOException {
+			lock.lock();
+			try {
+				if(cursor<H264LoaderBroadcaster.this.published || finished) return;
+				newAccessUnit.await(100, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new IOException(ex);
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		@Override
+		public NalUnit getNalUnit() {
+			if(nextNal==null) throw new IllegalStateException("No NAL units to return!");
+			return nextNal;
+		}
+
+		/**
+		 * Returns true iff the next access unit can be delivered without waiting for the producer, or the
+		 * broadcast has ended. While resynchronizing only an IDR access unit can be delivered, the ones
+		 * before it are skipped here. Never blocks.
+		 */
+		@Override
+		public boolean isAccessUnitReady() {
+			if(!parameterSets.isEmpty() || current!=null || ready!=null) return true;
+			ready = poll();
+			return ready!=null || finished && cursor>=published;
+		}
+
+		/**
+		 * Registers the action run once the producer publishes an access unit or ends, right away if it
+		 * already has. Action runs at most once, on the thread of the producer, so it should only hand the
+		 * work over (e.g. schedule the next frame); it replaces an action registered earlier which has not
+		 * run yet. Published access unit need not be deliverable, check {@link #isAccessUnitReady()} again.
+		 * @param action action to run
+		 */
+		public void onAccessUnit(Runnable action) {
+			wakeup.set(Objects.requireNonNull(action));
+			if(cursor<published || finished) wake();
+		}
+
+		private void wake() {
+			Runnable action = wakeup.getAndSet(null);
+			if(action!=null) action.run();
+		}
+
+		/**
+		 * Returns the number of published access units this subscriber has not read yet. Right after
+		 * subscribing these are the access units of the cached group of pictures.
+		 * @return the number of access units waiting for this subscriber
+		 */
+		public long getBacklog() {
+			return Math.max(0, published - cursor) + (ready!=null ? 1 : 0);
+		}
+
+		/**
+		 * Returns the number of access units this subscriber skipped because it was too slow
+		 * @return the number of skipped access units
+		 */
+		public long getSkippedCount() {
+			return skipped;
+		}
+
+		@Override
+		public void close() {
+			if(closed) return;
+			closed = true;
+			nextNal = null;
+			ready = null;
+			wakeup.set(null);
+			unsubscribe(this);
+		}
+
+	}
+
+}
@@ -0,0 +1,164 @@
+package hr.matija.rtpStreamer.h264;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Objects;
+
+import hr.matija.rtpStreamer.h264.NalUnit.NalUnitType;
+
+/**
+ * Loader of the h264 nal units from a memory-mapped file on disk. Start codes are
+ * searched for eight bytes at a time and the returned nal units are views of the
+ * mapped file, so loading a nal unit does not copy or allocate its data.
+ * @author Matija
+ *
+ */
+public class H264MappedFileLoader implements H264Loader {
+
+	private static final long ONES = 0x0101010101010101L;
+	private static final long HIGHS = 0x8080808080808080L;
+
+	private ByteBuffer buffer;
+	private int position;
+	private int nalOffset;
+
+	private NalUnit nextNal;
+
+	private boolean firstNal = true;
+
+	/**
+	 * Initializes the h264 file loader by mapping the whole file into memory
+	 * @param h264File path to the raw h264 file in the annex B format (byte stream of nal units
+	 *                 separated by 0x00 00 01, and each access unit separated by the AUD - access unit
+	 *                 delimiter)
+	 * @throws IOException if an I/O error occurs or the file is too large to be mapped
+	 */
+	public H264MappedFileLoader(Path h264File) throws IOException {
+		this(map(h264File));
+	}
+
+	/**
+	 * Initializes the h264 loader over the given buffer (for example a file mapped by
+	 * {@link #map(Path)} that is shared between multiple loaders). Bytes between the
+	 * position and the limit of the buffer are loaded; the given buffer is not modified.
+	 * @param annexB h264 byte stream in the annex B format
+	 */
+	public H264MappedFileLoader(ByteBuffer annexB) {
+		this.buffer = Objects.requireNonNull(annexB).slice().order(ByteOrder.BIG_ENDIAN);
+		this.position = findStartCode(buffer, 0);
+	}
+
+	/**
+	 * Maps the whole h264 file into memory in read-only mode.
+	 * @param h264File path to the raw h264 file in the annex B format
+	 * @return read-only buffer with the content of the file
+	 * @throws IOException if an I/O error occurs or the file is too large to be mapped
+	 */
+	public static ByteBuffer map(Path h264File) throws IOException {
+		if(!Files.isRegularFile(h264File) || !Files.isReadable(h264File)) throw new RuntimeException("File is not readable or is not a regular file!");
+
+		try (FileChannel channel = FileChannel.open(h264File, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if(size>Integer.MAX_VALUE) throw new IOException("File is too large to be mapped: " + h264File);
+			return channel.map(MapMode.READ_ONLY, 0, size);
+		}
+	}
+
+	/**
+	 * Returns true iff the given file can be loaded by this loader
+	 * @param h264File path to the raw h264 file
+	 * @return true iff the given file can be mapped into memory
+	 * @throws IOException if an I/O error occurs
+	 */
+	public static boolean isMappable(Path h264File) throws IOException {
+		return Files.size(h264File) <= Integer.MAX_VALUE;
+	}
+
+	@Override
+	public boolean nextNalUnit() throws IOException {
+		if(buffer==null) throw new IllegalStateException("Loader is closed!");
+
+		while(position>=0) {
+			int nalStart = position + 3;
+			int next = findStartCode(buffer, nalStart);
+			int nalEnd = next<0 ? buffer.limit() : next;
+			while(nalEnd>nalStart && buffer.get(nalEnd-1)==0) nalEnd--; // trailing zeros and zero of the 4 byte start code
+			position = next;
+
+			if(nalEnd==nalStart) continue;
+
+			nalOffset = nalStart;
+			nextNal = new NalUnit(buffer.duplicate().limit(nalEnd).position(nalStart));
+			if(firstNal) {
+				firstNal = false;
+				if(nextNal.getType()==NalUnitType.ACCESS_UNIT_DELIMITER) continue;
+			}
+			return true;
+		}
+
+		nextNal = null;
+		return false;
+	}
+
+	/**
+	 * Returns the index of the first 0x00 00 01 start code at or after the given index,
+	 * or -1 if there is none. Eight bytes are checked at once for the presence of a zero
+	 * byte and only words containing a zero byte are inspected byte by byte.
+	 * @param buffer buffer that is searched
+	 * @param from index from which the search starts
+	 * @return index of the start code, -1 if there is no start code
+	 */
+	static int findStartCode(ByteBuffer buffer, int from) {
+		int limit = buffer.limit();
+		int i = from;
+
+		while(i+8<=limit) {
+			long word = buffer.getLong(i);
+			if(((word - ONES) & ~word & HIGHS) != 0) {
+				for(int j=i; j<i+8; j++) {
+					if(isStartCode(buffer, j, limit)) return j;
+				}
+			}
+			i += 8;
+		}
+
+		for(; i+3<=limit; i++) {
+			if(isStartCode(buffer, i, limit)) return i;
+		}
+
+		return -1;
+	}
+
+	private static boolean isStartCode(ByteBuffer buffer, int i, int limit) {
+		return i+3<=limit && buffer.get(i)==0 && buffer.get(i+1)==0 && buffer.get(i+2)==1;
+	}
+
+	@Override
+	public NalUnit getNalUnit() {
+		if(nextNal==null) throw new IllegalStateException("No NAL units to return!");
+		return nextNal;
+	}
+
+	/**
+	 * Returns the offset of the current nal unit from the beginning of the loaded buffer
+	 * @return the offset of the current nal unit in bytes
+	 */
+	int getNalUnitOffset() {
+		if(nextNal==null) throw new IllegalStateException("No NAL units to return!");
+		return nalOffset;
+	}
+
+	@Override
+	public void close() {
+		// mapping is released by the garbage collector once all nal unit views are unreachable
+		buffer = null;
+		nextNal = null;
+	}
+
+}
@@ -0,0 +1,375 @@
+package hr.matija.rtpStreamer.h264;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Index of all nal units and access units of one h264 file. The index is built once
+ * (or loaded from the sidecar file <code>&lt;file&gt;.idx</code> written next to the
+ * h264 file) and shared by all sessions streaming that file. Every session reads the
+ * file through its own cheap cursor created by {@link #newLoader()}, so nal units are
+ * never parsed twice.
+ * @author Matija
+ *
+ */
+public class H264NalIndex {
+
+	private static final int MAGIC = 0x48494458; // "HIDX"
+	private static final int VERSION = 1;
+	private static final int SIDECAR_HEADER_SIZE = 24; // magic, version, file size and modification time
+
+	/**
+	 * Extension of the sidecar index file
+	 */
+	public static final String SIDECAR_EXTENSION = ".idx";
+
+	private ByteBuffer data;
+
+	private int nalCount;
+	private int[] offsets;
+	private int[] lengths;
+	private byte[] headers;
+
+	private int accessUnitCount;
+	private int[] accessUnitStarts;    // index of the first nal unit of each access unit
+	private int keyframeCount;
+	private int[] keyframes;           // indexes of the access units containing an IDR slice
+
+	private H264NalIndex(ByteBuffer data) {
+		this.data = data;
+	}
+
+	/**
+	 * Loads the index of the given h264 file from its sidecar file or, if the sidecar does not
+	 * exist or is stale, builds the index by scanning the file and tries to store it into the
+	 * sidecar file for later use.
+	 * @param h264File path to the raw h264 file in the annex B format
+	 * @return index of the given file
+	 * @throws IOException if an I/O error occurs or the file is too large to be mapped
+	 */
+	public static H264NalIndex load(Path h264File) throws IOException {
+		ByteBuffer data = H264MappedFileLoader.map(h264File);
+		Path sidecar = sidecarFor(h264File);
+
+		H264NalIndex index = new H264NalIndex(data);
+		if(Files.isReadable(sidecar) && index.read(sidecar, h264File)) return index;
+
+		index.build();
+		try {
+			index.write(sidecar, h264File);
+		} catch (IOException ignorable) {
+			// the sidecar is only a cache; the index is still usable from memory
+		}
+		return index;
+	}
+
+	/**
+	 * Builds the index of the h264 byte stream in the given buffer without using a sidecar file.
+	 * @param annexB h264 byte stream in the annex B format
+	 * @return index of the given byte stream
+	 * @throws IOException if an I/O error occurs
+	 */
+	public static H264NalIndex build(ByteBuffer annexB) throws IOException {
+		H264NalIndex index = new H264NalIndex(annexB.slice());
+		index.build();
+		return index;
+	}
+
+	/**
+	 * Returns the path of the sidecar index file for the given h264 file
+	 * @param h264File path to the raw h264 file
+	 * @return path of the sidecar index file
+	 */
+	public static Path sidecarFor(Path h264File) {
+		return h264File.resolveSibling(h264File.getFileName().toString() + SIDECAR_EXTENSION);
+	}
+
+	private void build() throws IOException {
+		offsets = new int[1024];
+		lengths = new int[1024];
+		headers = new byte[1024];
+		accessUnitStarts = new int[256];
+		keyframes = new int[16];
+
+		accessUnitStarts[accessUnitCount++] = 0;
+		boolean keyframe = false;
+
+		try (H264MappedFileLoader loader = new H264MappedFileLoader(data)) {
+			while(loader.nextNalUnit()) {
+				NalUnit nal = loader.getNalUnit();
+
+				if(nalCount==offsets.length) {
+					offsets = Arrays.copyOf(offsets, nalCount*2);
+					lengths = Arrays.copyOf(lengths, nalCount*2);
+					headers = Arrays.copyOf(headers, nalCount*2);
+				}
+				offsets[nalCount] = loader.getNalUnitOffset();
+				lengths[nalCount] = nal.getLength();
+				headers[nalCount] = nal.getNalUnitHeader();
+				nalCount++;
+
+				switch(nal.getType()) {
+					case CODED_SLICE_IDR:
+						if(!keyframe) {
+							if(keyframeCount==keyframes.length) keyframes = Arrays.copyOf(keyframes, keyframeCount*2);
+							keyframes[keyframeCount++] = accessUnitCount-1;
+							keyframe = true;
+						}
+						break;
+					case ACCESS_UNIT_DELIMITER:
+						if(accessUnitCount==accessUnitStarts.length) accessUnitStarts = Arrays.copyOf(accessUnitStarts, accessUnitCount*2);
+						accessUnitStarts[accessUnitCount++] = nalCount;
+						keyframe = false;
+						break;
+					default:
+						break;
+				}
+			}
+		}
+
+		// stream that ends with the delimiter has no trailing access unit
+		if(accessUnitCount>1 && accessUnitStarts[accessUnitCount-1]==nalCount) accessUnitCount--;
+		if(nalCount==0) accessUnitCount = 0;
+	}
+
+	/**
+	 * Reads the index from the sidecar file. Sidecar is parsed into local tables which are validated
+	 * against the length of the sidecar and the mapped file and assigned only when the whole sidecar
+	 * is valid, so a corrupted or truncated sidecar leaves the index empty and it is rebuilt.
+	 * @return true iff the sidecar was read, false if it is stale, corrupted or truncated
+	 */
+	private boolean read(Path sidecar, Path h264File) throws IOException {
+		long remaining = Files.size(sidecar) - SIDECAR_HEADER_SIZE;
+		try (DataInputStream dis = new DataInputStream(new BufferedInputStream(Files.newInputStream(sidecar)))) {
+			if(dis.readInt()!=MAGIC || dis.readInt()!=VERSION) return false;
+			if(dis.readLong()!=Files.size(h264File)) return false;
+			if(dis.readLong()!=Files.getLastModifiedTime(h264File).toMillis()) return false;
+
+			int nals = dis.readInt();
+			remaining -= 4;
+			if(nals<0 || nals>remaining/9) return false;
+			int[] nalOffsets = new int[nals];
+			int[] nalLengths = new int[nals];
+			byte[] nalHeaders = new byte[nals];
+			for(int i=0; i<nals; i++) {
+				nalOffsets[i] = dis.readInt();
+				nalLengths[i] = dis.readInt();
+				nalHeaders[i] = dis.readByte();
+				if(nalOffsets[i]<0 || nalLengths[i]<=0 || (long) nalOffsets[i] + nalLengths[i] > data.limit()) return false;
+				if(data.get(nalOffsets[i])!=nalHeaders[i]) return false;
+			}
+			remaining -= 9L*nals;
+
+			int units = dis.readInt();
+			remaining -= 4;
+			if(units<0 || units>remaining/4 || units>nals) return false;
+			int[] unitStarts = new int[units];
+			for(int i=0; i<units; i++) {
+				unitStarts[i] = dis.readInt();
+				if(unitStarts[i]<(i==0 ? 0 : unitStarts[i-1]) || unitStarts[i]>=nals) return false;
+			}
+			remaining -= 4L*units;
+
+			int keys = dis.readInt();
+			remaining -= 4;
+			if(keys<0 || keys>remaining/4 || keys>units) return false;
+			int[] keyUnits = new int[keys];
+			for(int i=0; i<keys; i++) {
+				keyUnits[i] = dis.readInt();
+				if(keyUnits[i]<(i==0 ? 0 : keyUnits[i-1]+1) || keyUnits[i]>=units) return false;
+			}
+
+			nalCount = nals;
+			offsets = nalOffsets;
+			lengths = nalLengths;
+			headers = nalHeaders;
+			accessUnitCount = units;
+			accessUnitStarts = unitStarts;
+			keyframeCount = keys;
+			keyframes = keyUnits;
+		} catch (IOException ex) {
+			return false; // truncated sidecar, rebuild it
+		}
+		return true;
+	}
+
+	private void write(Path sidecar, Path h264File) throws IOException {
+		Path tmp = sidecar.resolveSibling(sidecar.getFileName().toString() + ".tmp");
+		try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+			dos.writeInt(MAGIC);
+			dos.writeInt(VERSION);
+			dos.writeLong(Files.size(h264File));
+			dos.writeLong(Files.getLastModifiedTime(h264File).toMillis());
+
+			dos.writeInt(nalCount);
+			for(int i=0; i<nalCount; i++) {
+				dos.writeInt(offsets[i]);
+				dos.writeInt(lengths[i]);
+				dos.writeByte(headers[i]);
+			}
+
+			dos.writeInt(accessUnitCount);
+			for(int i=0; i<accessUnitCount; i++) dos.writeInt(accessUnitStarts[i]);
+
+			dos.writeInt(keyframeCount);
+			for(int i=0; i<keyframeCount; i++) dos.writeInt(keyframes[i]);
+		}
+		Files.move(tmp, sidecar, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Creates a new cursor over the indexed file. Cursor starts at the first nal unit.
+	 * @return new loader reading the indexed file
+	 */
+	public H264IndexedLoader newLoader() {
+		return new H264IndexedLoader(this);
+	}
+
+	/**
+	 * Returns the nal unit with the given index as a view of the indexed file
+	 * @param nal index of the nal unit
+	 * @return nal unit with the given index
+	 */
+	public NalUnit getNalUnit(int nal) {
+		Objects.checkIndex(nal, nalCount);
+		return new NalUnit(data.duplicate().limit(offsets[nal] + lengths[nal]).position(offsets[nal]));
+	}
+
+	/**
+	 * Returns the number of indexed nal units (access unit delimiters included)
+	 * @return the number of indexed nal units
+	 */
+	public int getNalUnitCount() {
+		return nalCount;
+	}
+
+	/**
+	 * Returns the offset of the nal unit with the given index in the file
+	 * @param nal index of the nal unit
+	 * @return the offset of the nal unit in bytes
+	 */
+	public int getOffset(int nal) {
+		Objects.checkIndex(nal, nalCount);
+		return offsets[nal];
+	}
+
+	/**
+	 * Returns the length of the nal unit with the given index
+	 * @param nal index of the nal unit
+	 * @return the length of the nal unit in bytes
+	 */
+	public int getLength(int nal) {
+		Objects.checkIndex(nal, nalCount);
+		return lengths[nal];
+	}
+
+	/**
+	 * Returns the type of the nal unit with the given index (nal_unit_type field of the header)
+	 * @param nal index of the nal unit
+	 * @return the type of the nal unit
+	 */
+	public byte getNalUnitType(int nal) {
+		Objects.checkIndex(nal, nalCount);
+		return (byte) (headers[nal] & 0x1F);
+	}
+
+	/**
+	 * Returns the number of access units in the file
+	 * @return the number of access units
+	 */
+	public int getAccessUnitCount() {
+		return accessUnitCount;
+	}
+
+	/**
+	 * Returns the index of the first nal unit of the given access unit
+	 * @param accessUnit index of the access unit
+	 * @return the index of the first nal unit of the access unit
+	 */
+	public int getAccessUnitStart(int accessUnit) {
+		Objects.checkIndex(accessUnit, accessUnitCount);
+		return accessUnitStarts[accessUnit];
+	}
+
+	/**
+	 * Returns the number of access units containing an IDR slice
+	 * @return the number of keyframes
+	 */
+	public int getKeyframeCount() {
+		return keyframeCount;
+	}
+
+	/**
+	 * Returns the index of the access unit of the given keyframe
+	 * @param keyframe index of the keyframe
+	 * @return the index of the access unit containing the keyframe
+	 */
+	public int getKeyframe(int keyframe) {
+		Objects.checkIndex(keyframe, keyframeCount);
+		return keyframes[keyframe];
+	}
+
+	/**
+	 * Returns true iff the given access unit contains an IDR slice
+	 * @param accessUnit index of the access unit
+	 * @return true iff the access unit is a keyframe
+	 */
+	public boolean isKeyframe(int accessUnit) {
+		return Arrays.binarySearch(keyframes, 0, keyframeCount, accessUnit) >= 0;
+	}
+
+	/**
+	 * Returns the first keyframe at or after the given access unit
+	 * @param accessUnit index of the access unit
+	 * @return the index of the access unit of the first keyframe at or after the given one, -1 if there is none
+	 */
+	public int nextKeyframe(int accessUnit) {
+		int k = Arrays.binarySearch(keyframes, 0, keyframeCount, accessUnit);
+		if(k<0) k = -k - 1;
+		return k<keyframeCount ? keyframes[k] : -1;
+	}
+
+	/**
+	 * Returns the last keyframe at or before the given access unit, the access unit a seek to the
+	 * given one has to start from
+	 * @param accessUnit index of the access unit
+	 * @return the index of the access unit of the last keyframe at or before the given one, -1 if there is none
+	 */
+	public int previousKeyframe(int accessUnit) {
+		int k = Arrays.binarySearch(keyframes, 0, keyframeCount, accessUnit);
+		if(k<0) k = -k - 2;
+		return k>=0 ? keyframes[k] : -1;
+	}
+
+	/**
+	 * Returns the first sequence parameter set and the first picture parameter set of the file,
+	 * the parameter sets a decoder needs before it can decode a keyframe taken from the middle of the file
+	 * @return the parameter sets of the file in decoding order (SPS first), empty if the file has none
+	 */
+	public List<NalUnit> getParameterSets() {
+		int sps = -1;
+		int pps = -1;
+		for(int i=0; i<nalCount && (sps<0 || pps<0); i++) {
+			int type = headers[i] & 0x1F;
+			if(type==7 && sps<0) sps = i;
+			else if(type==8 && pps<0) pps = i;
+		}
+
+		List<NalUnit> parameterSets = new ArrayList<>(2);
+		if(sps>=0) parameterSets.add(getNalUnit(sps));
+		if(pps>=0) parameterSets.add(getNalUnit(pps));
+		return parameterSets;
+	}
+
+}
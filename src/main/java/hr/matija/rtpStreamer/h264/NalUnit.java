@@ -1,6 +1,6 @@
 package hr.matija.rtpStreamer.h264;
 
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 import java.util.Objects;
 
 /**
@@ -38,7 +38,7 @@ public class NalUnit {
 		}
 	}
 	
-	private byte[] data;
+	private ByteBuffer data;
 	
 	private byte nalUnitHeader;
 	private boolean forbiddenZeroBit;
@@ -55,7 +55,22 @@ public class NalUnit {
 	public NalUnit(byte[] nalData, int nalDataLen) {
 		if(nalData==null) throw new NullPointerException();
 		
-		this.data = Arrays.copyOf(nalData, nalDataLen);
+		byte[] copy = new byte[nalDataLen];
+		System.arraycopy(nalData, 0, copy, 0, nalDataLen);
+		this.data = ByteBuffer.wrap(copy).asReadOnlyBuffer();
+		init();
+	}
+	
+	/**
+	 * Creates and initializes the nal unit as a view of the given buffer. Bytes between
+	 * the position and the limit of the buffer are the nal unit; they are not copied so
+	 * the underlying memory must not change while this nal unit is in use.
+	 * @param nalData buffer containing the raw nal unit between its position and limit
+	 */
+	public NalUnit(ByteBuffer nalData) {
+		if(nalData==null) throw new NullPointerException();
+		
+		this.data = nalData.isReadOnly() ? nalData.slice() : nalData.asReadOnlyBuffer().slice();
 		init();
 	}
 
@@ -63,7 +78,7 @@ public class NalUnit {
 	 * Initializes the nal unit
 	 */
 	private void init() {
-		nalUnitHeader = data[0];
+		nalUnitHeader = data.get(0);
 		forbiddenZeroBit = (nalUnitHeader & 0x80) != 0;
 		nalRefIdc = (byte) ((nalUnitHeader >> 5) & 0x03);
 		nalUnitType = (byte) (nalUnitHeader & 0x1F);
@@ -103,7 +118,26 @@ public class NalUnit {
 	 * @return nal unit as byte array
 	 */
 	public byte[] getData() {
-		return Arrays.copyOf(data, data.length);
+		byte[] copy = new byte[data.limit()];
+		data.duplicate().get(copy);
+		return copy;
+	}
+	
+	/**
+	 * Returns the read-only view of the nal unit data (no copying is done). Position of the
+	 * returned buffer is 0 and the limit is the length of the nal unit.
+	 * @return read-only view of the nal unit data
+	 */
+	public ByteBuffer getBuffer() {
+		return data.duplicate();
+	}
+	
+	/**
+	 * Returns the length of the nal unit in bytes
+	 * @return the length of the nal unit in bytes
+	 */
+	public int getLength() {
+		return data.limit();
 	}
 	
 	/**
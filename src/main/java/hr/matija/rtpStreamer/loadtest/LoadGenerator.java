@@ -0,0 +1,329 @@
+package hr.matija.rtpStreamer.loadtest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.ToDoubleFunction;
+
+import hr.matija.rtpStreamer.console.ConsoleWriter;
+import hr.matija.rtpStreamer.metrics.LatencyHistogram;
+import hr.matija.rtpStreamer.rtsp.UriParser;
+import hr.matija.rtpStreamer.rtsp.UriParser.Uri;
+import hr.matija.rtpStreamer.server.H264RtspServer;
+
+/**
+ * Load generator which plays one resource of a server on this host to many simulated viewers
+ * ({@link ViewerSession}) and reports what the viewers received: frame lateness, interarrival jitter,
+ * packet loss and reordering, time to the first IDR slice and the throughput. Viewers are driven by a
+ * few selector threads, so thousands of them need only a few threads (and a few thousand file
+ * descriptors). Every step of a run starts its viewers at the given rate, lets them play for the
+ * given duration and tears them down; steps are run in order until the 99th percentile of the frame
+ * lateness goes over the budget. Only servers on the loopback are accepted. <br>
+ * Usage: <code>LoadGenerator [options] rtsp://127.0.0.1:port/resource</code> <br>
+ * <code>--sessions N[,N...]</code> viewers of every step (default 100) <br>
+ * <code>--duration S</code> seconds every step plays after its last viewer started (default 30) <br>
+ * <code>--ramp R</code> viewers started per second (default 100) <br>
+ * <code>--threads T</code> selector threads (default number of processors) <br>
+ * <code>--tcp</code> RTP interleaved into the rtsp connections instead of UDP <br>
+ * <code>--budget MS</code> lateness budget of the 99th percentile in milliseconds <br>
+ * <code>--server CONFIG</code> runs the server of the given config file in this process <br>
+ * Every UDP viewer takes one RTP port pair of the server, so the range of <code>server.rtpPorts</code>
+ * limits the number of UDP viewers. Lateness is measured at the viewers, so it includes the delays of
+ * the load generator itself; watch the CPU of both processes.
+ * @author Matija
+ *
+ */
+public class LoadGenerator {
+
+	private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+	private static final long TEARDOWN_TIMEOUT_NANOS = 3_000_000_000L;
+
+	private String uri;
+	private InetSocketAddress server;
+	private boolean interleaved;
+	private int threads;
+	private double ramp;
+	private long durationMillis;
+	private PrintStream out;
+
+	/**
+	 * Creates the load generator
+	 * @param uri rtsp uri of the resource
+	 * @param interleaved true to receive RTP interleaved into the rtsp connections
+	 * @param threads number of selector threads
+	 * @param ramp viewers started per second
+	 * @param durationMillis time every step plays after its last viewer started
+	 * @param out stream the reports are printed to
+	 * @throws IllegalArgumentException if the uri is not an rtsp uri of a server on the loopback
+	 * @throws IOException if the host of the uri cannot be resolved
+	 */
+	public LoadGenerator(String uri, boolean interleaved, int threads, double ramp, long durationMillis, PrintStream out) throws IOException {
+		Uri parsed = UriParser.parseUri(uri);
+		if(!parsed.getScheme().equalsIgnoreCase("rtsp")) throw new IllegalArgumentException("Not an rtsp uri: " + uri);
+		InetAddress host = InetAddress.getByName(parsed.getHost());
+		if(!host.isLoopbackAddress()) throw new IllegalArgumentException("Load generator only runs against a server on the loopback: " + uri);
+		if(threads<=0 || ramp<=0 || durationMillis<0) throw new IllegalArgumentException("Invalid threads, ramp or duration!");
+
+		this.uri = uri;
+		this.server = new InetSocketAddress(host, parsed.getPort()==null || parsed.getPort().isEmpty() ? 554 : Integer.parseInt(parsed.getPort()));
+		this.interleaved = interleaved;
+		this.threads = threads;
+		this.ramp = ramp;
+		this.durationMillis = durationMillis;
+		this.out = out;
+	}
+
+	/**
+	 * Runs one step: starts the viewers, lets them play, tears them down and prints the report
+	 * @param sessions number of viewers
+	 * @return the 99th percentile of the frame lateness in nanoseconds
+	 * @throws InterruptedException if interrupted while waiting
+	 * @throws IOException if a selector cannot be opened
+	 */
+	public long runStep(int sessions) throws InterruptedException, IOException {
+		LatencyHistogram lateness = new LatencyHistogram();
+		List<Worker> workers = new ArrayList<>();
+		for(int i=0; i<threads; i++) {
+			Worker worker = new Worker(i);
+			workers.add(worker);
+			worker.start();
+		}
+
+		List<ViewerSession> viewers = new ArrayList<>(sessions);
+		long start = System.nanoTime();
+		for(int i=0; i<sessions; i++) {
+			long due = start + (long) (i * 1e9 / ramp);
+			long wait = due - System.nanoTime();
+			if(wait>0) Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+			ViewerSession viewer = new ViewerSession(uri, server, interleaved, lateness);
+			viewers.add(viewer);
+			workers.get(i % threads).add(viewer);
+		}
+		Thread.sleep(durationMillis);
+		long elapsed = System.nanoTime() - start;
+
+		for(var worker : workers) worker.stop();
+		for(var worker : workers) worker.join();
+
+		report(sessions, viewers, lateness, elapsed);
+		return lateness.getValueAtQuantile(0.99);
+	}
+
+	/**
+	 * Prints the report of one step: distribution of the frame lateness of all frames and distributions
+	 * of the per viewer statistics
+	 */
+	private void report(int sessions, List<ViewerSession> viewers, LatencyHistogram lateness, long elapsed) {
+		List<ReceptionStats> stats = new ArrayList<>();
+		Map<String, Integer> failures = new TreeMap<>();
+		long packets = 0;
+		long octets = 0;
+		long lost = 0;
+		long expected = 0;
+		long reordered = 0;
+		long duplicates = 0;
+		for(var viewer : viewers) {
+			if(viewer.getFailure()!=null) failures.merge(viewer.getFailure(), 1, Integer::sum);
+			ReceptionStats s = viewer.getStats();
+			if(s==null || s.getReceived()==0) continue;
+			stats.add(s);
+			packets += s.getReceived();
+			octets += s.getOctets();
+			lost += s.getLost();
+			expected += s.getExpected();
+			reordered += s.getReordered();
+			duplicates += s.getDuplicates();
+		}
+
+		double seconds = elapsed / 1e9;
+		out.println();
+		out.printf(Locale.ROOT, "=== %d sessions: %d received, %d failed, %.1f s ===%n", sessions, stats.size(), viewers.size() - countOk(viewers), seconds);
+		out.printf(Locale.ROOT, "throughput          %.0f packets/s, %.2f Mbit/s%n", packets / seconds, octets * 8 / seconds / 1e6);
+		out.printf(Locale.ROOT, "packets             %d received, %d lost (%.3f %%), %d reordered, %d duplicated%n", packets, lost, expected==0 ? 0 : lost * 100.0 / expected, reordered, duplicates);
+		StringBuilder sb = new StringBuilder("frame lateness ms  ");
+		for(double q : QUANTILES) sb.append(String.format(Locale.ROOT, " p%s %.2f", percentile(q), lateness.getValueAtQuantile(q) / 1e6));
+		sb.append(String.format(Locale.ROOT, " max %.2f (%d frames)", lateness.getMax() / 1e6, lateness.getCount()));
+		out.println(sb);
+		distribution("jitter ms          ", stats, ReceptionStats::getJitterMillis);
+		distribution("loss %             ", stats, (s) -> s.getLossFraction() * 100);
+		distribution("reordered          ", stats, (s) -> s.getReordered());
+		distribution("max lateness ms    ", stats, (s) -> s.getMaxLatenessNanos() / 1e6);
+		distribution("first IDR ms       ", stats, (s) -> s.getTimeToFirstIdrNanos()<0 ? Double.NaN : s.getTimeToFirstIdrNanos() / 1e6);
+		for(var failure : failures.entrySet()) out.printf("failed              %dx %s%n", failure.getValue(), failure.getKey());
+	}
+
+	private static long countOk(List<ViewerSession> viewers) {
+		return viewers.stream().filter((v) -> v.getFailure()==null).count();
+	}
+
+	/**
+	 * Prints the percentiles of one statistic over the viewers; viewers without the statistic (NaN) are skipped
+	 */
+	private void distribution(String name, List<ReceptionStats> stats, ToDoubleFunction<ReceptionStats> statistic) {
+		double[] values = stats.stream().mapToDouble(statistic).filter((v) -> !Double.isNaN(v)).sorted().toArray();
+		StringBuilder sb = new StringBuilder(name);
+		if(values.length==0) {
+			out.println(sb.append(" -"));
+			return;
+		}
+		for(double q : QUANTILES) {
+			sb.append(String.format(Locale.ROOT, " p%s %.2f", percentile(q), values[Math.max(0, (int) Math.ceil(q * values.length) - 1)]));
+		}
+		sb.append(String.format(Locale.ROOT, " max %.2f", values[values.length-1]));
+		out.println(sb);
+	}
+
+	private static String percentile(double quantile) {
+		String p = String.format(Locale.ROOT, "%.1f", quantile * 100);
+		return p.endsWith(".0") ? p.substring(0, p.length() - 2) : p;
+	}
+
+	/**
+	 * Selector thread driving a share of the viewers
+	 */
+	private static class Worker implements Runnable {
+
+		private Thread thread;
+		private Selector selector;
+		private Queue<ViewerSession> added = new ConcurrentLinkedQueue<>();
+		private List<ViewerSession> sessions = new ArrayList<>();
+		private volatile boolean stopReq;
+
+		private Worker(int index) throws IOException {
+			selector = Selector.open();
+			thread = new Thread(this, "viewers-" + index);
+			thread.setDaemon(true);
+		}
+
+		private void start() {
+			thread.start();
+		}
+
+		private void add(ViewerSession session) {
+			added.add(session);
+			selector.wakeup();
+		}
+
+		private void stop() {
+			stopReq = true;
+			selector.wakeup();
+		}
+
+		private void join() throws InterruptedException {
+			thread.join();
+		}
+
+		@Override
+		public void run() {
+			ByteBuffer buffer = ByteBuffer.allocateDirect(64*1024);
+			long teardownNanos = -1;
+			try {
+				while(true) {
+					selector.select(100);
+					long now = System.nanoTime();
+
+					ViewerSession session;
+					while((session = added.poll())!=null) {
+						sessions.add(session);
+						session.open(selector);
+					}
+
+					var keys = selector.selectedKeys().iterator();
+					while(keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						if(key.isValid()) ((ViewerSession) key.attachment()).handle(key, buffer);
+					}
+
+					if(stopReq && teardownNanos<0) {
+						teardownNanos = now;
+						for(var s : sessions) s.teardown();
+					}
+					if(teardownNanos>=0) {
+						if(sessions.stream().allMatch((s) -> s.getState()==ViewerSession.State.CLOSED || s.getState()==ViewerSession.State.FAILED)) break;
+						if(now - teardownNanos > TEARDOWN_TIMEOUT_NANOS) break;
+					} else {
+						for(var s : sessions) s.tick(now);
+					}
+				}
+			} catch (IOException ex) {
+				System.err.println("Selector failed: " + ex.getMessage());
+			} finally {
+				for(var s : sessions) s.close();
+				try {
+					selector.close();
+				} catch (IOException ignorable) {
+				}
+			}
+		}
+
+	}
+
+	public static void main(String[] args) throws Exception {
+		String uri = null;
+		int[] steps = {100};
+		long duration = 30;
+		double ramp = 100;
+		int threads = Runtime.getRuntime().availableProcessors();
+		boolean tcp = false;
+		double budget = -1;
+		String config = null;
+		LoadGenerator generator;
+
+		try {
+			for(int i=0; i<args.length; i++) {
+				switch(args[i]) {
+					case "--sessions": steps = Arrays.stream(args[++i].split(",")).mapToInt((s) -> Integer.parseInt(s.trim())).toArray(); break;
+					case "--duration": duration = Long.parseLong(args[++i]); break;
+					case "--ramp": ramp = Double.parseDouble(args[++i]); break;
+					case "--threads": threads = Integer.parseInt(args[++i]); break;
+					case "--tcp": tcp = true; break;
+					case "--budget": budget = Double.parseDouble(args[++i]); break;
+					case "--server": config = args[++i]; break;
+					default:
+						if(args[i].startsWith("--") || uri!=null) throw new IllegalArgumentException("Unknown argument: " + args[i]);
+						uri = args[i];
+				}
+			}
+			if(uri==null) throw new IllegalArgumentException("Expected the rtsp uri of the resource!");
+			generator = new LoadGenerator(uri, tcp, threads, ramp, duration * 1000, System.out);
+		} catch (RuntimeException | IOException ex) {
+			System.err.println(ex.getMessage());
+			System.err.println("Usage: LoadGenerator [--sessions N[,N...]] [--duration S] [--ramp R] [--threads T] [--tcp] [--budget MS] [--server CONFIG] rtsp://127.0.0.1:port/resource");
+			System.exit(2);
+			return;
+		}
+
+		H264RtspServer server = null;
+		if(config!=null) {
+			server = new H264RtspServer(config, new ConsoleWriter(new ArrayList<OutputStream>()));
+			server.start();
+			Thread.sleep(500);
+		}
+
+		for(int sessions : steps) {
+			long p99 = generator.runStep(sessions);
+			if(budget>=0 && p99 > budget * 1_000_000) {
+				System.out.printf(Locale.ROOT, "%nOver budget at %d sessions: p99 frame lateness %.2f ms > %.2f ms%n", sessions, p99 / 1e6, budget);
+				break;
+			}
+			Thread.sleep(1000); // server releases the ports of the torn down sessions
+		}
+
+		if(server!=null) server.stop();
+	}
+
+}
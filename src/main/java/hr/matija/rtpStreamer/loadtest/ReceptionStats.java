@@ -0,0 +1,223 @@
+package hr.matija.rtpStreamer.loadtest;
+
+import java.nio.ByteBuffer;
+import java.util.Objects;
+
+import hr.matija.rtpStreamer.metrics.LatencyHistogram;
+import hr.matija.rtpStreamer.rtp.H264Packetizer;
+import hr.matija.rtpStreamer.rtp.RTPUtil;
+
+/**
+ * Reception statistics of one RTP stream as seen by its viewer: packets lost, reordered and duplicated
+ * (from the extended sequence numbers), interarrival jitter (RFC 3550, section 6.4.1), lateness of the frames and
+ * the time from the PLAY request to the first IDR slice. Lateness of a frame is the transit time of its
+ * last packet (arrival minus RTP timestamp) above the shortest transit time seen so far; it is
+ * recorded into a histogram shared by all viewers of a run. Duplicates are recognized within the last
+ * {@value #DUPLICATE_WINDOW} sequence numbers below the highest one; older copies count as reordered. Statistics are updated by one thread only.
+ * @author Matija
+ *
+ */
+public class ReceptionStats {
+
+	/**
+	 * Number of sequence numbers below the highest one which are remembered to recognize duplicates
+	 */
+	public static final int DUPLICATE_WINDOW = 64;
+
+	private long clockHz;
+	private LatencyHistogram lateness;
+	private long origin;            // nanoTime the arrival times are relative to
+
+	private long received;
+	private long octets;
+	private long reordered;
+	private long duplicates;
+	private boolean first = true;
+	private long baseSeq;           // extended sequence number of the first packet
+	private long maxSeq;            // highest extended sequence number received
+	private long window;            // bit i is set iff maxSeq - i has been received
+	private int lastTimestamp;
+	private long timestamp;         // extended RTP timestamp of the last packet, relative to the first one
+
+	private double jitter;          // in RTP clock ticks
+	private long lastTransitTicks;
+	private long minTransitNanos = Long.MAX_VALUE;
+	private long maxLatenessNanos;
+
+	private long playNanos = -1;
+	private long firstIdrNanos = -1;
+
+	/**
+	 * Creates the statistics
+	 * @param clockHz RTP clock rate of the stream
+	 * @param lateness histogram the lateness of the frames is recorded into
+	 */
+	public ReceptionStats(long clockHz, LatencyHistogram lateness) {
+		if(clockHz<=0) throw new IllegalArgumentException("Clock rate must be positive: " + clockHz);
+		this.clockHz = clockHz;
+		this.lateness = Objects.requireNonNull(lateness);
+		this.origin = System.nanoTime();
+	}
+
+	/**
+	 * Marks the moment the PLAY request was sent; time to the first IDR slice is measured from it
+	 * @param nanos time in {@link System#nanoTime()} units
+	 */
+	public void playSent(long nanos) {
+		playNanos = nanos;
+	}
+
+	/**
+	 * Accounts one received RTP packet
+	 * @param packet packet between its position and limit; position and limit are not changed
+	 * @param arrivalNanos arrival time of the packet in {@link System#nanoTime()} units
+	 */
+	public void packetReceived(ByteBuffer packet, long arrivalNanos) {
+		int start = packet.position();
+		if(packet.remaining()<RTPUtil.HEADER_SIZE) return;
+		int seq = packet.getShort(start + 2) & 0xFFFF;
+		int ts = packet.getInt(start + 4);
+		boolean marker = (packet.get(start + 1) & 0x80)!=0;
+		int payload = start + RTPUtil.HEADER_SIZE + 4*(packet.get(start) & 0x0F);
+
+		received++;
+		octets += packet.remaining();
+		if(first) {
+			first = false;
+			baseSeq = maxSeq = seq;
+			window = 1;
+			lastTimestamp = ts;
+			lastTransitTicks = (arrivalNanos - origin) * clockHz / 1_000_000_000L;
+		} else {
+			int delta = (short) (seq - (maxSeq & 0xFFFF));
+			if(delta>0) {
+				maxSeq += delta;
+				window = delta>=DUPLICATE_WINDOW ? 1 : window<<delta | 1;
+			} else if(-delta<DUPLICATE_WINDOW && (window & 1L<<-delta)!=0) {
+				duplicates++;
+			} else {
+				if(-delta<DUPLICATE_WINDOW) window |= 1L<<-delta;
+				reordered++;
+			}
+			timestamp += ts - lastTimestamp;
+			lastTimestamp = ts;
+		}
+
+		long transitTicks = (arrivalNanos - origin) * clockHz / 1_000_000_000L - timestamp;
+		jitter += (Math.abs(transitTicks - lastTransitTicks) - jitter) / 16;
+		lastTransitTicks = transitTicks;
+
+		if(marker) {
+			long transitNanos = arrivalNanos - origin - timestamp * 1_000_000_000L / clockHz;
+			if(transitNanos<minTransitNanos) minTransitNanos = transitNanos;
+			long late = transitNanos - minTransitNanos;
+			lateness.record(late);
+			if(late>maxLatenessNanos) maxLatenessNanos = late;
+		}
+
+		if(firstIdrNanos<0 && payload<packet.limit() && carriesIdr(packet, payload)) firstIdrNanos = arrivalNanos;
+	}
+
+	/**
+	 * Returns true iff the payload is (or starts, or aggregates) an IDR slice
+	 * @param packet RTP packet
+	 * @param payload index of the first byte of the payload
+	 * @return true iff the payload carries an IDR slice
+	 */
+	private static boolean carriesIdr(ByteBuffer packet, int payload) {
+		int type = packet.get(payload) & 0x1F;
+		if(type==5) return true;
+		if(type==H264Packetizer.FU_A) {
+			return payload+1<packet.limit() && (packet.get(payload+1) & 0x80)!=0 && (packet.get(payload+1) & 0x1F)==5;
+		}
+		if(type==H264Packetizer.STAP_A) {
+			for(int i=payload+1; i+2<packet.limit(); i+=2+(packet.getShort(i) & 0xFFFF)) {
+				if((packet.get(i+2) & 0x1F)==5) return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the number of received packets, duplicates included
+	 * @return the number of received packets
+	 */
+	public long getReceived() {
+		return received;
+	}
+
+	/**
+	 * Returns the number of bytes of the received packets, RTP headers included
+	 * @return the received bytes
+	 */
+	public long getOctets() {
+		return octets;
+	}
+
+	/**
+	 * Returns the number of packets expected from the sequence numbers
+	 * @return the number of expected packets
+	 */
+	public long getExpected() {
+		return first ? 0 : maxSeq - baseSeq + 1;
+	}
+
+	/**
+	 * Returns the number of packets lost (expected but not received, never negative); duplicates do not
+	 * make up for lost packets
+	 * @return the number of lost packets
+	 */
+	public long getLost() {
+		return Math.max(0, getExpected() - (received - duplicates));
+	}
+
+	/**
+	 * Returns the fraction of the expected packets which were lost (0 - 1)
+	 * @return the fraction of packets lost
+	 */
+	public double getLossFraction() {
+		long expected = getExpected();
+		return expected==0 ? 0 : getLost() / (double) expected;
+	}
+
+	/**
+	 * Returns the number of packets which arrived after a packet with a higher sequence number
+	 * @return the number of reordered packets
+	 */
+	public long getReordered() {
+		return reordered;
+	}
+
+	/**
+	 * Returns the number of packets which arrived again
+	 * @return the number of duplicated packets
+	 */
+	public long getDuplicates() {
+		return duplicates;
+	}
+
+	/**
+	 * Returns the interarrival jitter
+	 * @return the interarrival jitter in milliseconds
+	 */
+	public double getJitterMillis() {
+		return jitter * 1000 / clockHz;
+	}
+
+	/**
+	 * Returns the largest lateness of a frame received so far
+	 * @return the largest lateness in nanoseconds
+	 */
+	public long getMaxLatenessNanos() {
+		return maxLatenessNanos;
+	}
+
+	/**
+	 * Returns the time from the PLAY request to the first packet carrying an IDR slice
+	 * @return the time to the first IDR slice in nanoseconds, -1 if none has arrived
+	 */
+	public long getTimeToFirstIdrNanos() {
+		return firstIdrNanos<0 || playNanos<0 ? -1 : firstIdrNanos - playNanos;
+	}
+
+}
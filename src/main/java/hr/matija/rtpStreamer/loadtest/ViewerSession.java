@@ -0,0 +1,347 @@
+package hr.matija.rtpStreamer.loadtest;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import hr.matija.rtpStreamer.metrics.LatencyHistogram;
+
+/**
+ * One simulated viewer: an rtsp session (OPTIONS, DESCRIBE, SETUP, PLAY, GET_PARAMETER keep-alives
+ * and TEARDOWN) on a non-blocking connection and the reception of its RTP stream, either on a pair of
+ * non-blocking UDP channels or interleaved into the rtsp connection. Session is driven by the selector
+ * of the thread it belongs to and all of its methods must be called from that thread.
+ * @author Matija
+ *
+ */
+public class ViewerSession {
+
+	/**
+	 * State of the session
+	 */
+	public enum State {
+		CONNECTING, OPTIONS, DESCRIBE, SETUP, PLAY, PLAYING, TEARDOWN, CLOSED, FAILED
+	}
+
+	private static final int RTSP_BUFFER_SIZE = 16*1024;
+	private static final int RECEIVE_BUFFER_SIZE = 256*1024;
+	private static final long DEFAULT_TIMEOUT_NANOS = 60_000_000_000L;
+	private static final Pattern RTPMAP = Pattern.compile("a=rtpmap:\\d+ H264/(\\d+)");
+	private static final Pattern TIMEOUT = Pattern.compile(";\\s*timeout=(\\d+)");
+
+	private String uri;
+	private InetSocketAddress server;
+	private boolean interleaved;
+	private LatencyHistogram lateness;
+
+	private Selector selector;
+	private State state = State.CONNECTING;
+	private String failure;
+	private SocketChannel rtsp;
+	private DatagramChannel rtp;
+	private DatagramChannel rtcp;
+	private ByteBuffer in = ByteBuffer.allocate(RTSP_BUFFER_SIZE);
+	private Queue<ByteBuffer> out = new ArrayDeque<>();
+	private int cseq;
+	private String session;
+	private long keepAliveNanos = DEFAULT_TIMEOUT_NANOS / 3;
+	private long lastRequestNanos;
+	private ReceptionStats stats;
+
+	/**
+	 * Creates the viewer; nothing is opened before {@link #open(Selector)}
+	 * @param uri rtsp uri of the resource
+	 * @param server address of the rtsp server
+	 * @param interleaved true to receive RTP interleaved into the rtsp connection, false for UDP
+	 * @param lateness histogram the lateness of the received frames is recorded into
+	 */
+	public ViewerSession(String uri, InetSocketAddress server, boolean interleaved, LatencyHistogram lateness) {
+		this.uri = Objects.requireNonNull(uri);
+		this.server = Objects.requireNonNull(server);
+		this.interleaved = interleaved;
+		this.lateness = Objects.requireNonNull(lateness);
+	}
+
+	/**
+	 * Opens the channels of the session, registers them with the selector and starts connecting
+	 * @param selector selector of the thread which drives this session
+	 */
+	public void open(Selector selector) {
+		this.selector = selector;
+		try {
+			if(!interleaved) {
+				rtp = DatagramChannel.open();
+				rtp.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_SIZE);
+				rtp.bind(new InetSocketAddress(server.getAddress(), 0));
+				rtp.configureBlocking(false);
+				rtp.register(selector, SelectionKey.OP_READ, this);
+				rtcp = DatagramChannel.open();
+				rtcp.bind(new InetSocketAddress(server.getAddress(), 0));
+				rtcp.configureBlocking(false);
+				rtcp.register(selector, SelectionKey.OP_READ, this);
+			}
+			rtsp = SocketChannel.open();
+			rtsp.configureBlocking(false);
+			if(rtsp.connect(server)) {
+				rtsp.register(selector, SelectionKey.OP_READ, this);
+				connected();
+			} else {
+				rtsp.register(selector, SelectionKey.OP_CONNECT, this);
+			}
+		} catch (IOException ex) {
+			fail("connect: " + ex.getMessage());
+		}
+	}
+
+	/**
+	 * Handles the readiness of one of the channels of this session
+	 * @param key selection key of the channel
+	 * @param buffer buffer the datagrams are received into, shared by the sessions of the thread
+	 */
+	public void handle(SelectionKey key, ByteBuffer buffer) {
+		try {
+			if(key.channel()==rtp) {
+				while(true) {
+					buffer.clear();
+					if(rtp.receive(buffer)==null) break;
+					buffer.flip();
+					if(stats!=null) stats.packetReceived(buffer, System.nanoTime());
+				}
+				return;
+			}
+			if(key.channel()==rtcp) { // sender reports are drained, not evaluated
+				buffer.clear();
+				while(rtcp.receive(buffer)!=null) buffer.clear();
+				return;
+			}
+
+			if(key.isConnectable()) {
+				rtsp.finishConnect();
+				key.interestOps(SelectionKey.OP_READ);
+				connected();
+			}
+			if(key.isWritable()) flush(key);
+			if(key.isReadable()) read();
+		} catch (IOException ex) {
+			fail(state + ": " + ex.getMessage());
+		}
+	}
+
+	/**
+	 * Sends the keep-alive of a playing session once the session timeout is a third over
+	 * @param now current time in {@link System#nanoTime()} units
+	 */
+	public void tick(long now) {
+		if(state==State.PLAYING && now - lastRequestNanos >= keepAliveNanos) {
+			send("GET_PARAMETER", null);
+		}
+	}
+
+	/**
+	 * Tears the session down; the session is closed when the server answers
+	 */
+	public void teardown() {
+		if(state==State.PLAYING || state==State.PLAY) {
+			send("TEARDOWN", null);
+			state = State.TEARDOWN;
+		} else if(state!=State.FAILED) {
+			close();
+		}
+	}
+
+	private void connected() {
+		state = State.OPTIONS;
+		send("OPTIONS", null);
+	}
+
+	private void read() throws IOException {
+		int n = rtsp.read(in);
+		long now = System.nanoTime();
+		in.flip();
+		while(in.hasRemaining()) {
+			if(in.get(in.position())=='$') {
+				if(in.remaining()<4) break;
+				int length = in.getShort(in.position() + 2) & 0xFFFF;
+				if(in.remaining()<4+length) break;
+				int channel = in.get(in.position() + 1);
+				int end = in.position() + 4 + length;
+				if(channel==0 && stats!=null) {
+					int limit = in.limit();
+					in.position(in.position() + 4).limit(end);
+					stats.packetReceived(in, now);
+					in.limit(limit);
+				}
+				in.position(end);
+				continue;
+			}
+
+			int headerEnd = indexOf(in, "\r\n\r\n");
+			if(headerEnd<0) break;
+			String header = new String(in.array(), in.position(), headerEnd - in.position(), StandardCharsets.ISO_8859_1);
+			Map<String, String> headers = parseHeaders(header);
+			int bodyLength = Integer.parseInt(headers.getOrDefault("content-length", "0").trim());
+			if(headerEnd + 4 + bodyLength > in.limit()) break;
+			String body = new String(in.array(), headerEnd + 4, bodyLength, StandardCharsets.UTF_8);
+			in.position(headerEnd + 4 + bodyLength);
+
+			String[] status = header.split("\r\n", 2)[0].split(" ", 3);
+			response(status.length>1 ? Integer.parseInt(status[1]) : -1, status.length>2 ? status[2] : "", headers, body);
+			if(state==State.CLOSED || state==State.FAILED) return;
+		}
+		in.compact();
+		if(!in.hasRemaining()) fail("response larger than " + RTSP_BUFFER_SIZE + " bytes");
+		else if(n<0) fail("connection closed by the server");
+	}
+
+	private void response(int status, String reason, Map<String, String> headers, String body) {
+		if(status!=200) {
+			fail(state + " " + status + " " + reason);
+			return;
+		}
+
+		switch(state) {
+			case OPTIONS:
+				state = State.DESCRIBE;
+				send("DESCRIBE", "Accept: application/sdp\r\n");
+				break;
+			case DESCRIBE:
+				Matcher rtpmap = RTPMAP.matcher(body);
+				stats = new ReceptionStats(rtpmap.find() ? Long.parseLong(rtpmap.group(1)) : 90_000, lateness);
+				state = State.SETUP;
+				try {
+					String transport = interleaved ? "RTP/AVP/TCP;unicast;interleaved=0-1"
+							: "RTP/AVP;unicast;client_port=" + ((InetSocketAddress) rtp.getLocalAddress()).getPort()
+							+ "-" + ((InetSocketAddress) rtcp.getLocalAddress()).getPort();
+					send("SETUP", "Transport: " + transport + "\r\n");
+				} catch (IOException ex) {
+					fail("SETUP: " + ex.getMessage());
+				}
+				break;
+			case SETUP:
+				String value = headers.get("session");
+				if(value==null) {
+					fail("SETUP without a session");
+					return;
+				}
+				session = value.split(";", 2)[0].trim();
+				Matcher timeout = TIMEOUT.matcher(value);
+				if(timeout.find()) keepAliveNanos = Long.parseLong(timeout.group(1)) * 1_000_000_000L / 3;
+				state = State.PLAY;
+				send("PLAY", "Range: npt=0.000-\r\n");
+				stats.playSent(System.nanoTime());
+				break;
+			case PLAY:
+				state = State.PLAYING;
+				break;
+			case TEARDOWN:
+				close();
+				break;
+			default:
+				break; // keep-alive
+		}
+	}
+
+	private void send(String method, String headers) {
+		StringBuilder sb = new StringBuilder(256);
+		sb.append(method).append(' ').append(uri).append(" RTSP/1.0\r\n");
+		sb.append("CSeq: ").append(++cseq).append("\r\n");
+		sb.append("User-Agent: rtspStreamer load generator\r\n");
+		if(session!=null) sb.append("Session: ").append(session).append("\r\n");
+		if(headers!=null) sb.append(headers);
+		sb.append("\r\n");
+		lastRequestNanos = System.nanoTime();
+
+		out.add(ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.ISO_8859_1)));
+		try {
+			flush(rtsp.keyFor(selector));
+		} catch (IOException ex) {
+			fail(method + ": " + ex.getMessage());
+		}
+	}
+
+	private void flush(SelectionKey key) throws IOException {
+		while(!out.isEmpty()) {
+			ByteBuffer buffer = out.peek();
+			rtsp.write(buffer);
+			if(buffer.hasRemaining()) break;
+			out.poll();
+		}
+		if(key!=null && key.isValid()) key.interestOps(out.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+	}
+
+	private static int indexOf(ByteBuffer buffer, String pattern) {
+		outer:
+		for(int i=buffer.position(); i<=buffer.limit() - pattern.length(); i++) {
+			for(int j=0; j<pattern.length(); j++) {
+				if(buffer.get(i+j)!=pattern.charAt(j)) continue outer;
+			}
+			return i;
+		}
+		return -1;
+	}
+
+	private static Map<String, String> parseHeaders(String header) {
+		Map<String, String> headers = new HashMap<>();
+		String[] lines = header.split("\r\n");
+		for(int i=1; i<lines.length; i++) {
+			int colon = lines[i].indexOf(':');
+			if(colon>0) headers.put(lines[i].substring(0, colon).trim().toLowerCase(), lines[i].substring(colon + 1).trim());
+		}
+		return headers;
+	}
+
+	private void fail(String reason) {
+		if(state==State.FAILED || state==State.CLOSED) return;
+		failure = reason;
+		close();
+		state = State.FAILED;
+	}
+
+	/**
+	 * Closes all channels of the session
+	 */
+	public void close() {
+		for(var channel : new Channel[] {rtsp, rtp, rtcp}) {
+			try {
+				if(channel!=null) channel.close();
+			} catch (IOException ignorable) {
+			}
+		}
+		if(state!=State.FAILED) state = State.CLOSED;
+	}
+
+	public State getState() {
+		return state;
+	}
+
+	/**
+	 * Returns the reason the session failed
+	 * @return the reason of the failure or null if the session has not failed
+	 */
+	public String getFailure() {
+		return failure;
+	}
+
+	/**
+	 * Returns the reception statistics of the stream
+	 * @return the statistics or null if the session has not been described yet
+	 */
+	public ReceptionStats getStats() {
+		return stats;
+	}
+
+}
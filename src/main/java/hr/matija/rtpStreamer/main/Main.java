@@ -1,37 +1,76 @@
 package hr.matija.rtpStreamer.main;
 
+import java.awt.GraphicsEnvironment;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
-import java.util.List;
 
+import hr.matija.rtpStreamer.admin.AdminHttpServer;
 import hr.matija.rtpStreamer.console.ConsoleWriter;
 import hr.matija.rtpStreamer.server.H264RtspServer;
 
 /**
- * Main class - the start point of the RTSP streamer application
+ * Main class - the start point of the RTSP streamer application. <br>
+ * Usage: <code>Main [--headless] config_file</code> <br>
+ * By default the server is controlled from its window. In the headless mode (or when there is no
+ * display) the server starts immediately, logs to the standard output, is controlled through the
+ * admin API ({@link AdminHttpServer}, if <code>server.adminPort</code> is configured) and stops on
+ * SIGTERM or SIGINT.
  * @author Matija
  *
  */
 public class Main {
-	
+
 	public static void main(String[] args) throws IOException, InterruptedException {
-		
-		if(args.length!=1) {
-			System.err.println("Expected exactly one argument! - Path to the config file");
+
+		boolean headless = args.length==2 && args[0].equals("--headless");
+		if(args.length!=1 && !headless) {
+			System.err.println("Expected exactly one argument! - Path to the config file (optionally preceded by --headless)");
+			return;
+		}
+		String config = args[args.length-1];
+
+		ConsoleWriter writer = new ConsoleWriter(new ArrayList<OutputStream>());
+		H264RtspServer server = new H264RtspServer(config, writer);
+		if(headless || GraphicsEnvironment.isHeadless()) {
+			writer.addOutputStream(System.out);
+			runHeadless(server, writer);
 			return;
 		}
 
-		List<OutputStream> oss = new ArrayList<OutputStream>();
-		ConsoleWriter writer = new ConsoleWriter(oss);
-		H264RtspServer server = new H264RtspServer(args[0], writer);
-		ServerWindow window = new ServerWindow((int)(ServerWindow.screenWidth/1.5), 
-			     (int)(ServerWindow.screenHeight/1.5), 
-			     "RtspServer", 
-			     server);		
-		oss.add(window.new JTextAreaOutputStream());		
+		ServerWindow window = new ServerWindow((int)(ServerWindow.screenWidth/1.5),
+			     (int)(ServerWindow.screenHeight/1.5),
+			     "RtspServer",
+			     server);
+		writer.addOutputStream(window.new JTextAreaOutputStream());
 		window.setVisible(true);
 		server.printInfo();
 	}
 
+	/**
+	 * Starts the server and its admin API without any window. Server keeps the JVM running
+	 * and the shutdown hook stops both.
+	 */
+	private static void runHeadless(H264RtspServer server, ConsoleWriter writer) throws IOException {
+		server.printInfo();
+
+		AdminHttpServer admin = null;
+		if(server.getAdminAddress()!=null) {
+			admin = new AdminHttpServer(server.getAdminAddress(), server, writer);
+			admin.start();
+			writer.writeInfo("Admin API: http://" + server.getAdminAddress().getHostString() + ":" + admin.getAddress().getPort() + AdminHttpServer.PATH);
+		} else {
+			writer.writeWarning("server.adminPort is not configured - the headless server can only be stopped by a signal");
+		}
+
+		AdminHttpServer api = admin;
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			if(api!=null) api.close();
+			if(server.isRunning()) server.stop();
+			writer.close();
+		}, "shutdown"));
+
+		server.start();
+	}
+
 }
@@ -17,18 +17,18 @@ import java.util.TimerTask;
 
 import javax.swing.BorderFactory;
 import javax.swing.JButton;
-import javax.swing.JCheckBox;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JList;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
-import javax.swing.JSpinner;
 import javax.swing.JTextArea;
-import javax.swing.SpinnerNumberModel;
+import javax.swing.JTextField;
+import javax.swing.SwingUtilities;
 import javax.swing.text.DefaultCaret;
 
+import hr.matija.rtpStreamer.server.H264RtpImpairmentProfile;
 import hr.matija.rtpStreamer.server.H264RtspReqHandlerCollection.H264RtspReqHandler;
 import hr.matija.rtpStreamer.server.H264RtspServer;
 
@@ -60,11 +60,11 @@ public class ServerWindow extends JFrame {
 		private JLabel maxBandwidth;
 		private JLabel minBandwidth;
 		private JLabel avgBandwidth;
+		private JLabel packetLoss;
+		private JLabel jitter;
+		private JLabel roundTripTime;
 		
-		private JSpinner packageMultiplier;
-		private JSpinner packageDrop;
-		private JCheckBox allowDropAll;
-		private JCheckBox onlyRetransmitImportant;
+		private JTextField impairment;
 		private JButton confirmPackageChange;
 		
 		private JList<H264RtspReqHandler> list;
@@ -87,25 +87,36 @@ public class ServerWindow extends JFrame {
 			bandwidthRefresher.schedule(new TimerTask() {
 				@Override
 				public void run() {
-					if(list.getSelectedValue()==null) {
+					var handler = list.getSelectedValue();
+					var worker = handler==null ? null : handler.getCurrentStreamWorker();
+					if(worker==null) {
 						momentBandwidth.setText("0 Mbps");
 						maxBandwidth.setText("0 Mbps");
 						minBandwidth.setText("0 Mbps");
 						avgBandwidth.setText("0 Mbps");
+						packetLoss.setText("0 %");
+						jitter.setText("0 ms");
+						roundTripTime.setText("- ms");
 						return;
 					}
 					momentBandwidth.setText(Double.toString(
-							list.getSelectedValue().getCurrentStreamWorker().getMomentBandwidth()
+							worker.getMomentBandwidth()
 					) + " Mbps");
 					maxBandwidth.setText(Double.toString(
-							list.getSelectedValue().getCurrentStreamWorker().getMaximumBandwidth()
+							worker.getMaximumBandwidth()
 					) + " Mbps");
 					minBandwidth.setText(Double.toString(
-							list.getSelectedValue().getCurrentStreamWorker().getMinimumBandwidth()
+							worker.getMinimumBandwidth()
 					) + " Mbps");
 					avgBandwidth.setText(Double.toString(
-							list.getSelectedValue().getCurrentStreamWorker().getAverageBandwidth()
+							worker.getAverageBandwidth()
 					) + " Mbps");
+					packetLoss.setText(String.format("%.1f %% (%d lost)", 
+							worker.getPacketLoss()*100, worker.getCumulativePacketLoss()
+					));
+					jitter.setText(String.format("%.2f ms", worker.getJitter()));
+					double rtt = worker.getRoundTripTime();
+					roundTripTime.setText(rtt<0 ? "- ms" : String.format("%.2f ms", rtt));
 				}
 			}, 1000, 1000);
 		}
@@ -140,6 +151,9 @@ public class ServerWindow extends JFrame {
 			maxBandwidth = new JLabel("0 Mbps");
 			minBandwidth = new JLabel("0 Mbps");
 			avgBandwidth = new JLabel("0 Mbps");
+			packetLoss = new JLabel("0 %");
+			jitter = new JLabel("0 ms");
+			roundTripTime = new JLabel("- ms");
 			topLeftButtons.add(start);
 			topLeftButtons.add(stop);
 			topLeftButtons.add(reload);
@@ -155,6 +169,12 @@ public class ServerWindow extends JFrame {
 			topRight.add(minBandwidth);
 			topRight.add(new JLabel("Average bandwidth: "));
 			topRight.add(avgBandwidth);
+			topRight.add(new JLabel("Packet loss: "));
+			topRight.add(packetLoss);
+			topRight.add(new JLabel("Jitter: "));
+			topRight.add(jitter);
+			topRight.add(new JLabel("Round trip time: "));
+			topRight.add(roundTripTime);
 			
 			top.add(topLeft);
 			top.add(topRight);
@@ -163,26 +183,14 @@ public class ServerWindow extends JFrame {
 			JPanel bottom = new JPanel(new FlowLayout());
 			bottom.setBorder(BorderFactory.createLineBorder(Color.BLACK));
 			
-	        packageMultiplier = new JSpinner(new SpinnerNumberModel(server.getReqHandlers().getStreamWorkerCollection().getPackageMultiplier(), 1, 5, 1));
-	        packageDrop = new JSpinner(new SpinnerNumberModel(server.getReqHandlers().getStreamWorkerCollection().getPackageDropRate(), 0, 100, 0.1));
-	        allowDropAll = new JCheckBox("AllowDropAll");
-	        allowDropAll.setToolTipText("If unchecked, IDR, SPS, PPS or SEE packages will not be dropped");
-	        allowDropAll.setSelected(server.getReqHandlers().getStreamWorkerCollection().isDropAllAllowed());
-	        onlyRetransmitImportant  = new JCheckBox("Only retransmit important");
-	        onlyRetransmitImportant.setToolTipText("If unchecked, VLC non-IDR NAL units will not be retransmited.");
-	        onlyRetransmitImportant.setSelected(server.getReqHandlers().getStreamWorkerCollection().isOnlyRetransmitImportant());
+	        impairment = new JTextField(server.getImpairment().toString(), 50);
 	        confirmPackageChange = new JButton("Enter");
 	        
-	        JLabel l1 = new JLabel("Package multiplier: ");
-	        l1.setToolTipText("How many times to send each RTP packet. Helps in package dropping");
+	        JLabel l1 = new JLabel("Impairment: ");
+	        l1.setToolTipText("<html>Network impairment of all sessions, e.g. <code>seed=7 loss=2 delay=40 jitter=10 rate=4000</code><br>"
+	        		+ "settings: seed, loss, gilbert=p,r[,bad[,good]], delay, jitter, reorder, duplicate, rate, queue, protect</html>");
 	        bottom.add(l1);
-	        bottom.add(packageMultiplier);
-	        JLabel l2 = new JLabel("Package drop rate: ");
-	        l2.setToolTipText("Percentage of packets to be dropped");
-	        bottom.add(l2);
-	        bottom.add(packageDrop);
-	        bottom.add(allowDropAll);
-	        bottom.add(onlyRetransmitImportant);
+	        bottom.add(impairment);
 	        bottom.add(confirmPackageChange);
 			
 			this.add(bottom, BorderLayout.PAGE_END);
@@ -200,7 +208,6 @@ public class ServerWindow extends JFrame {
 			
 			start.addActionListener((e) -> {
 				start.setEnabled(false);
-				reload.setEnabled(false);
 				new Thread(() -> {
 					server.start();
 					stop.setEnabled(true);
@@ -213,12 +220,10 @@ public class ServerWindow extends JFrame {
 				new Thread(() -> {
 					server.stop();
 					start.setEnabled(true);
-					reload.setEnabled(true);
 				}).start();
 			});
 
-			reload.addActionListener((e) -> {
-				start.setEnabled(false);
+			reload.addActionListener((e) -> { // resources are reloaded while the server runs too
 				reload.setEnabled(false);
 				new Thread(() -> {
 					try {
@@ -226,16 +231,18 @@ public class ServerWindow extends JFrame {
 					} catch (Exception e1) {
 						JOptionPane.showMessageDialog(ServerWindow.this, e1.getClass().getName() + " : " + e1.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
 					}
-					start.setEnabled(true);
 					reload.setEnabled(true);
 				}).start();
 			});
 			
 			confirmPackageChange.addActionListener((e) -> {
-				server.setPackageDropRate(((SpinnerNumberModel)packageDrop.getModel()).getNumber().doubleValue());
-				server.setPackageMultiplier(((SpinnerNumberModel)packageMultiplier.getModel()).getNumber().intValue());
-				server.setAllowDropAll(allowDropAll.isSelected());
-				server.setOnlyRetransmitImportant(onlyRetransmitImportant.isSelected());
+				try {
+					server.setImpairment(H264RtpImpairmentProfile.parse(impairment.getText()));
+				} catch (IllegalArgumentException ex) {
+					JOptionPane.showMessageDialog(ServerWindow.this, ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+					return;
+				}
+				impairment.setText(server.getImpairment().toString());
 			});
 			
 			closeConnection.addActionListener((e) -> {
@@ -266,11 +273,22 @@ public class ServerWindow extends JFrame {
 			this.server = Objects.requireNonNull(server);
 		}
 		
+		/**
+		 * Output stream appending to the text area of the window. Every write appends its text
+		 * with one task on the event dispatch thread, so a whole batch of the console writer
+		 * costs one append.
+		 */
 		public class JTextAreaOutputStream extends OutputStream {
 
 			@Override
 			public void write(int b) throws IOException {
-				textArea.append(new String(new byte[] {(byte) b}));
+				write(new byte[] {(byte) b}, 0, 1);
+			}
+			
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				String text = new String(b, off, len);
+				SwingUtilities.invokeLater(() -> textArea.append(text));
 			}
 			
 		}
@@ -0,0 +1,117 @@
+package hr.matija.rtpStreamer.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of durations in nanoseconds with log-linear buckets, in the manner of the
+ * HdrHistogram: values below {@value #SUB_BUCKETS} ns have a bucket each, larger values fall into one of
+ * {@value #HALF_SUB_BUCKETS} buckets per power of two, so every value is recorded with a relative error
+ * below 1/{@value #HALF_SUB_BUCKETS} (about 3 %). Recording is one atomic increment and can be done
+ * from any number of threads; percentiles are computed from a (not atomic) snapshot of the buckets.
+ * Values above {@link #MAX_VALUE} are recorded as {@link #MAX_VALUE}.
+ * @author Matija
+ *
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKETS = 64;
+	private static final int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;
+	private static final int MAX_MAGNITUDE = 40;
+
+	/**
+	 * Largest value which is recorded exactly (about 18 minutes)
+	 */
+	public static final long MAX_VALUE = (1L << (MAX_MAGNITUDE + 1)) - 1;
+
+	private static final int BUCKETS = index(MAX_VALUE) + 1;
+
+	private AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private LongAdder count = new LongAdder();
+	private LongAdder sum = new LongAdder();
+	private AtomicLong max = new AtomicLong();
+
+	/**
+	 * Records one value
+	 * @param nanos duration in nanoseconds; negative durations are recorded as 0
+	 */
+	public void record(long nanos) {
+		long value = Math.max(0, Math.min(nanos, MAX_VALUE));
+		counts.incrementAndGet(index(value));
+		count.increment();
+		sum.add(value);
+		if(value>max.get()) max.accumulateAndGet(value, Math::max);
+	}
+
+	/**
+	 * Returns the bucket of the given value
+	 * @param value value between 0 and {@link #MAX_VALUE}
+	 * @return index of the bucket
+	 */
+	private static int index(long value) {
+		if(value<SUB_BUCKETS) return (int) value;
+		int shift = 63 - Long.numberOfLeadingZeros(value) - 5; // keeps the 6 most significant bits
+		return SUB_BUCKETS + (shift-1)*HALF_SUB_BUCKETS + (int) (value >>> shift) - HALF_SUB_BUCKETS;
+	}
+
+	/**
+	 * Returns the largest value which falls into the given bucket
+	 * @param index index of the bucket
+	 * @return the upper bound of the bucket
+	 */
+	private static long highestValue(int index) {
+		if(index<SUB_BUCKETS) return index;
+		int shift = (index - SUB_BUCKETS) / HALF_SUB_BUCKETS + 1;
+		long mantissa = (index - SUB_BUCKETS) % HALF_SUB_BUCKETS + HALF_SUB_BUCKETS;
+		return ((mantissa + 1) << shift) - 1;
+	}
+
+	/**
+	 * Returns the value below which the given fraction of the recorded values falls
+	 * @param quantile fraction of the values (0 - 1), e.g. 0.99 for the 99th percentile
+	 * @return the upper bound of the bucket holding the quantile in nanoseconds, 0 if nothing was recorded
+	 */
+	public long getValueAtQuantile(double quantile) {
+		long[] snapshot = new long[BUCKETS];
+		long total = 0;
+		for(int i=0; i<BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+		if(total==0) return 0;
+
+		long rank = Math.max(1, (long) Math.ceil(quantile * total));
+		long seen = 0;
+		for(int i=0; i<BUCKETS; i++) {
+			seen += snapshot[i];
+			if(seen>=rank) return Math.min(highestValue(i), getMax());
+		}
+		return getMax();
+	}
+
+	/**
+	 * Returns the number of recorded values
+	 * @return the number of recorded values
+	 */
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * Returns the sum of the recorded values
+	 * @return the sum of the recorded values in nanoseconds
+	 */
+	public long getSum() {
+		return sum.sum();
+	}
+
+	/**
+	 * Returns the largest recorded value
+	 * @return the largest recorded value in nanoseconds
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+}
@@ -0,0 +1,87 @@
+package hr.matija.rtpStreamer.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * HTTP endpoint serving the metrics of a {@link MetricsRegistry} at <code>/metrics</code> in the
+ * Prometheus text format. Endpoint runs on its own single thread, so a slow scrape never delays
+ * the streams. It should be bound to the loopback (or a management) address only.
+ * @author Matija
+ *
+ */
+public class MetricsHttpServer implements AutoCloseable {
+
+	/**
+	 * Path of the metrics
+	 */
+	public static final String PATH = "/metrics";
+
+	private MetricsRegistry registry;
+	private HttpServer server;
+
+	/**
+	 * Binds the endpoint; it serves requests after {@link #start()}
+	 * @param address address and port of the endpoint
+	 * @param registry registry whose metrics are served
+	 * @throws IOException if the address cannot be bound
+	 */
+	public MetricsHttpServer(InetSocketAddress address, MetricsRegistry registry) throws IOException {
+		this.registry = Objects.requireNonNull(registry);
+		server = HttpServer.create(address, 0);
+		server.createContext(PATH, this::handle);
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		try { // HttpExchange is not AutoCloseable on Java 11
+			if(!exchange.getRequestMethod().equals("GET") && !exchange.getRequestMethod().equals("HEAD")) {
+				exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+				exchange.sendResponseHeaders(405, -1);
+				return;
+			}
+
+			byte[] body = registry.scrape().getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", MetricsRegistry.CONTENT_TYPE);
+			if(exchange.getRequestMethod().equals("HEAD")) {
+				exchange.sendResponseHeaders(200, -1);
+				return;
+			}
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream os = exchange.getResponseBody()) {
+				os.write(body);
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * Starts serving the requests
+	 */
+	public void start() {
+		server.start();
+	}
+
+	/**
+	 * Returns the address the endpoint is bound to
+	 * @return the bound address
+	 */
+	public InetSocketAddress getAddress() {
+		return server.getAddress();
+	}
+
+	/**
+	 * Stops the endpoint; requests being served are given up to one second to complete
+	 */
+	@Override
+	public void close() {
+		server.stop(1);
+	}
+
+}
@@ -0,0 +1,180 @@
+package hr.matija.rtpStreamer.metrics;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.ToLongFunction;
+
+/**
+ * Registry of the metrics of the server, its resources and its sessions, written in the Prometheus
+ * text exposition format. Families are prefixed by the level they describe (<code>rtsp_server_</code>,
+ * <code>rtsp_resource_</code> with the label <code>resource</code>, <code>rtsp_session_</code> with the
+ * labels <code>session</code> and <code>resource</code>). Sessions are exported while they are open;
+ * what they recorded stays in the totals of their resource and of the server. <br>
+ * See <a href="https://prometheus.io/docs/instrumenting/exposition_formats/">Exposition formats</a>
+ * @author Matija
+ *
+ */
+public class MetricsRegistry {
+
+	/**
+	 * Content type of the text exposition format
+	 */
+	public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+	private StreamMetrics server = new StreamMetrics(null);
+	private Map<String, StreamMetrics> resources = new ConcurrentHashMap<>();
+	private Map<Integer, Session> sessions = new ConcurrentHashMap<>();
+
+	/**
+	 * Opens the metrics of a new session
+	 * @param id id of the session
+	 * @param resource name (uri) of the streamed resource
+	 * @return metrics of the session
+	 */
+	public StreamMetrics openSession(int id, String resource) {
+		StreamMetrics parent = resources.computeIfAbsent(resource, (r) -> new StreamMetrics(server));
+		Session session = new Session(resource, new StreamMetrics(parent));
+		sessions.put(id, session);
+		return session.metrics;
+	}
+
+	/**
+	 * Closes the metrics of the session; the session is no longer exported
+	 * @param id id of the session
+	 */
+	public void closeSession(int id) {
+		sessions.remove(id);
+	}
+
+	/**
+	 * Returns the metrics of the whole server
+	 * @return the metrics of the server
+	 */
+	public StreamMetrics getServerMetrics() {
+		return server;
+	}
+
+	/**
+	 * Returns the metrics of the given resource
+	 * @param resource name (uri) of the resource
+	 * @return the metrics of the resource or null if it has never been streamed
+	 */
+	public StreamMetrics getResourceMetrics(String resource) {
+		return resources.get(resource);
+	}
+
+	/**
+	 * Returns the metrics of the given open session
+	 * @param id id of the session
+	 * @return the metrics of the session or null if it is not open
+	 */
+	public StreamMetrics getSessionMetrics(int id) {
+		Session session = sessions.get(id);
+		return session==null ? null : session.metrics;
+	}
+
+	/**
+	 * Writes all metrics in the Prometheus text exposition format
+	 * @return the metrics in the text format
+	 */
+	public String scrape() {
+		StringBuilder sb = new StringBuilder(4096);
+		gauge(sb, "rtsp_session_open", "Number of open sessions", sessions.size());
+		for(String level : new String[] {"server", "resource", "session"}) {
+			counter(sb, level, "packets_sent_total", "RTP packets sent", StreamMetrics::getPackets);
+			counter(sb, level, "bytes_sent_total", "Bytes of the RTP packets sent, RTP headers included", StreamMetrics::getOctets);
+			counter(sb, level, "frames_sent_total", "Frames (access units) sent", StreamMetrics::getFrames);
+			counter(sb, level, "frames_dropped_total", "Frames dropped because the transport was congested", StreamMetrics::getDroppedFrames);
+			summary(sb, level, "frame_lateness_seconds", "Lateness of the frames relative to their pacing deadlines", false);
+			summary(sb, level, "send_gap_seconds", "Time between two consecutive packet bursts of a stream", true);
+		}
+		return sb.toString();
+	}
+
+	private void counter(StringBuilder sb, String level, String name, String help, ToLongFunction<StreamMetrics> value) {
+		String family = "rtsp_" + level + "_" + name;
+		header(sb, family, help, "counter");
+		switch(level) {
+			case "server":
+				sample(sb, family, "", value.applyAsLong(server));
+				break;
+			case "resource":
+				for(var e : resources.entrySet()) sample(sb, family, labels(e.getKey(), -1, null), value.applyAsLong(e.getValue()));
+				break;
+			default:
+				for(var e : sessions.entrySet()) sample(sb, family, labels(e.getValue().resource, e.getKey(), null), value.applyAsLong(e.getValue().metrics));
+		}
+	}
+
+	private void summary(StringBuilder sb, String level, String name, String help, boolean gaps) {
+		String family = "rtsp_" + level + "_" + name;
+		header(sb, family, help, "summary");
+		switch(level) {
+			case "server":
+				summary(sb, family, null, -1, gaps ? server.getSendGaps() : server.getLateness());
+				break;
+			case "resource":
+				for(var e : resources.entrySet()) summary(sb, family, e.getKey(), -1, gaps ? e.getValue().getSendGaps() : e.getValue().getLateness());
+				break;
+			default:
+				for(var e : sessions.entrySet()) summary(sb, family, e.getValue().resource, e.getKey(), gaps ? e.getValue().metrics.getSendGaps() : e.getValue().metrics.getLateness());
+		}
+	}
+
+	private void summary(StringBuilder sb, String family, String resource, int session, LatencyHistogram histogram) {
+		for(double q : QUANTILES) {
+			sb.append(family).append(labels(resource, session, Double.toString(q))).append(' ').append(seconds(histogram.getValueAtQuantile(q))).append('\n');
+		}
+		sb.append(family).append("_sum").append(labels(resource, session, null)).append(' ').append(seconds(histogram.getSum())).append('\n');
+		sb.append(family).append("_count").append(labels(resource, session, null)).append(' ').append(histogram.getCount()).append('\n');
+	}
+
+	private static void gauge(StringBuilder sb, String family, String help, long value) {
+		header(sb, family, help, "gauge");
+		sample(sb, family, "", value);
+	}
+
+	private static void header(StringBuilder sb, String family, String help, String type) {
+		sb.append("# HELP ").append(family).append(' ').append(help).append('\n');
+		sb.append("# TYPE ").append(family).append(' ').append(type).append('\n');
+	}
+
+	private static void sample(StringBuilder sb, String family, String labels, long value) {
+		sb.append(family).append(labels).append(' ').append(value).append('\n');
+	}
+
+	private static String labels(String resource, int session, String quantile) {
+		StringBuilder sb = new StringBuilder();
+		if(session>=0) sb.append("session=\"").append(session).append('"');
+		if(resource!=null) sb.append(sb.length()>0 ? "," : "").append("resource=\"").append(escape(resource)).append('"');
+		if(quantile!=null) sb.append(sb.length()>0 ? "," : "").append("quantile=\"").append(quantile).append('"');
+		return sb.length()==0 ? "" : "{" + sb + "}";
+	}
+
+	private static String escape(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+	private static String seconds(long nanos) {
+		return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+	}
+
+	/**
+	 * Open session and the resource it streams
+	 */
+	private static class Session {
+
+		private String resource;
+		private StreamMetrics metrics;
+
+		private Session(String resource, StreamMetrics metrics) {
+			this.resource = resource;
+			this.metrics = metrics;
+		}
+
+	}
+
+}
@@ -0,0 +1,100 @@
+package hr.matija.rtpStreamer.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and histograms of one level of streaming: one session, one resource or the whole server.
+ * Metrics form a tree (session, its resource, the server) and everything recorded into a session is
+ * recorded into its ancestors as well, so totals outlive the sessions they were recorded by. All
+ * recording is lock-free and can be done from the sending thread without any synchronization.
+ * @author Matija
+ *
+ */
+public class StreamMetrics {
+
+	private StreamMetrics parent;
+
+	private LongAdder packets = new LongAdder();
+	private LongAdder octets = new LongAdder();
+	private LongAdder frames = new LongAdder();
+	private LongAdder droppedFrames = new LongAdder();
+	private LatencyHistogram lateness = new LatencyHistogram();
+	private LatencyHistogram sendGaps = new LatencyHistogram();
+
+	/**
+	 * Creates the metrics
+	 * @param parent metrics everything recorded is propagated to, null for the root (server) metrics
+	 */
+	public StreamMetrics(StreamMetrics parent) {
+		this.parent = parent;
+	}
+
+	/**
+	 * Records one frame (access unit) which was sent
+	 * @param packets number of RTP packets of the frame
+	 * @param octets number of bytes of the packets, RTP headers included
+	 */
+	public void recordFrame(int packets, long octets) {
+		for(StreamMetrics m = this; m!=null; m = m.parent) {
+			m.frames.increment();
+			m.packets.add(packets);
+			m.octets.add(octets);
+		}
+	}
+
+	/**
+	 * Records one frame which was not sent (dropped because of the congestion of the transport)
+	 */
+	public void recordDroppedFrame() {
+		for(StreamMetrics m = this; m!=null; m = m.parent) m.droppedFrames.increment();
+	}
+
+	/**
+	 * Records how late a frame was sent relative to the deadline the pacing of the stream gave it
+	 * @param nanos lateness in nanoseconds
+	 */
+	public void recordLateness(long nanos) {
+		for(StreamMetrics m = this; m!=null; m = m.parent) m.lateness.record(nanos);
+	}
+
+	/**
+	 * Records the time elapsed between two consecutive sends of a stream
+	 * @param nanos gap in nanoseconds
+	 */
+	public void recordSendGap(long nanos) {
+		for(StreamMetrics m = this; m!=null; m = m.parent) m.sendGaps.record(nanos);
+	}
+
+	public long getPackets() {
+		return packets.sum();
+	}
+
+	public long getOctets() {
+		return octets.sum();
+	}
+
+	public long getFrames() {
+		return frames.sum();
+	}
+
+	public long getDroppedFrames() {
+		return droppedFrames.sum();
+	}
+
+	/**
+	 * Returns the histogram of the lateness of the frames relative to their pacing deadlines
+	 * @return the lateness histogram
+	 */
+	public LatencyHistogram getLateness() {
+		return lateness;
+	}
+
+	/**
+	 * Returns the histogram of the gaps between consecutive sends (packet bursts of the frames)
+	 * @return the send gap histogram
+	 */
+	public LatencyHistogram getSendGaps() {
+		return sendGaps;
+	}
+
+}
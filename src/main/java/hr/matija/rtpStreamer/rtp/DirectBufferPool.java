@@ -0,0 +1,83 @@
+package hr.matija.rtpStreamer.rtp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Pool of reusable direct byte buffers of the same capacity. Buffers are handed out
+ * cleared; when the pool is empty a new buffer is allocated and buffers released into
+ * a full pool are left to the garbage collector. Pool is thread safe and does not
+ * allocate while acquiring or releasing pooled buffers.
+ * @author Matija
+ *
+ */
+public class DirectBufferPool {
+
+	private int bufferCapacity;
+	private ByteBuffer[] pool;
+	private int size;
+
+	private long allocated;
+
+	/**
+	 * Creates the pool
+	 * @param bufferCapacity capacity of every buffer in the pool
+	 * @param maxPooled maximum number of buffers kept in the pool
+	 */
+	public DirectBufferPool(int bufferCapacity, int maxPooled) {
+		if(bufferCapacity<=0 || maxPooled<0) throw new IllegalArgumentException();
+		this.bufferCapacity = bufferCapacity;
+		this.pool = new ByteBuffer[maxPooled];
+	}
+
+	/**
+	 * Returns a cleared buffer from the pool, allocating a new one if the pool is empty
+	 * @return cleared direct buffer with the capacity of this pool
+	 */
+	public ByteBuffer acquire() {
+		synchronized (this) {
+			if(size>0) {
+				ByteBuffer buffer = pool[--size];
+				pool[size] = null;
+				return buffer.clear();
+			}
+			allocated++;
+		}
+		return ByteBuffer.allocateDirect(bufferCapacity);
+	}
+
+	/**
+	 * Returns the buffer to the pool. Buffer must not be used after it has been released.
+	 * @param buffer buffer acquired from this pool
+	 */
+	public void release(ByteBuffer buffer) {
+		if(buffer.capacity()!=bufferCapacity || !buffer.isDirect()) throw new IllegalArgumentException("Buffer does not belong to this pool!");
+		synchronized (this) {
+			if(size<pool.length) pool[size++] = buffer;
+		}
+	}
+
+	/**
+	 * Returns the capacity of every buffer in the pool
+	 * @return the capacity of every buffer in the pool
+	 */
+	public int getBufferCapacity() {
+		return bufferCapacity;
+	}
+
+	/**
+	 * Returns the number of buffers currently waiting in the pool
+	 * @return the number of pooled buffers
+	 */
+	public synchronized int getPooledCount() {
+		return size;
+	}
+
+	/**
+	 * Returns the number of buffers this pool has allocated so far
+	 * @return the number of allocated buffers
+	 */
+	public synchronized long getAllocatedCount() {
+		return allocated;
+	}
+
+}
@@ -0,0 +1,233 @@
+package hr.matija.rtpStreamer.rtp;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntFunction;
+
+import hr.matija.rtpStreamer.h264.NalUnit;
+
+/**
+ * Packetizer of h264 access units into RTP payloads (packetization mode 1, non-interleaved).
+ * Nal units that fit into one packet are sent as single nal unit packets, consecutive small
+ * non-VCL nal units (SPS, PPS, SEI...) are aggregated into STAP-A packets and nal units that
+ * do not fit into one packet are fragmented into FU-A packets. <br>
+ * See <a href="https://tools.ietf.org/html/rfc6184">RTP Payload Format for H.264 Video</a>
+ * @author Matija
+ *
+ */
+public class H264Packetizer {
+
+	/**
+	 * Default maximum transmission unit (ethernet)
+	 */
+	public static final int DEFAULT_MTU = 1500;
+
+	/**
+	 * Size of the IPv4 header + UDP header + RTP header
+	 */
+	public static final int HEADERS_OVERHEAD = 20 + 8 + 12;
+
+	/**
+	 * Nal unit type of the single-time aggregation packet
+	 */
+	public static final byte STAP_A = 24;
+
+	/**
+	 * Nal unit type of the fragmentation unit
+	 */
+	public static final byte FU_A = 28;
+
+	private int mtu;
+	private int maxPayloadSize;
+
+	/**
+	 * Creates the packetizer with the {@link #DEFAULT_MTU}
+	 */
+	public H264Packetizer() {
+		this(DEFAULT_MTU);
+	}
+
+	/**
+	 * Creates the packetizer for the given MTU
+	 * @param mtu maximum transmission unit of the network; every produced RTP packet together with the
+	 *            IP and UDP headers will fit into the MTU
+	 * @throws IllegalArgumentException if mtu is too small to carry any payload
+	 */
+	public H264Packetizer(int mtu) {
+		if(mtu - HEADERS_OVERHEAD < 3) throw new IllegalArgumentException("MTU too small: " + mtu);
+		this.mtu = mtu;
+		this.maxPayloadSize = mtu - HEADERS_OVERHEAD;
+	}
+
+	/**
+	 * Packetizes one access unit (all nal units that share one timestamp) into the list
+	 * of RTP payloads. The last payload in the list is the one that needs to be sent with
+	 * the marker bit set.
+	 * @param accessUnit nal units of one access unit in decoding order
+	 * @return RTP payloads in sending order
+	 */
+	public List<byte[]> packetize(List<NalUnit> accessUnit) {
+		List<byte[]> payloads = new ArrayList<>();
+		packetize(accessUnit, (size) -> {
+			byte[] payload = new byte[size];
+			payloads.add(payload);
+			return ByteBuffer.wrap(payload);
+		});
+		return payloads;
+	}
+	
+	/**
+	 * Packetizes one access unit into buffers acquired from the given pool. Payload of every packet
+	 * is written after the first {@link RTPUtil#HEADER_SIZE} bytes of the buffer, so the RTP header can
+	 * be written in place (see {@link RTPUtil#writeBasicHeaderRTP(ByteBuffer, int, byte, boolean, boolean, byte, boolean, byte, short, int, int)})
+	 * and the whole packet sent without any copying. Limit of every buffer is set to the end of the packet.
+	 * The last packet in the list is the one that needs to be sent with the marker bit set.
+	 * @param accessUnit nal units of one access unit in decoding order
+	 * @param pool pool of the packet buffers
+	 * @param packets list to which the packets are added in sending order
+	 * @throws IllegalArgumentException if buffers of the pool can not hold the largest packet
+	 */
+	public void packetize(List<NalUnit> accessUnit, DirectBufferPool pool, List<ByteBuffer> packets) {
+		if(pool.getBufferCapacity() < RTPUtil.HEADER_SIZE + maxPayloadSize) throw new IllegalArgumentException("Pool buffers too small for MTU " + mtu);
+		packetize(accessUnit, (size) -> {
+			ByteBuffer packet = pool.acquire();
+			packet.position(RTPUtil.HEADER_SIZE).limit(RTPUtil.HEADER_SIZE + size);
+			packets.add(packet);
+			return packet;
+		});
+	}
+	
+	/**
+	 * Packetizes one access unit. Every payload is written into the buffer returned by the allocator for
+	 * the size of that payload.
+	 * @param accessUnit nal units of one access unit in decoding order
+	 * @param allocator returns the buffer positioned at the start of the payload of the given size
+	 */
+	private void packetize(List<NalUnit> accessUnit, IntFunction<ByteBuffer> allocator) {
+		int i = 0;
+		while(i<accessUnit.size()) {
+			NalUnit nal = accessUnit.get(i);
+
+			if(nal.getLength() > maxPayloadSize) {
+				fragment(nal, allocator);
+				i++;
+				continue;
+			}
+
+			// try to aggregate the following non-VCL nal units with this one
+			int aggregated = 1;
+			int aggregatedSize = 1 + 2 + nal.getLength();
+			if(!isVcl(nal.getNalUnitHeader())) {
+				while(i+aggregated<accessUnit.size()) {
+					NalUnit next = accessUnit.get(i+aggregated);
+					if(isVcl(next.getNalUnitHeader()) || aggregatedSize + 2 + next.getLength() > maxPayloadSize) break;
+					aggregatedSize += 2 + next.getLength();
+					aggregated++;
+				}
+			}
+
+			if(aggregated==1) {
+				allocator.apply(nal.getLength()).put(nal.getBuffer());
+			} else {
+				aggregate(accessUnit.subList(i, i+aggregated), allocator.apply(aggregatedSize));
+			}
+			i += aggregated;
+		}
+	}
+
+	/**
+	 * Splits one nal unit into FU-A payloads
+	 * @param nal nal unit which needs to be fragmented
+	 * @param allocator allocator of the payloads
+	 */
+	private void fragment(NalUnit nal, IntFunction<ByteBuffer> allocator) {
+		byte header = nal.getNalUnitHeader();
+		byte indicator = (byte) ((header & 0xE0) | FU_A);
+		byte type = (byte) (header & 0x1F);
+		int fragmentSize = maxPayloadSize - 2;
+
+		ByteBuffer data = nal.getBuffer();
+		int end = data.limit();
+		data.position(1); // nal unit header is carried in the FU indicator and FU header
+		while(data.position()<end) {
+			boolean first = data.position()==1;
+			int len = Math.min(fragmentSize, end - data.position());
+			boolean last = data.position() + len == end;
+
+			ByteBuffer fu = allocator.apply(len + 2);
+			fu.put(indicator);
+			fu.put((byte) ((first ? 0x80 : 0) | (last ? 0x40 : 0) | type));
+			data.limit(data.position() + len);
+			fu.put(data);
+			data.limit(end);
+		}
+	}
+
+	/**
+	 * Writes one STAP-A payload from the given nal units
+	 * @param nals nal units which need to be aggregated
+	 * @param stap buffer into which the payload is written
+	 */
+	private void aggregate(List<NalUnit> nals, ByteBuffer stap) {
+		int forbidden = 0;
+		int nri = 0;
+		for(var nal : nals) {
+			forbidden |= nal.getNalUnitHeader() & 0x80;
+			nri = Math.max(nri, nal.getNalUnitHeader() & 0x60);
+		}
+		
+		stap.put((byte) (forbidden | nri | STAP_A));
+		for(var nal : nals) {
+			stap.putShort((short) nal.getLength());
+			stap.put(nal.getBuffer());
+		}
+	}
+
+	/**
+	 * Returns the type of the nal unit carried in the given RTP payload. For fragmentation units
+	 * type of the fragmented nal unit is returned, for aggregation packets {@link #STAP_A} is returned.
+	 * @param payload RTP payload created by this packetizer
+	 * @return type of the nal unit carried in the payload
+	 */
+	public static byte getNalUnitType(byte[] payload) {
+		byte type = (byte) (payload[0] & 0x1F);
+		if(type==FU_A) return (byte) (payload[1] & 0x1F);
+		return type;
+	}
+
+	/**
+	 * Returns the type of the nal unit carried in the RTP payload which starts at the given index of the buffer.
+	 * See {@link #getNalUnitType(byte[])}.
+	 * @param packet buffer containing the RTP payload
+	 * @param offset index of the first byte of the payload
+	 * @return type of the nal unit carried in the payload
+	 */
+	public static byte getNalUnitType(ByteBuffer packet, int offset) {
+		byte type = (byte) (packet.get(offset) & 0x1F);
+		if(type==FU_A) return (byte) (packet.get(offset+1) & 0x1F);
+		return type;
+	}
+
+	private static boolean isVcl(byte nalUnitHeader) {
+		int type = nalUnitHeader & 0x1F;
+		return type>=1 && type<=5;
+	}
+
+	/**
+	 * Returns the maximum transmission unit for which this packetizer creates packets
+	 * @return the maximum transmission unit
+	 */
+	public int getMtu() {
+		return mtu;
+	}
+
+	/**
+	 * Returns the maximum size of the RTP payload created by this packetizer
+	 * @return the maximum size of the RTP payload
+	 */
+	public int getMaxPayloadSize() {
+		return maxPayloadSize;
+	}
+
+}
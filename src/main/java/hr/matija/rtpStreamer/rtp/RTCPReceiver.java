@@ -0,0 +1,113 @@
+package hr.matija.rtpStreamer.rtp;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import hr.matija.rtpStreamer.console.ConsoleWriter;
+
+/**
+ * Receiver of the RTCP packets of all UDP transports. One thread waits on a selector for the RTCP
+ * channels of all registered transports and passes the packets to their control listeners as soon
+ * as they arrive, so the round trip time is not skewed by polling. Packets of a unicast transport
+ * are accepted only from the RTCP address of its client, so nobody else can fake the reports (or keep
+ * the session alive); a multicast transport accepts them from every receiver of the group, which send
+ * from their own unicast addresses. Transport is unregistered automatically when it is closed.
+ * @author Matija
+ *
+ */
+public class RTCPReceiver implements AutoCloseable {
+
+	private static final int MAX_PACKET_SIZE = 1500;
+
+	private ConsoleWriter writer;
+	private Selector selector;
+	private Thread thread;
+	private Queue<RTPUdpTransport> pending = new ConcurrentLinkedQueue<>();
+	private ByteBuffer receiveBuffer = ByteBuffer.allocate(MAX_PACKET_SIZE);
+	private volatile boolean running = true;
+
+	/**
+	 * Opens the selector and starts the receiving thread
+	 * @param writer log the errors of the receiver are written to
+	 */
+	public RTCPReceiver(ConsoleWriter writer) {
+		this.writer = Objects.requireNonNull(writer);
+		try {
+			selector = Selector.open();
+		} catch (IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+		thread = new Thread(this::run, "rtcp-receiver");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Starts receiving the RTCP packets of the given transport
+	 * @param transport UDP transport
+	 */
+	public void register(RTPUdpTransport transport) {
+		pending.add(transport);
+		selector.wakeup();
+	}
+
+	private void run() {
+		while(running) {
+			try {
+				selector.select();
+
+				RTPUdpTransport transport;
+				while((transport = pending.poll()) != null) {
+					try {
+						transport.getControlChannel().register(selector, SelectionKey.OP_READ, transport);
+					} catch (ClosedChannelException ex) {
+						// transport closed before it was registered
+					}
+				}
+
+				for(var it = selector.selectedKeys().iterator(); it.hasNext(); ) {
+					SelectionKey key = it.next();
+					it.remove();
+					if(!key.isValid()) continue;
+					try {
+						receive((RTPUdpTransport) key.attachment());
+					} catch (IOException ex) {
+						key.cancel();
+					}
+				}
+			} catch (IOException ex) {
+				if(running) writer.writeError("RTCP receiver error " + ex.getClass().getName() + " : " + ex.getMessage());
+			}
+		}
+	}
+
+	private void receive(RTPUdpTransport transport) throws IOException {
+		while(true) {
+			receiveBuffer.clear();
+			SocketAddress source = transport.getControlChannel().receive(receiveBuffer);
+			if(source==null) return;
+			if(transport.isMulticast() || source.equals(transport.getControlAddress())) transport.controlReceived(receiveBuffer.flip());
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		running = false;
+		selector.wakeup();
+		try {
+			thread.join();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		selector.close();
+	}
+
+}
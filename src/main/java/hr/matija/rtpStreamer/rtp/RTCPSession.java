@@ -0,0 +1,184 @@
+package hr.matija.rtpStreamer.rtp;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Objects;
+
+import hr.matija.rtpStreamer.rtp.RTCPUtil.ReceptionReport;
+
+/**
+ * RTCP session of one RTP sender. Creates the sender reports which map the RTP timestamps to the
+ * wallclock and collects the reception reports of the receiver, from which the packet loss,
+ * the interarrival jitter and the round trip time are derived. Session does not own a thread nor
+ * a channel; reports are sent through the {@link RTPTransport} of the stream by the owner of the
+ * session and received RTCP packets are passed to {@link #receive(ByteBuffer)} by the transport.
+ * Metrics can be read from any thread.
+ * @author Matija
+ *
+ */
+public class RTCPSession {
+
+	private int ssrc;
+	private long clockHz;
+	private String cname;
+
+	private volatile double fractionLost;
+	private volatile long cumulativeLost;
+	private volatile double jitterMillis;
+	private volatile double roundTripMillis = -1;
+	private volatile long reportCount;
+	private volatile long lastReportMillis;
+	private volatile long lastReceivedMillis;
+	private volatile double receivedPacketRate;
+	
+	private int previousHighestSeqNum;
+	private int previousCumulativeLost;
+
+	/**
+	 * Creates the session
+	 * @param ssrc synchronization source identifier of the sender
+	 * @param clockHz RTP clock rate of the stream
+	 * @param cname canonical name of the sender
+	 */
+	public RTCPSession(int ssrc, long clockHz, String cname) {
+		this.ssrc = ssrc;
+		this.clockHz = clockHz;
+		this.cname = Objects.requireNonNull(cname);
+	}
+
+	/**
+	 * Creates the sender report
+	 * @param wallclockMillis wallclock time of the report in milliseconds since the unix epoch
+	 * @param rtpTimestamp RTP timestamp of the same instant
+	 * @param packetCount number of RTP packets sent so far
+	 * @param octetCount number of RTP payload octets sent so far
+	 * @return compound RTCP packet (SR and SDES) ready to be sent
+	 */
+	public ByteBuffer createSenderReport(long wallclockMillis, int rtpTimestamp, int packetCount, int octetCount) {
+		long ntp = RTCPUtil.toNtpTimestamp(wallclockMillis);
+		return ByteBuffer.wrap(RTCPUtil.constructSenderReport(ssrc, ntp, rtpTimestamp, packetCount, octetCount, cname));
+	}
+
+	/**
+	 * Creates the goodbye packet
+	 * @return compound RTCP packet (SDES and BYE) ready to be sent
+	 */
+	public ByteBuffer createBye() {
+		byte[] sdes = RTCPUtil.constructSourceDescription(ssrc, cname);
+		byte[] bye = RTCPUtil.constructBye(ssrc);
+		return ByteBuffer.allocate(sdes.length + bye.length).put(sdes).put(bye).flip();
+	}
+
+	/**
+	 * Updates the metrics from the reception reports about this sender contained in the received
+	 * RTCP packet (from its position to its limit). Malformed packets are ignored.
+	 * @param packet received RTCP packet
+	 * @return number of reception reports about this sender
+	 */
+	public synchronized int receive(ByteBuffer packet) {
+		lastReceivedMillis = System.currentTimeMillis();
+		int received = 0;
+		byte[] data = new byte[packet.remaining()];
+		packet.get(data);
+		try {
+			for(ReceptionReport report : RTCPUtil.parseReceptionReports(data, data.length)) {
+				if(report.getSsrc()!=ssrc) continue;
+				update(report, System.currentTimeMillis());
+				received++;
+			}
+		} catch (IllegalArgumentException | BufferUnderflowException ex) {
+			// not a valid RTCP packet, nothing to learn from it
+		}
+		return received;
+	}
+
+	private void update(ReceptionReport report, long nowMillis) {
+		fractionLost = report.getFractionLost() / 256.0;
+		cumulativeLost = report.getCumulativeLost();
+		jitterMillis = report.getJitter() * 1000.0 / clockHz;
+
+		// RTT = A - LSR - DLSR (RFC 3550 6.4.1), everything in 1/65536 s
+		if(report.getLastSenderReport()!=0) {
+			int now = RTCPUtil.compactNtp(RTCPUtil.toNtpTimestamp(nowMillis));
+			int rtt = now - report.getLastSenderReport() - report.getDelaySinceLastSenderReport();
+			if(rtt>=0) roundTripMillis = rtt * 1000.0 / 65536;
+		}
+
+		// packets which reached the receiver since the previous report
+		if(reportCount>0 && nowMillis>lastReportMillis) {
+			int received = (report.getHighestSeqNum() - previousHighestSeqNum) - (report.getCumulativeLost() - previousCumulativeLost);
+			if(received>=0) receivedPacketRate = received * 1000.0 / (nowMillis - lastReportMillis);
+		}
+		previousHighestSeqNum = report.getHighestSeqNum();
+		previousCumulativeLost = report.getCumulativeLost();
+
+		reportCount++;
+		lastReportMillis = nowMillis;
+	}
+
+	/**
+	 * Returns the fraction of packets lost between the last two reports (0 - 1)
+	 * @return the fraction of packets lost
+	 */
+	public double getFractionLost() {
+		return fractionLost;
+	}
+
+	/**
+	 * Returns the total number of packets the receiver has lost
+	 * @return the cumulative number of lost packets
+	 */
+	public long getCumulativeLost() {
+		return cumulativeLost;
+	}
+
+	/**
+	 * Returns the interarrival jitter reported by the receiver in milliseconds
+	 * @return the interarrival jitter in milliseconds
+	 */
+	public double getJitterMillis() {
+		return jitterMillis;
+	}
+
+	/**
+	 * Returns the last measured round trip time in milliseconds, -1 if not measured yet
+	 * @return the round trip time in milliseconds
+	 */
+	public double getRoundTripMillis() {
+		return roundTripMillis;
+	}
+
+	/**
+	 * Returns the rate at which packets reached the receiver between the last two reports
+	 * @return the number of packets received per second, 0 if not measured yet
+	 */
+	public double getReceivedPacketRate() {
+		return receivedPacketRate;
+	}
+
+	/**
+	 * Returns the number of reception reports received
+	 * @return the number of reception reports received
+	 */
+	public long getReportCount() {
+		return reportCount;
+	}
+
+	/**
+	 * Returns the wallclock time of the last reception report, 0 if none was received
+	 * @return the time of the last reception report in milliseconds since the unix epoch
+	 */
+	public long getLastReportMillis() {
+		return lastReportMillis;
+	}
+
+	/**
+	 * Returns the wallclock time of the last RTCP packet received, with or without reports about this sender.
+	 * Receivers send RTCP for as long as they are alive, so this is the liveness of the receiver.
+	 * @return the time of the last received RTCP packet in milliseconds since the unix epoch, 0 if none was received
+	 */
+	public long getLastReceivedMillis() {
+		return lastReceivedMillis;
+	}
+
+}
@@ -0,0 +1,265 @@
+package hr.matija.rtpStreamer.rtp;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Utility for creating and parsing RTCP packets (sender reports, receiver reports, source
+ * descriptions and goodbye packets).
+ * <a href="https://tools.ietf.org/html/rfc3550#section-6">RTCP Specification</a>
+ * @author Matija
+ *
+ */
+public class RTCPUtil {
+
+	/**
+	 * Packet type of the sender report
+	 */
+	public static final int SR = 200;
+
+	/**
+	 * Packet type of the receiver report
+	 */
+	public static final int RR = 201;
+
+	/**
+	 * Packet type of the source description
+	 */
+	public static final int SDES = 202;
+
+	/**
+	 * Packet type of the goodbye packet
+	 */
+	public static final int BYE = 203;
+
+	/**
+	 * Seconds between 1.1.1900. (NTP epoch) and 1.1.1970. (unix epoch)
+	 */
+	private static final long NTP_EPOCH_OFFSET = 2_208_988_800L;
+
+	private static final int SDES_CNAME = 1;
+
+	/**
+	 * Converts the wallclock time to the 64 bit NTP timestamp (seconds since 1900 in the upper
+	 * 32 bits and the fraction of the second in the lower 32 bits)
+	 * @param millis milliseconds since the unix epoch
+	 * @return NTP timestamp
+	 */
+	public static long toNtpTimestamp(long millis) {
+		long seconds = millis / 1000 + NTP_EPOCH_OFFSET;
+		long fraction = ((millis % 1000) << 32) / 1000;
+		return seconds << 32 | fraction;
+	}
+
+	/**
+	 * Returns the middle 32 bits of the NTP timestamp, the format used in the LSR field of the reception
+	 * report and for the round trip time calculation (unit is 1/65536 s)
+	 * @param ntpTimestamp NTP timestamp
+	 * @return middle 32 bits of the NTP timestamp
+	 */
+	public static int compactNtp(long ntpTimestamp) {
+		return (int) (ntpTimestamp >>> 16);
+	}
+
+	/**
+	 * Creates a compound RTCP packet consisting of a sender report without reception reports followed
+	 * by a source description with the CNAME item.
+	 * @param ssrc synchronization source identifier of the sender
+	 * @param ntpTimestamp wallclock time at which this report is sent as NTP timestamp
+	 * @param rtpTimestamp RTP timestamp which corresponds to the same instant as the NTP timestamp
+	 * @param packetCount total number of RTP packets sent by the sender
+	 * @param octetCount total number of RTP payload octets sent by the sender
+	 * @param cname canonical name of the sender
+	 * @return compound RTCP packet
+	 */
+	public static byte[] constructSenderReport(int ssrc, long ntpTimestamp, int rtpTimestamp, int packetCount, int octetCount, String cname) {
+		byte[] sdes = constructSourceDescription(ssrc, cname);
+		ByteBuffer buffer = ByteBuffer.allocate(28 + sdes.length);
+
+		buffer.put((byte) 0x80); // version 2, no padding, no reception reports
+		buffer.put((byte) SR);
+		buffer.putShort((short) 6); // length in 32 bit words minus one
+		buffer.putInt(ssrc);
+		buffer.putLong(ntpTimestamp);
+		buffer.putInt(rtpTimestamp);
+		buffer.putInt(packetCount);
+		buffer.putInt(octetCount);
+		buffer.put(sdes);
+
+		return buffer.array();
+	}
+
+	/**
+	 * Creates a source description packet with one chunk containing the CNAME item
+	 * @param ssrc synchronization source identifier
+	 * @param cname canonical name of the source
+	 * @return source description packet
+	 */
+	public static byte[] constructSourceDescription(int ssrc, String cname) {
+		byte[] name = cname.getBytes(StandardCharsets.UTF_8);
+		if(name.length>255) throw new IllegalArgumentException("CNAME too long!");
+
+		// ssrc + item type + item length + item + at least one terminating zero, padded to 32 bits
+		int chunk = (4 + 2 + name.length + 1 + 3) & ~3;
+		ByteBuffer buffer = ByteBuffer.allocate(4 + chunk);
+		buffer.put((byte) 0x81); // version 2, one chunk
+		buffer.put((byte) SDES);
+		buffer.putShort((short) (chunk / 4));
+		buffer.putInt(ssrc);
+		buffer.put((byte) SDES_CNAME);
+		buffer.put((byte) name.length);
+		buffer.put(name);
+
+		return buffer.array();
+	}
+
+	/**
+	 * Creates a goodbye packet
+	 * @param ssrc synchronization source identifier which leaves the session
+	 * @return goodbye packet
+	 */
+	public static byte[] constructBye(int ssrc) {
+		ByteBuffer buffer = ByteBuffer.allocate(8);
+		buffer.put((byte) 0x81);
+		buffer.put((byte) BYE);
+		buffer.putShort((short) 1);
+		buffer.putInt(ssrc);
+		return buffer.array();
+	}
+
+	/**
+	 * Parses a (compound) RTCP packet and returns all reception report blocks found in its sender and
+	 * receiver reports. Other packet types are skipped.
+	 * @param data raw RTCP packet
+	 * @param length length of the packet
+	 * @return reception report blocks in the order in which they appear
+	 * @throws IllegalArgumentException if the packet is malformed
+	 */
+	public static List<ReceptionReport> parseReceptionReports(byte[] data, int length) {
+		List<ReceptionReport> reports = new ArrayList<>();
+		ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+
+		while(buffer.remaining()>=4) {
+			int start = buffer.position();
+			int first = buffer.get() & 0xFF;
+			int type = buffer.get() & 0xFF;
+			int words = buffer.getShort() & 0xFFFF;
+			int end = start + (words + 1) * 4;
+
+			if(first >> 6 != 2) throw new IllegalArgumentException("Unsupported RTCP version!");
+			if(end>buffer.limit()) throw new IllegalArgumentException("Truncated RTCP packet!");
+
+			if(type==SR || type==RR) {
+				int count = first & 0x1F;
+				int reporter = buffer.getInt();
+				if(type==SR) buffer.position(buffer.position() + 20); // sender info
+				if(buffer.position() + count * 24 > end) throw new IllegalArgumentException("Truncated RTCP report!");
+
+				for(int i=0; i<count; i++) {
+					ReceptionReport report = new ReceptionReport();
+					report.reporterSsrc = reporter;
+					report.ssrc = buffer.getInt();
+					int lost = buffer.getInt();
+					report.fractionLost = lost >>> 24;
+					report.cumulativeLost = lost << 8 >> 8; // signed 24 bit
+					report.highestSeqNum = buffer.getInt();
+					report.jitter = buffer.getInt() & 0xFFFFFFFFL;
+					report.lastSenderReport = buffer.getInt();
+					report.delaySinceLastSenderReport = buffer.getInt();
+					reports.add(report);
+				}
+			}
+			buffer.position(end);
+		}
+
+		return reports;
+	}
+
+	/**
+	 * Class ReceptionReport represents one reception report block of a sender or receiver report.
+	 * @author Matija
+	 *
+	 */
+	public static class ReceptionReport {
+
+		private int reporterSsrc;
+		private int ssrc;
+		private int fractionLost;
+		private int cumulativeLost;
+		private int highestSeqNum;
+		private long jitter;
+		private int lastSenderReport;
+		private int delaySinceLastSenderReport;
+
+		private ReceptionReport() {
+		}
+
+		/**
+		 * Returns the synchronization source identifier of the receiver which sent this report
+		 * @return the ssrc of the reporter
+		 */
+		public int getReporterSsrc() {
+			return reporterSsrc;
+		}
+
+		/**
+		 * Returns the synchronization source identifier of the source this report is about
+		 * @return the ssrc of the reported source
+		 */
+		public int getSsrc() {
+			return ssrc;
+		}
+
+		/**
+		 * Returns the fraction of packets lost since the previous report, in 1/256 units
+		 * @return the fraction of packets lost
+		 */
+		public int getFractionLost() {
+			return fractionLost;
+		}
+
+		/**
+		 * Returns the total number of packets lost since the beginning of the reception
+		 * @return the cumulative number of packets lost
+		 */
+		public int getCumulativeLost() {
+			return cumulativeLost;
+		}
+
+		/**
+		 * Returns the extended highest sequence number received
+		 * @return the extended highest sequence number received
+		 */
+		public int getHighestSeqNum() {
+			return highestSeqNum;
+		}
+
+		/**
+		 * Returns the interarrival jitter in RTP timestamp units
+		 * @return the interarrival jitter
+		 */
+		public long getJitter() {
+			return jitter;
+		}
+
+		/**
+		 * Returns the middle 32 bits of the NTP timestamp of the last sender report received, 0 if none
+		 * @return the last sender report timestamp
+		 */
+		public int getLastSenderReport() {
+			return lastSenderReport;
+		}
+
+		/**
+		 * Returns the delay between receiving the last sender report and sending this report, in 1/65536 s
+		 * @return the delay since the last sender report
+		 */
+		public int getDelaySinceLastSenderReport() {
+			return delaySinceLastSenderReport;
+		}
+
+	}
+
+}
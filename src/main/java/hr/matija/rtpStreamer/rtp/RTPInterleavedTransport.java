@@ -0,0 +1,207 @@
+package hr.matija.rtpStreamer.rtp;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Consumer;
+
+/**
+ * Transport of RTP and RTCP packets interleaved into the rtsp connection of the client. Every packet
+ * is framed as <code>'$'</code>, channel (1 byte), length (2 bytes) and the packet itself, and handed
+ * to the output of the connection. RTP packets are framed into direct buffers of a pool, which the output
+ * returns to the pool once they are written, and all packets of one {@link #sendAll(List)} are queued and
+ * written together. Output is bounded: when it is full the frame is dropped instead of
+ * blocking the sender, and when it is filling up the transport reports congestion so the sender can
+ * drop the frames nobody refers to. <br>
+ * See <a href="https://tools.ietf.org/html/rfc2326#section-10.12">Embedded (Interleaved) Binary Data</a>
+ * @author Matija
+ *
+ */
+public class RTPInterleavedTransport implements RTPTransport {
+
+	/**
+	 * First byte of every interleaved frame
+	 */
+	public static final byte MAGIC = '$';
+
+	/**
+	 * Size of the frame header
+	 */
+	public static final int FRAME_HEADER_SIZE = 4;
+
+	/**
+	 * Output of the rtsp connection which carries the interleaved frames
+	 * @author Matija
+	 *
+	 */
+	public interface InterleavedOutput {
+
+		/**
+		 * Queues the frame for writing. Can be called from any thread and must not block.
+		 * @param frame interleaved frame
+		 * @return true if the frame was queued, false if it was dropped because the output is full or closed
+		 */
+		boolean write(ByteBuffer frame);
+
+		/**
+		 * Queues the frames for writing and then writes the queue once. Frames are queued in order until
+		 * one does not fit; the queued ones belong to the output, which passes each of them to the release
+		 * function once it has been written or the output is closed. Frames which were not queued stay with
+		 * the caller. Can be called from any thread and must not block.
+		 * @param frames interleaved frames
+		 * @param release function the written frames are returned with
+		 * @return number of frames queued (the first ones), 0 if the output is closed
+		 */
+		int writeAll(List<ByteBuffer> frames, Consumer<ByteBuffer> release);
+
+		/**
+		 * Returns true iff the output is filling up faster than the client reads it
+		 * @return true iff the output is congested
+		 */
+		boolean isCongested();
+
+	}
+
+	private InterleavedOutput output;
+	private DirectBufferPool pool;
+	private int channel;
+	private int controlChannel;
+	private List<ByteBuffer> frames = new ArrayList<>();   // frames of the burst being sent, guarded by this
+	private volatile Consumer<ByteBuffer> controlListener;
+	private volatile boolean closed;
+
+	private volatile long dropped;
+
+	/**
+	 * Creates the transport
+	 * @param output output of the rtsp connection
+	 * @param pool pool of the frame buffers, packets which do not fit into them are framed into new buffers
+	 * @param channel channel of the RTP packets
+	 * @param controlChannel channel of the RTCP packets
+	 * @throws IllegalArgumentException if a channel is not in the range 0 - 255
+	 */
+	public RTPInterleavedTransport(InterleavedOutput output, DirectBufferPool pool, int channel, int controlChannel) {
+		this.output = Objects.requireNonNull(output);
+		this.pool = Objects.requireNonNull(pool);
+		if(channel<0 || channel>255 || controlChannel<0 || controlChannel>255) throw new IllegalArgumentException("Illegal interleaved channels: " + channel + "-" + controlChannel);
+		this.channel = channel;
+		this.controlChannel = controlChannel;
+	}
+
+	/**
+	 * Frames the packet (from its beginning to its limit) into a new buffer
+	 * @param channel interleaved channel
+	 * @param packet RTP or RTCP packet
+	 * @return the frame, ready to be written
+	 * @throws IllegalArgumentException if the packet does not fit into one frame
+	 */
+	public static ByteBuffer frame(int channel, ByteBuffer packet) {
+		int length = packet.limit();
+		if(length>0xFFFF) throw new IllegalArgumentException("Packet too large: " + length);
+
+		return frame(channel, packet, ByteBuffer.allocate(FRAME_HEADER_SIZE + length));
+	}
+
+	private static ByteBuffer frame(int channel, ByteBuffer packet, ByteBuffer frame) {
+		frame.put(MAGIC).put((byte) channel).putShort((short) packet.limit());
+		frame.put(packet.duplicate().position(0));
+		return frame.flip();
+	}
+
+	@Override
+	public int send(ByteBuffer packet) {
+		return (int) sendAll(List.of(packet));
+	}
+
+	/**
+	 * Frames all packets into pooled buffers, queues them with one call to the output and writes them
+	 * together. Packets are not retained.
+	 * @param packets RTP packets
+	 * @return number of bytes queued
+	 */
+	@Override
+	public synchronized long sendAll(List<ByteBuffer> packets) {
+		int n = packets.size();
+		if(closed) {
+			dropped += n;
+			return 0;
+		}
+		int queued = 0;
+		try {
+			for(int i=0; i<n; i++) {
+				ByteBuffer packet = packets.get(i);
+				frames.add(FRAME_HEADER_SIZE + packet.limit() <= pool.getBufferCapacity() ? frame(channel, packet, pool.acquire()) : frame(channel, packet));
+			}
+			queued = output.writeAll(frames, this::release);
+			dropped += n - queued;
+			long sent = 0;
+			for(int i=0; i<queued; i++) sent += packets.get(i).limit();
+			return sent;
+		} finally {
+			for(int i=queued, m=frames.size(); i<m; i++) release(frames.get(i)); // not queued, still ours
+			frames.clear();
+		}
+	}
+
+	private void release(ByteBuffer frame) {
+		if(frame.isDirect() && frame.capacity()==pool.getBufferCapacity()) pool.release(frame);
+	}
+
+	@Override
+	public void sendControl(ByteBuffer packet) {
+		if(!closed && output.write(frame(controlChannel, packet))) return;
+		dropped++;
+	}
+
+	/**
+	 * Passes the frame received on the rtsp connection to the control listener if it is an RTCP frame
+	 * of this transport; RTP frames of the client are ignored
+	 * @param channel channel of the frame
+	 * @param data payload of the frame
+	 */
+	public void frameReceived(int channel, ByteBuffer data) {
+		Consumer<ByteBuffer> listener = controlListener;
+		if(channel==controlChannel && listener!=null && !closed) listener.accept(data);
+	}
+
+	@Override
+	public void setControlListener(Consumer<ByteBuffer> listener) {
+		this.controlListener = listener;
+	}
+
+	@Override
+	public boolean isCongested() {
+		return output.isCongested();
+	}
+
+	@Override
+	public long getDroppedCount() {
+		return dropped;
+	}
+
+	/**
+	 * Returns the channel of the RTP packets
+	 * @return the channel of the RTP packets
+	 */
+	public int getChannel() {
+		return channel;
+	}
+
+	/**
+	 * Returns the channel of the RTCP packets
+	 * @return the channel of the RTCP packets
+	 */
+	public int getControlChannel() {
+		return controlChannel;
+	}
+
+	/**
+	 * Stops sending; connection itself is owned (and closed) by its handler
+	 */
+	@Override
+	public void close() {
+		closed = true;
+	}
+
+}
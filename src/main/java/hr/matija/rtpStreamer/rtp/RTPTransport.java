@@ -0,0 +1,73 @@
+package hr.matija.rtpStreamer.rtp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Transport of the RTP and RTCP packets of one stream to one client. Packets are sent from their
+ * beginning to their limit and are never retained by the transport, so the caller may reuse (or
+ * release to the pool) a packet as soon as the send returns and may send the same packet multiple times.
+ * RTCP packets of the client are delivered to the control listener.
+ * @author Matija
+ *
+ */
+public interface RTPTransport extends AutoCloseable {
+
+	/**
+	 * Sends one RTP packet
+	 * @param packet RTP packet
+	 * @return number of bytes sent, 0 if the packet was dropped
+	 * @throws IOException if an I/O error occurs
+	 */
+	int send(ByteBuffer packet) throws IOException;
+
+	/**
+	 * Sends all packets (for example all packets of one access unit) in one burst. Packets are not released.
+	 * @param packets RTP packets
+	 * @return number of bytes sent
+	 * @throws IOException if an I/O error occurs
+	 */
+	default long sendAll(List<ByteBuffer> packets) throws IOException {
+		long sent = 0;
+		for(int i=0, n=packets.size(); i<n; i++) {
+			sent += send(packets.get(i));
+		}
+		return sent;
+	}
+
+	/**
+	 * Sends one RTCP packet
+	 * @param packet RTCP packet
+	 * @throws IOException if an I/O error occurs
+	 */
+	void sendControl(ByteBuffer packet) throws IOException;
+
+	/**
+	 * Sets the listener which receives the RTCP packets of the client. Packet is valid only during the call.
+	 * @param listener listener of the received RTCP packets, null to ignore them
+	 */
+	void setControlListener(Consumer<ByteBuffer> listener);
+
+	/**
+	 * Returns true iff the transport cannot keep up with the stream, in which case the sender should
+	 * drop whatever the client can live without instead of queuing it
+	 * @return true iff the transport is congested
+	 */
+	default boolean isCongested() {
+		return false;
+	}
+
+	/**
+	 * Returns the number of packets the transport had to drop because it could not queue them
+	 * @return the number of dropped packets
+	 */
+	default long getDroppedCount() {
+		return 0;
+	}
+
+	@Override
+	void close() throws IOException;
+
+}
@@ -0,0 +1,232 @@
+package hr.matija.rtpStreamer.rtp;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.PortUnreachableException;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Consumer;
+
+/**
+ * Transport of RTP packets to one destination over a connected {@link DatagramChannel}, with RTCP on
+ * a second channel. Packets are pooled direct buffers (see {@link H264Packetizer#packetize(List, DirectBufferPool, List)})
+ * which are written to the socket without any copying on the java side. RTCP packets of the client are
+ * read by the {@link RTCPReceiver} the transport is registered with. Destination may be a multicast
+ * group (see {@link #openMulticast(InetSocketAddress, InetSocketAddress, int, NetworkInterface)}).
+ * @author Matija
+ *
+ */
+public class RTPUdpTransport implements RTPTransport {
+
+	private DatagramChannel channel;
+	private DatagramChannel controlChannel;
+	private SocketAddress address;
+	private SocketAddress controlAddress;
+	private boolean multicast;
+	private volatile Consumer<ByteBuffer> controlListener;
+
+	private long unreachable;
+
+	/**
+	 * Opens both channels on any free port
+	 * @param address destination of the RTP packets
+	 * @param controlAddress destination of the RTCP packets
+	 * @throws IOException if an I/O error occurs
+	 */
+	public RTPUdpTransport(SocketAddress address, SocketAddress controlAddress) throws IOException {
+		this(null, address, null, controlAddress);
+	}
+
+	/**
+	 * Opens the RTP channel on the given local address and connects it to the given destination, and
+	 * opens the non-blocking RTCP channel on the given local address
+	 * @param local local address of the RTP channel, null for any free port
+	 * @param address destination of the RTP packets
+	 * @param controlLocal local address of the RTCP channel, null for any free port
+	 * @param controlAddress destination of the RTCP packets
+	 * @throws IOException if an I/O error occurs
+	 */
+	public RTPUdpTransport(SocketAddress local, SocketAddress address, SocketAddress controlLocal, SocketAddress controlAddress) throws IOException {
+		this(null, local, address, controlLocal, controlAddress);
+	}
+
+	/**
+	 * Opens the channels
+	 * @param family protocol family of the multicast group, null for a unicast transport
+	 */
+	private RTPUdpTransport(ProtocolFamily family, SocketAddress local, SocketAddress address, SocketAddress controlLocal, SocketAddress controlAddress) throws IOException {
+		this.address = Objects.requireNonNull(address);
+		this.controlAddress = Objects.requireNonNull(controlAddress);
+		this.multicast = family!=null;
+		try {
+			this.channel = family==null ? DatagramChannel.open() : DatagramChannel.open(family);
+			this.channel.bind(local);
+			this.channel.connect(address);
+
+			this.controlChannel = family==null ? DatagramChannel.open() : DatagramChannel.open(family);
+			this.controlChannel.configureBlocking(false);
+			if(family!=null) this.controlChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true); // receivers on this host bind the same port
+			this.controlChannel.bind(controlLocal);
+		} catch (IOException ex) {
+			close();
+			throw ex;
+		}
+	}
+
+	/**
+	 * Opens the transport sending to the multicast group. Packets are looped back to the receivers on
+	 * this host ({@link StandardSocketOptions#IP_MULTICAST_LOOP}), so the group can be joined locally.
+	 * Receivers send their reports to the RTCP port of the group (RFC 3550, section 6), so the RTCP
+	 * channel is bound to that port and joins the group on the interface; the reports of all receivers
+	 * (and the sender reports of this transport, which carry no reports about it) reach the control listener.
+	 * @param group multicast group and the RTP port
+	 * @param controlGroup multicast group and the RTCP port
+	 * @param ttl time to live of the packets
+	 * @param networkInterface interface the packets are sent from and the group is joined on, null for the
+	 * one chosen by the system (the group is then joined on the first multicast interface which is up)
+	 * @return the transport
+	 * @throws IOException if an I/O error occurs
+	 */
+	public static RTPUdpTransport openMulticast(InetSocketAddress group, InetSocketAddress controlGroup, int ttl, NetworkInterface networkInterface) throws IOException {
+		ProtocolFamily family = group.getAddress() instanceof Inet6Address ? StandardProtocolFamily.INET6 : StandardProtocolFamily.INET;
+		RTPUdpTransport transport = new RTPUdpTransport(family, null, group, new InetSocketAddress(controlGroup.getPort()), controlGroup);
+		try {
+			for(DatagramChannel c : new DatagramChannel[] {transport.channel, transport.controlChannel}) {
+				c.setOption(StandardSocketOptions.IP_MULTICAST_TTL, ttl);
+				c.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+				if(networkInterface!=null) c.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+			}
+			NetworkInterface joined = networkInterface!=null ? networkInterface : findMulticastInterface(controlGroup.getAddress());
+			if(joined!=null) transport.controlChannel.join(controlGroup.getAddress(), joined);
+		} catch (IOException ex) {
+			transport.close();
+			throw ex;
+		}
+		return transport;
+	}
+
+	/**
+	 * Finds the interface the group is joined on when none is configured: the first interface which is up,
+	 * supports multicast and has an address of the family of the group, preferably not the loopback
+	 * @param group multicast group
+	 * @return the interface or null if there is none
+	 * @throws SocketException if the interfaces cannot be listed
+	 */
+	private static NetworkInterface findMulticastInterface(InetAddress group) throws SocketException {
+		NetworkInterface loopback = null;
+		for(NetworkInterface ni : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+			if(!ni.isUp() || !ni.supportsMulticast()) continue;
+			boolean family = ni.inetAddresses().anyMatch((a) -> a instanceof Inet4Address == group instanceof Inet4Address);
+			if(!family) continue;
+			if(!ni.isLoopback()) return ni;
+			if(loopback==null) loopback = ni;
+		}
+		return loopback;
+	}
+
+	/**
+	 * Sends one packet. Packet is sent from its beginning to its limit, so the same packet can be sent
+	 * multiple times. Packet is not released.
+	 * @param packet RTP packet
+	 * @return number of bytes sent
+	 * @throws IOException if an I/O error occurs
+	 */
+	@Override
+	public int send(ByteBuffer packet) throws IOException {
+		packet.position(0);
+		try {
+			return channel.write(packet);
+		} catch (PortUnreachableException ex) {
+			// ICMP reported by the previous send; receiver is not listening (yet), UDP does not care
+			unreachable++;
+			return 0;
+		}
+	}
+
+	@Override
+	public void sendControl(ByteBuffer packet) throws IOException {
+		controlChannel.send(packet, controlAddress);
+	}
+
+	@Override
+	public void setControlListener(Consumer<ByteBuffer> listener) {
+		this.controlListener = listener;
+	}
+
+	/**
+	 * Passes the received RTCP packet to the control listener
+	 * @param packet received RTCP packet
+	 */
+	void controlReceived(ByteBuffer packet) {
+		Consumer<ByteBuffer> listener = controlListener;
+		if(listener!=null) listener.accept(packet);
+	}
+
+	/**
+	 * Returns the RTCP channel of the transport
+	 * @return the RTCP channel
+	 */
+	DatagramChannel getControlChannel() {
+		return controlChannel;
+	}
+
+	/**
+	 * Returns the destination of the RTP packets
+	 * @return the destination of the RTP packets
+	 */
+	public SocketAddress getAddress() {
+		return address;
+	}
+
+	/**
+	 * Returns the destination of the RTCP packets
+	 * @return the destination of the RTCP packets
+	 */
+	public SocketAddress getControlAddress() {
+		return controlAddress;
+	}
+
+	/**
+	 * Returns true iff the transport sends to a multicast group
+	 * @return true iff the destination is a multicast group
+	 */
+	public boolean isMulticast() {
+		return multicast;
+	}
+
+	/**
+	 * Returns the local address of the RTP channel
+	 * @return the local address of the RTP channel
+	 * @throws IOException if an I/O error occurs
+	 */
+	public SocketAddress getLocalAddress() throws IOException {
+		return channel.getLocalAddress();
+	}
+
+	/**
+	 * Returns the number of sends that failed because the destination port was unreachable
+	 * @return the number of unreachable destination errors
+	 */
+	public long getUnreachableCount() {
+		return unreachable;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if(channel!=null) channel.close();
+		if(controlChannel!=null) controlChannel.close();
+	}
+
+}
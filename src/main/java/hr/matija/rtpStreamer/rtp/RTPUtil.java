@@ -1,5 +1,6 @@
 package hr.matija.rtpStreamer.rtp;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Objects;
 
@@ -10,6 +11,11 @@ import java.util.Objects;
  *
  */
 public class RTPUtil {
+	
+	/**
+	 * Size of the basic RTP header (without CSRC identifiers and extension)
+	 */
+	public static final int HEADER_SIZE = 12;
 
 	/**
 	 * Creates a basic RTP header and returns it as a byte array.
@@ -60,6 +66,38 @@ public class RTPUtil {
 		return header;
 	}
 	
+	/**
+	 * Writes a basic RTP header into the given buffer at the given offset. Absolute puts are used,
+	 * so the position and the limit of the buffer are not changed. This allows the header to be
+	 * written in place ahead of an already written payload.
+	 * @param buffer buffer into which the header is written
+	 * @param offset index of the first byte of the header
+	 * @param version version of the RTP standard
+	 * @param padding true if RTP payload has padding, false otherwise
+	 * @param extension true if RTP header has extension, false otherwise
+	 * @param cc CSRC count
+	 * @param marker the interpretation of the marker is defined by a profile
+	 * @param payloadType identifies the format of the RTP payload
+	 * @param seqNum sequence number of the packet
+	 * @param timestamp timestamp of the packet
+	 * @param SSRC synchronization source identifier
+	 */
+	public static void writeBasicHeaderRTP(ByteBuffer buffer, int offset, byte version, boolean padding, boolean extension,
+											byte cc, boolean marker, byte payloadType, short seqNum,
+											int timestamp, int SSRC) {
+		buffer.put(offset, (byte) ((version << 6 & 0xC0) |
+									(padding ? 0x20 : 0) |
+									(extension ? 0x10 : 0) |
+									(cc & 0x0F)
+									));
+		buffer.put(offset + 1, (byte) ((marker ? 0x80 : 0) |
+										(payloadType & 0x7F)
+										));
+		buffer.putShort(offset + 2, seqNum);
+		buffer.putInt(offset + 4, timestamp);
+		buffer.putInt(offset + 8, SSRC);
+	}
+	
 	/**
 	 * Creates a basic RTP header and returns it as a byte array.
 	 * @param header object containing all information about an RTP header
@@ -104,13 +142,9 @@ public class RTPUtil {
 	 * @return RTP packet as an array of bytes
 	 */
 	public static byte[] createRTPpacket(RTPpacket packet) {
-		byte[] pack = constructBasicHeaderRTP(packet.header);
-		int headerSize = pack.length;
-		pack = Arrays.copyOf(pack, pack.length + packet.payload.length);
-		
-		for(int i=headerSize; i<pack.length; i++) {
-			pack[i] = packet.payload[i-headerSize];
-		}
+		byte[] header = constructBasicHeaderRTP(packet.header);
+		byte[] pack = Arrays.copyOf(header, header.length + packet.payload.length);
+		System.arraycopy(packet.payload, 0, pack, header.length, packet.payload.length);
 		
 		return pack;
 	}
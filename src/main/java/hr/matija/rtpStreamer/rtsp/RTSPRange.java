@@ -0,0 +1,104 @@
+package hr.matija.rtpStreamer.rtsp;
+
+import java.util.Locale;
+
+/**
+ * Value of the rtsp <code>Range</code> header in the normal play time (npt) units, for example
+ * <code>npt=12.5-</code>, <code>npt=0:01:30-0:02:00</code> or <code>npt=now-</code>. Times are in
+ * seconds; the start of a live stream (<code>now</code>) and an open end are {@link Double#NaN}. <br>
+ * See <a href="https://tools.ietf.org/html/rfc2326#section-12.29">Range header</a> and
+ * <a href="https://tools.ietf.org/html/rfc2326#section-3.6">Normal Play Time</a>
+ * @author Matija
+ *
+ */
+public class RTSPRange {
+
+	private static final String NPT = "npt";
+	private static final String NOW = "now";
+
+	private double start;
+	private double end;
+
+	/**
+	 * Creates the range
+	 * @param start start of the range in seconds, {@link Double#NaN} for the current position of a live stream
+	 * @param end end of the range in seconds, {@link Double#NaN} if the range is open
+	 */
+	public RTSPRange(double start, double end) {
+		this.start = start;
+		this.end = end;
+	}
+
+	/**
+	 * Parses the value of the Range header. The time of the range (<code>;time=</code>) is ignored.
+	 * @param header value of the Range header
+	 * @return parsed range
+	 * @throws IllegalArgumentException if the header is malformed or not in the npt units
+	 */
+	public static RTSPRange parse(String header) {
+		String range = header.split(";", 2)[0].trim();
+		int eq = range.indexOf('=');
+		if(eq<0 || !range.substring(0, eq).trim().equalsIgnoreCase(NPT)) throw new IllegalArgumentException("Unsupported range: " + header);
+
+		String value = range.substring(eq+1).trim();
+		int dash = value.indexOf('-');
+		if(dash<0) throw new IllegalArgumentException("Malformed range: " + header);
+
+		String start = value.substring(0, dash).trim();
+		String end = value.substring(dash+1).trim();
+		if(start.isEmpty() && end.isEmpty()) throw new IllegalArgumentException("Malformed range: " + header);
+		return new RTSPRange(start.isEmpty() || start.equalsIgnoreCase(NOW) ? Double.NaN : parseTime(start, header),
+				end.isEmpty() ? Double.NaN : parseTime(end, header));
+	}
+
+	private static double parseTime(String time, String header) {
+		try {
+			double seconds = 0;
+			String[] parts = time.split(":");
+			if(parts.length!=1 && parts.length!=3) throw new NumberFormatException();
+			for(int i=0; i<parts.length; i++) {
+				if(parts[i].isEmpty() || !Character.isDigit(parts[i].charAt(0))) throw new NumberFormatException();
+				seconds = seconds*60 + (i<parts.length-1 ? Integer.parseInt(parts[i]) : Double.parseDouble(parts[i]));
+			}
+			if(!Double.isFinite(seconds)) throw new NumberFormatException();
+			return seconds;
+		} catch (NumberFormatException ex) {
+			throw new IllegalArgumentException("Malformed range: " + header);
+		}
+	}
+
+	/**
+	 * Returns the start of the range
+	 * @return the start in seconds or {@link Double#NaN} for the current position of a live stream
+	 */
+	public double getStart() {
+		return start;
+	}
+
+	/**
+	 * Returns the end of the range
+	 * @return the end in seconds or {@link Double#NaN} if the range is open
+	 */
+	public double getEnd() {
+		return end;
+	}
+
+	/**
+	 * Returns true iff the range starts at the current position of a live stream (or at the current
+	 * position of the stream, if the start was not given)
+	 * @return true iff the range has no start time
+	 */
+	public boolean isNow() {
+		return Double.isNaN(start);
+	}
+
+	@Override
+	public String toString() {
+		return NPT + "=" + (isNow() ? NOW : format(start)) + "-" + (Double.isNaN(end) ? "" : format(end));
+	}
+
+	private static String format(double seconds) {
+		return String.format(Locale.ROOT, "%.3f", seconds);
+	}
+
+}
@@ -0,0 +1,252 @@
+package hr.matija.rtpStreamer.rtsp;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+import hr.matija.rtpStreamer.rtsp.RTSPUtil.RTSPMethod;
+import hr.matija.rtpStreamer.rtsp.RTSPUtil.RTSPRequest;
+import hr.matija.rtpStreamer.rtsp.RTSPUtil.RTSPVersion;
+
+/**
+ * Incremental parser of rtsp requests. One parser is used per connection; bytes are fed
+ * to it as they arrive and it keeps its state (and its line buffer) between the calls, so
+ * a request may be split across any number of reads and several requests may arrive in one
+ * read. Header names are case-insensitive, header values may contain ':' and requests may
+ * have a body whose length is given by the <code>Content-Length</code> header. Binary frames
+ * interleaved between the requests (RTCP of clients streaming over the rtsp connection) are
+ * passed to the {@link InterleavedFrameListener}: a frame which is whole in the read buffer is passed
+ * as a slice of it, only a frame split across reads is copied into a buffer of the parser. Parser keeps one header map which is cleared
+ * for every request, so the headers of a returned request are valid only until the next call of
+ * {@link #parse(ByteBuffer)}. <br>
+ * See <a href="https://tools.ietf.org/html/rfc7826">RTSP Specification</a>
+ * @author Matija
+ *
+ */
+public class RTSPRequestParser {
+
+	/**
+	 * Maximum length of the request line or of one header line
+	 */
+	public static final int MAX_LINE_LENGTH = 8 * 1024;
+
+	/**
+	 * Maximum number of headers in one request
+	 */
+	public static final int MAX_HEADERS = 64;
+
+	/**
+	 * Maximum length of the request body
+	 */
+	public static final int MAX_BODY_LENGTH = 64 * 1024;
+
+	/**
+	 * Listener of the binary frames interleaved between the requests
+	 * @author Matija
+	 *
+	 */
+	public interface InterleavedFrameListener {
+
+		/**
+		 * Called when a frame is complete. Data is valid only during the call.
+		 * @param channel channel of the frame
+		 * @param data payload of the frame
+		 */
+		void frameReceived(int channel, ByteBuffer data);
+
+	}
+
+	private enum State {
+		REQUEST_LINE,
+		HEADER,
+		BODY,
+		FRAME_HEADER,
+		FRAME
+	}
+
+	private State state = State.REQUEST_LINE;
+	private InterleavedFrameListener frameListener;
+
+	private byte[] line = new byte[256];
+	private int lineLength;
+
+	private RTSPMethod method;
+	private String uri;
+	private RTSPVersion version;
+	private Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER); // reused by every request
+	private byte[] body;
+	private int bodyLength;
+
+	private byte[] frameHeader = new byte[3];
+	private int frameHeaderLength;
+	private ByteBuffer frame;        // frame split across reads, allocated for the first one (most connections never get one)
+
+	/**
+	 * Creates the parser which discards the interleaved frames
+	 */
+	public RTSPRequestParser() {
+	}
+
+	/**
+	 * Creates the parser which passes the interleaved frames to the given listener
+	 * @param frameListener listener of the interleaved frames
+	 */
+	public RTSPRequestParser(InterleavedFrameListener frameListener) {
+		this.frameListener = frameListener;
+	}
+
+	/**
+	 * Consumes bytes from the given buffer (in the read mode) until one request is complete or
+	 * the buffer is exhausted. Bytes following the completed request are left in the buffer.
+	 * Headers of the completed request are valid until the next call.
+	 * @param buffer buffer containing the received bytes
+	 * @return completed request or null if more bytes are needed
+	 * @throws IllegalArgumentException if the request is malformed or exceeds the limits of this parser
+	 */
+	public RTSPRequest parse(ByteBuffer buffer) {
+		while(buffer.hasRemaining()) {
+			if(state==State.BODY) {
+				int n = Math.min(buffer.remaining(), body.length - bodyLength);
+				buffer.get(body, bodyLength, n);
+				bodyLength += n;
+				if(bodyLength==body.length) return complete();
+				continue;
+			}
+			if(state==State.FRAME_HEADER) {
+				frameHeader[frameHeaderLength++] = buffer.get();
+				if(frameHeaderLength<frameHeader.length) continue;
+				int length = ((frameHeader[1] & 0xFF) << 8) | (frameHeader[2] & 0xFF);
+				if(buffer.remaining()>=length) { // whole frame is in the buffer, listener reads it from there
+					state = State.REQUEST_LINE;
+					ByteBuffer data = buffer.slice().limit(length);
+					buffer.position(buffer.position() + length);
+					if(frameListener!=null) frameListener.frameReceived(frameHeader[0] & 0xFF, data);
+					continue;
+				}
+				if(frame==null || frame.capacity()<length) frame = ByteBuffer.allocate(length);
+				frame.clear().limit(length);
+				state = State.FRAME;
+			}
+			if(state==State.FRAME) {
+				int n = Math.min(buffer.remaining(), frame.remaining());
+				frame.put(buffer.slice().limit(n));
+				buffer.position(buffer.position() + n);
+				if(!frame.hasRemaining()) completeFrame();
+				continue;
+			}
+
+			byte b = buffer.get();
+			if(b=='$' && state==State.REQUEST_LINE && lineLength==0) {
+				frameHeaderLength = 0;
+				state = State.FRAME_HEADER;
+				continue;
+			}
+			if(b!='\n') {
+				if(lineLength==line.length) {
+					if(lineLength>=MAX_LINE_LENGTH) throw new IllegalArgumentException("Line too long!");
+					line = Arrays.copyOf(line, Math.min(MAX_LINE_LENGTH, lineLength*2));
+				}
+				line[lineLength++] = b;
+				continue;
+			}
+
+			int length = lineLength>0 && line[lineLength-1]=='\r' ? lineLength-1 : lineLength;
+			lineLength = 0;
+
+			if(state==State.REQUEST_LINE) {
+				if(length==0) continue; // empty lines between requests are allowed
+				parseRequestLine(length);
+				state = State.HEADER;
+			} else if(length>0) {
+				parseHeader(length);
+			} else {
+				int contentLength = getContentLength();
+				if(contentLength==0) return complete();
+				body = new byte[contentLength];
+				bodyLength = 0;
+				state = State.BODY;
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Returns true iff the parser is between two requests (no bytes of the next request were consumed yet)
+	 * @return true iff the parser is between two requests
+	 */
+	public boolean isIdle() {
+		return state==State.REQUEST_LINE && lineLength==0;
+	}
+
+	/**
+	 * Discards the partially parsed request
+	 */
+	public void reset() {
+		state = State.REQUEST_LINE;
+		lineLength = 0;
+		method = null;
+		uri = null;
+		version = null;
+		body = null;
+		bodyLength = 0;
+		frameHeaderLength = 0;
+	}
+
+	private void completeFrame() {
+		state = State.REQUEST_LINE;
+		if(frameListener!=null) frameListener.frameReceived(frameHeader[0] & 0xFF, frame.flip());
+	}
+
+	private void parseRequestLine(int length) {
+		String requestLine = new String(line, 0, length, StandardCharsets.ISO_8859_1).trim();
+		int first = requestLine.indexOf(' ');
+		int last = requestLine.lastIndexOf(' ');
+		if(first<0 || first==last) throw new IllegalArgumentException("Malformed request line: " + requestLine);
+
+		method = RTSPMethod.forName(requestLine.substring(0, first));
+		uri = requestLine.substring(first+1, last).trim();
+		version = RTSPVersion.forName(requestLine.substring(last+1));
+		headers.clear();
+	}
+
+	private void parseHeader(int length) {
+		int colon = -1;
+		for(int i=0; i<length; i++) {
+			if(line[i]==':') {
+				colon = i;
+				break;
+			}
+		}
+		if(colon<=0) throw new IllegalArgumentException("Malformed header: " + new String(line, 0, length, StandardCharsets.ISO_8859_1));
+		if(headers.size()==MAX_HEADERS) throw new IllegalArgumentException("Too many headers!");
+
+		String name = new String(line, 0, colon, StandardCharsets.ISO_8859_1).trim();
+		String value = new String(line, colon+1, length-colon-1, StandardCharsets.ISO_8859_1).trim();
+		headers.put(name, value);
+	}
+
+	private int getContentLength() {
+		String value = headers.get("Content-Length");
+		if(value==null) return 0;
+
+		int contentLength;
+		try {
+			contentLength = Integer.parseInt(value);
+		} catch (NumberFormatException ex) {
+			throw new IllegalArgumentException("Malformed Content-Length: " + value);
+		}
+		if(contentLength<0 || contentLength>MAX_BODY_LENGTH) throw new IllegalArgumentException("Illegal Content-Length: " + value);
+		return contentLength;
+	}
+
+	private RTSPRequest complete() {
+		String content = body==null ? null : new String(body, StandardCharsets.UTF_8);
+		RTSPRequest request = new RTSPRequest(null, method, uri, version, headers, content);
+		reset();
+		return request;
+	}
+
+}
@@ -0,0 +1,211 @@
+package hr.matija.rtpStreamer.rtsp;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * One transport specification of the rtsp <code>Transport</code> header, for example
+ * <code>RTP/AVP;unicast;client_port=50426-50427</code>. Parameters keep their order so the
+ * specification can be modified and sent back to the client. <br>
+ * See <a href="https://tools.ietf.org/html/rfc2326#section-12.39">Transport header</a>
+ * @author Matija
+ *
+ */
+public class RTSPTransport {
+
+	/**
+	 * Port pair of the client (RTP and RTCP port)
+	 */
+	public static final String CLIENT_PORT = "client_port";
+
+	/**
+	 * Port pair of the server (RTP and RTCP port)
+	 */
+	public static final String SERVER_PORT = "server_port";
+
+	/**
+	 * Channel pair used for interleaving over the rtsp connection
+	 */
+	public static final String INTERLEAVED = "interleaved";
+
+	/**
+	 * Address to which the stream is sent (multicast group for multicast)
+	 */
+	public static final String DESTINATION = "destination";
+
+	/**
+	 * Port pair of the multicast group
+	 */
+	public static final String PORT = "port";
+
+	/**
+	 * Time to live of the multicast packets
+	 */
+	public static final String TTL = "ttl";
+
+	private String protocol;
+	private Map<String, String> parameters = new LinkedHashMap<>();
+
+	/**
+	 * Creates the transport specification with the given protocol and no parameters
+	 * @param protocol transport protocol, for example <code>RTP/AVP</code>
+	 */
+	public RTSPTransport(String protocol) {
+		this.protocol = Objects.requireNonNull(protocol);
+	}
+
+	/**
+	 * Parses all transport specifications of the header (specifications are separated by ',' and
+	 * listed in the order of the client's preference)
+	 * @param header value of the Transport header
+	 * @return transport specifications in the order of preference
+	 * @throws IllegalArgumentException if the header is malformed
+	 */
+	public static List<RTSPTransport> parseAll(String header) {
+		List<RTSPTransport> transports = new ArrayList<>();
+		for(String spec : header.split(",")) {
+			if(!spec.isBlank()) transports.add(parse(spec));
+		}
+		return transports;
+	}
+
+	/**
+	 * Parses one transport specification
+	 * @param spec transport specification
+	 * @return parsed transport specification
+	 * @throws IllegalArgumentException if the specification is malformed
+	 */
+	public static RTSPTransport parse(String spec) {
+		String[] parts = spec.trim().split(";");
+		if(parts[0].isBlank()) throw new IllegalArgumentException("Missing transport protocol: " + spec);
+
+		RTSPTransport transport = new RTSPTransport(parts[0].trim());
+		for(int i=1; i<parts.length; i++) {
+			String part = parts[i].trim();
+			if(part.isEmpty()) continue;
+			int eq = part.indexOf('=');
+			if(eq<0) transport.parameters.put(part, null);
+			else transport.parameters.put(part.substring(0, eq).trim(), part.substring(eq+1).trim());
+		}
+		return transport;
+	}
+
+	/**
+	 * Returns the transport protocol, for example <code>RTP/AVP</code> or <code>RTP/AVP/TCP</code>
+	 * @return the transport protocol
+	 */
+	public String getProtocol() {
+		return protocol;
+	}
+
+	/**
+	 * Returns true iff RTP is carried over UDP (lower transport is not given or is UDP)
+	 * @return true iff RTP is carried over UDP
+	 */
+	public boolean isUdp() {
+		return protocol.equalsIgnoreCase("RTP/AVP") || protocol.equalsIgnoreCase("RTP/AVP/UDP");
+	}
+
+	/**
+	 * Returns true iff RTP is interleaved into the rtsp connection
+	 * @return true iff RTP is carried over TCP
+	 */
+	public boolean isTcp() {
+		return protocol.equalsIgnoreCase("RTP/AVP/TCP");
+	}
+
+	/**
+	 * Returns true iff the client asks for multicast delivery
+	 * @return true iff the transport is multicast
+	 */
+	public boolean isMulticast() {
+		return parameters.containsKey("multicast");
+	}
+
+	/**
+	 * Returns true iff the parameter is present (with or without a value)
+	 * @param name name of the parameter
+	 * @return true iff the parameter is present
+	 */
+	public boolean hasParameter(String name) {
+		return parameters.containsKey(name);
+	}
+
+	/**
+	 * Returns the value of the parameter
+	 * @param name name of the parameter
+	 * @return the value of the parameter, null if the parameter has no value or is not present
+	 */
+	public String getParameter(String name) {
+		return parameters.get(name);
+	}
+
+	/**
+	 * Sets the parameter, replacing its current value (if any)
+	 * @param name name of the parameter
+	 * @param value value of the parameter or null for parameters without a value
+	 * @return this transport specification
+	 */
+	public RTSPTransport setParameter(String name, String value) {
+		parameters.put(Objects.requireNonNull(name), value);
+		return this;
+	}
+
+	/**
+	 * Removes the parameter
+	 * @param name name of the parameter
+	 * @return this transport specification
+	 */
+	public RTSPTransport removeParameter(String name) {
+		parameters.remove(name);
+		return this;
+	}
+
+	/**
+	 * Returns the pair given by the parameter in the form <code>a-b</code>. If only one number is
+	 * given, the second one is the next number (<code>a+1</code>).
+	 * @param name name of the parameter, for example {@link #CLIENT_PORT}
+	 * @return the pair or null if the parameter is not present
+	 * @throws IllegalArgumentException if the value is not a pair of numbers
+	 */
+	public int[] getPair(String name) {
+		String value = parameters.get(name);
+		if(value==null) return null;
+
+		try {
+			int dash = value.indexOf('-');
+			if(dash<0) {
+				int first = Integer.parseInt(value);
+				return new int[] {first, first + 1};
+			}
+			return new int[] {Integer.parseInt(value.substring(0, dash).trim()), Integer.parseInt(value.substring(dash+1).trim())};
+		} catch (NumberFormatException ex) {
+			throw new IllegalArgumentException("Malformed " + name + ": " + value);
+		}
+	}
+
+	/**
+	 * Sets the parameter to the pair <code>first-second</code>
+	 * @param name name of the parameter
+	 * @param first first number of the pair
+	 * @param second second number of the pair
+	 * @return this transport specification
+	 */
+	public RTSPTransport setPair(String name, int first, int second) {
+		return setParameter(name, first + "-" + second);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder(protocol);
+		for(var e : parameters.entrySet()) {
+			sb.append(';').append(e.getKey());
+			if(e.getValue()!=null) sb.append('=').append(e.getValue());
+		}
+		return sb.toString();
+	}
+
+}
@@ -3,9 +3,9 @@ package hr.matija.rtpStreamer.rtsp;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.Objects;
+import java.util.TreeMap;
 
 /**
  * Utility for RTSP request and response headers. Contains method that can
@@ -24,14 +24,14 @@ public class RTSPUtil {
 	 * @throws IOException if an I/O exception occurs
 	 */
 	public static RTSPRequest readNextRTSPRequest(InputStream is) throws IOException {
-		int crlfcrlf = 0; // \r\n\r\n sequence counter
+		int crlfcrlf = 0; // number of matched characters of the \r\n\r\n sequence
 		// reading the request
 		StringBuilder sb = new StringBuilder();
 		while(crlfcrlf!=4) {
 			int r = is.read();
 			if(r==-1) return null; //END OF STREAM
-			if(r=='\r' || r=='\n') crlfcrlf++;
-			else crlfcrlf = 0;
+			if(r==(crlfcrlf%2==0 ? '\r' : '\n')) crlfcrlf++;
+			else crlfcrlf = r=='\r' ? 1 : 0;
 			sb.append((char)r);
 		}
 		
@@ -48,31 +48,17 @@ public class RTSPUtil {
 		RTSPMethod method = null;
 		String uri = null;
 		RTSPVersion version = null;
-		Map<String, String> keyValuePairs = new HashMap<>();
+		Map<String, String> keyValuePairs = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
 		
 		String[] req = request.trim().split("\r\n");
 		String[] firstLine = req[0].split("\\s+");
-		switch(firstLine[0]) {
-			case "OPTIONS" : method = RTSPMethod.OPTIONS; break;
-			case "DESCRIBE" : method = RTSPMethod.DESCRIBE; break;
-			case "SETUP" : method = RTSPMethod.SETUP; break;
-			case "PLAY" : method = RTSPMethod.PLAY; break;
-			case "PAUSE" : method = RTSPMethod.PAUSE; break;
-			case "TEARDOWN" : method = RTSPMethod.TEARDOWN; break;
-			default : method = RTSPMethod.OTHER;
-		}
+		method = RTSPMethod.forName(firstLine[0]);
 		uri = firstLine[1];
-		if(firstLine[2].equals(RTSPVersion.RTSP1_0.toString())) {
-			version = RTSPVersion.RTSP1_0;
-		} else if(firstLine[2].equals(RTSPVersion.RTSP2_0.toString())) {
-			version = RTSPVersion.RTSP2_0;
-		} else {
-			version = RTSPVersion.OTHER;
-		}
+		version = RTSPVersion.forName(firstLine[2]);
 		
 		for(int i=1; i<req.length; i++) {
-			String[] next = req[i].trim().split("\\s*:\\s*");
-			keyValuePairs.put(next[0], next[1]);
+			String[] next = req[i].trim().split("\\s*:\\s*", 2);
+			keyValuePairs.put(next[0], next.length>1 ? next[1] : "");
 		}
 		
 		return new RTSPRequest(request, method, uri, version, keyValuePairs);
@@ -115,6 +101,9 @@ public class RTSPUtil {
 		PLAY("PLAY"),
 		PAUSE("PAUSE"),
 		TEARDOWN("TEARDOWN"),
+		GET_PARAMETER("GET_PARAMETER"),
+		SET_PARAMETER("SET_PARAMETER"),
+		ANNOUNCE("ANNOUNCE"),
 		OTHER("OTHER");
 		
 		private String name;
@@ -123,6 +112,26 @@ public class RTSPUtil {
 			this.name = name;
 		}
 		
+		/**
+		 * Returns the method with the given name
+		 * @param name name of the method as written in the request line
+		 * @return method with the given name, {@link #OTHER} if the method is not known
+		 */
+		public static RTSPMethod forName(String name) {
+			switch(name) {
+				case "OPTIONS" : return OPTIONS;
+				case "DESCRIBE" : return DESCRIBE;
+				case "SETUP" : return SETUP;
+				case "PLAY" : return PLAY;
+				case "PAUSE" : return PAUSE;
+				case "TEARDOWN" : return TEARDOWN;
+				case "GET_PARAMETER" : return GET_PARAMETER;
+				case "SET_PARAMETER" : return SET_PARAMETER;
+				case "ANNOUNCE" : return ANNOUNCE;
+				default : return OTHER;
+			}
+		}
+		
 		@Override
 		public String toString() {
 			return name;
@@ -146,6 +155,17 @@ public class RTSPUtil {
 			this.name = name;
 		}
 		
+		/**
+		 * Returns the version with the given name
+		 * @param name name of the version as written in the request line (e.g. RTSP/1.0)
+		 * @return version with the given name, {@link #OTHER} if the version is not known
+		 */
+		public static RTSPVersion forName(String name) {
+			if(name.equals(RTSP1_0.name)) return RTSP1_0;
+			if(name.equals(RTSP2_0.name)) return RTSP2_0;
+			return OTHER;
+		}
+		
 		@Override
 		public String toString() {
 			return name;
@@ -164,15 +184,21 @@ public class RTSPUtil {
 		private String uri;
 		private RTSPVersion version;
 		private Map<String, String> keyValuePairs;
+		private String body;
 		
 		private String req;
 		
 		public RTSPRequest(String req, RTSPMethod method, String uri, RTSPVersion version, Map<String, String> keyValuePairs) {
+			this(req, method, uri, version, keyValuePairs, null);
+		}
+		
+		public RTSPRequest(String req, RTSPMethod method, String uri, RTSPVersion version, Map<String, String> keyValuePairs, String body) {
 			this.req = req;
 			this.method = Objects.requireNonNull(method);
 			this.uri = uri;
 			this.version = version;
 			this.keyValuePairs = Collections.unmodifiableMap(keyValuePairs);
+			this.body = body;
 		}
 		
 		public RTSPMethod getMethod() {
@@ -195,8 +221,17 @@ public class RTSPUtil {
 			return keyValuePairs.isEmpty();
 		}
 		
+		/**
+		 * Returns the body of the request (e.g. parameters of the SET_PARAMETER request)
+		 * @return the body of the request, null if the request has no body
+		 */
+		public String getBody() {
+			return body;
+		}
+		
 		@Override
 		public String toString() {
+			if(req==null) return method + " " + uri + " " + version;
 			return req;
 		}
 		
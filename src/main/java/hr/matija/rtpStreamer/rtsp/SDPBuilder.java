@@ -0,0 +1,204 @@
+package hr.matija.rtpStreamer.rtsp;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.util.Base64;
+import java.util.List;
+import java.util.Objects;
+
+import hr.matija.rtpStreamer.h264.NalUnit;
+import hr.matija.rtpStreamer.h264.NalUnit.NalUnitType;
+
+/**
+ * Builder of the session description of one h264 stream, sent as the reply to the rtsp
+ * <code>DESCRIBE</code> request. Besides the connection and the media line the description
+ * carries the decoder configuration (<code>profile-level-id</code> and <code>sprop-parameter-sets</code>
+ * taken from the SPS and PPS of the stream) so the client can start its decoder before the
+ * first RTP packet arrives. <br>
+ * See <a href="https://tools.ietf.org/html/rfc4566">SDP</a> and
+ * <a href="https://tools.ietf.org/html/rfc6184#section-8.1">H264 media type registration</a>
+ * @author Matija
+ *
+ */
+public class SDPBuilder {
+
+	/**
+	 * Packetization mode of the streams, non-interleaved mode (single nal units, STAP-A and FU-A)
+	 */
+	public static final int PACKETIZATION_MODE = 1;
+
+	private InetAddress origin;
+	private long sessionId;
+	private String sessionName = "-";
+
+	private InetAddress connection;
+	private int ttl = -1;
+
+	private int port;
+	private int payloadType;
+	private long clockHz;
+
+	private List<NalUnit> parameterSets = List.of();
+	private int framerate;
+	private String control;
+	private double duration = -1;
+
+	/**
+	 * Creates the builder of the description originating from the given address
+	 * @param origin address of the server
+	 * @param sessionId id (and version) of the description
+	 */
+	public SDPBuilder(InetAddress origin, long sessionId) {
+		this.origin = Objects.requireNonNull(origin);
+		this.sessionId = sessionId;
+	}
+
+	/**
+	 * Sets the name of the session
+	 * @param sessionName name of the session
+	 * @return this builder
+	 */
+	public SDPBuilder setSessionName(String sessionName) {
+		this.sessionName = sessionName==null || sessionName.isBlank() ? "-" : sessionName;
+		return this;
+	}
+
+	/**
+	 * Sets the address the stream is sent to. Unicast streams are described without one (the
+	 * address of the client is negotiated by <code>SETUP</code>).
+	 * @param connection multicast group of the stream
+	 * @param ttl time to live of the multicast packets
+	 * @return this builder
+	 */
+	public SDPBuilder setConnection(InetAddress connection, int ttl) {
+		this.connection = connection;
+		this.ttl = ttl;
+		return this;
+	}
+
+	/**
+	 * Sets the media line of the stream
+	 * @param port RTP port of the stream, 0 if it is negotiated by <code>SETUP</code>
+	 * @param payloadType dynamic payload type of the stream
+	 * @param clockHz RTP clock rate of the stream
+	 * @return this builder
+	 */
+	public SDPBuilder setMedia(int port, int payloadType, long clockHz) {
+		this.port = port;
+		this.payloadType = payloadType;
+		this.clockHz = clockHz;
+		return this;
+	}
+
+	/**
+	 * Sets the parameter sets of the stream. The first SPS gives the <code>profile-level-id</code>,
+	 * all of them (in the given order) form the <code>sprop-parameter-sets</code>.
+	 * @param parameterSets SPS and PPS of the stream, empty if they are not known
+	 * @return this builder
+	 */
+	public SDPBuilder setParameterSets(List<NalUnit> parameterSets) {
+		this.parameterSets = List.copyOf(parameterSets);
+		return this;
+	}
+
+	/**
+	 * Sets the nominal frame rate of the stream
+	 * @param framerate frames per second, 0 if unknown
+	 * @return this builder
+	 */
+	public SDPBuilder setFramerate(int framerate) {
+		this.framerate = framerate;
+		return this;
+	}
+
+	/**
+	 * Sets the control uri of the stream, the uri the client uses in <code>SETUP</code>
+	 * @param control control uri of the stream
+	 * @return this builder
+	 */
+	public SDPBuilder setControl(String control) {
+		this.control = control;
+		return this;
+	}
+
+	/**
+	 * Sets the duration of the stream, announced as the range of the session so the client knows the
+	 * stream can be played from any position
+	 * @param duration duration in seconds, -1 if the stream cannot seek (a live feed)
+	 * @return this builder
+	 */
+	public SDPBuilder setDuration(double duration) {
+		this.duration = duration;
+		return this;
+	}
+
+	/**
+	 * Builds the session description
+	 * @return the session description, lines terminated by CRLF
+	 */
+	public String build() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("v=0\r\n");
+		sb.append("o=- ").append(sessionId).append(' ').append(sessionId).append(" IN ").append(addressType(origin)).append(' ')
+			.append(origin.getHostAddress()).append("\r\n");
+		sb.append("s=").append(sessionName).append("\r\n");
+		if(connection==null) {
+			sb.append("c=IN IP4 0.0.0.0\r\n");
+		} else {
+			sb.append("c=IN ").append(addressType(connection)).append(' ').append(connection.getHostAddress());
+			if(ttl>=0 && !(connection instanceof Inet6Address)) sb.append('/').append(ttl);
+			sb.append("\r\n");
+		}
+		sb.append("t=0 0\r\n");
+		sb.append("a=control:*\r\n");
+		if(duration>=0) sb.append("a=range:").append(new RTSPRange(0, duration)).append("\r\n");
+
+		sb.append("m=video ").append(port).append(" RTP/AVP ").append(payloadType).append("\r\n");
+		sb.append("a=rtpmap:").append(payloadType).append(" H264/").append(clockHz).append("\r\n");
+		sb.append("a=fmtp:").append(payloadType).append(" packetization-mode=").append(PACKETIZATION_MODE);
+		for(NalUnit nal : parameterSets) {
+			if(nal.getType()==NalUnitType.SEQUENCE_PARAMETER_SET && nal.getLength()>=4) {
+				sb.append(";profile-level-id=").append(getProfileLevelId(nal));
+				break;
+			}
+		}
+		if(!parameterSets.isEmpty()) sb.append(";sprop-parameter-sets=").append(getSpropParameterSets(parameterSets));
+		sb.append("\r\n");
+		if(framerate>0) sb.append("a=framerate:").append(framerate).append("\r\n");
+		if(control!=null) sb.append("a=control:").append(control).append("\r\n");
+		return sb.toString();
+	}
+
+	/**
+	 * Returns the <code>profile-level-id</code> of the given SPS: profile_idc, the constraint flags and
+	 * level_idc (the three bytes following the nal unit header) in hexadecimal
+	 * @param sps sequence parameter set
+	 * @return the profile-level-id, for example <code>42e01f</code>
+	 * @throws IllegalArgumentException if the nal unit is not an SPS
+	 */
+	public static String getProfileLevelId(NalUnit sps) {
+		if(sps.getType()!=NalUnitType.SEQUENCE_PARAMETER_SET || sps.getLength()<4) throw new IllegalArgumentException("Not an SPS: " + sps);
+		var data = sps.getBuffer();
+		return String.format("%02x%02x%02x", data.get(1) & 0xFF, data.get(2) & 0xFF, data.get(3) & 0xFF);
+	}
+
+	/**
+	 * Returns the <code>sprop-parameter-sets</code> of the given parameter sets: base64 of every
+	 * nal unit (without the start code), separated by ','
+	 * @param parameterSets parameter sets in decoding order
+	 * @return the sprop-parameter-sets
+	 */
+	public static String getSpropParameterSets(List<NalUnit> parameterSets) {
+		StringBuilder sb = new StringBuilder();
+		for(NalUnit nal : parameterSets) {
+			if(sb.length()>0) sb.append(',');
+			sb.append(Base64.getEncoder().encodeToString(nal.getData()));
+		}
+		return sb.toString();
+	}
+
+	private static String addressType(InetAddress address) {
+		return address instanceof Inet6Address ? "IP6" : "IP4";
+	}
+
+}
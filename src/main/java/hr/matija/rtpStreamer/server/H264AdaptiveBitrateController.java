@@ -0,0 +1,93 @@
+package hr.matija.rtpStreamer.server;
+
+import java.util.List;
+import java.util.Objects;
+
+import hr.matija.rtpStreamer.server.H264RtspResourceCollection.Resource;
+
+/**
+ * Chooses the rendition of a resource one client should receive, from the RTCP receiver reports of
+ * that client. When the reported loss exceeds {@link #DOWN_SWITCH_LOSS} the client is moved to a worse
+ * rendition: to the best one whose bitrate fits into the bandwidth the client actually received (if
+ * the bitrates are known), otherwise to the next worse one. After {@link #UP_SWITCH_REPORTS} consecutive
+ * reports with the loss below {@link #UP_SWITCH_LOSS} the client is moved one rendition up.
+ * @author Matija
+ *
+ */
+public class H264AdaptiveBitrateController {
+
+	/**
+	 * Reported fraction of lost packets above which a worse rendition is chosen
+	 */
+	public static final double DOWN_SWITCH_LOSS = 0.05;
+
+	/**
+	 * Reported fraction of lost packets below which the network is considered stable
+	 */
+	public static final double UP_SWITCH_LOSS = 0.01;
+
+	/**
+	 * Number of consecutive stable reports needed to choose a better rendition
+	 */
+	public static final int UP_SWITCH_REPORTS = 3;
+
+	/**
+	 * Part of the received bandwidth the chosen rendition may use
+	 */
+	private static final double BANDWIDTH_HEADROOM = 0.9;
+
+	private List<Resource> renditions;
+	private int current;
+	private int stableReports;
+
+	/**
+	 * Creates the controller which starts at the best rendition
+	 * @param renditions renditions of the resource ordered from the best to the worst
+	 */
+	public H264AdaptiveBitrateController(List<Resource> renditions) {
+		this.renditions = Objects.requireNonNull(renditions);
+		if(renditions.isEmpty()) throw new IllegalArgumentException("No renditions!");
+	}
+
+	/**
+	 * Processes one receiver report and returns the rendition the client should receive
+	 * @param fractionLost fraction of packets lost since the previous report (0 - 1)
+	 * @param receivedKbps bandwidth which reached the client since the previous report in kbit/s, 0 if unknown
+	 * @return index of the chosen rendition
+	 */
+	public int update(double fractionLost, double receivedKbps) {
+		if(fractionLost>DOWN_SWITCH_LOSS) {
+			stableReports = 0;
+			if(current<renditions.size()-1) current = chooseWorse(receivedKbps);
+		} else if(fractionLost<UP_SWITCH_LOSS) {
+			if(++stableReports>=UP_SWITCH_REPORTS && current>0) {
+				current--;
+				stableReports = 0;
+			}
+		} else {
+			stableReports = 0;
+		}
+		return current;
+	}
+
+	private int chooseWorse(double receivedKbps) {
+		if(receivedKbps>0) {
+			for(int i=current+1; i<renditions.size(); i++) {
+				int bitrate = renditions.get(i).getBitrate();
+				if(bitrate<=0) break;
+				if(bitrate<=receivedKbps*BANDWIDTH_HEADROOM) return i;
+			}
+			if(renditions.get(renditions.size()-1).getBitrate()>0) return renditions.size()-1;
+		}
+		return current+1;
+	}
+
+	/**
+	 * Returns the index of the currently chosen rendition
+	 * @return the index of the chosen rendition
+	 */
+	public int getCurrent() {
+		return current;
+	}
+
+}
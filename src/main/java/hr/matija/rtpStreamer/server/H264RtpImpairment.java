@@ -0,0 +1,261 @@
+package hr.matija.rtpStreamer.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.SplittableRandom;
+import java.util.concurrent.ScheduledFuture;
+
+import hr.matija.rtpStreamer.rtp.DirectBufferPool;
+import hr.matija.rtpStreamer.rtp.H264Packetizer;
+import hr.matija.rtpStreamer.rtp.RTPTransport;
+import hr.matija.rtpStreamer.rtp.RTPUtil;
+
+/**
+ * Impairment stage of one stream, between its packetizer and its transport. Stage emulates the network
+ * described by its {@link H264RtpImpairmentProfile}: packets are lost (independently or in bursts),
+ * duplicated, held back by the bandwidth cap, delayed and reordered. Every decision is drawn from the
+ * generator of the stage, seeded with the seed of the profile and the id of the stream, so the same
+ * packets of the same sessions are impaired the same way in every run. <br>
+ * Packets which are not sent right away are copied into buffers of the packet pool and kept in a
+ * timing queue ordered by their departure; the queue is flushed on the {@link H264RtpStreamScheduler}.
+ * Sender counts the packets it hands to the stage as sent; what the stage does to them is seen by the
+ * client (and by the RTCP reports of the client) only.
+ * @author Matija
+ *
+ */
+public class H264RtpImpairment implements AutoCloseable {
+
+	private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+	private H264RtpImpairmentProfile profile;
+	private RTPTransport transport;
+	private DirectBufferPool pool;
+	private H264RtpStreamScheduler scheduler;
+	private SplittableRandom random;
+
+	private boolean bad;            // state of the Gilbert-Elliott model
+	private long linkFreeNanos;     // time the bandwidth cap has sent everything given to it so far
+	private PriorityQueue<Delayed> queue = new PriorityQueue<>(Comparator.comparingLong((Delayed d) -> d.departure).thenComparingLong((d) -> d.order));
+	private long order;
+	private ScheduledFuture<?> flush;
+	private long flushDue;
+	private long flushGeneration;   // flush which started while it was being replaced does nothing
+	private IOException failure;    // error of a delayed send, thrown by the next send of the stream
+	private boolean closed;
+
+	private long lost;
+	private long duplicated;
+	private long reordered;
+	private long delayed;
+	private long overflowed;
+
+	/**
+	 * Creates the stage
+	 * @param profile profile of the impairment
+	 * @param streamId id of the stream, mixed into the seed so that sessions are impaired differently
+	 * @param transport transport the packets are sent with
+	 * @param pool pool of the buffers delayed packets are copied to
+	 * @param scheduler scheduler the timing queue is flushed on
+	 */
+	public H264RtpImpairment(H264RtpImpairmentProfile profile, long streamId, RTPTransport transport, DirectBufferPool pool, H264RtpStreamScheduler scheduler) {
+		this.profile = Objects.requireNonNull(profile);
+		this.transport = Objects.requireNonNull(transport);
+		this.pool = Objects.requireNonNull(pool);
+		this.scheduler = Objects.requireNonNull(scheduler);
+		this.random = new SplittableRandom(profile.getSeed() ^ streamId * GOLDEN_GAMMA);
+	}
+
+	/**
+	 * Impairs and sends the packets (for example all packets of one access unit). Packets are not retained,
+	 * the ones which depart later are copied.
+	 * @param packets RTP packets
+	 * @return number of bytes given to the stage
+	 * @throws IOException if an I/O error occurs, also one of an earlier delayed send
+	 */
+	public synchronized long sendAll(List<ByteBuffer> packets) throws IOException {
+		if(failure!=null) throw failure;
+		if(closed) return 0;
+
+		long now = System.nanoTime();
+		long bytes = 0;
+		for(int i=0, n=packets.size(); i<n; i++) {
+			ByteBuffer packet = packets.get(i);
+			bytes += packet.limit();
+			if(isLost(packet)) {
+				lost++;
+				continue;
+			}
+			depart(packet, now);
+			if(profile.getDuplicate()>0 && random.nextDouble()<profile.getDuplicate()) {
+				duplicated++;
+				depart(packet, now);
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * Advances the loss model by one packet. Important packets of a protecting profile advance the model
+	 * but are never lost, so a burst keeps its length.
+	 */
+	private boolean isLost(ByteBuffer packet) {
+		boolean lose;
+		if(profile.isGilbert()) {
+			bad = bad ? random.nextDouble()>=profile.getBadToGood() : random.nextDouble()<profile.getGoodToBad();
+			double loss = bad ? profile.getBadLoss() : profile.getGoodLoss();
+			lose = loss>0 && random.nextDouble()<loss;
+		} else {
+			lose = profile.getLoss()>0 && random.nextDouble()<profile.getLoss();
+		}
+		return lose && !(profile.isProtect() && H264Packetizer.getNalUnitType(packet, RTPUtil.HEADER_SIZE)!=1);
+	}
+
+	/**
+	 * Finds the departure of the packet (bandwidth cap first, then the delay) and sends or queues it
+	 */
+	private void depart(ByteBuffer packet, long now) throws IOException {
+		long departure = now;
+		if(profile.getRateKbps()>0) {
+			long start = Math.max(now, linkFreeNanos);
+			if(start - now > profile.getQueueMillis() * 1_000_000L) {
+				overflowed++;
+				return;
+			}
+			linkFreeNanos = start + packet.limit() * 8_000_000L / profile.getRateKbps();
+			departure = linkFreeNanos;
+		}
+
+		if(profile.getReorder()>0 && random.nextDouble()<profile.getReorder()) {
+			reordered++;
+		} else if(profile.getDelayMillis()>0 || profile.getJitterMillis()>0) {
+			long jitter = profile.getJitterMillis()==0 ? 0 : (long) ((random.nextDouble() * 2 - 1) * profile.getJitterMillis() * 1_000_000L);
+			departure += Math.max(0, profile.getDelayMillis() * 1_000_000L + jitter);
+		}
+
+		if(departure<=now) {
+			transport.send(packet);
+			return;
+		}
+
+		ByteBuffer copy = pool.acquire();
+		copy.put(packet.duplicate().position(0)).flip();
+		queue.add(new Delayed(departure, order++, copy));
+		delayed++;
+		if(flush==null || departure<flushDue) scheduleFlush(departure);
+	}
+
+	private void scheduleFlush(long due) {
+		if(flush!=null) flush.cancel(false);
+		long generation = ++flushGeneration;
+		flushDue = due;
+		flush = scheduler.scheduleAt(() -> flush(generation), due);
+	}
+
+	/**
+	 * Sends the queued packets which are due and schedules the next flush
+	 */
+	private synchronized void flush(long generation) {
+		if(closed || generation!=flushGeneration) return;
+		flush = null;
+		long now = System.nanoTime();
+		try {
+			Delayed head;
+			while((head = queue.peek())!=null && head.departure<=now) {
+				queue.poll();
+				try {
+					transport.send(head.packet);
+				} finally {
+					pool.release(head.packet);
+				}
+			}
+		} catch (IOException ex) {
+			failure = ex;
+			close();
+			return;
+		}
+		Delayed head = queue.peek();
+		if(head!=null) scheduleFlush(head.departure);
+	}
+
+	/**
+	 * Drops the queued packets; stage does not send anything afterwards
+	 */
+	@Override
+	public synchronized void close() {
+		closed = true;
+		if(flush!=null) flush.cancel(false);
+		flush = null;
+		Delayed queued;
+		while((queued = queue.poll())!=null) pool.release(queued.packet);
+	}
+
+	public H264RtpImpairmentProfile getProfile() {
+		return profile;
+	}
+
+	/**
+	 * Returns the number of packets lost by the loss model
+	 * @return the number of lost packets
+	 */
+	public synchronized long getLost() {
+		return lost;
+	}
+
+	public synchronized long getDuplicated() {
+		return duplicated;
+	}
+
+	/**
+	 * Returns the number of packets which skipped the delay
+	 * @return the number of reordered packets
+	 */
+	public synchronized long getReordered() {
+		return reordered;
+	}
+
+	/**
+	 * Returns the number of packets which went through the timing queue
+	 * @return the number of delayed packets
+	 */
+	public synchronized long getDelayed() {
+		return delayed;
+	}
+
+	/**
+	 * Returns the number of packets dropped because the backlog of the bandwidth cap was full
+	 * @return the number of packets over the queue of the cap
+	 */
+	public synchronized long getOverflowed() {
+		return overflowed;
+	}
+
+	/**
+	 * Returns the number of packets waiting in the timing queue
+	 * @return the number of queued packets
+	 */
+	public synchronized int getQueued() {
+		return queue.size();
+	}
+
+	/**
+	 * Packet waiting in the timing queue
+	 */
+	private static class Delayed {
+
+		private long departure;
+		private long order;     // keeps packets with the same departure in the order they were given
+		private ByteBuffer packet;
+
+		private Delayed(long departure, long order, ByteBuffer packet) {
+			this.departure = departure;
+			this.order = order;
+			this.packet = packet;
+		}
+
+	}
+
+}
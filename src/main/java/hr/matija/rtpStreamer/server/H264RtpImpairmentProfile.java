@@ -0,0 +1,250 @@
+package hr.matija.rtpStreamer.server;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Immutable description of the network impairment applied to the RTP packets of a stream (see
+ * {@link H264RtpImpairment}). Profile is written as whitespace separated settings, all optional;
+ * probabilities are in percent: <br>
+ * <code>seed=<em>n</em></code> seed of the random generators of the sessions (default 0) <br>
+ * <code>loss=<em>p</em></code> independent (Bernoulli) loss of every packet <br>
+ * <code>gilbert=<em>p</em>,<em>r</em>[,<em>bad</em>[,<em>good</em>]]</code> burst loss of the Gilbert-Elliott model:
+ * <em>p</em> is the chance of going from the good to the bad state, <em>r</em> of going back, <em>bad</em> and
+ * <em>good</em> the loss in each state (default 100 and 0) <br>
+ * <code>delay=<em>ms</em></code> fixed delay and <code>jitter=<em>ms</em></code> uniform random variation of it <br>
+ * <code>reorder=<em>p</em></code> packets sent without the delay, overtaking the delayed ones (needs a delay) <br>
+ * <code>duplicate=<em>p</em></code> packets sent twice <br>
+ * <code>rate=<em>kbit/s</em></code> bandwidth cap and <code>queue=<em>ms</em></code> longest backlog of the cap
+ * (default {@value #DEFAULT_QUEUE_MILLIS}), packets over it are dropped <br>
+ * <code>protect</code> packets of the parameter sets and IDR slices are never lost <br>
+ * Example: <code>seed=7 gilbert=1,25 delay=40 jitter=10 rate=4000</code>. Empty profile (or <code>none</code>)
+ * leaves the packets alone.
+ * @author Matija
+ *
+ */
+public class H264RtpImpairmentProfile {
+
+	/**
+	 * Default longest backlog of the bandwidth cap in milliseconds
+	 */
+	public static final long DEFAULT_QUEUE_MILLIS = 500;
+
+	/**
+	 * Profile which does not impair the stream
+	 */
+	public static final H264RtpImpairmentProfile NONE = new H264RtpImpairmentProfile();
+
+	private long seed;
+	private double loss;
+	private boolean gilbert;
+	private double goodToBad;
+	private double badToGood;
+	private double badLoss = 1;
+	private double goodLoss;
+	private long delayMillis;
+	private long jitterMillis;
+	private double reorder;
+	private double duplicate;
+	private long rateKbps;
+	private long queueMillis = DEFAULT_QUEUE_MILLIS;
+	private boolean protect;
+
+	private H264RtpImpairmentProfile() {
+	}
+
+	/**
+	 * Parses the profile; see the javadoc of this class for the format
+	 * @param spec profile, null or blank for {@link #NONE}
+	 * @return the profile
+	 * @throws IllegalArgumentException if the profile is not valid
+	 */
+	public static H264RtpImpairmentProfile parse(String spec) {
+		if(spec==null || spec.isBlank() || spec.trim().equalsIgnoreCase("none")) return NONE;
+
+		H264RtpImpairmentProfile profile = new H264RtpImpairmentProfile();
+		Set<String> seen = new HashSet<>();
+		for(String setting : spec.trim().split("\\s+")) {
+			int eq = setting.indexOf('=');
+			String key = (eq<0 ? setting : setting.substring(0, eq)).toLowerCase(Locale.ROOT);
+			String value = eq<0 ? null : setting.substring(eq + 1);
+			if(!seen.add(key)) throw new IllegalArgumentException("Impairment setting given twice: " + key);
+			if(value==null && !key.equals("protect")) throw new IllegalArgumentException("Expected " + key + "=value");
+
+			try {
+				switch(key) {
+					case "seed":
+						profile.seed = Long.parseLong(value);
+						break;
+					case "loss":
+						profile.loss = percent(key, value);
+						break;
+					case "gilbert":
+						String[] params = value.split(",");
+						if(params.length<2 || params.length>4) throw new IllegalArgumentException("Expected gilbert=p,r[,bad[,good]]: " + value);
+						profile.gilbert = true;
+						profile.goodToBad = percent(key, params[0]);
+						profile.badToGood = percent(key, params[1]);
+						if(params.length>2) profile.badLoss = percent(key, params[2]);
+						if(params.length>3) profile.goodLoss = percent(key, params[3]);
+						break;
+					case "delay":
+						profile.delayMillis = millis(key, value);
+						break;
+					case "jitter":
+						profile.jitterMillis = millis(key, value);
+						break;
+					case "reorder":
+						profile.reorder = percent(key, value);
+						break;
+					case "duplicate":
+						profile.duplicate = percent(key, value);
+						break;
+					case "rate":
+						profile.rateKbps = Long.parseLong(value);
+						if(profile.rateKbps<=0) throw new IllegalArgumentException("rate must be positive!");
+						break;
+					case "queue":
+						profile.queueMillis = millis(key, value);
+						if(profile.queueMillis==0) throw new IllegalArgumentException("queue must be positive!");
+						break;
+					case "protect":
+						if(value!=null) throw new IllegalArgumentException("protect does not take a value");
+						profile.protect = true;
+						break;
+					default:
+						throw new IllegalArgumentException("Unknown impairment setting: " + key);
+				}
+			} catch (NumberFormatException ex) {
+				throw new IllegalArgumentException("Invalid value of " + key + ": " + value);
+			}
+		}
+
+		if(profile.loss>0 && profile.gilbert) throw new IllegalArgumentException("loss and gilbert cannot be combined!");
+		if(profile.reorder>0 && profile.delayMillis==0) throw new IllegalArgumentException("reorder needs a delay!");
+		if(seen.contains("queue") && profile.rateKbps==0) throw new IllegalArgumentException("queue needs a rate!");
+		return profile.isNone() && !seen.contains("seed") && !profile.protect ? NONE : profile;
+	}
+
+	private static double percent(String key, String value) {
+		double percent = Double.parseDouble(value);
+		if(!(percent>=0 && percent<=100)) throw new IllegalArgumentException(key + " must be between 0 and 100!");
+		return percent / 100;
+	}
+
+	private static long millis(String key, String value) {
+		long millis = Long.parseLong(value);
+		if(millis<0 || millis>60_000) throw new IllegalArgumentException(key + " must be between 0 and 60000 ms!");
+		return millis;
+	}
+
+	/**
+	 * Returns true iff the profile leaves the packets alone, so the stream does not need an impairment stage
+	 * @return true iff the profile does not impair the stream
+	 */
+	public boolean isNone() {
+		return loss==0 && (!gilbert || badLoss==0 && goodLoss==0) && delayMillis==0 && jitterMillis==0
+				&& duplicate==0 && rateKbps==0;
+	}
+
+	public long getSeed() {
+		return seed;
+	}
+
+	/**
+	 * Returns the probability of the independent loss of a packet
+	 * @return the loss probability (0 - 1)
+	 */
+	public double getLoss() {
+		return loss;
+	}
+
+	/**
+	 * Returns true iff the losses follow the Gilbert-Elliott model
+	 * @return true iff the loss is bursty
+	 */
+	public boolean isGilbert() {
+		return gilbert;
+	}
+
+	public double getGoodToBad() {
+		return goodToBad;
+	}
+
+	public double getBadToGood() {
+		return badToGood;
+	}
+
+	public double getBadLoss() {
+		return badLoss;
+	}
+
+	public double getGoodLoss() {
+		return goodLoss;
+	}
+
+	public long getDelayMillis() {
+		return delayMillis;
+	}
+
+	public long getJitterMillis() {
+		return jitterMillis;
+	}
+
+	public double getReorder() {
+		return reorder;
+	}
+
+	public double getDuplicate() {
+		return duplicate;
+	}
+
+	/**
+	 * Returns the bandwidth cap
+	 * @return the bandwidth cap in kbit/s, 0 if the bandwidth is not capped
+	 */
+	public long getRateKbps() {
+		return rateKbps;
+	}
+
+	public long getQueueMillis() {
+		return queueMillis;
+	}
+
+	/**
+	 * Returns true iff the packets of the parameter sets and IDR slices are never lost
+	 * @return true iff the important packets are protected
+	 */
+	public boolean isProtect() {
+		return protect;
+	}
+
+	/**
+	 * Returns the profile in the format {@link #parse(String)} reads
+	 */
+	@Override
+	public String toString() {
+		if(this==NONE) return "none";
+		StringBuilder sb = new StringBuilder("seed=").append(seed);
+		if(loss>0) sb.append(" loss=").append(percent(loss));
+		if(gilbert) {
+			sb.append(" gilbert=").append(percent(goodToBad)).append(',').append(percent(badToGood));
+			sb.append(',').append(percent(badLoss)).append(',').append(percent(goodLoss));
+		}
+		if(delayMillis>0) sb.append(" delay=").append(delayMillis);
+		if(jitterMillis>0) sb.append(" jitter=").append(jitterMillis);
+		if(reorder>0) sb.append(" reorder=").append(percent(reorder));
+		if(duplicate>0) sb.append(" duplicate=").append(percent(duplicate));
+		if(rateKbps>0) sb.append(" rate=").append(rateKbps).append(" queue=").append(queueMillis);
+		if(protect) sb.append(" protect");
+		return sb.toString();
+	}
+
+	private static String percent(double probability) {
+		return new BigDecimal(probability * 100).round(new MathContext(9)).stripTrailingZeros().toPlainString();
+	}
+
+}
@@ -0,0 +1,122 @@
+package hr.matija.rtpStreamer.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.BitSet;
+
+/**
+ * Allocator of the server UDP port pairs for the rtp sessions. Every session gets an even
+ * RTP port and the following odd RTCP port from the configured range. Pairs are handed out
+ * round robin so that a port released by one session is not immediately reused by the next
+ * one, and pairs which are taken by some other process are skipped.
+ * @author Matija
+ *
+ */
+public class H264RtpPortAllocator {
+
+	/**
+	 * First port of the default range
+	 */
+	public static final int DEFAULT_FIRST_PORT = 6970;
+
+	/**
+	 * Last port of the default range
+	 */
+	public static final int DEFAULT_LAST_PORT = 7999;
+
+	private int firstPort;
+	private int pairs;
+	private BitSet used;
+	private int next;
+
+	/**
+	 * Creates the allocator for the default range
+	 */
+	public H264RtpPortAllocator() {
+		this(DEFAULT_FIRST_PORT, DEFAULT_LAST_PORT);
+	}
+
+	/**
+	 * Creates the allocator for the given range
+	 * @param firstPort first port of the range; rounded up to an even port
+	 * @param lastPort last port of the range
+	 * @throws IllegalArgumentException if the range does not contain a single pair
+	 */
+	public H264RtpPortAllocator(int firstPort, int lastPort) {
+		this.firstPort = firstPort + (firstPort & 1);
+		this.pairs = (lastPort - this.firstPort + 1) / 2;
+		if(this.firstPort<=0 || lastPort>65535 || pairs<=0) throw new IllegalArgumentException("Illegal port range: " + firstPort + "-" + lastPort);
+		this.used = new BitSet(pairs);
+	}
+
+	/**
+	 * Parses the range in the form <code>first-last</code>
+	 * @param range port range
+	 * @return allocator for the given range
+	 * @throws IllegalArgumentException if the range is malformed
+	 */
+	public static H264RtpPortAllocator forRange(String range) {
+		String[] ports = range.trim().split("-");
+		if(ports.length!=2) throw new IllegalArgumentException("Illegal port range: " + range);
+		try {
+			return new H264RtpPortAllocator(Integer.parseInt(ports[0].trim()), Integer.parseInt(ports[1].trim()));
+		} catch (NumberFormatException ex) {
+			throw new IllegalArgumentException("Illegal port range: " + range);
+		}
+	}
+
+	/**
+	 * Allocates a free pair
+	 * @return RTP port of the allocated pair (RTCP port is the next one) or -1 if there is no free pair
+	 */
+	public synchronized int allocate() {
+		for(int i=0; i<pairs; i++) {
+			int pair = (next + i) % pairs;
+			if(used.get(pair)) continue;
+
+			int port = firstPort + 2*pair;
+			if(!isBindable(port) || !isBindable(port + 1)) continue;
+
+			used.set(pair);
+			next = (pair + 1) % pairs;
+			return port;
+		}
+		return -1;
+	}
+
+	/**
+	 * Releases the pair
+	 * @param port RTP port of the pair returned by {@link #allocate()}
+	 */
+	public synchronized void release(int port) {
+		int pair = (port - firstPort) / 2;
+		if(pair>=0 && pair<pairs) used.clear(pair);
+	}
+
+	/**
+	 * Returns the number of allocated pairs
+	 * @return the number of allocated pairs
+	 */
+	public synchronized int getAllocatedCount() {
+		return used.cardinality();
+	}
+
+	/**
+	 * Returns the range of this allocator
+	 * @return the range in the form <code>first-last</code>
+	 */
+	public String getRange() {
+		return firstPort + "-" + (firstPort + 2*pairs - 1);
+	}
+
+	private static boolean isBindable(int port) {
+		try (DatagramChannel channel = DatagramChannel.open()) {
+			channel.bind(new InetSocketAddress(port));
+			return true;
+		} catch (IOException ex) {
+			return false;
+		}
+	}
+
+}
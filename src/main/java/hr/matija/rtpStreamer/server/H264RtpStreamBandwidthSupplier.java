@@ -6,5 +6,29 @@ public interface H264RtpStreamBandwidthSupplier {
 	double getMinimumBandwidth();
 	double getAverageBandwidth();
 	double getMomentBandwidth();
+	
+	/**
+	 * Returns the fraction of packets lost reported by the client in its last RTCP receiver report (0 - 1)
+	 * @return the fraction of packets lost
+	 */
+	double getPacketLoss();
+	
+	/**
+	 * Returns the total number of packets the client has lost
+	 * @return the cumulative number of lost packets
+	 */
+	long getCumulativePacketLoss();
+	
+	/**
+	 * Returns the interarrival jitter reported by the client in milliseconds
+	 * @return the interarrival jitter in milliseconds
+	 */
+	double getJitter();
+	
+	/**
+	 * Returns the round trip time measured from the RTCP reports in milliseconds, -1 if not measured yet
+	 * @return the round trip time in milliseconds
+	 */
+	double getRoundTripTime();
 
 }
@@ -0,0 +1,84 @@
+package hr.matija.rtpStreamer.server;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Scheduler shared by all rtp stream workers. Frames of all sessions are emitted by a
+ * small, fixed number of threads at absolute deadlines given in {@link System#nanoTime()}
+ * units, so no thread ever sleeps or spins on behalf of a single stream.
+ * @author Matija
+ *
+ */
+public class H264RtpStreamScheduler implements AutoCloseable {
+
+	private ScheduledThreadPoolExecutor executor;
+
+	/**
+	 * Creates the scheduler with one thread per available processor
+	 */
+	public H264RtpStreamScheduler() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Creates the scheduler
+	 * @param threads number of threads emitting the frames
+	 */
+	public H264RtpStreamScheduler(int threads) {
+		AtomicInteger counter = new AtomicInteger();
+		executor = new ScheduledThreadPoolExecutor(threads, (r) -> {
+			Thread t = new Thread(r, "rtp-scheduler-" + counter.incrementAndGet());
+			t.setDaemon(true);
+			t.setPriority(Thread.MAX_PRIORITY);
+			return t;
+		});
+		executor.setRemoveOnCancelPolicy(true);
+	}
+
+	/**
+	 * Schedules the task to be run at the given deadline. If the deadline has already passed,
+	 * the task is run as soon as possible.
+	 * @param task task which needs to be run
+	 * @param deadlineNanos deadline in {@link System#nanoTime()} units
+	 * @return future which can be used to cancel the task
+	 */
+	public ScheduledFuture<?> scheduleAt(Runnable task, long deadlineNanos) {
+		return executor.schedule(task, deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Runs the task as soon as possible
+	 * @param task task which needs to be run
+	 * @return future which can be used to cancel the task
+	 */
+	public ScheduledFuture<?> execute(Runnable task) {
+		return executor.schedule(task, 0, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Runs the task periodically with the given period
+	 * @param task task which needs to be run
+	 * @param periodMillis period in milliseconds
+	 * @return future which can be used to cancel the task
+	 */
+	public ScheduledFuture<?> scheduleAtFixedRate(Runnable task, long periodMillis) {
+		return executor.scheduleAtFixedRate(task, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Returns the number of threads emitting the frames
+	 * @return the number of threads
+	 */
+	public int getThreadCount() {
+		return executor.getCorePoolSize();
+	}
+
+	@Override
+	public void close() {
+		executor.shutdownNow();
+	}
+
+}
@@ -1,65 +1,228 @@
 package hr.matija.rtpStreamer.server;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
 import java.net.SocketAddress;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import hr.matija.rtpStreamer.console.ConsoleWriter;
 import hr.matija.rtpStreamer.h264.H264FileLoader;
-import hr.matija.rtpStreamer.h264.H264LiveCameraLoader;
+import hr.matija.rtpStreamer.h264.H264IndexedLoader;
 import hr.matija.rtpStreamer.h264.H264Loader;
+import hr.matija.rtpStreamer.h264.H264LoaderBroadcaster.Subscription;
+import hr.matija.rtpStreamer.h264.H264MappedFileLoader;
+import hr.matija.rtpStreamer.h264.H264NalIndex;
+import hr.matija.rtpStreamer.h264.NalUnit;
 import hr.matija.rtpStreamer.h264.NalUnit.NalUnitType;
+import hr.matija.rtpStreamer.metrics.MetricsRegistry;
+import hr.matija.rtpStreamer.metrics.StreamMetrics;
+import hr.matija.rtpStreamer.rtp.DirectBufferPool;
+import hr.matija.rtpStreamer.rtp.H264Packetizer;
+import hr.matija.rtpStreamer.rtp.RTCPReceiver;
+import hr.matija.rtpStreamer.rtp.RTCPSession;
+import hr.matija.rtpStreamer.rtp.RTPInterleavedTransport;
+import hr.matija.rtpStreamer.rtp.RTPInterleavedTransport.InterleavedOutput;
+import hr.matija.rtpStreamer.rtp.RTPTransport;
+import hr.matija.rtpStreamer.rtp.RTPUdpTransport;
 import hr.matija.rtpStreamer.rtp.RTPUtil;
-import hr.matija.rtpStreamer.rtp.RTPUtil.RTPheader;
-import hr.matija.rtpStreamer.rtp.RTPUtil.RTPpacket;
 import hr.matija.rtpStreamer.server.H264RtspResourceCollection.Resource;
 
 public class H264RtpStreamWorkerCollection {
 	
+	private static final int MAX_POOLED_PACKETS = 4096;
+	
 	private long clockHz = 90_000;
 	private byte payloadType = 96;
+	private int mtu = H264Packetizer.DEFAULT_MTU;
 	private ConsoleWriter writer;
+	private H264RtpStreamScheduler scheduler = new H264RtpStreamScheduler();
+	private DirectBufferPool packetPool;
+	private DirectBufferPool framePool;     // interleaved frames of the packets
+	private RTCPReceiver rtcpReceiver;
+	private H264RtpPortAllocator portAllocator = new H264RtpPortAllocator();
+	private NetworkInterface multicastInterface;
+	private MetricsRegistry metrics = new MetricsRegistry();
 	
-	private double packageDropRate = 0;
-	private int packageMultiplier = 1;
-	private boolean allowDropAll = true;
-	private boolean onlyRetransmitImportant = false;
+	private volatile H264RtpImpairmentProfile impairment = H264RtpImpairmentProfile.NONE;
 	
-	private Map<Integer, H264RtpStreamWorker> workers = new HashMap<>();
+	private AtomicInteger nextId = new AtomicInteger();
+	private Map<Integer, H264RtpStreamWorker> workers = new ConcurrentHashMap<>();   // changed under the lock of this collection, read without it
+	private Map<Resource, H264RtpStreamWorker> multicastWorkers = new IdentityHashMap<>();  // guarded by this collection
 	
 	public H264RtpStreamWorkerCollection() {
+		this(90_000, (byte) 96, new ConsoleWriter(List.of(System.out)));
 	}
 
 	public H264RtpStreamWorkerCollection(long clockHz, byte payloadType, ConsoleWriter writer) {
+		this(clockHz, payloadType, H264Packetizer.DEFAULT_MTU, writer);
+	}
+
+	public H264RtpStreamWorkerCollection(long clockHz, byte payloadType, int mtu, ConsoleWriter writer) {
+		this(clockHz, payloadType, mtu, new H264RtpPortAllocator(), writer);
+	}
+
+	public H264RtpStreamWorkerCollection(long clockHz, byte payloadType, int mtu, H264RtpPortAllocator portAllocator, ConsoleWriter writer) {
 		this.clockHz = clockHz;
 		this.payloadType = payloadType;
+		this.mtu = mtu;
+		this.portAllocator = Objects.requireNonNull(portAllocator);
 		this.writer = Objects.requireNonNull(writer);
+		this.packetPool = createPacketPool(mtu);
+		this.framePool = new DirectBufferPool(RTPInterleavedTransport.FRAME_HEADER_SIZE + packetPool.getBufferCapacity(), MAX_POOLED_PACKETS);
+		this.rtcpReceiver = new RTCPReceiver(writer);
+	}
+	
+	/**
+	 * Creates the pool of the packet buffers shared by all workers. Every buffer holds one
+	 * RTP packet of the maximum size allowed by the MTU.
+	 * @param mtu maximum transmission unit
+	 * @return pool of the packet buffers
+	 */
+	private static DirectBufferPool createPacketPool(int mtu) {
+		return new DirectBufferPool(mtu - H264Packetizer.HEADERS_OVERHEAD + RTPUtil.HEADER_SIZE, MAX_POOLED_PACKETS);
+	}
+	
+	/**
+	 * Creates the worker streaming the resource to the given client over UDP. Worker sends from the server
+	 * port pair allocated for it, which is released when the worker is removed.
+	 * @param resource resource which is streamed
+	 * @param address RTP address of the client
+	 * @param rtcpAddress RTCP address of the client
+	 * @param initSeqNum initial RTP sequence number
+	 * @param initTimestamp initial RTP timestamp
+	 * @param ssrc synchronization source identifier of the stream
+	 * @return id of the created worker
+	 * @throws IllegalStateException if there is no free server port pair
+	 */
+	public synchronized int makeWorker(Resource resource, InetSocketAddress address, InetSocketAddress rtcpAddress, short initSeqNum, int initTimestamp, int ssrc) {
+		int serverPort = portAllocator.allocate();
+		if(serverPort<0) throw new IllegalStateException("No free server ports in range " + portAllocator.getRange() + "!");
+		
+		RTPUdpTransport transport;
+		String host;
+		try {
+			transport = new RTPUdpTransport(new InetSocketAddress(serverPort), address, new InetSocketAddress(serverPort + 1), rtcpAddress);
+			host = ((InetSocketAddress) transport.getLocalAddress()).getAddress().getHostAddress();
+		} catch (IOException ex) {
+			portAllocator.release(serverPort);
+			throw new IllegalStateException("Cannot open server ports " + serverPort + "-" + (serverPort + 1) + ": " + ex.getMessage(), ex);
+		}
+		
+		int id = makeWorker(resource, address, transport, serverPort, host, initSeqNum, initTimestamp, ssrc);
+		rtcpReceiver.register(transport);
+		return id;
+	}
+	
+	/**
+	 * Creates the worker streaming the resource to the given client interleaved into its rtsp connection
+	 * @param resource resource which is streamed
+	 * @param output output of the rtsp connection of the client
+	 * @param address address of the client
+	 * @param localAddress local address of the rtsp connection
+	 * @param channel interleaved channel of the RTP packets
+	 * @param controlChannel interleaved channel of the RTCP packets
+	 * @param initSeqNum initial RTP sequence number
+	 * @param initTimestamp initial RTP timestamp
+	 * @param ssrc synchronization source identifier of the stream
+	 * @return id of the created worker
+	 * @throws IllegalArgumentException if a channel is not in the range 0 - 255
+	 */
+	public synchronized int makeInterleavedWorker(Resource resource, InterleavedOutput output, SocketAddress address, InetAddress localAddress, int channel, int controlChannel, short initSeqNum, int initTimestamp, int ssrc) {
+		var transport = new RTPInterleavedTransport(output, framePool, channel, controlChannel);
+		return makeWorker(resource, address, transport, -1, localAddress.getHostAddress(), initSeqNum, initTimestamp, ssrc);
+	}
+	
+	/**
+	 * Joins the viewer to the multicast stream of the resource. All viewers of a multicast resource
+	 * share one worker sending to the group of the resource; worker is created for the first viewer
+	 * and removed when the last one releases it (see {@link #releaseWorker(int)}). Workers are shared by the
+	 * same resource object only: a reload which changes the resource (its options or its file) makes a new
+	 * one, so new viewers get a worker sending the new content to the new group, while the viewers of the old
+	 * one keep theirs.
+	 * @param resource multicast resource
+	 * @return id of the shared worker
+	 * @throws IllegalArgumentException if the resource is not a multicast resource
+	 * @throws IllegalStateException if the multicast transport cannot be opened
+	 */
+	public synchronized int joinMulticast(Resource resource) {
+		InetSocketAddress group = resource.getMulticastGroup();
+		if(group==null) throw new IllegalArgumentException("Not a multicast resource: " + resource);
+		
+		var worker = multicastWorkers.get(resource);
+		if(worker!=null) {
+			worker.references++;
+			return worker.getId();
+		}
+		
+		RTPUdpTransport transport;
+		String host;
+		try {
+			transport = RTPUdpTransport.openMulticast(group, new InetSocketAddress(group.getAddress(), group.getPort() + 1), resource.getMulticastTtl(), multicastInterface);
+			host = ((InetSocketAddress) transport.getLocalAddress()).getAddress().getHostAddress();
+		} catch (IOException ex) {
+			throw new IllegalStateException("Cannot open multicast group " + group + ": " + ex.getMessage(), ex);
+		}
+		
+		int id = makeWorker(resource, group, transport, -1, host, (short) (Math.random() * Short.MAX_VALUE), 
+				(int) (Math.random() * Integer.MAX_VALUE), (int) (Math.random() * Integer.MAX_VALUE));
+		worker = workers.get(id);
+		worker.shared = true;
+		worker.references = 1;
+		multicastWorkers.put(resource, worker);
+		rtcpReceiver.register(transport);
+		return id;
 	}
 	
-	public synchronized int makeWorker(Resource resource, SocketAddress address, short initSeqNum, int initTimestamp, int ssrc) {
+	private int makeWorker(Resource resource, SocketAddress address, RTPTransport transport, int serverPort, String host, short initSeqNum, int initTimestamp, int ssrc) {
 		int id;
 		do {
-			id = (int) (Math.random() * Integer.MAX_VALUE);
-		} while(workers.keySet().contains(id));
+			id = nextId.updateAndGet((i) -> i==Integer.MAX_VALUE ? 1 : i + 1);
+		} while(workers.containsKey(id)); // only after the ids wrapped around
 		
-		var worker = new H264RtpStreamWorker(id, resource, address, initSeqNum, initTimestamp, ssrc, clockHz, payloadType);
+		var rtcp = new RTCPSession(ssrc, clockHz, "rtspStreamer@" + host);
+		var worker = new H264RtpStreamWorker(id, resource, address, transport, rtcp, serverPort, initSeqNum, initTimestamp, ssrc, clockHz, payloadType, new H264Packetizer(mtu));
+		worker.metrics = metrics.openSession(id, resource.getUriMapping());
+		transport.setControlListener(rtcp::receive);
+		worker.setImpairment(impairment);
 		workers.put(id, worker);
 		return id;
 	}
 	
-	public synchronized H264RtpStreamWorker getWorker(int id) {
+	public H264RtpStreamWorker getWorker(int id) {
 		return workers.get(id);
 	}
 	
+	/**
+	 * Releases the worker of one viewer. Worker of a unicast stream is removed; shared worker of
+	 * a multicast stream is removed when its last viewer releases it.
+	 * @param id id of the worker
+	 * @return true if the worker existed
+	 */
+	public synchronized boolean releaseWorker(int id) {
+		var worker = workers.get(id);
+		if(worker==null) return false;
+		if(worker.shared && --worker.references>0) return true;
+		return removeWorker(id);
+	}
+	
 	public synchronized boolean removeWorker(int id) {
 		var worker =  workers.remove(id);
 		if(worker==null) return false;
-		if(worker.isStreaming()) worker.close();
+		if(worker.shared) multicastWorkers.remove(worker.getResource(), worker);
+		worker.close();
+		metrics.closeSession(id);
+		if(worker.getServerPort()>0) portAllocator.release(worker.getServerPort());
 		return true;
 	}
 	
@@ -75,170 +238,556 @@ public class H264RtpStreamWorkerCollection {
 		return payloadType;
 	}
 	
-	public double getPackageDropRate() {
-		return packageDropRate;
+	public H264RtpStreamScheduler getScheduler() {
+		return scheduler;
 	}
-
-	public void setPackageDropRate(double packageDropRate) {
-		this.packageDropRate = packageDropRate/100;
+	
+	public int getMtu() {
+		return mtu;
 	}
-
-	public int getPackageMultiplier() {
-		return packageMultiplier;
+	
+	public H264RtpPortAllocator getPortAllocator() {
+		return portAllocator;
 	}
-
-	public void setPackageMultiplier(int packageMultiplier) {
-		this.packageMultiplier = packageMultiplier;
+	
+	public DirectBufferPool getPacketPool() {
+		return packetPool;
 	}
-
-	public boolean isDropAllAllowed() {
-		return allowDropAll;
+	
+	/**
+	 * Returns the pool of the buffers the packets of the interleaved streams are framed into
+	 * @return pool of the interleaved frames
+	 */
+	public DirectBufferPool getFramePool() {
+		return framePool;
+	}
+	
+	/**
+	 * Returns the metrics of all streams: every worker records into its session, its resource and the server
+	 * @return registry of the stream metrics
+	 */
+	public MetricsRegistry getMetrics() {
+		return metrics;
 	}
 	
-	public void setAllowDropAll(boolean allowDropAll) {
-		this.allowDropAll = allowDropAll;
+	public NetworkInterface getMulticastInterface() {
+		return multicastInterface;
 	}
 	
-	public boolean isOnlyRetransmitImportant() {
-		return onlyRetransmitImportant;
+	/**
+	 * Sets the interface multicast streams are sent from; applies to the streams created afterwards
+	 * @param multicastInterface network interface, null for the one chosen by the system
+	 */
+	public void setMulticastInterface(NetworkInterface multicastInterface) {
+		this.multicastInterface = multicastInterface;
 	}
 	
-	public void setOnlyRetransmitImportant(boolean onlyRetransmitImportant) {
-		this.onlyRetransmitImportant = onlyRetransmitImportant;
+	/**
+	 * Returns the impairment profile given to the new streams
+	 * @return the default impairment profile
+	 */
+	public H264RtpImpairmentProfile getImpairment() {
+		return impairment;
 	}
 
- 	public class H264RtpStreamWorker implements Runnable, AutoCloseable, H264RtpStreamBandwidthSupplier {
+	/**
+	 * Sets the impairment profile of all streams, the running ones and the ones created afterwards
+	 * (see {@link H264RtpStreamWorker#setImpairment(H264RtpImpairmentProfile)})
+	 * @param impairment impairment profile
+	 */
+	public void setImpairment(H264RtpImpairmentProfile impairment) {
+		this.impairment = Objects.requireNonNull(impairment);
+		for(var worker : workers.values()) {
+			worker.setImpairment(impairment);
+		}
+	}
+
+	/**
+	 * Rtp stream of one resource to one client. Stream does not own a thread; its frames are emitted by
+	 * the shared {@link H264RtpStreamScheduler} at deadlines derived from the RTP clock, so the stream
+	 * does not drift and a paused stream does not use any CPU. When the transport of the stream is
+	 * congested, frames which are not referenced by other frames are dropped, and when the transport
+	 * had to drop a packet the stream skips to the next keyframe. Stream of a live resource starts with
+	 * the group of pictures cached by its broadcaster, so the viewer can decode its first frame right
+	 * away. Cached frames are sent {@value #CATCH_UP_SPEED} times faster than real time, so the stream
+	 * catches up with the source in a third of the age of the keyframe without flooding the network with
+	 * the whole group at once, and is paced by the source afterwards. Frames keep their RTP timestamps, so
+	 * a player which plays by them stays behind the source by the age of the keyframe (at most one group
+	 * of pictures); that latency is the price of the instant start. Stream of an indexed file can be moved
+	 * to any of its keyframes ({@link #seek(double)}) without breaking the RTP sequence.
+	 * @author Matija
+	 *
+	 */
+ 	public class H264RtpStreamWorker implements AutoCloseable, H264RtpStreamBandwidthSupplier {
+		
+		private static final long START_DELAY_NANOS = 50_000_000L;
+		private static final long RTCP_TICK_MILLIS = 1000;
+		private static final int CATCH_UP_SPEED = 4;    // multiple of real time the cached group of pictures is sent at
+		private static final long SENDER_REPORT_INTERVAL_NANOS = 5_000_000_000L;
 		
 		private int id;
 
 		private Resource resource;
 		private SocketAddress address;
+		private int serverPort;
 		private short initSeqNum;
 		private int initTimestamp;
 		private int ssrc;
 		private long clockHz;
 		private byte payloadType;
+		private H264Packetizer packetizer;
+		
+		private short seqNum;
+		private double transferedSizeMb;
 		
 		private AtomicBoolean isStreaming = new AtomicBoolean(false);
 		private AtomicBoolean stopReq = new AtomicBoolean(false);
 		private AtomicBoolean pause = new AtomicBoolean(false);
+		private boolean closed;
+		private boolean shared;    // multicast stream of all viewers of the resource
+		private int references;    // viewers of the shared stream, guarded by the collection
 		
 		private long timestampIncrement;
-		private int frameTime;
 		
-		private double maxBandwidth;
-		private double minBandwidth = Double.MAX_VALUE;
-		private double momentBandwidth;
-		private double momentBandwidthSum = 0;
-		private long momentBandwithCount = 0;
+		private RTPTransport transport;
+		private H264RtpImpairment impairment;   // null if the packets are not impaired
+		private long transportDropped;
+		private RTCPSession rtcp;
+		private H264Loader loader;
+		private List<NalUnit> accessUnit = new ArrayList<>();
+		private List<ByteBuffer> packets = new ArrayList<>();
+		private ScheduledFuture<?> nextTick;
+		private long tickGeneration;    // ticks scheduled before the last seek, pause or unpause do nothing
+		private ScheduledFuture<?> nextRtcpTick;
+		private long deadline;      // time the scheduled frame is due, 0 if the frame is not paced (catching up)
+		
+		private StreamMetrics metrics;
+		private long lastSendNanos; // time of the last burst of packets, 0 after a pause or seek
+		private long sentPackets;
+		private long sentOctets;        // payload octets, as counted by the sender report
+		private long lastSenderReportNanos;
+		private long droppedFrames;
+		private boolean waitForKeyframe;    // transport dropped a packet, the following frames are useless until a keyframe
+		private boolean catchingUp;         // live stream is sending the cached group of pictures
+		private long catchUpNanos;          // time the previous cached frame was due
 		
-		private H264RtpStreamWorker(int id, Resource resource, SocketAddress address, short initSeqNum, int initTimestamp, int ssrc, long clockHz, byte payloadType) {
+		private long frameIndex;    // number of access units sent so far
+		private long frameBase;     // frame at which the current frame rate took effect
+		private long ticksBase;     // RTP clock ticks elapsed until frameBase
+		private int fps;            // frame rate of the current rendition
+		private long anchorFrame;   // frame whose deadline is anchorNanos
+		private long anchorNanos;
+		private long tic;           // start of the current bandwidth measurement window
+		
+		private H264AdaptiveBitrateController abr;
+		private int rendition;             // index of the rendition being sent
+		private int pendingRendition = -1; // rendition waiting for a keyframe to switch to
+		private long mediaFrame;           // index of the next access unit in the current rendition
+		private int startFrame;            // access unit the stream is opened at, set by a seek before the start
+		private double startNpt = -1;      // play time of a seek before the index was built, found by open
+		private long lastReportCount;
+		
+		// written by the sending thread, read by the window
+		private volatile double maxBandwidth;
+		private volatile double minBandwidth = Double.MAX_VALUE;
+		private volatile double momentBandwidth;
+		private volatile double momentBandwidthSum = 0;
+		private volatile long momentBandwithCount = 0;
+		
+		private H264RtpStreamWorker(int id, Resource resource, SocketAddress address, RTPTransport transport, RTCPSession rtcp, int serverPort, short initSeqNum, int initTimestamp, int ssrc, long clockHz, byte payloadType, H264Packetizer packetizer) {
 			this.id = id;
 			this.resource = resource;
 			this.address = address;
+			this.transport = Objects.requireNonNull(transport);
+			this.rtcp = Objects.requireNonNull(rtcp);
+			this.serverPort = serverPort;
 			this.initSeqNum = initSeqNum;
 			this.initTimestamp = initTimestamp;
 			this.ssrc = ssrc;
 			this.clockHz = clockHz;
 			this.payloadType = payloadType;
+			this.packetizer = Objects.requireNonNull(packetizer);
 			
 			this.timestampIncrement = clockHz/resource.getFps();
-			this.frameTime = 1000/resource.getFps();
 		}
 
-		@Override
-		public void run() {
+		/**
+		 * Starts the stream. Resource is opened on the scheduler and the first frame is sent 50 ms later.
+		 * @throws IllegalStateException if the stream is already running or has been closed
+		 */
+		public synchronized void start() {
+			if(closed) throw new IllegalStateException("Stream closed!");
 			if(isStreaming.get()) throw new IllegalStateException("Already streaming!");
 			isStreaming.set(true);
 			stopReq.set(false);
+			pause.set(false);
 			writer.writeInfo("New stream: " + resource.getName() + " " + address.toString());
 			
-			try (DatagramSocket dSocket = new DatagramSocket()){
+			nextTick = scheduler.execute(this::open);
+		}
+		
+		private void open() {
+			// index is built (or loaded) before the lock is taken, so the requests of the stream (a PLAY with
+			// a seek) do not wait for the scan of the file
+			H264NalIndex index = null;
+			Throwable indexFailure = null;
+			try {
+				if(!resource.isLive() && H264MappedFileLoader.isMappable(resource.getPath())) index = resource.getIndex();
+			} catch (IOException | RuntimeException | InternalError ex) {
+				indexFailure = ex;
+			}
+			
+			boolean failed = false;
+			synchronized (this) {
+				if(stopReq.get()) return;
+				try {
+					if(indexFailure instanceof InternalError) throw (InternalError) indexFailure;
+					if(indexFailure!=null) throw (Exception) indexFailure;
+					if(resource.isLive()) loader = resource.getBroadcaster().subscribe();
+					else if(index!=null) loader = index.newLoader();
+					else loader = new H264FileLoader(resource.getPath());
+					
+					// switching renditions needs the keyframe index of every rendition
+					boolean adaptive = !shared && loader instanceof H264IndexedLoader && resource.getRenditions().size()>1;
+					for(var r : resource.getRenditions()) {
+						if(adaptive && !H264MappedFileLoader.isMappable(r.getPath())) adaptive = false;
+					}
+					abr = adaptive ? new H264AdaptiveBitrateController(resource.getRenditions()) : null;
+					rendition = 0;
+					pendingRendition = -1;
+					mediaFrame = 0;
+					if(startNpt>=0 && index!=null) {
+						long target = (long) (startNpt * resource.getFps());
+						if(target<index.getAccessUnitCount()) startFrame = Math.max(0, index.previousKeyframe((int) target));
+						else writer.writeWarning("Play time out of the resource: " + startNpt + ", stream " + id + " starts at the beginning");
+					}
+					startNpt = -1;
+					if(startFrame>0 && loader instanceof H264IndexedLoader) {
+						H264IndexedLoader indexed = (H264IndexedLoader) loader;
+						indexed.seekToAccessUnit(startFrame);
+						mediaFrame = startFrame;
+						accessUnit.addAll(indexed.getIndex().getParameterSets());
+					}
+					startFrame = 0;
+					lastReportCount = 0;
+					
+					seqNum = initSeqNum;
+					frameIndex = 0;
+					frameBase = 0;
+					ticksBase = 0;
+					fps = resource.getFps();
+					transferedSizeMb = 0;
+					tic = System.currentTimeMillis();
+					anchor(System.nanoTime() + START_DELAY_NANOS);
+					sentPackets = 0;
+					sentOctets = 0;
+					lastSenderReportNanos = 0;
+					droppedFrames = 0;
+					waitForKeyframe = false;
+					transportDropped = transport.getDroppedCount();
+					catchingUp = loader instanceof Subscription && ((Subscription) loader).getBacklog()>1;
+					lastSendNanos = 0;
+					deadline = catchingUp ? 0 : anchorNanos;
+					catchUpNanos = anchorNanos;
+					scheduleTick(anchorNanos);
+					nextRtcpTick = scheduler.scheduleAtFixedRate(this::rtcpTick, RTCP_TICK_MILLIS);
+				} catch (Exception ex) {
+					ex.printStackTrace();
+					writer.writeError("Unexpected exception " + ex.getClass().getName() + " : " + ex.getMessage());
+					failed = true;
+				} catch (InternalError ex) {
+					truncated();
+					failed = true;
+				}
+			}
+			if(failed) removeWorker(this.id);
+		}
+		
+		private void tick(long generation) {
+			if(!sendNextFrame(generation)) removeWorker(this.id);
+		}
+		
+		/**
+		 * Schedules the next tick of the current generation; must be called with the lock of the stream held
+		 * @param deadlineNanos deadline of the tick in {@link System#nanoTime()} units
+		 */
+		private void scheduleTick(long deadlineNanos) {
+			long generation = tickGeneration;
+			nextTick = scheduler.scheduleAt(() -> tick(generation), deadlineNanos);
+		}
+		
+		/**
+		 * Cancels the scheduled tick. A tick which is already running (waiting for the lock of the stream)
+		 * cannot be cancelled, so the generation is changed as well and that tick returns without sending.
+		 */
+		private void cancelTick() {
+			tickGeneration++;
+			if(nextTick!=null) nextTick.cancel(false);
+			nextTick = null;
+		}
+		
+		/**
+		 * Sends the next access unit and schedules the following one at its deadline.
+		 * @return false if the stream has ended (or failed), true otherwise
+		 */
+		private synchronized boolean sendNextFrame(long generation) {
+			if(generation!=tickGeneration || stopReq.get() || pause.get()) return true;
+			
+			try {
+				if(!loader.isAccessUnitReady()) {
+					// live source is behind, producer schedules the tick once it publishes the next access unit
+					((Subscription) loader).onAccessUnit(() -> scheduler.execute(() -> tick(generation)));
+					return true;
+				}
+				if(deadline>0) metrics.recordLateness(System.nanoTime() - deadline);
 				
-				H264Loader loader;
-				if(resource.getName().startsWith("live://")) loader = new H264LiveCameraLoader(resource.getName().substring(7));
-				else loader = new H264FileLoader(resource.getPath());
-				sendFrames(dSocket, loader);
-				loader.close();
+				if(pendingRendition>=0) trySwitchRendition();
 				
+				// access unit delimiter (or the end of the stream) closes the current access unit
+				boolean hasNext;
+				while((hasNext = loader.nextNalUnit()) && loader.getNalUnit().getType()!=NalUnitType.ACCESS_UNIT_DELIMITER) {
+					accessUnit.add(loader.getNalUnit());
+				}
+				sendAccessUnit(accessUnit, (int) (initTimestamp + getRtpTicks(frameIndex)));
+				accessUnit.clear();
+				if(!hasNext) return false;
+				
+				frameIndex++;
+				mediaFrame++;
+				updateBandwidth();
+				if(catchingUp) {
+					if(((Subscription) loader).getBacklog()>0) {
+						// late tick does not make the following ones burst
+						deadline = 0;
+						catchUpNanos = Math.max(catchUpNanos + 1_000_000_000L / (fps * CATCH_UP_SPEED), System.nanoTime());
+						scheduleTick(catchUpNanos);
+						return true;
+					}
+					// caught up with the source, following frames are paced from now on
+					catchingUp = false;
+					anchor(System.nanoTime());
+				}
+				deadline = getDeadline(frameIndex);
+				scheduleTick(deadline);
+				return true;
 			} catch (Exception ex) {
 				ex.printStackTrace();
 				writer.writeError("Unexpected exception " + ex.getClass().getName() + " : " + ex.getMessage());
-			} finally {
-				writer.writeInfo("Closed stream: " + resource.getName() + " " + address.toString());
-				isStreaming.set(false);
-				removeWorker(this.id);
+				return false;
+			} catch (InternalError ex) {
+				truncated();
+				return false;
 			}
 		}
 		
-		private void sendFrames(DatagramSocket dSocket, H264Loader loader) throws IOException, InterruptedException {
-			short seqNum = initSeqNum;
-			int timestamp = initTimestamp;
-			double bytesToMbitsMultiplier = 8.0/1_000_000;
+		/**
+		 * Reports the fault of a read from the mapped file of the resource. JVM turns the SIGBUS of a read
+		 * past the end of a mapped file which was truncated (or rewritten in place) while it was mapped into
+		 * an {@link InternalError}; it only affects this stream, which ends like one whose source failed.
+		 */
+		private void truncated() {
+			writer.writeError("Source of " + resource.getName() + " was truncated while streaming, stream " + id + " ended");
+		}
+		
+		/**
+		 * Switches to the pending rendition if it has a keyframe which starts within one frame of the
+		 * current position; otherwise the switch waits for the next frame. RTP timestamps and deadlines
+		 * stay continuous across the switch and the parameter sets of the new rendition are sent ahead
+		 * of its keyframe.
+		 * @throws Exception if the index of the rendition cannot be loaded or the old loader cannot be closed
+		 */
+		private void trySwitchRendition() throws Exception {
+			Resource target = resource.getRenditions().get(pendingRendition);
+			H264NalIndex index = target.getIndex();
 			
-			Thread.sleep(50);
-			long start = System.currentTimeMillis();       // indicates start of one access unit; used for synchronizing sending of one frame
-
-			long tic = System.currentTimeMillis();
+			long mediaTicks = mediaFrame * clockHz / fps;
+			int first = (int) ((mediaTicks * target.getFps() + clockHz - 1) / clockHz);
+			int keyframe = first<index.getAccessUnitCount() ? index.nextKeyframe(first) : -1;
+			if(keyframe<0) {
+				pendingRendition = -1; // no keyframe left in the target, stay where we are
+				return;
+			}
+			if(keyframe * clockHz / target.getFps() - mediaTicks >= clockHz / fps) return;
+			
+			anchor(getDeadline(frameIndex));
+			ticksBase = getRtpTicks(frameIndex);
+			frameBase = frameIndex;
+			fps = target.getFps();
+			
+			H264IndexedLoader newLoader = index.newLoader();
+			newLoader.seekToAccessUnit(keyframe);
+			loader.close();
+			loader = newLoader;
+			mediaFrame = keyframe;
+			
+			writer.writeInfo("Switched stream " + address + " to " + target + " at frame " + keyframe);
+			rendition = pendingRendition;
+			pendingRendition = -1;
+			accessUnit.addAll(index.getParameterSets());
+		}
+		
+		/**
+		 * Sends the sender report every {@link #SENDER_REPORT_INTERVAL_NANOS} and feeds every new receiver
+		 * report to the adaptive bitrate controller. Sender reports are not sent while the stream is paused
+		 * or before the first frame. RTCP errors are logged but do not stop the stream. Reports of the client
+		 * are read by the shared {@link RTCPReceiver}.
+		 */
+		private synchronized void rtcpTick() {
+			if(stopReq.get()) return;
+			
+			if(abr!=null && rtcp.getReportCount()!=lastReportCount) {
+				lastReportCount = rtcp.getReportCount();
+				double packetBits = sentPackets==0 ? 0 : (sentOctets + sentPackets*RTPUtil.HEADER_SIZE) * 8.0 / sentPackets;
+				int target = abr.update(rtcp.getFractionLost(), rtcp.getReceivedPacketRate() * packetBits / 1000);
+				pendingRendition = target==rendition ? -1 : target;
+			}
+			
+			try {
+				long now = System.nanoTime();
+				if(pause.get() || sentPackets==0 || now - lastSenderReportNanos < SENDER_REPORT_INTERVAL_NANOS) return;
+				transport.sendControl(rtcp.createSenderReport(System.currentTimeMillis(), getRtpTimestamp(now), (int) sentPackets, (int) sentOctets));
+				lastSenderReportNanos = now;
+			} catch (IOException ex) {
+				writer.writeError("RTCP error " + ex.getClass().getName() + " : " + ex.getMessage());
+			}
+		}
+		
+		/**
+		 * Returns the RTP timestamp of the given instant, extrapolated from the anchor of the RTP clock
+		 * @param nanos instant in {@link System#nanoTime()} units
+		 * @return RTP timestamp of the instant
+		 */
+		private int getRtpTimestamp(long nanos) {
+			return (int) (initTimestamp + getRtpTicks(anchorFrame) + (nanos - anchorNanos) * clockHz / 1_000_000_000L);
+		}
+		
+		/**
+		 * Returns the number of RTP clock ticks between the first frame and the given frame. Computed
+		 * from the frame index since the last change of the frame rate (and not accumulated) so that
+		 * rounding errors do not add up.
+		 * @param frame index of the frame
+		 * @return RTP clock ticks elapsed until the given frame
+		 */
+		private long getRtpTicks(long frame) {
+			return ticksBase + (frame - frameBase) * clockHz / fps;
+		}
+		
+		/**
+		 * Returns the time at which the given frame needs to be sent, derived from the RTP clock
+		 * @param frame index of the frame
+		 * @return deadline of the frame in {@link System#nanoTime()} units
+		 */
+		private long getDeadline(long frame) {
+			return anchorNanos + (getRtpTicks(frame) - getRtpTicks(anchorFrame)) * 1_000_000_000L / clockHz;
+		}
+		
+		/**
+		 * Anchors the RTP clock of the current frame to the given time
+		 * @param nanos time at which the current frame needs to be sent
+		 */
+		private void anchor(long nanos) {
+			anchorFrame = frameIndex;
+			anchorNanos = nanos;
+		}
+		
+		private void updateBandwidth() {
 			long toc = System.currentTimeMillis();
-			double transferedSizeMb = 0;
-			while(!stopReq.get()) {
-				if(!loader.nextNalUnit()) break;
-				
-				if(loader.getNalUnit().getType()==NalUnitType.ACCESS_UNIT_DELIMITER) {
-					timestamp+=timestampIncrement;
-					
-					long delay = System.currentTimeMillis() - start;
-					long sleep = this.frameTime - delay;
-					if(sleep>0) Thread.sleep(sleep);
-					
-					while(pause.get() && !stopReq.get());
-					
-					start = System.currentTimeMillis();
-					continue;
-				}
-				
-				byte nalu[] = loader.getNalUnit().getData(); 
-				RTPheader header = new RTPheader((byte) 2, false, false, (byte) 0, false, payloadType, seqNum, timestamp, ssrc);
-				byte UDPpayload[] = RTPUtil.createRTPpacket(new RTPpacket(header, nalu));
-				DatagramPacket packet = new DatagramPacket(UDPpayload, UDPpayload.length, address);
-				
-				double packageSize = UDPpayload.length*bytesToMbitsMultiplier;
-				if(onlyRetransmitImportant && loader.getNalUnit().getType() == NalUnitType.CODED_SLICE_NON_IDR) {
-					if(Math.random()>=packageDropRate ||
-							!allowDropAll && loader.getNalUnit().getType()!=NalUnitType.CODED_SLICE_NON_IDR) {
-							dSocket.send(packet);
-							transferedSizeMb+=packageSize;
-					}
-				} else {
-					for(int cnt=0; cnt<packageMultiplier; cnt++) {
-						if(Math.random()<packageDropRate &&
-							(allowDropAll || loader.getNalUnit().getType()==NalUnitType.CODED_SLICE_NON_IDR)) continue;
-							dSocket.send(packet);
-							transferedSizeMb+=packageSize;
-					}
+			
+			if(toc-tic>=1000) {
+				this.momentBandwidth = transferedSizeMb / ((toc-tic) / 1000.0);
+				if (Double.MAX_VALUE - this.momentBandwidthSum > this.momentBandwidth) //TODO overflow
+				this.momentBandwidthSum += this.momentBandwidth;
+				this.momentBandwithCount++;
+				if(momentBandwidth>maxBandwidth) maxBandwidth = momentBandwidth;
+				if(momentBandwidth<minBandwidth) minBandwidth = momentBandwidth;
+				transferedSizeMb = 0;
+				tic = toc;
+			}
+		}
+		
+		/**
+		 * Packetizes and sends one access unit. Packets are written into pooled direct buffers with the
+		 * RTP header written in place ahead of the payload, and all packets of the access unit are sent
+		 * in one burst, through the impairment stage of the stream if it has one. All packets of the access
+		 * unit share the same timestamp and the last one has the marker bit set. Access unit is dropped (before it gets any sequence numbers) if the
+		 * transport is congested and no other frame refers to it, or if the stream waits for a keyframe.
+		 * @param accessUnit nal units of one access unit
+		 * @param timestamp timestamp of the access unit
+		 * @throws IOException if an I/O error occurs
+		 */
+		private void sendAccessUnit(List<NalUnit> accessUnit, int timestamp) throws IOException {
+			if(accessUnit.isEmpty()) return;
+			double bytesToMbitsMultiplier = 8.0/1_000_000;
+			
+			if(waitForKeyframe && !isKeyframe(accessUnit) || transport.isCongested() && !isReference(accessUnit)) {
+				droppedFrames++;
+				metrics.recordDroppedFrame();
+				return;
+			}
+			waitForKeyframe = false;
+			
+			packetizer.packetize(accessUnit, packetPool, packets);
+			try {
+				for(int i=0, n=packets.size(); i<n; i++) {
+					RTPUtil.writeBasicHeaderRTP(packets.get(i), 0, (byte) 2, false, false, (byte) 0, i==n-1, payloadType, seqNum, timestamp, ssrc);
+					seqNum++;
 				}
 				
-				toc = System.currentTimeMillis();
-				
-				if(toc-tic>=1000) {
-					this.momentBandwidth = transferedSizeMb / ((toc-tic) / 1000.0);
-					if (Double.MAX_VALUE - this.momentBandwidthSum > this.momentBandwidth) //TODO overflow
-					this.momentBandwidthSum += this.momentBandwidth;
-					this.momentBandwithCount++;
-					if(momentBandwidth>maxBandwidth) maxBandwidth = momentBandwidth;
-					if(momentBandwidth<minBandwidth) minBandwidth = momentBandwidth;
-					transferedSizeMb = 0;
-					tic = System.currentTimeMillis();
+				long octets = 0;
+				for(int i=0, n=packets.size(); i<n; i++) octets += packets.get(i).limit() - RTPUtil.HEADER_SIZE;
+				sentPackets += packets.size();
+				sentOctets += octets;
+				long sent = impairment==null ? transport.sendAll(packets) : impairment.sendAll(packets);
+				transferedSizeMb += sent*bytesToMbitsMultiplier;
+				recordSend(packets.size(), octets);
+			} finally {
+				for(int i=0, n=packets.size(); i<n; i++) packetPool.release(packets.get(i));
+				packets.clear();
+				// delayed packets of the impairment stage are sent between the frames, so the count is kept across them
+				long dropped = transport.getDroppedCount();
+				if(dropped!=transportDropped) {
+					waitForKeyframe = true;
+					transportDropped = dropped;
 				}
-				
-				seqNum++;
-				
 			}
-			writer.writeInfo("Maximum bandwidth: " + maxBandwidth);
-			writer.writeInfo("Minimum bandwidth: " + minBandwidth);
-			writer.writeInfo("Average bandwidth: " + momentBandwidthSum/momentBandwithCount);
-			
+		}
+		
+		/**
+		 * Records the packets of one access unit into the metrics of the stream, together with the time
+		 * elapsed since the previous burst of packets
+		 * @param packets number of packets sent
+		 * @param payloadOctets payload octets of the packets sent
+		 */
+		private void recordSend(long packets, long payloadOctets) {
+			long now = System.nanoTime();
+			metrics.recordFrame((int) packets, payloadOctets + packets*RTPUtil.HEADER_SIZE);
+			if(lastSendNanos!=0) metrics.recordSendGap(now - lastSendNanos);
+			lastSendNanos = now;
+		}
+		
+		/**
+		 * Returns true iff some slice of the access unit may be referenced by other frames (nal_ref_idc is not 0)
+		 * @param accessUnit nal units of one access unit
+		 * @return true iff the access unit is a reference frame
+		 */
+		private boolean isReference(List<NalUnit> accessUnit) {
+			for(int i=0, n=accessUnit.size(); i<n; i++) {
+				NalUnit nal = accessUnit.get(i);
+				if(nal.getNalRefIdc()!=0 && (nal.getType()==NalUnitType.CODED_SLICE_NON_IDR || nal.getType()==NalUnitType.CODED_SLICE_IDR)) return true;
+			}
+			return false;
+		}
+		
+		/**
+		 * Returns true iff the access unit contains an IDR slice
+		 * @param accessUnit nal units of one access unit
+		 * @return true iff the access unit is a keyframe
+		 */
+		private boolean isKeyframe(List<NalUnit> accessUnit) {
+			for(int i=0, n=accessUnit.size(); i<n; i++) {
+				if(accessUnit.get(i).getType()==NalUnitType.CODED_SLICE_IDR) return true;
+			}
+			return false;
 		}
 		
 		@Override
@@ -260,30 +809,199 @@ public class H264RtpStreamWorkerCollection {
 		public double getMomentBandwidth() {
 			return momentBandwidth;
 		}
+		
+		@Override
+		public double getPacketLoss() {
+			return rtcp.getFractionLost();
+		}
+		
+		@Override
+		public long getCumulativePacketLoss() {
+			return rtcp.getCumulativeLost();
+		}
+		
+		@Override
+		public double getJitter() {
+			return rtcp.getJitterMillis();
+		}
+		
+		@Override
+		public double getRoundTripTime() {
+			return rtcp.getRoundTripMillis();
+		}
+		
+		/**
+		 * Returns the time the receiver of this stream last sent an RTCP packet
+		 * @return the time of the last received RTCP packet in milliseconds since the unix epoch, 0 if none was received
+		 */
+		public long getLastRtcpMillis() {
+			return rtcp.getLastReceivedMillis();
+		}
 
 		public boolean isStreaming() {
 			return isStreaming.get();
 		}
 		
+		/**
+		 * Stops the stream (if it is running) and closes its transport. Closed stream cannot be started again.
+		 */
 		@Override
 		public void close() {
-			stopReq.set(true);
-			while(isStreaming.get());
+			synchronized (this) {
+				if(closed) return;
+				closed = true;
+				
+				if(isStreaming.get()) {
+					stopReq.set(true);
+					cancelTick();
+					if(nextRtcpTick!=null) nextRtcpTick.cancel(false);
+					
+					try {
+						transport.sendControl(rtcp.createBye());
+					} catch (IOException ex) {
+						writer.writeError("RTCP error " + ex.getClass().getName() + " : " + ex.getMessage());
+					}
+					try {
+						if(loader!=null) loader.close();
+					} catch (Exception ex) {
+						writer.writeError("Unexpected exception " + ex.getClass().getName() + " : " + ex.getMessage());
+					}
+					loader = null;
+					
+					writer.writeInfo("Maximum bandwidth: " + maxBandwidth);
+					writer.writeInfo("Minimum bandwidth: " + minBandwidth);
+					writer.writeInfo("Average bandwidth: " + momentBandwidthSum/momentBandwithCount);
+					if(droppedFrames>0) writer.writeInfo("Dropped frames: " + droppedFrames);
+					writer.writeInfo("Closed stream: " + resource.getName() + " " + address.toString());
+					isStreaming.set(false);
+				}
+				if(impairment!=null) impairment.close();
+				try {
+					transport.close();
+				} catch (IOException ex) {
+					writer.writeError("Unexpected exception " + ex.getClass().getName() + " : " + ex.getMessage());
+				}
+			}
+			removeWorker(this.id);
+		}
+		
+		/**
+		 * Returns true iff this is the multicast stream shared by all viewers of the resource
+		 * @return true iff this stream is shared
+		 */
+		public boolean isShared() {
+			return shared;
 		}
 		
 		public boolean isPaused() {
 			return pause.get();
 		}
 		
-		public void pause() {
+		/**
+		 * Pauses the stream. Paused stream is not scheduled at all until it is unpaused.
+		 */
+		public synchronized void pause() {
 			if(!isStreaming.get()) throw new IllegalStateException("Stream is not running!");
 			if(pause.get()) throw new IllegalStateException("Stream already paused!");
 			pause.set(true);
+			cancelTick();
 		}
 		
-		public void unpause() {
+		/**
+		 * Resumes the paused stream. RTP clock is re-anchored so the next frame is sent immediately.
+		 */
+		public synchronized void unpause() {
 			if(!pause.get()) throw new IllegalStateException("Stream is not paused!");
 			pause.set(false);
+			anchor(System.nanoTime());
+			deadline = anchorNanos;
+			lastSendNanos = 0;
+			cancelTick();
+			scheduleTick(0);
+		}
+		
+		/**
+		 * Returns true iff the stream can be moved to another position: it is a stream of a file which
+		 * can be indexed and it is not shared with other viewers
+		 * @return true iff {@link #seek(double)} is supported
+		 * @throws IOException if an I/O error occurs
+		 */
+		public synchronized boolean isSeekable() throws IOException {
+			return !shared && !resource.isLive() && H264MappedFileLoader.isMappable(getCurrentRendition().getPath());
+		}
+		
+		/**
+		 * Moves the stream to the last keyframe at or before the given normal play time. Keyframe is found
+		 * by a binary search over the keyframe table of the index and the file is read from its offset, so
+		 * a seek costs O(log n). RTP sequence numbers and timestamps continue where they were; the keyframe
+		 * is sent (right away if the stream is playing) after the parameter sets of the file. Stream which
+		 * has not been started yet starts at the keyframe. The file is never indexed here: if the stream has
+		 * not been opened and its index is still being built, the keyframe is found when the stream opens
+		 * (a play time beyond the end then starts the stream at the beginning).
+		 * @param npt normal play time in seconds
+		 * @throws IllegalStateException if the stream cannot seek (see {@link #isSeekable()})
+		 * @throws IllegalArgumentException if the play time is not within the resource
+		 * @throws IOException if an I/O error occurs
+		 */
+		public synchronized void seek(double npt) throws IOException {
+			if(!isSeekable()) throw new IllegalStateException("Stream " + id + " cannot seek!");
+			if(npt<0) throw new IllegalArgumentException("Play time out of the resource: " + npt);
+			
+			Resource current = getCurrentRendition();
+			H264NalIndex index = current.getIndexIfBuilt();
+			if(index==null) { // not opened yet
+				startNpt = npt;
+				startFrame = 0;
+				return;
+			}
+			long target = (long) (npt * current.getFps());
+			if(target>=index.getAccessUnitCount()) throw new IllegalArgumentException("Play time out of the resource: " + npt);
+			int keyframe = Math.max(0, index.previousKeyframe((int) target));
+			
+			if(!(loader instanceof H264IndexedLoader)) { // not opened yet
+				startFrame = keyframe;
+				startNpt = -1;
+				return;
+			}
+			
+			((H264IndexedLoader) loader).seekToAccessUnit(keyframe);
+			mediaFrame = keyframe;
+			pendingRendition = -1;
+			waitForKeyframe = false;
+			accessUnit.clear();
+			accessUnit.addAll(index.getParameterSets());
+			lastSendNanos = 0;
+			if(!pause.get() && !stopReq.get()) {
+				cancelTick();
+				anchor(System.nanoTime());
+				deadline = anchorNanos;
+				scheduleTick(0);
+			}
+		}
+		
+		/**
+		 * Returns the normal play time of the next frame of the stream
+		 * @return the play time of the next frame in seconds
+		 */
+		public synchronized double getNormalPlayTime() {
+			if(loader==null) return startNpt>=0 ? startNpt : startFrame / (double) resource.getFps();
+			return mediaFrame / (double) fps;
+		}
+		
+		/**
+		 * Returns the sequence number of the next packet of the stream, as announced by <code>RTP-Info</code>
+		 * @return the sequence number of the next packet
+		 */
+		public synchronized short getNextSeqNum() {
+			return loader==null ? initSeqNum : seqNum;
+		}
+		
+		/**
+		 * Returns the RTP timestamp of the next frame of the stream, as announced by <code>RTP-Info</code>
+		 * @return the RTP timestamp of the next frame
+		 */
+		public synchronized int getNextTimestamp() {
+			return loader==null ? initTimestamp : (int) (initTimestamp + getRtpTicks(frameIndex));
 		}
 		
 		public int getId() {
@@ -293,10 +1011,68 @@ public class H264RtpStreamWorkerCollection {
 		public Resource getResource() {
 			return resource;
 		}
+		
+		/**
+		 * Returns the rendition of the resource which is currently being sent
+		 * @return the current rendition of the resource
+		 */
+		public synchronized Resource getCurrentRendition() {
+			return resource.getRenditions().get(rendition);
+		}
 
 		public SocketAddress getAddress() {
 			return address;
 		}
+		
+		/**
+		 * Returns the transport of this stream
+		 * @return the transport of this stream
+		 */
+		public RTPTransport getTransport() {
+			return transport;
+		}
+		
+		/**
+		 * Sets the impairment profile of this stream. Stage of the previous profile is closed, dropping the
+		 * packets it has delayed, and the new one starts with a fresh generator seeded by the profile.
+		 * @param profile impairment profile, {@link H264RtpImpairmentProfile#NONE} to send the packets as they are
+		 */
+		public synchronized void setImpairment(H264RtpImpairmentProfile profile) {
+			if(impairment!=null) impairment.close();
+			impairment = closed || profile.isNone() ? null : new H264RtpImpairment(profile, id, transport, packetPool, scheduler);
+		}
+		
+		/**
+		 * Returns the impairment stage of this stream
+		 * @return the impairment stage or null if the packets of the stream are not impaired
+		 */
+		public synchronized H264RtpImpairment getImpairment() {
+			return impairment;
+		}
+		
+		/**
+		 * Returns the number of frames dropped because the transport was congested
+		 * @return the number of dropped frames
+		 */
+		public synchronized long getDroppedFrames() {
+			return droppedFrames;
+		}
+		
+		/**
+		 * Returns the metrics of this stream (the session level of the {@link MetricsRegistry})
+		 * @return the metrics of the stream
+		 */
+		public StreamMetrics getMetrics() {
+			return metrics;
+		}
+		
+		/**
+		 * Returns the server RTP port of this stream; server RTCP port is the next one
+		 * @return the server RTP port or -1 if the stream is interleaved into the rtsp connection
+		 */
+		public int getServerPort() {
+			return serverPort;
+		}
 
 		public short getInitSeqNum() {
 			return initSeqNum;
@@ -1,70 +1,140 @@
 package hr.matija.rtpStreamer.server;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 import hr.matija.rtpStreamer.console.ConsoleWriter;
+import hr.matija.rtpStreamer.rtp.RTPInterleavedTransport;
+import hr.matija.rtpStreamer.rtp.RTPInterleavedTransport.InterleavedOutput;
+import hr.matija.rtpStreamer.rtsp.RTSPRange;
+import hr.matija.rtpStreamer.rtsp.RTSPRequestParser;
+import hr.matija.rtpStreamer.rtsp.RTSPTransport;
 import hr.matija.rtpStreamer.rtsp.RTSPUtil;
+import hr.matija.rtpStreamer.rtsp.SDPBuilder;
 import hr.matija.rtpStreamer.rtsp.UriParser;
 import hr.matija.rtpStreamer.rtsp.RTSPUtil.RTSPRequest;
 import hr.matija.rtpStreamer.server.H264RtpStreamWorkerCollection.H264RtpStreamWorker;
 import hr.matija.rtpStreamer.server.H264RtspResourceCollection.Resource;
 
+/**
+ * Rtsp connections of the server and the registry of their sessions. Connections are kept by their
+ * id and sessions by their id (the value of the Session header) in concurrent maps, so lookups never
+ * wait for the selector thread or the session timer. Every connection has an idle timeout on the
+ * {@link H264RtspSessionTimer}; any request of the client (keep-alives such as OPTIONS and
+ * GET_PARAMETER included) or an RTCP packet of its receiver keeps it alive, and the connection is closed
+ * when it has been idle for the session timeout, which is advertised in the Session header of the
+ * SETUP response. <br>
+ * Requests are routed by their Session header, so a session is not tied to the connection which set it
+ * up (RFC 2326, section 3.1): session streamed over UDP outlives its connection until it times out, and
+ * a request of the same client on another connection takes the session over. Interleaved sessions end
+ * with their connection, their stream is sent through it.
+ * @author Matija
+ *
+ */
 public class H264RtspReqHandlerCollection{
 	
+	/**
+	 * Default session timeout in seconds
+	 */
+	public static final int DEFAULT_SESSION_TIMEOUT = 60;
+	
+	private static final SecureRandom SESSION_IDS = new SecureRandom();
+	private static final Consumer<ByteBuffer> NOT_POOLED = (buffer) -> {};   // release of the buffers nobody pools
+	
 	private H264RtpStreamWorkerCollection streamWorkers;
 	private H264RtspResourceCollection resources;
 	private ConsoleWriter writer;
+	private H264RtspSessionTimer timer = new H264RtspSessionTimer();
+	private int sessionTimeout;
 	
-	private Map<Integer, H264RtspReqHandler> handlers = new HashMap<>();
-	private Map<InetAddress, H264RtspReqHandler> handlers_inet = new HashMap<>();
+	private AtomicInteger nextId = new AtomicInteger();
+	private Map<Integer, H264RtspReqHandler> handlers = new ConcurrentHashMap<>();
+	private Map<String, H264RtspReqHandler> sessions = new ConcurrentHashMap<>();
 	
-	private Set<H264RtspReqHandlerCollectionListener> listeners = new HashSet<>();
+	private Set<H264RtspReqHandlerCollectionListener> listeners = new CopyOnWriteArraySet<>();
 	
 	public H264RtspReqHandlerCollection(H264RtpStreamWorkerCollection streamWorkers, H264RtspResourceCollection resources, ConsoleWriter writer) {
+		this(streamWorkers, resources, writer, DEFAULT_SESSION_TIMEOUT);
+	}
+	
+	/**
+	 * Creates the collection
+	 * @param streamWorkers workers of the streams
+	 * @param resources resources of the server
+	 * @param writer writer of the log
+	 * @param sessionTimeout seconds after which an idle connection is closed
+	 */
+	public H264RtspReqHandlerCollection(H264RtpStreamWorkerCollection streamWorkers, H264RtspResourceCollection resources, ConsoleWriter writer, int sessionTimeout) {
+		if(sessionTimeout<=0) throw new IllegalArgumentException("Session timeout must be positive: " + sessionTimeout);
 		this.streamWorkers = Objects.requireNonNull(streamWorkers);
 		this.resources = Objects.requireNonNull(resources);
 		this.writer = Objects.requireNonNull(writer);
+		this.sessionTimeout = sessionTimeout;
 	}
 
-	public synchronized int makeHandler(Socket s, int ssrc) {
-		int id;
-		do {
-			id = (int) (Math.random() * Integer.MAX_VALUE);
-		} while(handlers.keySet().contains(id));
-		
-		var handler = new H264RtspReqHandler(id, s, ssrc, streamWorkers, resources);
-		handlers.put(id, handler);
-		handlers_inet.put(s.getInetAddress(), handler);
+	public int makeHandler(SocketChannel channel, int ssrc) {
+		int id = nextId.updateAndGet((i) -> i==Integer.MAX_VALUE ? 1 : i + 1);
+		var handler = new H264RtspReqHandler(id, channel, ssrc, streamWorkers, resources);
+		if(handlers.putIfAbsent(id, handler)!=null) throw new IllegalStateException("Connection id " + id + " is still in use!");
 		for(var l : listeners) {
 			l.handlerAdded(handler);
 		}
 		return id;
 	}
 	
-	public synchronized H264RtspReqHandler getHandler(int id) {
+	public H264RtspReqHandler getHandler(int id) {
 		return handlers.get(id);
 	}
 	
-	public synchronized H264RtspReqHandler getHandler(InetAddress inet) {
-		return handlers_inet.get(inet);
+	/**
+	 * Returns the handler of the rtsp session with the given id
+	 * @param session id of the session (value of the Session header)
+	 * @return the handler of the session or null if there is no such session
+	 */
+	public H264RtspReqHandler getHandlerForSession(String session) {
+		return sessions.get(session);
 	}
 	
-	public synchronized boolean removeHandler(int id) {
+	/**
+	 * Creates a new unique session id and assigns it to the handler. Ids are 64 random bits,
+	 * so they cannot be guessed (RFC 2326, section 12.37).
+	 * @param handler handler which owns the session
+	 * @return id of the session
+	 */
+	private String makeSession(H264RtspReqHandler handler) {
+		String session;
+		do {
+			session = String.format("%016X", SESSION_IDS.nextLong());
+		} while(sessions.putIfAbsent(session, handler)!=null);
+		return session;
+	}
+	
+	public boolean removeHandler(int id) {
 		var handler =  handlers.remove(id);
 		if(handler==null) return false;
-		handlers_inet.remove(handler.s.getInetAddress());
 		if(handler.isRunning()) handler.close();
 		for(var l : listeners) {
 			l.handlerRemoved(handler);
@@ -72,25 +142,44 @@ public class H264RtspReqHandlerCollection{
 		return true;
 	}
 	
-	public synchronized void closeAllConections() {
+	public void closeAllConections() {
 		for(var handler : handlers.values()) {
 			handler.close();
-			for(var l : listeners) {
-				l.handlerRemoved(handler);
-			}
+			removeHandler(handler.getId()); // handler which never ran is not removed by close
+		}
+		for(var handler : sessions.values()) {
+			handler.close(); // sessions which outlived their connections
 		}
-		handlers.clear();
-		handlers_inet.clear();
 	}
 	
-	public synchronized Collection<H264RtspReqHandler> getAllHandlers() {
-		return handlers.values();
+	/**
+	 * Returns a copy of the handlers, so it can be iterated while connections come and go
+	 * @return the handlers of all connections
+	 */
+	public Collection<H264RtspReqHandler> getAllHandlers() {
+		return new ArrayList<>(handlers.values());
 	}
 	
 	public int getActiveConnectionCount() {
 		return handlers.size();
 	}
 	
+	/**
+	 * Returns the number of sessions, including the ones which outlived their connections
+	 * @return the number of sessions
+	 */
+	public int getSessionCount() {
+		return sessions.size();
+	}
+	
+	/**
+	 * Returns the session timeout advertised to the clients
+	 * @return the session timeout in seconds
+	 */
+	public int getSessionTimeout() {
+		return sessionTimeout;
+	}
+	
 	public H264RtpStreamWorkerCollection getStreamWorkerCollection() {
 		return streamWorkers;
 	}
@@ -104,31 +193,57 @@ public class H264RtspReqHandlerCollection{
 	}
 	
 	/**
-	 * Rtsp connection handler for handling requests over tcp
+	 * Rtsp connection handler for handling requests over tcp. Handler does not own a thread;
+	 * it is driven by the selector of the server which calls {@link #handle(SelectionKey)}
+	 * whenever its non-blocking channel is readable or writable. Stream of the connection may be
+	 * interleaved into it, in which case the stream writes its frames into the output queue of
+	 * the handler from its own thread, all frames of an access unit at once. Queue is bounded and written
+	 * with gathering writes; frames which do not fit into it are dropped rather than blocking the stream,
+	 * and pooled frames are returned to their pool once they are written.
 	 * @author Matija
 	 *
 	 */
-	public class H264RtspReqHandler implements Runnable, AutoCloseable {
+	public class H264RtspReqHandler implements AutoCloseable, InterleavedOutput {
+		
+		private static final int MAX_QUEUED_BYTES = 1024 * 1024;
+		private static final int CONGESTION_QUEUED_BYTES = 256 * 1024;
+		private static final int MAX_GATHERED_BUFFERS = 64;
 
 		private int id;
+		private SocketChannel channel;
 		private Socket s;
+		private InetAddress inet;
 		private int ssrc;
 		private H264RtpStreamWorkerCollection streamWorkers;
 		private H264RtspResourceCollection resources;
 		
-		private H264RtpStreamWorker currentStreamWorker;
+		private volatile H264RtpStreamWorker currentStreamWorker;
+		private volatile boolean detached;    // connection closed, session kept until it times out or is taken over
 		
-		private long lastRequestTimestamp = System.currentTimeMillis(); // used for garbage collection
+		private volatile long lastRequestTimestamp = System.currentTimeMillis(); // used for the idle timeout
+		private volatile H264RtspSessionTimer.Timeout idleTimeout;
 		private short initSeqNum = (short)(Math.random() * Short.MAX_VALUE);
 		private int initTimestamp = (int) (Math.random() * Integer.MAX_VALUE);
-		private int session = (int) (Math.random() * Integer.MAX_VALUE);
+		private volatile String session;
+		
+		private ByteBuffer input = ByteBuffer.allocate(8 * 1024);
+		private RTSPRequestParser parser = new RTSPRequestParser(this::frameReceived);
+		private ArrayDeque<ByteBuffer> output = new ArrayDeque<>();   // guarded by itself, as are the three fields below
+		private ArrayDeque<Consumer<ByteBuffer>> releases = new ArrayDeque<>();   // release of every queued buffer
+		private int queuedBytes;
+		private ByteBuffer[] gathered = new ByteBuffer[MAX_GATHERED_BUFFERS];
+		private volatile boolean congested;
+		private volatile RTPInterleavedTransport interleaved;
+		private SelectionKey key;
 		
 		private AtomicBoolean isRunning = new AtomicBoolean(false);
-		private AtomicBoolean stopReq = new AtomicBoolean(false);
+		private volatile boolean closeAfterWrite;
 			
-		public H264RtspReqHandler(int id, Socket s, int ssrc, H264RtpStreamWorkerCollection streamWorkers, H264RtspResourceCollection resources) {
+		public H264RtspReqHandler(int id, SocketChannel channel, int ssrc, H264RtpStreamWorkerCollection streamWorkers, H264RtspResourceCollection resources) {
 			this.id = id;
-			this.s = Objects.requireNonNull(s);
+			this.channel = Objects.requireNonNull(channel);
+			this.s = channel.socket();
+			this.inet = s.getInetAddress();
 			this.ssrc = ssrc;
 			this.streamWorkers = Objects.requireNonNull(streamWorkers);
 			this.resources = resources;
@@ -138,96 +253,502 @@ public class H264RtspReqHandlerCollection{
 			return isRunning.get();
 		}
 		
-		@Override
-		public void close() {
-			stopReq.set(true);
-			while(isRunning.get());
+		/**
+		 * Registers the channel of this handler with the given selector and starts handling requests
+		 * @param selector selector of the server
+		 * @throws IOException if an I/O error occurs
+		 */
+		void register(Selector selector) throws IOException {
+			if(!isRunning.compareAndSet(false, true)) throw new IllegalStateException("Already running!");
+			writer.writeInfo("New connection: " + inet);
+			channel.configureBlocking(false);
+			key = channel.register(selector, SelectionKey.OP_READ, this);
+			idleTimeout = timer.schedule(this::checkIdle, sessionTimeout * 1000L);
 		}
 		
-		@Override
-		public void run() {
-			if(isRunning.get()) throw new IllegalStateException("Already running!");
-			isRunning.set(true);
-			stopReq.set(false);
-			writer.writeInfo("New connection: " + s.getInetAddress());
+		/**
+		 * Task of the idle timeout, run by the session timer: closes the connection if it has been idle
+		 * for the session timeout, otherwise schedules the check again for when it could be. Requests
+		 * and RTCP packets therefore only update the time of the last activity.
+		 */
+		private void checkIdle() {
+			if(!isRunning.get()) return;
+			long idle = System.currentTimeMillis() - getLastActivity();
+			long timeout = sessionTimeout * 1000L;
+			if(idle>=timeout) {
+				writer.writeInfo("Session timed out: " + id + " " + inet + (session==null ? "" : " (session " + session + ")"));
+				close();
+				return;
+			}
+			idleTimeout = timer.schedule(this::checkIdle, timeout - idle);
+		}
+		
+		/**
+		 * Handles the readiness of the channel reported by the selector
+		 * @param key selection key of this handler
+		 * @throws IOException if an I/O error occurs
+		 */
+		void handle(SelectionKey key) throws IOException {
+			if(key.isValid() && key.isWritable()) flush();
+			if(key.isValid() && key.isReadable()) read();
+		}
+		
+		private void read() throws IOException {
+			int r = channel.read(input);
+			if(r==-1) { // END OF STREAM
+				if(session!=null && interleaved==null && currentStreamWorker!=null) detach();
+				else close();
+				return;
+			}
 			
-			try (BufferedInputStream bis = new BufferedInputStream(s.getInputStream());
-					BufferedOutputStream bos = new BufferedOutputStream(s.getOutputStream())){
-				
-				while(!stopReq.get()) {
-					if(bis.available()<=0) continue;
-					RTSPRequest req = RTSPUtil.readNextRTSPRequest(bis);
-					if(req==null) break; // END OF STREAM
-					lastRequestTimestamp = System.currentTimeMillis();
+			input.flip();
+			RTSPRequest req;
+			while(!closeAfterWrite && (req = parser.parse(input)) != null) {
+				handleRequest(req);
+			}
+			input.compact();
+		}
+		
+		/**
+		 * Passes the binary frame the client interleaved between its requests to the interleaved
+		 * stream (if there is one). Client's RTCP keeps the connection alive just like its requests.
+		 * @param channel channel of the frame
+		 * @param data payload of the frame
+		 */
+		private void frameReceived(int channel, ByteBuffer data) {
+			lastRequestTimestamp = System.currentTimeMillis();
+			RTPInterleavedTransport transport = interleaved;
+			if(transport!=null) transport.frameReceived(channel, data);
+		}
+		
+		private void handleRequest(RTSPRequest req) throws IOException {
+			lastRequestTimestamp = System.currentTimeMillis();
+			
+			Map<String, String> kvpairs = new HashMap<>();
+			kvpairs.put("CSeq", req.getValue("CSeq"));
+			
+			// session parameters (e.g. timeout) follow the session id after ';'
+			String requestSession = req.getValue("Session");
+			if(requestSession!=null) {
+				requestSession = requestSession.split(";", 2)[0].trim();
+				if(!requestSession.equals(session) && !takeOver(requestSession)) {
+					send(RTSPUtil.createRTSPResponse(req.getVersion(), 454, "Session Not Found", kvpairs, null));
+					return;
+				}
+				kvpairs.put("Session", session);
+			}
+			
+			switch(req.getMethod()) {
+				case PLAY:
+				case PAUSE:
+				case TEARDOWN:
+					if(currentStreamWorker==null || streamWorkers.getWorker(currentStreamWorker.getId())==null) { // never set up or already ended
+						send(RTSPUtil.createRTSPResponse(req.getVersion(), 455, "Method Not Valid in This State", kvpairs, null));
+						return;
+					}
+					break;
+				default:
+					break;
+			}
+			
+			switch(req.getMethod()) {
+				case OPTIONS:
+					kvpairs.put("Public", "OPTIONS, DESCRIBE, ANNOUNCE, SETUP, TEARDOWN, PLAY, PAUSE, GET_PARAMETER, SET_PARAMETER");
+					send(RTSPUtil.createRTSPResponse(req.getVersion(), 200, "OK", kvpairs, null));
+					break;
+				case DESCRIBE:
+					Resource described = resources.getResourceForUri(UriParser.parseUri(req.getUri()).getPath().replace("/", ""));
+					if(described==null) {
+						writer.writeError("Not found: " + req.getUri());
+						send(RTSPUtil.createRTSPResponse(req.getVersion(), 404, "Not Found", kvpairs, null));
+						break;
+					}
 					
-					Map<String, String> kvpairs = new HashMap<>();
-					kvpairs.put("CSeq", req.getValue("CSeq"));
-					String session;
-					if((session = req.getValue("Session")) != null) {
-						kvpairs.put("Session", session);
+					SDPBuilder sdp = new SDPBuilder(s.getLocalAddress(), System.currentTimeMillis())
+							.setSessionName(described.getUriMapping())
+							.setFramerate(described.getFps())
+							.setControl(req.getUri());
+					InetSocketAddress group = described.getMulticastGroup();
+					if(group!=null) {
+						sdp.setConnection(group.getAddress(), described.getMulticastTtl());
+						sdp.setMedia(group.getPort(), streamWorkers.getPayloadType(), streamWorkers.getClockHz());
+					} else {
+						sdp.setMedia(0, streamWorkers.getPayloadType(), streamWorkers.getClockHz());
 					}
+					// files are never read here; until the index is built in the background the description has
+					// no parameter sets (decoder waits for the in-band ones) and no duration
+					resources.indexInBackground(described);
+					sdp.setParameterSets(described.getParameterSets());
+					sdp.setDuration(described.getDuration());
 					
-					switch(req.getMethod()) {
-						case OPTIONS:
-							kvpairs.put("Public", "OPTIONS, DESCRIBE, SETUP, TEARDOWN, PLAY, PAUSE");
-							bos.write(RTSPUtil.createRTSPResponse(req.getVersion(), 200, "OK", kvpairs, null).getBytes());
-							break;
-						case DESCRIBE:
-							kvpairs.put("Content-Base", req.getUri());
-							kvpairs.put("Content-Type","application/sdp");
-							kvpairs.put("Content-Length","67");
-							String payload = "c=IN IP4 127.0.0.1\r\nm=video 5004 RTP/AVP " + streamWorkers.getPayloadType() + "\r\na=rtpmap:" + streamWorkers.getPayloadType() + " H264/" + streamWorkers.getClockHz();
-							bos.write(RTSPUtil.createRTSPResponse(req.getVersion(), 200, "OK", kvpairs, payload).getBytes());
-							break;
-						case SETUP:
-							String reqResource = UriParser.parseUri(req.getUri()).getPath().replace("/", "");
-							Resource r = resources.getResourceForUri(reqResource);
-							
-							if(r==null) {
-								writer.writeError("Not found: " + reqResource);
-								bos.write(RTSPUtil.createRTSPResponse(req.getVersion(), 404, "Not Found", kvpairs, null).getBytes());
-								bos.flush();
-								break;
-							}
-							
-							if(currentStreamWorker!=null) streamWorkers.removeWorker(currentStreamWorker.getId());
-							currentStreamWorker = streamWorkers.getWorker(streamWorkers.makeWorker(r, new InetSocketAddress(s.getInetAddress(), 5004), initSeqNum, initTimestamp, ssrc));
-							kvpairs.put("Transport", req.getValue("Transport"));
-							if(!kvpairs.containsKey("Session")) kvpairs.put("Session", Integer.toString(this.session));
-							bos.write(RTSPUtil.createRTSPResponse(req.getVersion(), 200, "OK", kvpairs, null).getBytes());
-							bos.flush();
+					String payload = sdp.build();
+					kvpairs.put("Content-Base", req.getUri());
+					kvpairs.put("Content-Type","application/sdp");
+					kvpairs.put("Content-Length", Integer.toString(payload.getBytes(StandardCharsets.UTF_8).length));
+					send(RTSPUtil.createRTSPResponse(req.getVersion(), 200, "OK", kvpairs, payload));
+					break;
+				case SETUP:
+					String reqResource = UriParser.parseUri(req.getUri()).getPath().replace("/", "");
+					Resource r = resources.getResourceForUri(reqResource);
+					
+					if(r==null) {
+						writer.writeError("Not found: " + reqResource);
+						send(RTSPUtil.createRTSPResponse(req.getVersion(), 404, "Not Found", kvpairs, null));
+						break;
+					}
+					
+					RTSPTransport transport = chooseTransport(req.getValue("Transport"), r.isMulticast());
+					if(transport==null) {
+						writer.writeWarning("Unsupported transport: " + req.getValue("Transport"));
+						send(RTSPUtil.createRTSPResponse(req.getVersion(), 461, "Unsupported Transport", kvpairs, null));
+						break;
+					}
+					
+					if(currentStreamWorker!=null) streamWorkers.releaseWorker(currentStreamWorker.getId());
+					currentStreamWorker = null;
+					interleaved = null;
+					if(r.isMulticast()) {
+						try {
+							currentStreamWorker = streamWorkers.getWorker(streamWorkers.joinMulticast(r));
+						} catch (IllegalStateException ex) {
+							writer.writeError(ex.getMessage());
+							send(RTSPUtil.createRTSPResponse(req.getVersion(), 453, "Not Enough Bandwidth", kvpairs, null));
 							break;
-						case PLAY:
-							new Thread(currentStreamWorker).start();
-							bos.write(RTSPUtil.createRTSPResponse(req.getVersion(), 200, "OK", kvpairs, null).getBytes());
-							bos.flush();
+						}
+						
+						InetSocketAddress multicastGroup = r.getMulticastGroup();
+						transport = new RTSPTransport(transport.getProtocol());
+						transport.setParameter("multicast", null);
+						transport.setParameter(RTSPTransport.DESTINATION, multicastGroup.getAddress().getHostAddress());
+						transport.setPair(RTSPTransport.PORT, multicastGroup.getPort(), multicastGroup.getPort() + 1);
+						transport.setParameter(RTSPTransport.TTL, Integer.toString(r.getMulticastTtl()));
+					} else if(transport.isTcp()) {
+						int[] channels = transport.getPair(RTSPTransport.INTERLEAVED);
+						currentStreamWorker = streamWorkers.getWorker(streamWorkers.makeInterleavedWorker(r, this, s.getRemoteSocketAddress(), 
+								s.getLocalAddress(), channels[0], channels[1], initSeqNum, initTimestamp, ssrc));
+						interleaved = (RTPInterleavedTransport) currentStreamWorker.getTransport();
+					} else {
+						int[] clientPorts = transport.getPair(RTSPTransport.CLIENT_PORT);
+						try {
+							currentStreamWorker = streamWorkers.getWorker(streamWorkers.makeWorker(r, new InetSocketAddress(inet, clientPorts[0]), 
+									new InetSocketAddress(inet, clientPorts[1]), initSeqNum, initTimestamp, ssrc));
+						} catch (IllegalStateException ex) {
+							writer.writeError(ex.getMessage());
+							send(RTSPUtil.createRTSPResponse(req.getVersion(), 453, "Not Enough Bandwidth", kvpairs, null));
 							break;
-						case PAUSE:
-							currentStreamWorker.pause();
-							bos.write(RTSPUtil.createRTSPResponse(req.getVersion(), 200, "OK", kvpairs, null).getBytes());
-							bos.flush();
+						}
+						
+						int serverPort = currentStreamWorker.getServerPort();
+						transport.removeParameter(RTSPTransport.DESTINATION); // never stream anywhere but to the client itself
+						transport.setPair(RTSPTransport.SERVER_PORT, serverPort, serverPort + 1);
+					}
+					transport.setParameter("ssrc", String.format("%08X", currentStreamWorker.getSsrc()));
+					kvpairs.put("Transport", transport.toString());
+					if(session==null) session = makeSession(this);
+					kvpairs.put("Session", session + ";timeout=" + sessionTimeout);
+					send(RTSPUtil.createRTSPResponse(req.getVersion(), 200, "OK", kvpairs, null));
+					break;
+				case PLAY:
+					RTSPRange range = null;
+					try {
+						if(req.getValue("Range")!=null) range = RTSPRange.parse(req.getValue("Range"));
+					} catch (IllegalArgumentException ex) {
+						writer.writeWarning(ex.getMessage());
+						send(RTSPUtil.createRTSPResponse(req.getVersion(), 457, "Invalid Range", kvpairs, null));
+						break;
+					}
+					
+					Resource played = currentStreamWorker.getResource();
+					double duration = played.getDuration(); // from the built index only, the file is never read here
+					synchronized (currentStreamWorker) { // RTP-Info describes the first packet after the seek, nothing is sent before it is taken
+						boolean seekable;
+						try {
+							seekable = currentStreamWorker.isSeekable();
+							if(range!=null && !range.isNow() && seekable) currentStreamWorker.seek(range.getStart());
+						} catch (IllegalArgumentException ex) {
+							writer.writeWarning(ex.getMessage());
+							send(RTSPUtil.createRTSPResponse(req.getVersion(), 457, "Invalid Range", kvpairs, null));
 							break;
-						case TEARDOWN:
-							streamWorkers.removeWorker(currentStreamWorker.getId());
-							bos.write(RTSPUtil.createRTSPResponse(req.getVersion(), 200, "OK", kvpairs, null).getBytes());
-							bos.flush();
-							stopReq.set(true);
+						} catch (IOException ex) {
+							writer.writeError("Cannot play " + req.getUri() + ": " + ex.getMessage());
+							send(RTSPUtil.createRTSPResponse(req.getVersion(), 500, "Internal Server Error", kvpairs, null));
 							break;
-						case OTHER:
-							throw new RuntimeException("Unknown RTSP request method " + req);
+						}
+						
+						if(seekable && duration>=0) {
+							kvpairs.put("Range", new RTSPRange(currentStreamWorker.getNormalPlayTime(), duration).toString());
+						} else if(played.isLive()) {
+							kvpairs.put("Range", new RTSPRange(Double.NaN, Double.NaN).toString());
+						}
+						kvpairs.put("RTP-Info", "url=" + req.getUri() + ";seq=" + (currentStreamWorker.getNextSeqNum() & 0xFFFF) 
+								+ ";rtptime=" + (currentStreamWorker.getNextTimestamp() & 0xFFFFFFFFL));
+						
+						if(currentStreamWorker.isPaused()) currentStreamWorker.unpause();
+						else if(!currentStreamWorker.isStreaming()) currentStreamWorker.start();
+					}
+					send(RTSPUtil.createRTSPResponse(req.getVersion(), 200, "OK", kvpairs, null));
+					break;
+				case PAUSE:
+					if(currentStreamWorker.isShared()) { // other viewers keep watching
+						send(RTSPUtil.createRTSPResponse(req.getVersion(), 455, "Method Not Valid in This State", kvpairs, null));
+						break;
+					}
+					currentStreamWorker.pause();
+					send(RTSPUtil.createRTSPResponse(req.getVersion(), 200, "OK", kvpairs, null));
+					break;
+				case TEARDOWN:
+					streamWorkers.releaseWorker(currentStreamWorker.getId());
+					currentStreamWorker = null; // released exactly once, not again when the connection closes
+					send(RTSPUtil.createRTSPResponse(req.getVersion(), 200, "OK", kvpairs, null));
+					closeAfterWrite = true;
+					flush();
+					break;
+				case GET_PARAMETER:
+					// used by clients as a keep-alive; no parameters are reported
+					send(RTSPUtil.createRTSPResponse(req.getVersion(), 200, "OK", kvpairs, null));
+					break;
+				case SET_PARAMETER:
+					if(req.getBody()==null || req.getBody().isBlank()) {
+						send(RTSPUtil.createRTSPResponse(req.getVersion(), 200, "OK", kvpairs, null));
+					} else {
+						send(RTSPUtil.createRTSPResponse(req.getVersion(), 451, "Parameter Not Understood", kvpairs, null));
+					}
+					break;
+				case ANNOUNCE:
+					// server does not record, the announced description is checked and logged only
+					String contentType = req.getValue("Content-Type");
+					String description = req.getBody();
+					if(contentType==null || !contentType.split(";", 2)[0].trim().equalsIgnoreCase("application/sdp")) {
+						send(RTSPUtil.createRTSPResponse(req.getVersion(), 415, "Unsupported Media Type", kvpairs, null));
+					} else if(description==null || !description.startsWith("v=")) {
+						send(RTSPUtil.createRTSPResponse(req.getVersion(), 400, "Bad Request", kvpairs, null));
+					} else {
+						writer.writeInfo("Description of " + req.getUri() + " announced by " + inet + " (" + description.length() + " characters)");
+						send(RTSPUtil.createRTSPResponse(req.getVersion(), 200, "OK", kvpairs, null));
+					}
+					break;
+				case OTHER:
+					writer.writeWarning("Unsupported RTSP request method " + req);
+					send(RTSPUtil.createRTSPResponse(req.getVersion(), 501, "Not Implemented", kvpairs, null));
+					break;
+			}
+		}
+		
+		/**
+		 * Moves the session of another connection (e.g. one the client has lost) to this connection, so
+		 * the client controls its stream from here. Only a session of the same client whose stream is not
+		 * interleaved can move, and only to a connection without a session of its own. Connection which
+		 * has lost its session stays open, one which outlived it is closed.
+		 * @param requested id of the session
+		 * @return true iff the session now belongs to this connection
+		 */
+		private boolean takeOver(String requested) {
+			H264RtspReqHandler owner = getHandlerForSession(requested);
+			if(owner==null || owner==this || session!=null || currentStreamWorker!=null || !owner.inet.equals(inet)) return false;
+			synchronized (owner) { // owner cannot close in the middle of the move
+				if(!owner.isRunning() || !requested.equals(owner.session) || owner.interleaved!=null) return false;
+				currentStreamWorker = owner.currentStreamWorker;
+				session = requested;
+				owner.currentStreamWorker = null;
+				owner.session = null;
+				sessions.replace(requested, owner, this);
+			}
+			writer.writeInfo("Session " + requested + " taken over by connection " + id + " " + inet);
+			if(owner.isDetached()) owner.close();
+			return true;
+		}
+		
+		/**
+		 * Closes the connection but keeps its session, and the stream of the session, until it times out
+		 * or another connection of the client takes it over
+		 */
+		private void detach() {
+			detached = true;
+			try {
+				channel.close();
+			} catch (IOException ignorable) {
+			}
+			if(handlers.remove(id, this)) {
+				for(var l : listeners) {
+					l.handlerRemoved(this);
+				}
+			}
+			writer.writeInfo("Connection closed, session " + session + " kept: " + inet);
+		}
+		
+		/**
+		 * Chooses the first transport specification of the header which this server supports
+		 * (unicast RTP over UDP with the client ports given, or RTP interleaved into this connection;
+		 * interleaved channels default to 0-1). Multicast resources are only sent over UDP, to their
+		 * group, whatever the client asked for.
+		 * @param header value of the Transport header
+		 * @param multicast true if the resource is sent by multicast
+		 * @return chosen transport specification or null if none is supported
+		 */
+		private RTSPTransport chooseTransport(String header, boolean multicast) {
+			if(header==null) return null;
+			try {
+				for(var transport : RTSPTransport.parseAll(header)) {
+					if(multicast) {
+						if(transport.isUdp()) return transport;
+						continue;
+					}
+					if(transport.isMulticast()) continue;
+					if(transport.isTcp()) {
+						int[] channels = transport.getPair(RTSPTransport.INTERLEAVED);
+						if(channels==null) transport.setPair(RTSPTransport.INTERLEAVED, 0, 1);
+						else if(channels[0]<0 || channels[0]>255 || channels[1]<0 || channels[1]>255 || channels[0]==channels[1]) continue;
+					} else if(transport.isUdp()) {
+						int[] ports = transport.getPair(RTSPTransport.CLIENT_PORT);
+						if(ports==null || ports[0]<=0 || ports[0]>65535 || ports[1]<=0 || ports[1]>65535) continue;
+					} else {
+						continue;
+					}
+					transport.setParameter("unicast", null);
+					return transport;
+				}
+			} catch (IllegalArgumentException ex) {
+				writer.writeWarning(ex.getMessage());
+			}
+			return null;
+		}
+		
+		/**
+		 * Writes the response to the channel. Whatever cannot be written immediately is queued
+		 * and written when the selector reports that the channel is writable. Responses are
+		 * queued even if the queue is over its limit.
+		 * @param response response which needs to be sent
+		 * @throws IOException if an I/O error occurs
+		 */
+		private void send(String response) throws IOException {
+			ByteBuffer buffer = ByteBuffer.wrap(response.getBytes(StandardCharsets.ISO_8859_1));
+			synchronized (output) {
+				output.add(buffer);
+				releases.add(NOT_POOLED);
+				queuedBytes += buffer.remaining();
+			}
+			flush();
+		}
+		
+		/**
+		 * Queues the interleaved frame of the stream and writes as much of the queue as the channel
+		 * accepts without blocking. Called from the thread of the stream.
+		 * @param frame interleaved frame
+		 * @return true if the frame was queued, false if it was dropped because the queue is full or the connection is closed
+		 */
+		@Override
+		public boolean write(ByteBuffer frame) {
+			return writeAll(List.of(frame), NOT_POOLED)==1;
+		}
+		
+		/**
+		 * Queues the interleaved frames of the stream (all packets of an access unit) and writes as much
+		 * of the queue as the channel accepts without blocking, once for all of them. Called from the
+		 * thread of the stream.
+		 */
+		@Override
+		public int writeAll(List<ByteBuffer> frames, Consumer<ByteBuffer> release) {
+			int queued = 0;
+			synchronized (output) {
+				if(!isRunning.get()) return 0; // checked under the lock, close releases whatever is queued
+				for(int n=frames.size(); queued<n; queued++) {
+					ByteBuffer frame = frames.get(queued);
+					if(queuedBytes + frame.remaining() > MAX_QUEUED_BYTES) break;
+					output.add(frame);
+					releases.add(release);
+					queuedBytes += frame.remaining();
+				}
+			}
+			if(queued==0) return 0;
+			try {
+				flush();
+			} catch (IOException ex) {
+				// connection is broken; selector finds out on its next read and closes the handler
+			}
+			return queued;
+		}
+		
+		/**
+		 * Returns true iff more than {@value #CONGESTION_QUEUED_BYTES} bytes wait for the client to read them
+		 * @return true iff the output of this connection is congested
+		 */
+		@Override
+		public boolean isCongested() {
+			return congested;
+		}
+		
+		/**
+		 * Writes the queue to the channel with gathering writes until the queue is empty or the
+		 * channel does not accept more, and waits for the channel to become writable if anything
+		 * is left. Can be called from any thread.
+		 * @throws IOException if an I/O error occurs
+		 */
+		private void flush() throws IOException {
+			boolean close;
+			synchronized (output) {
+				while(!output.isEmpty()) {
+					int n = 0;
+					long length = 0;
+					for(ByteBuffer buffer : output) {
+						gathered[n++] = buffer;
+						length += buffer.remaining();
+						if(n==gathered.length) break;
 					}
-					bos.flush();
+					long written;
+					try {
+						written = channel.write(gathered, 0, n);
+					} finally {
+						Arrays.fill(gathered, 0, n, null);
+					}
+					queuedBytes -= written;
+					while(!output.isEmpty() && !output.peek().hasRemaining()) releases.poll().accept(output.poll());
+					if(written<length) break; // channel is full
 				}
+				congested = queuedBytes > CONGESTION_QUEUED_BYTES;
+				close = output.isEmpty() && closeAfterWrite;
 				
-				s.close();
-			} catch (IOException e) {
-				throw new RuntimeException(e);
-			} finally {
-				if(currentStreamWorker!=null) streamWorkers.removeWorker(currentStreamWorker.getId());
-				writer.writeInfo("Connection closed: " + s.getInetAddress());
-				isRunning.set(false);
-				removeHandler(this.id);
+				int ops = output.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+				try {
+					if(!close && key.interestOps()!=ops) {
+						key.interestOps(ops);
+						key.selector().wakeup(); // selector may be blocked with the old interest set
+					}
+				} catch (CancelledKeyException ex) {
+					// closed by another thread
+				}
+			}
+			if(close) close();
+		}
+		
+		/**
+		 * Closes the connection and the stream of this connection. Can be called from any thread.
+		 */
+		@Override
+		public void close() {
+			if(!isRunning.compareAndSet(true, false)) return;
+			
+			var timeout = idleTimeout;
+			if(timeout!=null) timeout.cancel();
+			try {
+				channel.close();
+			} catch (IOException ignorable) {
 			}
+			if(key!=null) key.selector().wakeup();
+			synchronized (output) {
+				while(!output.isEmpty()) releases.poll().accept(output.poll());
+				queuedBytes = 0;
+			}
+			
+			H264RtpStreamWorker worker;
+			String session;
+			synchronized (this) { // waits for a take over which has already started
+				worker = currentStreamWorker;
+				session = this.session;
+			}
+			if(worker!=null) streamWorkers.releaseWorker(worker.getId());
+			if(session!=null) sessions.remove(session, this);
+			writer.writeInfo((detached && session!=null ? "Session closed: " : "Connection closed: ") + inet + (session==null ? "" : " (session " + session + ")"));
+			removeHandler(this.id);
 		}
 		
 		public int getId() {
@@ -238,6 +759,25 @@ public class H264RtspReqHandlerCollection{
 			return lastRequestTimestamp;
 		}
 		
+		/**
+		 * Returns the time of the last request of the client or of the last RTCP packet of its receiver,
+		 * whichever came later. RTCP of a shared stream is not attributed to any of its viewers.
+		 * @return the time of the last activity in milliseconds since the unix epoch
+		 */
+		public long getLastActivity() {
+			H264RtpStreamWorker worker = currentStreamWorker;
+			if(worker==null || worker.isShared()) return lastRequestTimestamp;
+			return Math.max(lastRequestTimestamp, worker.getLastRtcpMillis());
+		}
+		
+		/**
+		 * Returns true iff the connection has closed and only its session remains
+		 * @return true iff the session has outlived its connection
+		 */
+		public boolean isDetached() {
+			return detached;
+		}
+		
 		public H264RtpStreamWorker getCurrentStreamWorker() {
 			return currentStreamWorker;
 		}
@@ -246,9 +786,21 @@ public class H264RtspReqHandlerCollection{
 			return s;
 		}
 		
+		public InetAddress getInetAddress() {
+			return inet;
+		}
+		
+		/**
+		 * Returns the id of the rtsp session of this connection
+		 * @return the id of the session or null if the session has not been set up yet
+		 */
+		public String getSession() {
+			return session;
+		}
+		
 		@Override
 		public String toString() {
-			return id + " " + s.getInetAddress().getHostAddress();
+			return id + " " + inet.getHostAddress();
 		}
 		
 	}
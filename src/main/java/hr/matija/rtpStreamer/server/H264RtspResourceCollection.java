@@ -1,38 +1,84 @@
 package hr.matija.rtpStreamer.server;
 
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
+import hr.matija.rtpStreamer.h264.H264LiveCameraLoader;
+import hr.matija.rtpStreamer.h264.H264LoaderBroadcaster;
+import hr.matija.rtpStreamer.h264.H264MappedFileLoader;
+import hr.matija.rtpStreamer.h264.H264NalIndex;
+import hr.matija.rtpStreamer.h264.NalUnit;
+
+/**
+ * Resources of the server, loaded from the resource descriptor. Resources are published as an
+ * immutable snapshot through an atomic reference, so they can be reloaded while the server runs:
+ * reload builds the new snapshot aside, indexes the new and changed files and swaps it in at once.
+ * Lookups never wait for a reload and see either the old or the new snapshot, never a mix of them.
+ * Resources whose definition and file did not change are carried over into the new snapshot, so
+ * their index and the broadcaster of a live feed are kept; sessions which have already set up a
+ * resource keep streaming it even if it is changed or removed by a reload. <br>
+ * Files of the resources are memory-mapped, so a file must be replaced by writing the new version
+ * next to it and renaming it over the old one (an atomic rename within the same directory, e.g.
+ * <code>mv</code>), never by rewriting or truncating it in place: running sessions keep the mapping of
+ * the old file, while reading a mapping whose file shrank faults and ends the sessions streaming it. <br>
+ * Files of the first load are indexed in the background (one file at a time), so a large file without
+ * a sidecar index does not hold up the start of the server; until its index is built the resource
+ * is described without its parameter sets and duration.
+ * @author Matija
+ *
+ */
 public class H264RtspResourceCollection {
 	
 	private Path resourceDescriptor;
 	private Path resourceRoot;
 	
-	private Set<Resource> resources;
-	private Map<Integer, Resource> idResourceMapper;
-	private Map<String, Resource> uriResourceMapper;
+	private AtomicReference<Snapshot> snapshot = new AtomicReference<>();
+	private ExecutorService indexer = Executors.newSingleThreadExecutor((task) -> {
+		Thread thread = new Thread(task, "resource-indexer");
+		thread.setDaemon(true);
+		return thread;
+	});
 	
 	public H264RtspResourceCollection(Path resourceDescriptor, Path resourceRoot) throws IOException {
 		setResourceDescriptor(resourceDescriptor, resourceRoot);
 	}
 	
-	public void loadResources() throws IOException {
+	/**
+	 * Loads the resource descriptor and publishes its resources. If the descriptor is not valid, the
+	 * current resources are kept. Reloads are serialized; lookups are not blocked by them.
+	 * @throws IOException if the descriptor cannot be read
+	 */
+	public synchronized void loadResources() throws IOException {
+		Snapshot old = snapshot.get();
 		Set<Resource> resources = new HashSet<>();
 		Map<Integer, Resource> idResourceMapper = new HashMap<>();
 		Map<String, Resource> uriResourceMapper = new HashMap<>();
+		Map<String, List<Resource>> renditions = new LinkedHashMap<>();
+		Set<Integer> ids = new HashSet<>();
 		
 		List<String> lines = Files.readAllLines(resourceDescriptor);
 		
 		for(String l : lines) {
-			if(l.trim().startsWith("#")) continue;
+			if(l.isBlank() || l.trim().startsWith("#")) continue;
 			
 			String[] resource = l.trim().split("\t");
 			int id = Integer.parseInt(resource[0]);
@@ -40,23 +86,93 @@ public class H264RtspResourceCollection {
 			String uri = resource[2];
 			int fps = Integer.parseInt(resource[3]);
 			
+			Map<String, String> options = new HashMap<>();
+			for(int i=4; i<resource.length; i++) {
+				String[] option = resource[i].split("=", 2);
+				if(option.length!=2 || option[0].isBlank()) throw new RuntimeException("Illegal resource option: " + resource[i]);
+				options.put(option[0].trim(), option[1].trim());
+			}
+			
 			Path p = null;
 			if(!name.startsWith("live://")) p = Paths.get(resourceRoot.toString() + "/" + name);
-			Resource res = new Resource(id, name, p, uri, fps);
-			resources.add(res);
-			if(idResourceMapper.put(id, res) != null) throw new RuntimeException("There exist two resources with same id! This is illegal!");
-			if(uriResourceMapper.put(uri, res) != null) throw new RuntimeException("There exist two resources mapped to the same uri! This is illegal!");
+			Resource res = new Resource(id, name, p, uri, fps, options);
+			res.getMulticastGroup(); // fail on load rather than on the first viewer
+			res.getMulticastTtl();
+			if(res.isLive()) res.getCaptureCommand();
+			res.stampFile();
+			if(!ids.add(id)) throw new RuntimeException("There exist two resources with same id! This is illegal!");
+			renditions.computeIfAbsent(uri, (u) -> new ArrayList<>()).add(res);
+		}
+		
+		// resources mapped to the same uri are renditions of one resource, the best one is served first
+		List<Resource> changed = new ArrayList<>();
+		for(var group : renditions.values()) {
+			if(group.size()>1) {
+				for(var res : group) {
+					if(res.isLive()) throw new RuntimeException("Live resource " + res.getId() + " cannot have renditions!");
+				}
+			}
+			
+			List<Resource> list = old==null ? null : old.unchanged(group);
+			if(list==null) {
+				if(group.size()>1 && group.stream().allMatch((r) -> r.getBitrate()>0)) group.sort(Comparator.comparingInt(Resource::getBitrate).reversed());
+				list = Collections.unmodifiableList(group);
+				for(var res : group) res.renditions = list;
+				changed.addAll(group);
+			}
+			
+			resources.addAll(list);
+			for(var res : list) idResourceMapper.put(res.getId(), res);
+			uriResourceMapper.put(list.get(0).getUriMapping(), list.get(0));
+		}
+		
+		if(old!=null) {
+			for(var res : changed) { // files are indexed before the first viewer asks for them
+				if(res.isLive() || !H264MappedFileLoader.isMappable(res.getPath())) continue;
+				try {
+					res.getIndex();
+				} catch (IOException | RuntimeException ex) {
+					// indexed again by the first session, which reports the error
+				}
+			}
 		}
 		
-		this.resources = resources;
-		this.idResourceMapper = idResourceMapper;
-		this.uriResourceMapper = uriResourceMapper;
+		snapshot.set(new Snapshot(resources, idResourceMapper, uriResourceMapper));
+		if(old==null) {
+			for(var res : changed) indexInBackground(res);
+		}
+	}
+	
+	/**
+	 * Builds (or loads) the index of the file of the resource on the indexer thread, unless it is built
+	 * or queued already. Returns right away, so it can be called from the thread of the rtsp connections.
+	 * @param res resource whose file is indexed; live resources are ignored
+	 */
+	public void indexInBackground(Resource res) {
+		if(res.isLive() || res.getIndexIfBuilt()!=null || !res.indexing.compareAndSet(false, true)) return;
+		indexer.execute(() -> {
+			try {
+				if(H264MappedFileLoader.isMappable(res.getPath())) res.getIndex();
+			} catch (IOException | RuntimeException ex) {
+				// indexed again by the first session, which reports the error
+			} finally {
+				res.indexing.set(false);
+			}
+		});
 	}
 	
 	public Path getResourceDescriptor() {
 		return resourceDescriptor;
 	}
 	
+	/**
+	 * Returns the directory the files of the resources are in
+	 * @return the resource root (webroot)
+	 */
+	public Path getResourceRoot() {
+		return resourceRoot;
+	}
+	
 	public void setResourceDescriptor(Path resourceDescriptor, Path resourceRoot) throws IOException {
 		if(!Files.isRegularFile(resourceDescriptor) || !Files.isReadable(resourceDescriptor))
 			throw new RuntimeException("resourceDescriptor error!");
@@ -68,36 +184,115 @@ public class H264RtspResourceCollection {
 	}
 	
 	public Resource getResourceForId(int id) {
-		return idResourceMapper.get(id);
+		return snapshot.get().idResourceMapper.get(id);
 	}
 	
 	public Resource getResourceForUri(String uri) {
 		if(uri==null) return null;
-		return uriResourceMapper.get(uri);
+		return snapshot.get().uriResourceMapper.get(uri);
 	}
 	
+	/**
+	 * Returns the resources of the current snapshot
+	 * @return unmodifiable set of the resources
+	 */
 	public Set<Resource> getResources() {
-		return resources;
+		return snapshot.get().resources;
 	}
 	
 	/**
-	 * Resource available for streaming
+	 * Immutable set of the resources loaded from one version of the descriptor
+	 */
+	private static class Snapshot {
+		
+		private final Set<Resource> resources;
+		private final Map<Integer, Resource> idResourceMapper;
+		private final Map<String, Resource> uriResourceMapper;
+		
+		private Snapshot(Set<Resource> resources, Map<Integer, Resource> idResourceMapper, Map<String, Resource> uriResourceMapper) {
+			this.resources = Collections.unmodifiableSet(resources);
+			this.idResourceMapper = idResourceMapper;
+			this.uriResourceMapper = uriResourceMapper;
+		}
+		
+		/**
+		 * Returns the renditions of this snapshot which are the same as the given newly loaded ones
+		 * @param group newly loaded renditions of one uri
+		 * @return the renditions of this snapshot or null if any of them has been added, removed or changed
+		 */
+		private List<Resource> unchanged(List<Resource> group) {
+			Resource first = idResourceMapper.get(group.get(0).getId());
+			if(first==null || first.renditions.size()!=group.size()) return null;
+			for(var res : group) {
+				Resource previous = idResourceMapper.get(res.getId());
+				if(previous==null || !previous.sameAs(res) || !first.renditions.contains(previous)) return null;
+			}
+			return first.renditions;
+		}
+		
+	}
+	
+	/**
+	 * Resource available for streaming. Resource may have several renditions (encodings of the same
+	 * content, for example 1080p60 and 720p30) which are mapped to the same uri; stream worker moves
+	 * between them depending on the conditions of the client's network.
 	 * @author Matija
 	 *
 	 */
 	public static class Resource {
+		
+		/**
+		 * Option holding the nominal bitrate of the resource in kbit/s
+		 */
+		public static final String BITRATE_OPTION = "bitrate";
+		
+		/**
+		 * Option holding the multicast group (and its RTP port) in the form <code>address:port</code>
+		 */
+		public static final String MULTICAST_OPTION = "multicast";
+		
+		/**
+		 * Option holding the time to live of the multicast packets
+		 */
+		public static final String TTL_OPTION = "ttl";
+		
+		/**
+		 * Option holding the command which captures a live resource (instead of the default ffmpeg
+		 * capture of the named camera)
+		 */
+		public static final String CAPTURE_OPTION = "capture";
+		
+		/**
+		 * Time to live of the multicast packets if the option {@value #TTL_OPTION} is not given
+		 */
+		public static final int DEFAULT_TTL = 16;
+		
 		private int id;
 		private String name;
 		private Path path;
 		private String uriMapping;
 		private int fps;
+		private Map<String, String> options;
+		private List<Resource> renditions = List.of(this);
+		
+		private long fileSize = -1;
+		private long fileModified = -1;
+		
+		private volatile H264NalIndex index;
+		private AtomicBoolean indexing = new AtomicBoolean();  // queued on the indexer thread
+		private H264LoaderBroadcaster broadcaster;
 		
 		public Resource(int id, String name, Path path, String uriMapping, int fps) {
+			this(id, name, path, uriMapping, fps, Map.of());
+		}
+		
+		public Resource(int id, String name, Path path, String uriMapping, int fps, Map<String, String> options) {
 			this.id = id;
 			this.name = name;
 			this.path = path;
 			this.uriMapping = uriMapping;
 			this.fps = fps;
+			this.options = Map.copyOf(options);
 		}
 
 		public int getId() {
@@ -119,6 +314,209 @@ public class H264RtspResourceCollection {
 		public int getFps() {
 			return fps;
 		}
+		
+		/**
+		 * Returns the value of the given option from the resource descriptor
+		 * @param key name of the option
+		 * @return the value of the option or null if the option is not given
+		 */
+		public String getOption(String key) {
+			return options.get(key);
+		}
+		
+		/**
+		 * Returns the nominal bitrate of this resource in kbit/s (option {@value #BITRATE_OPTION})
+		 * @return the nominal bitrate in kbit/s or 0 if unknown
+		 * @throws RuntimeException if the option is not a number
+		 */
+		public int getBitrate() {
+			String bitrate = options.get(BITRATE_OPTION);
+			if(bitrate==null) return 0;
+			try {
+				return Integer.parseInt(bitrate);
+			} catch (NumberFormatException ex) {
+				throw new RuntimeException("Illegal bitrate of resource " + id + ": " + bitrate);
+			}
+		}
+		
+		/**
+		 * Returns the multicast group of this resource (option {@value #MULTICAST_OPTION}). All viewers of
+		 * a multicast resource share one stream sent to this group; RTCP uses the next port.
+		 * @return the multicast group and its RTP port or null if this resource is sent by unicast
+		 * @throws RuntimeException if the option is not a multicast address with an even port
+		 */
+		public InetSocketAddress getMulticastGroup() {
+			String group = options.get(MULTICAST_OPTION);
+			if(group==null) return null;
+			
+			int colon = group.lastIndexOf(':');
+			try {
+				if(colon<0) throw new NumberFormatException();
+				String host = group.substring(0, colon).replace("[", "").replace("]", "");
+				int port = Integer.parseInt(group.substring(colon + 1));
+				InetAddress address = InetAddress.getByName(host);
+				if(!address.isMulticastAddress() || port<=0 || port>=65535 || port%2!=0) throw new NumberFormatException();
+				return new InetSocketAddress(address, port);
+			} catch (NumberFormatException | UnknownHostException ex) {
+				throw new RuntimeException("Illegal multicast group of resource " + id + ": " + group);
+			}
+		}
+		
+		/**
+		 * Returns the time to live of the multicast packets of this resource (option {@value #TTL_OPTION})
+		 * @return the time to live of the multicast packets
+		 * @throws RuntimeException if the option is not a number in the range 0 - 255
+		 */
+		public int getMulticastTtl() {
+			String ttl = options.get(TTL_OPTION);
+			if(ttl==null) return DEFAULT_TTL;
+			try {
+				int value = Integer.parseInt(ttl);
+				if(value<0 || value>255) throw new NumberFormatException();
+				return value;
+			} catch (NumberFormatException ex) {
+				throw new RuntimeException("Illegal ttl of resource " + id + ": " + ttl);
+			}
+		}
+		
+		/**
+		 * Returns true iff all viewers of this resource share one multicast stream
+		 * @return true iff this resource is sent by multicast
+		 */
+		public boolean isMulticast() {
+			return options.containsKey(MULTICAST_OPTION);
+		}
+		
+		/**
+		 * Returns the command which captures this live resource (option {@value #CAPTURE_OPTION}), by default
+		 * ffmpeg capturing the camera named by the resource
+		 * @return the program and its arguments
+		 * @throws RuntimeException if the option is not a valid command line
+		 */
+		public List<String> getCaptureCommand() {
+			String capture = options.get(CAPTURE_OPTION);
+			if(capture==null) return H264LiveCameraLoader.defaultCommand(name.substring("live://".length()));
+			try {
+				List<String> command = H264LiveCameraLoader.parseCommand(capture);
+				if(command.isEmpty()) throw new IllegalArgumentException();
+				return command;
+			} catch (IllegalArgumentException ex) {
+				throw new RuntimeException("Illegal capture command of resource " + id + ": " + capture);
+			}
+		}
+		
+		/**
+		 * Returns all renditions of this resource (this resource included), ordered from the best one
+		 * (highest bitrate) to the worst one
+		 * @return the renditions of this resource
+		 */
+		public List<Resource> getRenditions() {
+			return renditions;
+		}
+		
+		/**
+		 * Returns true iff this resource is a live feed (camera) and not a file
+		 * @return true iff this resource is a live feed
+		 */
+		public boolean isLive() {
+			return name.startsWith("live://");
+		}
+		
+		/**
+		 * Returns the nal unit index of this resource. Index is built (or loaded from its sidecar
+		 * file) on the first call and shared by all sessions streaming this resource.
+		 * @return the nal unit index of this resource
+		 * @throws IOException if an I/O error occurs or the file is too large to be mapped
+		 * @throws IllegalStateException if this resource is a live feed
+		 */
+		public H264NalIndex getIndex() throws IOException {
+			if(isLive()) throw new IllegalStateException("Live resources cannot be indexed!");
+			
+			H264NalIndex index = this.index;
+			if(index!=null) return index;
+			synchronized (this) {
+				if(this.index==null) this.index = H264NalIndex.load(path);
+				return this.index;
+			}
+		}
+		
+		/**
+		 * Returns the nal unit index of this resource if it has been built (or loaded) already; never
+		 * reads the file
+		 * @return the nal unit index of this resource or null if it has not been built yet
+		 */
+		public H264NalIndex getIndexIfBuilt() {
+			return index;
+		}
+		
+		/**
+		 * Returns the broadcaster of this live resource. Broadcaster reads the live feed once
+		 * and shares it between all sessions streaming this resource.
+		 * @return the broadcaster of this live resource
+		 * @throws IllegalStateException if this resource is not a live feed
+		 */
+		public synchronized H264LoaderBroadcaster getBroadcaster() {
+			if(!isLive()) throw new IllegalStateException("Only live resources can be broadcasted!");
+			
+			if(broadcaster==null) {
+				List<String> capture = getCaptureCommand();
+				broadcaster = new H264LoaderBroadcaster(uriMapping, () -> new H264LiveCameraLoader(capture));
+			}
+			return broadcaster;
+		}
+
+		/**
+		 * Returns the duration of this resource, known only for the files whose index has been built.
+		 * Never reads the file, so it can be called from the thread of the rtsp connections.
+		 * @return the duration in seconds or -1 if it is not known
+		 */
+		public double getDuration() {
+			H264NalIndex index = this.index;
+			if(isLive() || index==null) return -1;
+			return index.getAccessUnitCount() / (double) fps;
+		}
+		
+		/**
+		 * Returns the parameter sets a decoder of this resource needs, taken from the built index of a
+		 * file or from the running broadcaster of a live feed. Never reads the file.
+		 * @return the parameter sets in decoding order (SPS first), empty if they are not known
+		 */
+		public List<NalUnit> getParameterSets() {
+			if(!isLive()) {
+				H264NalIndex index = this.index;
+				return index==null ? List.of() : index.getParameterSets();
+			}
+			
+			H264LoaderBroadcaster broadcaster;
+			synchronized (this) {
+				broadcaster = this.broadcaster;
+			}
+			return broadcaster==null ? List.of() : broadcaster.getParameterSets();
+		}
+
+		/**
+		 * Remembers the size and the modification time of the file of this resource
+		 */
+		private void stampFile() {
+			if(path==null) return;
+			try {
+				fileSize = Files.size(path);
+				fileModified = Files.getLastModifiedTime(path).toMillis();
+			} catch (IOException ex) {
+				fileSize = fileModified = -1; // missing file
+			}
+		}
+		
+		/**
+		 * Returns true iff the other resource has the same definition and its file has not changed since this one was loaded
+		 * @param other the other resource
+		 * @return true iff this resource can stand for the other one
+		 */
+		private boolean sameAs(Resource other) {
+			return id==other.id && fps==other.fps && name.equals(other.name) && uriMapping.equals(other.uriMapping)
+					&& Objects.equals(path, other.path) && options.equals(other.options) 
+					&& fileSize==other.fileSize && fileModified==other.fileModified;
+		}
 
 		@Override
 		public int hashCode() {
@@ -139,7 +537,8 @@ public class H264RtspResourceCollection {
 		
 		@Override
 		public String toString() {
-			return String.format("(%d, %s, %s, %d)", id, name, uriMapping, fps);
+			if(options.isEmpty()) return String.format("(%d, %s, %s, %d)", id, name, uriMapping, fps);
+			return String.format("(%d, %s, %s, %d, %s)", id, name, uriMapping, fps, options);
 		}
 	}
 
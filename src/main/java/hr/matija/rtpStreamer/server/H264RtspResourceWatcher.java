@@ -0,0 +1,130 @@
+package hr.matija.rtpStreamer.server;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+import hr.matija.rtpStreamer.h264.H264NalIndex;
+
+/**
+ * Watches the resource descriptor and the webroot and reloads the resources when they change.
+ * Copying a file produces a burst of events, so the reload runs once the watched directories have
+ * been quiet for {@value #QUIET_MILLIS} ms. Sidecar index files (and their temporary files) written
+ * by the reload itself are ignored. Only the top level of the webroot is watched. Reload runs on the
+ * thread of the watcher, which is also where the changed files get indexed. Files must be replaced
+ * by an atomic rename (see {@link H264RtspResourceCollection}); a file copied over in place is seen
+ * half-written by the sessions streaming it.
+ * @author Matija
+ *
+ */
+public class H264RtspResourceWatcher implements AutoCloseable {
+
+	/**
+	 * Time without changes after which the resources are reloaded, in milliseconds
+	 */
+	public static final long QUIET_MILLIS = 1000;
+
+	private Path resourceDescriptor;
+	private Path webroot;
+	private Runnable reload;
+	private WatchService watchService;
+	private Map<WatchKey, Path> directories = new HashMap<>();
+	private Thread thread;
+
+	/**
+	 * Registers the directories of the descriptor and of the webroot; watching starts with {@link #start()}
+	 * @param resourceDescriptor resource descriptor
+	 * @param webroot directory of the resources
+	 * @param reload reloads the resources; called on the thread of the watcher
+	 * @throws IOException if the directories cannot be watched
+	 */
+	public H264RtspResourceWatcher(Path resourceDescriptor, Path webroot, Runnable reload) throws IOException {
+		this.resourceDescriptor = resourceDescriptor.toAbsolutePath().normalize();
+		this.webroot = webroot.toAbsolutePath().normalize();
+		this.reload = Objects.requireNonNull(reload);
+		watchService = FileSystems.getDefault().newWatchService();
+		try {
+			register(this.resourceDescriptor.getParent());
+			register(this.webroot);
+		} catch (IOException ex) {
+			watchService.close();
+			throw ex;
+		}
+		thread = new Thread(this::run, "resource-watcher");
+		thread.setDaemon(true);
+	}
+
+	private void register(Path directory) throws IOException {
+		if(directories.containsValue(directory)) return;
+		WatchKey key = directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+		directories.put(key, directory);
+	}
+
+	/**
+	 * Starts the thread of the watcher
+	 */
+	public void start() {
+		thread.start();
+	}
+
+	private void run() {
+		long due = -1; // nanoTime of the pending reload, -1 if there is none
+		try {
+			while(true) {
+				WatchKey key;
+				if(due<0) {
+					key = watchService.take();
+				} else {
+					long wait = due - System.nanoTime();
+					key = wait>0 ? watchService.poll(wait, TimeUnit.NANOSECONDS) : null;
+				}
+
+				if(key==null) {
+					due = -1;
+					reload.run();
+					continue;
+				}
+
+				Path directory = directories.get(key);
+				for(WatchEvent<?> event : key.pollEvents()) {
+					if(directory!=null && relevant(directory, event)) due = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(QUIET_MILLIS);
+				}
+				key.reset();
+			}
+		} catch (InterruptedException | ClosedWatchServiceException ex) {
+			// closed
+		}
+	}
+
+	private boolean relevant(Path directory, WatchEvent<?> event) {
+		if(event.kind()==StandardWatchEventKinds.OVERFLOW) return true;
+		Path file = directory.resolve((Path) event.context());
+		if(file.equals(resourceDescriptor)) return true;
+		String name = file.getFileName().toString();
+		if(name.endsWith(H264NalIndex.SIDECAR_EXTENSION) || name.endsWith(H264NalIndex.SIDECAR_EXTENSION + ".tmp")) return false;
+		return directory.equals(webroot); // other files next to the descriptor do not matter
+	}
+
+	/**
+	 * Stops watching; a pending reload is dropped
+	 */
+	@Override
+	public void close() {
+		try {
+			watchService.close();
+		} catch (IOException ignorable) {
+		}
+		thread.interrupt();
+	}
+
+}
@@ -3,24 +3,23 @@ package hr.matija.rtpStreamer.server;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.NetworkInterface;
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.net.SocketException;
-import java.net.SocketTimeoutException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.ArrayList;
-import java.util.List;
 import java.util.Objects;
 import java.util.Properties;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.function.Consumer;
 
 import hr.matija.rtpStreamer.console.ConsoleWriter;
+import hr.matija.rtpStreamer.metrics.MetricsHttpServer;
+import hr.matija.rtpStreamer.rtp.H264Packetizer;
 import hr.matija.rtpStreamer.server.H264RtspReqHandlerCollection.H264RtspReqHandler;
 
 /**
@@ -59,7 +58,27 @@ import hr.matija.rtpStreamer.server.H264RtspReqHandlerCollection.H264RtspReqHand
  * #Path to the webroot <br>
  * server.webroot = <em>path_to_the_webroot_directory</em> <br>
  * #Resource descriptor <br>
- * server.resourceDescriptor = <em>path_to_the_resource_descriptor</em> <br> </code>
+ * server.resourceDescriptor = <em>path_to_the_resource_descriptor</em> <br>
+ * #Maximum transmission unit used for RTP packetization (optional, default 1500) <br>
+ * server.mtu = <em>mtu</em> <br>
+ * #Seconds after which a connection without requests (keep-alives included) is closed, advertised in the Session header (optional, default 60) <br>
+ * server.sessionTimeout = <em>seconds</em> <br>
+ * #Range of the UDP ports from which RTP/RTCP port pairs are given to the sessions (optional, default 6970-7999) <br>
+ * server.rtpPorts = <em>first</em>-<em>last</em> <br>
+ * #Network interface multicast resources are sent from (optional, default chosen by the system) <br>
+ * server.multicastInterface = <em>interface_name</em> <br>
+ * #Port of the HTTP endpoint serving the stream metrics at /metrics in the Prometheus text format (optional, disabled by default) <br>
+ * server.metricsPort = <em>port</em> <br>
+ * #Address the metrics endpoint is bound to (optional, default 127.0.0.1) <br>
+ * server.metricsAddress = <em>address</em> <br>
+ * #Network impairment applied to the RTP packets of every session, see {@link H264RtpImpairmentProfile} (optional, none by default) <br>
+ * server.impairment = <em>profile</em> <br>
+ * #Reload the resources while the server runs when the resource descriptor or a file in the webroot changes (optional, default true) <br>
+ * server.watchResources = <em>true|false</em> <br>
+ * #Port of the HTTP/JSON admin API of the headless mode (optional, disabled by default) <br>
+ * server.adminPort = <em>port</em> <br>
+ * #Address the admin API is bound to (optional, default 127.0.0.1) <br>
+ * server.adminAddress = <em>address</em> <br> </code>
  * @author Matija
  *
  */
@@ -69,10 +88,19 @@ public class H264RtspServer {
 	
 	private static byte payloadType = 96;
 	private static int clockHz = 90_000;
-	private static int ssrc = (int) (Math.random() * Integer.MAX_VALUE);
 	
 	private Path configFile;
 	private int serverPort;
+	private int mtu;
+	private int sessionTimeout;
+	private H264RtpPortAllocator rtpPorts;
+	private NetworkInterface multicastInterface;
+	private H264RtpImpairmentProfile impairment;
+	private InetSocketAddress metricsAddress;
+	private MetricsHttpServer metricsServer;
+	private InetSocketAddress adminAddress;
+	private boolean watchResources;
+	private H264RtspResourceWatcher resourceWatcher;
 	private Path webroot;
 	private Path resourceDescriptor;
 	private H264RtspResourceCollection resources;
@@ -81,6 +109,8 @@ public class H264RtspServer {
 	
 	private AtomicBoolean isRunning = new AtomicBoolean(false);
 	private AtomicBoolean stopReq = new AtomicBoolean(false);
+	private Thread serverThread;
+	private volatile Selector selector;
 	
 	/**
 	 * Creates and initializes the rtsp server from the config file. 
@@ -98,6 +128,32 @@ public class H264RtspServer {
 		
 		try {
 			serverPort = Integer.parseInt(prop.getProperty("server.port"));
+			mtu = Integer.parseInt(prop.getProperty("server.mtu", Integer.toString(H264Packetizer.DEFAULT_MTU)).trim());
+			sessionTimeout = Integer.parseInt(prop.getProperty("server.sessionTimeout", 
+					Integer.toString(H264RtspReqHandlerCollection.DEFAULT_SESSION_TIMEOUT)).trim());
+			rtpPorts = H264RtpPortAllocator.forRange(prop.getProperty("server.rtpPorts", 
+					H264RtpPortAllocator.DEFAULT_FIRST_PORT + "-" + H264RtpPortAllocator.DEFAULT_LAST_PORT));
+			String multicastInterfaceName = prop.getProperty("server.multicastInterface");
+			if(multicastInterfaceName!=null && !multicastInterfaceName.isBlank()) {
+				multicastInterface = NetworkInterface.getByName(multicastInterfaceName.trim());
+				if(multicastInterface==null) throw new RuntimeException("server.multicastInterface: no such interface " + multicastInterfaceName);
+			}
+			String metricsPort = prop.getProperty("server.metricsPort");
+			if(metricsPort!=null && !metricsPort.isBlank()) {
+				metricsAddress = new InetSocketAddress(InetAddress.getByName(prop.getProperty("server.metricsAddress", "127.0.0.1").trim()), 
+						Integer.parseInt(metricsPort.trim()));
+			}
+			try {
+				impairment = H264RtpImpairmentProfile.parse(prop.getProperty("server.impairment"));
+			} catch (IllegalArgumentException ex) {
+				throw new RuntimeException("server.impairment: " + ex.getMessage(), ex);
+			}
+			watchResources = Boolean.parseBoolean(prop.getProperty("server.watchResources", "true").trim());
+			String adminPort = prop.getProperty("server.adminPort");
+			if(adminPort!=null && !adminPort.isBlank()) {
+				adminAddress = new InetSocketAddress(InetAddress.getByName(prop.getProperty("server.adminAddress", "127.0.0.1").trim()), 
+						Integer.parseInt(adminPort.trim()));
+			}
 		} finally {
 			in.close();
 		}
@@ -117,8 +173,10 @@ public class H264RtspServer {
 		in.close();
 		
 		this.resources = new H264RtspResourceCollection(resourceDescriptor, webroot);
-		this.workers = new H264RtpStreamWorkerCollection(clockHz, payloadType, writer);
-		this.reqHandlers = new H264RtspReqHandlerCollection(workers, resources, writer);
+		this.workers = new H264RtpStreamWorkerCollection(clockHz, payloadType, mtu, rtpPorts, writer);
+		this.workers.setMulticastInterface(multicastInterface);
+		this.workers.setImpairment(impairment);
+		this.reqHandlers = new H264RtspReqHandlerCollection(workers, resources, writer, sessionTimeout);
 	}
 
 	public void printInfo() throws SocketException {
@@ -140,8 +198,14 @@ public class H264RtspServer {
 		writer.writeln("");
 		
 		writer.writeInfo("Server port: " + serverPort);
+		writer.writeInfo("MTU: " + mtu);
+		writer.writeInfo("Session timeout: " + sessionTimeout + " s");
+		writer.writeInfo("RTP ports: " + rtpPorts.getRange());
+		if(multicastInterface!=null) writer.writeInfo("Multicast interface: " + multicastInterface.getName());
+		if(workers.getImpairment()!=H264RtpImpairmentProfile.NONE) writer.writeInfo("Impairment: " + workers.getImpairment());
+		if(metricsAddress!=null) writer.writeInfo("Metrics: http://" + metricsAddress.getHostString() + ":" + metricsAddress.getPort() + MetricsHttpServer.PATH);
 		writer.writeInfo("Webroot: " + webroot.toAbsolutePath());
-		writer.writeInfo("Resource descriptor: " + resourceDescriptor.toAbsolutePath());
+		writer.writeInfo("Resource descriptor: " + resourceDescriptor.toAbsolutePath() + (watchResources ? " (watched)" : ""));
 		writer.writeln("");
 		writer.writeInfo("RESOURCES");
 		writer.writeInfo("--------------------------");
@@ -157,55 +221,120 @@ public class H264RtspServer {
 		isRunning.set(true);
 		stopReq.set(false);
 		
-		new Thread(() -> {
-			
-			Timer cleaner = new Timer("cleaner", true);
-			cleaner.schedule(new TimerTask() {
-				@Override
-				public void run() {
-					clean.accept(60_000);
-				}
-			}, 0, 10_000);
+		if(metricsAddress!=null) {
+			try {
+				metricsServer = new MetricsHttpServer(metricsAddress, workers.getMetrics());
+				metricsServer.start();
+			} catch (IOException ex) {
+				writer.writeError("Cannot start the metrics endpoint on " + metricsAddress + ": " + ex.getMessage());
+			}
+		}
+		
+		if(watchResources) {
+			try {
+				resourceWatcher = new H264RtspResourceWatcher(resourceDescriptor, webroot, this::reloadChangedResources);
+				resourceWatcher.start();
+			} catch (IOException ex) {
+				writer.writeError("Cannot watch the resources: " + ex.getMessage());
+			}
+		}
+		
+		serverThread = new Thread(() -> {
 			
-			try (ServerSocket socket = new ServerSocket(serverPort)){
+			try (Selector selector = Selector.open();
+					ServerSocketChannel socket = ServerSocketChannel.open()){
+				
+				socket.bind(new InetSocketAddress(serverPort));
+				socket.configureBlocking(false);
+				socket.register(selector, SelectionKey.OP_ACCEPT);
+				this.selector = selector;
 				
 				writer.writeInfo("Server run");
-				socket.setSoTimeout(5000);
 				while(!stopReq.get()) {
-					Socket s;
-					try {
-						s = socket.accept();
-					} catch (SocketTimeoutException ex) { continue; }
-					H264RtspReqHandler old = this.reqHandlers.getHandler(s.getInetAddress());
-					if(old!=null) old.close();
-					H264RtspReqHandler handler = this.reqHandlers.getHandler(this.reqHandlers.makeHandler(s, ssrc));
-					new Thread(handler).start();
+					selector.select(5000);
+					
+					var keys = selector.selectedKeys().iterator();
+					while(keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						if(!key.isValid()) continue;
+						
+						if(key.isAcceptable()) {
+							accept(socket, selector);
+							continue;
+						}
+						
+						H264RtspReqHandler handler = (H264RtspReqHandler) key.attachment();
+						try {
+							handler.handle(key);
+						} catch (Exception ex) {
+							writer.writeError("Unexpected exception " + ex.getClass().getName() + " : " + ex.getMessage());
+							handler.close();
+						}
+					}
 				}
-				this.reqHandlers.closeAllConections();
 				
 			} catch (Exception e) {
 				throw new RuntimeException(e);
 			} finally {
-				cleaner.cancel();
-				clean.accept(0);
+				this.selector = null;
+				this.reqHandlers.closeAllConections();
 				isRunning.set(false);
 				writer.writeInfo("Server stop");
 			}
 			
-		}).start();
+		}, "rtsp-server");
+		serverThread.start();
+	}
+	
+	/**
+	 * Accepts all pending connections and registers their handlers with the selector
+	 * @param socket server socket channel
+	 * @param selector selector of the server
+	 * @throws IOException if an I/O error occurs
+	 */
+	private void accept(ServerSocketChannel socket, Selector selector) throws IOException {
+		SocketChannel s;
+		while((s = socket.accept()) != null) {
+			H264RtspReqHandler handler = this.reqHandlers.getHandler(this.reqHandlers.makeHandler(s, (int) (Math.random() * Integer.MAX_VALUE)));
+			handler.register(selector);
+		}
 	}
 
 	public synchronized void stop() {
 		stopReq.set(true);
-		while(isRunning.get());
+		Selector selector = this.selector;
+		if(selector!=null) selector.wakeup();
+		
+		if(metricsServer!=null) {
+			metricsServer.close();
+			metricsServer = null;
+		}
+		if(resourceWatcher!=null) {
+			resourceWatcher.close();
+			resourceWatcher = null;
+		}
+		
+		Thread serverThread = this.serverThread;
+		if(serverThread==null) return;
+		try {
+			serverThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
 	}
 
 	public boolean isRunning() {
 		return isRunning.get();
 	}
 	
-	public synchronized void reloadResources() throws IOException {
-		if(isRunning.get()) throw new RuntimeException("Cannot reload resources while the server is running!");
+	/**
+	 * Reloads the resources from the resource descriptor. Server keeps running: new requests see the
+	 * new resources as soon as they are loaded, sessions which have already set up a resource keep it.
+	 * If the descriptor is not valid, the current resources are kept.
+	 * @throws IOException if the descriptor cannot be read
+	 */
+	public void reloadResources() throws IOException {
 		resources.loadResources();
 		writer.writeInfo("RELOADED RESOURCES");
 		writer.writeInfo("--------RESOURCES---------");
@@ -215,36 +344,39 @@ public class H264RtspServer {
 		writer.writeInfo("--------------------------");
 	}
 	
-	private Consumer<Integer> clean = (d) -> {
-		int connectionC = reqHandlers.getActiveConnectionCount();
-		int workerC = workers.getActiveWorkerCount();
-		if(connectionC==0 && workerC==0) return;
-		
-		writer.writeInfo("Running connections: " + connectionC + "\tRunning workers:" + workerC);
-		List<H264RtspReqHandler> cons = new ArrayList<>(reqHandlers.getAllHandlers());
-		for(var connection : cons) {
-			if(System.currentTimeMillis() - connection.getLastRequestTimestamp() > d) {
-				connection.close();
-				reqHandlers.removeHandler(connection.getId());
-				writer.writeInfo("Cleaner removed: " + connection.getId() + " " + connection.getSocket().getInetAddress());
-			}
+	/**
+	 * Reload of the resource watcher; errors are logged, the current resources stay
+	 */
+	private void reloadChangedResources() {
+		try {
+			reloadResources();
+		} catch (IOException | RuntimeException ex) {
+			writer.writeError("Resources not reloaded, the current ones are kept: " + ex.getClass().getName() + " : " + ex.getMessage());
 		}
-	};
-
-	public void setPackageDropRate(double dropRate) {
-		reqHandlers.getStreamWorkerCollection().setPackageDropRate(dropRate);
 	}
-
-	public void setPackageMultiplier(int multiplier) {
-		reqHandlers.getStreamWorkerCollection().setPackageMultiplier(multiplier);
+	
+	/**
+	 * Sets the impairment profile of all sessions, the running ones and the ones set up afterwards
+	 * @param profile impairment profile, {@link H264RtpImpairmentProfile#NONE} to stop impairing the streams
+	 */
+	public void setImpairment(H264RtpImpairmentProfile profile) {
+		reqHandlers.getStreamWorkerCollection().setImpairment(profile);
 	}
-
-	public void setAllowDropAll(boolean value) {
-		reqHandlers.getStreamWorkerCollection().setAllowDropAll(value);
+	
+	public H264RtpImpairmentProfile getImpairment() {
+		return reqHandlers.getStreamWorkerCollection().getImpairment();
+	}
+	
+	public int getServerPort() {
+		return serverPort;
 	}
 	
-	public void setOnlyRetransmitImportant(boolean value) {
-		reqHandlers.getStreamWorkerCollection().setOnlyRetransmitImportant(value);
+	/**
+	 * Returns the address of the admin API given by <code>server.adminPort</code> and <code>server.adminAddress</code>
+	 * @return the address of the admin API or null if it is not configured
+	 */
+	public InetSocketAddress getAdminAddress() {
+		return adminAddress;
 	}
 	
 	public H264RtspReqHandlerCollection getReqHandlers() {
@@ -0,0 +1,221 @@
+package hr.matija.rtpStreamer.server;
+
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hashed timing wheel which expires the idle rtsp sessions. Wheel is a ring of buckets, each
+ * covering one tick; timeout is put into the bucket of its deadline (with the number of whole turns
+ * of the wheel it has to wait) and its task runs when the timer thread reaches that bucket.
+ * Scheduling and cancelling are O(1) and never take a lock: new timeouts are handed to the timer
+ * thread through a queue and cancelled ones are unlinked when their bucket is reached. Every tick
+ * visits one bucket only, so the cost does not grow with the number of sessions the way scanning
+ * all of them does. Tasks run on the timer thread and must not block. <br>
+ * Sessions do not reschedule their timeout on every request; the task of the timeout checks when
+ * the session was last active and schedules itself again for the remaining time.
+ * @author Matija
+ *
+ */
+public class H264RtspSessionTimer implements AutoCloseable {
+
+	/**
+	 * Default duration of one tick in milliseconds
+	 */
+	public static final long DEFAULT_TICK_MILLIS = 100;
+
+	/**
+	 * Default number of buckets of the wheel
+	 */
+	public static final int DEFAULT_WHEEL_SIZE = 1024;
+
+	private static final int MAX_TRANSFERS_PER_TICK = 100_000;
+
+	private long tickMillis;
+	private Bucket[] wheel;
+	private int mask;
+	private Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+	private AtomicInteger pending = new AtomicInteger();
+	private long startNanos;
+	private long tick;                  // timer thread only
+	private Thread thread;
+	private volatile boolean stopReq;
+
+	public H264RtspSessionTimer() {
+		this(DEFAULT_TICK_MILLIS, DEFAULT_WHEEL_SIZE);
+	}
+
+	/**
+	 * Creates the timer and starts its thread
+	 * @param tickMillis duration of one tick (resolution of the timer) in milliseconds
+	 * @param wheelSize number of buckets (rounded up to a power of two)
+	 */
+	public H264RtspSessionTimer(long tickMillis, int wheelSize) {
+		if(tickMillis<=0 || wheelSize<=0) throw new IllegalArgumentException("Tick and wheel size must be positive!");
+		int size = Integer.highestOneBit(wheelSize);
+		if(size<wheelSize) size <<= 1;
+		this.tickMillis = tickMillis;
+		this.wheel = new Bucket[size];
+		for(int i=0; i<size; i++) wheel[i] = new Bucket();
+		this.mask = size - 1;
+
+		startNanos = System.nanoTime();
+		thread = new Thread(this::run, "session-timer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Schedules the task; it runs on the timer thread no sooner than after the delay (rounded up to whole ticks)
+	 * @param task task of the timeout
+	 * @param delayMillis delay in milliseconds
+	 * @return the timeout, which can be cancelled
+	 */
+	public Timeout schedule(Runnable task, long delayMillis) {
+		if(stopReq) throw new IllegalStateException("Timer is closed!");
+		long deadline = (System.nanoTime() - startNanos) / 1_000_000 + Math.max(0, delayMillis);
+		Timeout timeout = new Timeout(Objects.requireNonNull(task), deadline);
+		pending.incrementAndGet();
+		added.add(timeout);
+		return timeout;
+	}
+
+	/**
+	 * Returns the number of timeouts which have neither expired nor been cancelled
+	 * @return the number of pending timeouts
+	 */
+	public int getPending() {
+		return pending.get();
+	}
+
+	/**
+	 * Stops the timer thread; pending timeouts never expire
+	 */
+	@Override
+	public void close() {
+		stopReq = true;
+		thread.interrupt();
+	}
+
+	private void run() {
+		while(!stopReq) {
+			long deadline = (tick + 1) * tickMillis;
+			long sleep = deadline - (System.nanoTime() - startNanos) / 1_000_000;
+			if(sleep>0) {
+				try {
+					Thread.sleep(sleep);
+				} catch (InterruptedException ex) {
+					continue; // closed
+				}
+			}
+
+			transferAdded();
+			wheel[(int) (tick & mask)].expire();
+			tick++;
+		}
+	}
+
+	/**
+	 * Puts the newly scheduled timeouts into their buckets; timeouts already due go into the current bucket
+	 */
+	private void transferAdded() {
+		for(int i=0; i<MAX_TRANSFERS_PER_TICK; i++) {
+			Timeout timeout = added.poll();
+			if(timeout==null) return;
+			if(timeout.state.get()!=Timeout.PENDING) continue;
+
+			long due = Math.max(tick, (timeout.deadline + tickMillis - 1) / tickMillis);
+			timeout.rounds = (due - tick) / wheel.length;
+			wheel[(int) (due & mask)].add(timeout);
+		}
+	}
+
+	/**
+	 * Timeout of one task
+	 */
+	public class Timeout {
+
+		private static final int PENDING = 0;
+		private static final int CANCELLED = 1;
+		private static final int EXPIRED = 2;
+
+		private Runnable task;
+		private long deadline;          // milliseconds since the start of the timer
+		private long rounds;            // turns of the wheel left, timer thread only
+		private AtomicInteger state = new AtomicInteger(PENDING);
+		private Timeout prev;
+		private Timeout next;
+
+		private Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Cancels the timeout; can be called from any thread
+		 * @return true if the timeout was cancelled, false if it has already expired or been cancelled
+		 */
+		public boolean cancel() {
+			if(!state.compareAndSet(PENDING, CANCELLED)) return false;
+			pending.decrementAndGet();
+			return true;
+		}
+
+		public boolean isExpired() {
+			return state.get()==EXPIRED;
+		}
+
+		public boolean isCancelled() {
+			return state.get()==CANCELLED;
+		}
+
+	}
+
+	/**
+	 * Doubly linked list of the timeouts of one tick; accessed by the timer thread only
+	 */
+	private class Bucket {
+
+		private Timeout head;
+
+		private void add(Timeout timeout) {
+			timeout.prev = null;
+			timeout.next = head;
+			if(head!=null) head.prev = timeout;
+			head = timeout;
+		}
+
+		private void remove(Timeout timeout) {
+			if(timeout.prev!=null) timeout.prev.next = timeout.next;
+			else head = timeout.next;
+			if(timeout.next!=null) timeout.next.prev = timeout.prev;
+			timeout.prev = timeout.next = null;
+		}
+
+		private void expire() {
+			Timeout timeout = head;
+			while(timeout!=null) {
+				Timeout next = timeout.next;
+				if(timeout.state.get()!=Timeout.PENDING) {
+					remove(timeout);
+				} else if(timeout.rounds<=0) {
+					remove(timeout);
+					if(timeout.state.compareAndSet(Timeout.PENDING, Timeout.EXPIRED)) {
+						pending.decrementAndGet();
+						try {
+							timeout.task.run();
+						} catch (RuntimeException ex) {
+							// one failing task must not stop the expiry of the others
+						}
+					}
+				} else {
+					timeout.rounds--;
+				}
+				timeout = next;
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,139 @@
+package hr.matija.rtpStreamer.h264;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import hr.matija.rtpStreamer.h264.H264LoaderBroadcaster.Subscription;
+import hr.matija.rtpStreamer.h264.NalUnit.NalUnitType;
+
+class H264LoaderBroadcasterTest {
+
+	private static final NalUnit END = new NalUnit(new byte[] {0x0B}, 1);
+
+	private BlockingQueue<NalUnit> feed = new LinkedBlockingQueue<>();
+	private H264LoaderBroadcaster broadcaster;
+	private Subscription subscription;
+
+	@BeforeEach
+	void subscribe() throws IOException {
+		broadcaster = new H264LoaderBroadcaster("test", () -> new QueueLoader(feed));
+		subscription = broadcaster.subscribe();
+	}
+
+	@AfterEach
+	void close() {
+		subscription.close();
+		broadcaster.close();
+	}
+
+	@Test
+	void notReadyBeforeThePublish() {
+		assertTimeoutPreemptively(Duration.ofMillis(50), () -> assertFalse(subscription.isAccessUnitReady()));
+	}
+
+	@Test
+	void skipsNonKeyframesWhileResyncing() throws Exception {
+		send(0x41);
+		awaitPublished(1);
+		assertFalse(subscription.isAccessUnitReady());
+
+		send(0x65);
+		awaitPublished(2);
+		assertTrue(subscription.isAccessUnitReady());
+		assertTrue(subscription.nextNalUnit());
+		assertEquals(NalUnitType.CODED_SLICE_IDR, subscription.getNalUnit().getType());
+		assertEquals(1, subscription.getSkippedCount());
+	}
+
+	@Test
+	void publishRunsTheWakeup() throws Exception {
+		CountDownLatch woken = new CountDownLatch(1);
+		subscription.onAccessUnit(woken::countDown);
+		assertEquals(1, woken.getCount());
+
+		send(0x65);
+		assertTrue(woken.await(1, TimeUnit.SECONDS));
+		assertTrue(subscription.isAccessUnitReady());
+	}
+
+	@Test
+	void wakeupRunsRightAwayIfPublished() throws Exception {
+		send(0x65);
+		awaitPublished(1);
+
+		CountDownLatch woken = new CountDownLatch(1);
+		subscription.onAccessUnit(woken::countDown);
+		assertEquals(0, woken.getCount());
+	}
+
+	@Test
+	void endOfTheSourceIsReady() throws Exception {
+		CountDownLatch woken = new CountDownLatch(1);
+		subscription.onAccessUnit(woken::countDown);
+		feed.put(END);
+		assertTrue(woken.await(1, TimeUnit.SECONDS));
+		assertTrue(subscription.isAccessUnitReady());
+		assertFalse(subscription.nextNalUnit());
+	}
+
+	/**
+	 * Feeds one access unit with a slice of the given header, closed by an access unit delimiter
+	 */
+	private void send(int header) throws InterruptedException {
+		feed.put(new NalUnit(new byte[] {(byte) header, 1, 2, 3}, 4));
+		feed.put(new NalUnit(new byte[] {0x09, 0x10}, 2));
+	}
+
+	private void awaitPublished(long count) throws InterruptedException {
+		long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+		while(broadcaster.getPublishedCount()<count && System.nanoTime()<end) Thread.sleep(1);
+		assertEquals(count, broadcaster.getPublishedCount());
+	}
+
+	/**
+	 * Source which loads the nal units put into the queue and ends at the end of stream nal unit
+	 */
+	private static class QueueLoader implements H264Loader {
+
+		private BlockingQueue<NalUnit> queue;
+		private NalUnit nal;
+
+		private QueueLoader(BlockingQueue<NalUnit> queue) {
+			this.queue = queue;
+		}
+
+		@Override
+		public boolean nextNalUnit() throws IOException {
+			try {
+				nal = queue.take();
+			} catch (InterruptedException ex) {
+				throw new IOException(ex);
+			}
+			return nal!=END;
+		}
+
+		@Override
+		public NalUnit getNalUnit() {
+			return nal;
+		}
+
+		@Override
+		public void close() {
+		}
+
+	}
+
+}
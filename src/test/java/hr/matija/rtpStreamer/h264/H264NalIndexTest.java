@@ -0,0 +1,108 @@
+package hr.matija.rtpStreamer.h264;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class H264NalIndexTest {
+
+	private static final int FRAMES = 20;
+	private static final int GOP = 5;
+
+	@TempDir
+	Path dir;
+
+	private Path file;
+	private Path sidecar;
+
+	@BeforeEach
+	void writeStream() throws IOException {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		os.writeBytes(new byte[] {0, 0, 0, 1, 0x67, 0x42, (byte) 0xC0, 0x1F});
+		os.writeBytes(new byte[] {0, 0, 0, 1, 0x68, (byte) 0xCE, 0x3C, (byte) 0x80});
+		for(int i=0; i<FRAMES; i++) {
+			if(i>0) os.writeBytes(new byte[] {0, 0, 0, 1, 0x09, 0x10});
+			os.writeBytes(new byte[] {0, 0, 1, i%GOP==0 ? (byte) 0x65 : 0x41});
+			for(int j=0; j<100; j++) os.write(1 + (i + j) % 200);
+		}
+		file = dir.resolve("stream.h264");
+		Files.write(file, os.toByteArray());
+		sidecar = H264NalIndex.sidecarFor(file);
+	}
+
+	@Test
+	void buildWritesSidecar() throws IOException {
+		assertValid(H264NalIndex.load(file));
+		assertTrue(Files.isRegularFile(sidecar));
+	}
+
+	@Test
+	void sidecarRoundTrip() throws IOException {
+		H264NalIndex built = H264NalIndex.load(file);
+		H264NalIndex read = H264NalIndex.load(file);
+
+		assertEquals(built.getNalUnitCount(), read.getNalUnitCount());
+		for(int i=0; i<built.getNalUnitCount(); i++) {
+			assertEquals(built.getOffset(i), read.getOffset(i));
+			assertEquals(built.getLength(i), read.getLength(i));
+			assertEquals(built.getNalUnitType(i), read.getNalUnitType(i));
+		}
+		assertEquals(built.getAccessUnitCount(), read.getAccessUnitCount());
+		for(int i=0; i<built.getAccessUnitCount(); i++) assertEquals(built.getAccessUnitStart(i), read.getAccessUnitStart(i));
+		assertEquals(built.getKeyframeCount(), read.getKeyframeCount());
+		for(int i=0; i<built.getKeyframeCount(); i++) assertEquals(built.getKeyframe(i), read.getKeyframe(i));
+	}
+
+	@Test
+	void truncatedSidecarIsRebuilt() throws IOException {
+		H264NalIndex.load(file);
+		long size = Files.size(sidecar);
+		try (RandomAccessFile raf = new RandomAccessFile(sidecar.toFile(), "rw")) {
+			raf.setLength(size / 2);
+		}
+
+		assertValid(H264NalIndex.load(file));
+		assertEquals(size, Files.size(sidecar));
+	}
+
+	@Test
+	void corruptedCountIsRebuilt() throws IOException {
+		for(int count : new int[] {-1, Integer.MAX_VALUE, 1_000}) {
+			H264NalIndex.load(file);
+			writeInt(24, count); // nal unit count
+			assertValid(H264NalIndex.load(file));
+		}
+	}
+
+	@Test
+	void offsetOutsideFileIsRebuilt() throws IOException {
+		H264NalIndex.load(file);
+		writeInt(28, (int) Files.size(file) - 2); // offset of the first nal unit
+		assertValid(H264NalIndex.load(file));
+	}
+
+	private void writeInt(long position, int value) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(sidecar.toFile(), "rw")) {
+			raf.seek(position);
+			raf.writeInt(value);
+		}
+	}
+
+	private static void assertValid(H264NalIndex index) {
+		assertEquals(2 + FRAMES + FRAMES - 1, index.getNalUnitCount());
+		assertEquals(FRAMES, index.getAccessUnitCount());
+		assertEquals(FRAMES / GOP, index.getKeyframeCount());
+		for(int i=0; i<index.getKeyframeCount(); i++) assertEquals(i * GOP, index.getKeyframe(i));
+		assertEquals(7, index.getNalUnitType(0));
+	}
+
+}
@@ -0,0 +1,81 @@
+package hr.matija.rtpStreamer.loadtest;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.ByteBuffer;
+
+import org.junit.jupiter.api.Test;
+
+import hr.matija.rtpStreamer.metrics.LatencyHistogram;
+import hr.matija.rtpStreamer.rtp.RTPUtil;
+
+class ReceptionStatsTest {
+
+	private ReceptionStats stats = new ReceptionStats(90000, new LatencyHistogram());
+
+	@Test
+	void inOrderPacketsAreNeitherLostNorReordered() {
+		receive(1, 2, 3, 4);
+
+		assertEquals(4, stats.getExpected());
+		assertEquals(0, stats.getLost());
+		assertEquals(0, stats.getReordered());
+		assertEquals(0, stats.getDuplicates());
+	}
+
+	@Test
+	void duplicateIsNotReordered() {
+		receive(1, 2, 2, 3, 3);
+
+		assertEquals(5, stats.getReceived());
+		assertEquals(2, stats.getDuplicates());
+		assertEquals(0, stats.getReordered());
+		assertEquals(0, stats.getLost());
+	}
+
+	@Test
+	void duplicateDoesNotHideALoss() {
+		receive(1, 2, 2, 4);
+
+		assertEquals(1, stats.getLost());
+		assertEquals(1, stats.getDuplicates());
+	}
+
+	@Test
+	void lateCopyOfAReorderedPacketIsADuplicate() {
+		receive(1, 3, 2, 2);
+
+		assertEquals(1, stats.getReordered());
+		assertEquals(1, stats.getDuplicates());
+		assertEquals(0, stats.getLost());
+	}
+
+	@Test
+	void duplicatesAreRecognizedAcrossTheWrap() {
+		receive(0xFFFE, 0xFFFF, 0, 0xFFFF, 1);
+
+		assertEquals(4, stats.getExpected());
+		assertEquals(1, stats.getDuplicates());
+		assertEquals(0, stats.getReordered());
+	}
+
+	@Test
+	void packetOlderThanTheWindowIsReordered() {
+		receive(1, 2 + ReceptionStats.DUPLICATE_WINDOW, 1);
+
+		assertEquals(1, stats.getReordered());
+		assertEquals(0, stats.getDuplicates());
+	}
+
+	private void receive(int... seqs) {
+		for(int seq : seqs) {
+			ByteBuffer packet = ByteBuffer.allocate(RTPUtil.HEADER_SIZE + 1);
+			packet.put(0, (byte) 0x80);
+			packet.put(1, (byte) 96);
+			packet.putShort(2, (short) seq);
+			packet.put(RTPUtil.HEADER_SIZE, (byte) 0x41);
+			stats.packetReceived(packet, System.nanoTime());
+		}
+	}
+
+}
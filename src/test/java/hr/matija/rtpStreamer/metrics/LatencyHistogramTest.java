@@ -0,0 +1,91 @@
+package hr.matija.rtpStreamer.metrics;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class LatencyHistogramTest {
+
+	private LatencyHistogram histogram = new LatencyHistogram();
+
+	@Test
+	void emptyHistogramReportsZero() {
+		assertEquals(0, histogram.getValueAtQuantile(0.99));
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getMax());
+	}
+
+	@Test
+	void smallValuesHaveABucketEach() {
+		for(int value=0; value<64; value++) histogram.record(value);
+
+		for(int value=0; value<64; value++) {
+			assertEquals(value, histogram.getValueAtQuantile((value + 1) / 64.0));
+		}
+	}
+
+	@Test
+	void bucketBoundIsWithinTheRelativeError() {
+		for(long value=64; value<LatencyHistogram.MAX_VALUE/2; value=value*3/2 + 7) {
+			LatencyHistogram h = new LatencyHistogram();
+			h.record(value);
+			h.record(LatencyHistogram.MAX_VALUE); // so the bound is not capped by the maximum
+
+			long bound = h.getValueAtQuantile(0.5);
+			assertTrue(bound>=value, value + " above its bucket " + bound);
+			assertTrue(bound - value < value / 32.0, value + " too far from its bucket " + bound);
+		}
+	}
+
+	@Test
+	void quantilesOfAUniformDistribution() {
+		for(long ms=1; ms<=1000; ms++) histogram.record(ms * 1_000_000);
+
+		assertEquals(500e6, histogram.getValueAtQuantile(0.5), 500e6 / 32);
+		assertEquals(990e6, histogram.getValueAtQuantile(0.99), 990e6 / 32);
+		assertEquals(1_000_000_000L, histogram.getValueAtQuantile(1));
+		assertEquals(1e6, histogram.getValueAtQuantile(0), 1e6 / 32); // upper bound of the bucket
+		assertEquals(1000, histogram.getCount());
+		assertEquals(500_500_000_000L, histogram.getSum());
+	}
+
+	@Test
+	void quantileDoesNotExceedTheMaximum() {
+		histogram.record(1000);
+		histogram.record(1001);
+
+		assertEquals(1001, histogram.getValueAtQuantile(0.99));
+	}
+
+	@Test
+	void outOfRangeValuesAreClamped() {
+		histogram.record(-5);
+		histogram.record(Long.MAX_VALUE);
+
+		assertEquals(0, histogram.getValueAtQuantile(0.5));
+		assertEquals(LatencyHistogram.MAX_VALUE, histogram.getValueAtQuantile(1));
+		assertEquals(LatencyHistogram.MAX_VALUE, histogram.getMax());
+	}
+
+	@Test
+	void concurrentRecordingLosesNothing() throws InterruptedException {
+		List<Thread> threads = new ArrayList<>();
+		for(int t=0; t<4; t++) {
+			Thread thread = new Thread(() -> {
+				for(int i=0; i<10_000; i++) histogram.record(i);
+			});
+			threads.add(thread);
+			thread.start();
+		}
+		for(var thread : threads) thread.join();
+
+		assertEquals(40_000, histogram.getCount());
+		assertEquals(9_999, histogram.getMax());
+		assertEquals(9_999, histogram.getValueAtQuantile(1));
+	}
+
+}
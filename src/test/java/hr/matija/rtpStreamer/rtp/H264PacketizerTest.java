@@ -0,0 +1,175 @@
+package hr.matija.rtpStreamer.rtp;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import hr.matija.rtpStreamer.h264.NalUnit;
+
+class H264PacketizerTest {
+
+	// payloads of at most 60 bytes, so fragments carry 58 bytes of the nal unit
+	private static final int MTU = H264Packetizer.HEADERS_OVERHEAD + 60;
+
+	private H264Packetizer packetizer = new H264Packetizer(MTU);
+
+	@Test
+	void smallNalUnitIsSentAsIs() {
+		byte[] slice = nal(0x41, 30);
+
+		List<byte[]> payloads = packetizer.packetize(List.of(new NalUnit(slice, slice.length)));
+
+		assertEquals(1, payloads.size());
+		assertArrayEquals(slice, payloads.get(0));
+	}
+
+	@Test
+	void largeNalUnitIsFragmentedAtTheMtu() {
+		byte[] idr = nal(0x65, 200); // 199 bytes after the header: 58 + 58 + 58 + 25
+
+		List<byte[]> payloads = packetizer.packetize(List.of(new NalUnit(idr, idr.length)));
+
+		assertEquals(4, payloads.size());
+		ByteArrayOutputStream reassembled = new ByteArrayOutputStream();
+		for(int i=0; i<payloads.size(); i++) {
+			byte[] fu = payloads.get(i);
+			assertTrue(fu.length<=packetizer.getMaxPayloadSize());
+			assertEquals(0x60 | H264Packetizer.FU_A, fu[0]); // NRI of the nal unit in the indicator
+			assertEquals(i==0, (fu[1] & 0x80)!=0, "start bit of fragment " + i);
+			assertEquals(i==payloads.size()-1, (fu[1] & 0x40)!=0, "end bit of fragment " + i);
+			assertEquals(0, fu[1] & 0x20);
+			assertEquals(5, fu[1] & 0x1F);
+			assertEquals(5, H264Packetizer.getNalUnitType(fu));
+
+			if(i==0) reassembled.write((fu[0] & 0xE0) | (fu[1] & 0x1F));
+			reassembled.write(fu, 2, fu.length - 2);
+		}
+		assertEquals(60, payloads.get(0).length);
+		assertEquals(27, payloads.get(3).length);
+		assertArrayEquals(idr, reassembled.toByteArray());
+	}
+
+	@Test
+	void nalUnitOfTheMaxPayloadSizeIsNotFragmented() {
+		byte[] slice = nal(0x41, packetizer.getMaxPayloadSize());
+
+		List<byte[]> payloads = packetizer.packetize(List.of(new NalUnit(slice, slice.length)));
+
+		assertEquals(1, payloads.size());
+		assertArrayEquals(slice, payloads.get(0));
+		assertEquals(2, packetizer.packetize(List.of(new NalUnit(nal(0x41, slice.length + 1), slice.length + 1))).size());
+	}
+
+	@Test
+	void parameterSetsAreAggregated() {
+		byte[] sps = nal(0x67, 10);
+		byte[] pps = nal(0x68, 4);
+		byte[] sei = nal(0x06, 8);
+		byte[] idr = nal(0x65, 20);
+
+		List<byte[]> payloads = packetizer.packetize(units(sps, pps, sei, idr));
+
+		assertEquals(2, payloads.size());
+		ByteBuffer stap = ByteBuffer.wrap(payloads.get(0));
+		assertEquals(1 + 2 + 10 + 2 + 4 + 2 + 8, stap.remaining());
+		assertEquals(0x60 | H264Packetizer.STAP_A, stap.get()); // highest NRI of the aggregated units
+		assertEquals(H264Packetizer.STAP_A, H264Packetizer.getNalUnitType(payloads.get(0)));
+		for(byte[] nal : List.of(sps, pps, sei)) {
+			byte[] data = new byte[stap.getShort()];
+			stap.get(data);
+			assertArrayEquals(nal, data);
+		}
+		assertFalse(stap.hasRemaining());
+		assertArrayEquals(idr, payloads.get(1)); // slices are never aggregated
+	}
+
+	@Test
+	void aggregationStopsAtTheMaxPayloadSize() {
+		byte[] sps = nal(0x67, 20);
+		byte[] pps = nal(0x68, 20);
+		byte[] sei = nal(0x06, 14);
+
+		// 1 + 22 + 22 + 16 = 61 does not fit, 1 + 22 + 22 = 45 does
+		List<byte[]> payloads = packetizer.packetize(units(sps, pps, sei));
+
+		assertEquals(2, payloads.size());
+		assertEquals(45, payloads.get(0).length);
+		assertEquals(H264Packetizer.STAP_A, payloads.get(0)[0] & 0x1F);
+		assertArrayEquals(sei, payloads.get(1));
+
+		// 1 + 22 + 22 + 15 = 60 fits exactly
+		payloads = packetizer.packetize(units(sps, pps, nal(0x06, 13)));
+		assertEquals(1, payloads.size());
+		assertEquals(packetizer.getMaxPayloadSize(), payloads.get(0).length);
+	}
+
+	@Test
+	void markerIsOnlyOnTheLastPacketOfTheAccessUnit() {
+		DirectBufferPool pool = new DirectBufferPool(RTPUtil.HEADER_SIZE + packetizer.getMaxPayloadSize(), 16);
+		byte[] idr = nal(0x65, 150);
+		byte[] slice = nal(0x65, 40); // second slice of the picture
+		List<ByteBuffer> packets = new ArrayList<>();
+
+		packetizer.packetize(units(nal(0x67, 10), nal(0x68, 4), idr, slice), pool, packets);
+
+		// written the way the stream worker writes them
+		int n = packets.size();
+		assertEquals(1 + 3 + 1, n);
+		for(int i=0; i<n; i++) {
+			RTPUtil.writeBasicHeaderRTP(packets.get(i), 0, (byte) 2, false, false, (byte) 0, i==n-1, (byte) 96, (short) i, 9000, 1);
+		}
+		for(int i=0; i<n; i++) {
+			ByteBuffer packet = packets.get(i);
+			assertEquals(0x80, packet.get(0) & 0xFF);
+			assertEquals(i==n-1, (packet.get(1) & 0x80)!=0, "marker of packet " + i);
+			assertEquals(96, packet.get(1) & 0x7F);
+			assertEquals(9000, packet.getInt(4));
+		}
+
+		// the last packet carries the end of the last nal unit
+		ByteBuffer last = packets.get(n-1);
+		byte[] payload = new byte[last.limit() - RTPUtil.HEADER_SIZE];
+		last.position(RTPUtil.HEADER_SIZE);
+		last.get(payload);
+		assertArrayEquals(slice, payload);
+		assertEquals(0x40, packets.get(n-2).get(RTPUtil.HEADER_SIZE + 1) & 0x40); // end of the fragmented idr before it
+	}
+
+	@Test
+	void poolBuffersMustHoldTheLargestPacket() {
+		DirectBufferPool pool = new DirectBufferPool(RTPUtil.HEADER_SIZE + packetizer.getMaxPayloadSize() - 1, 1);
+
+		assertThrows(IllegalArgumentException.class, () -> packetizer.packetize(units(nal(0x65, 10)), pool, new ArrayList<>()));
+	}
+
+	@Test
+	void tooSmallMtuIsRejected() {
+		assertThrows(IllegalArgumentException.class, () -> new H264Packetizer(H264Packetizer.HEADERS_OVERHEAD + 2));
+	}
+
+	private static List<NalUnit> units(byte[]... nals) {
+		List<NalUnit> units = new ArrayList<>();
+		for(byte[] nal : nals) units.add(new NalUnit(nal, nal.length));
+		return units;
+	}
+
+	/**
+	 * Creates the nal unit with the given header and distinct body bytes
+	 */
+	private static byte[] nal(int header, int length) {
+		byte[] nal = new byte[length];
+		nal[0] = (byte) header;
+		for(int i=1; i<length; i++) nal[i] = (byte) (i * 7 + header);
+		return nal;
+	}
+
+}
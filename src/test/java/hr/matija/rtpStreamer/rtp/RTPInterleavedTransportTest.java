@@ -0,0 +1,129 @@
+package hr.matija.rtpStreamer.rtp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.junit.jupiter.api.Test;
+
+import hr.matija.rtpStreamer.rtp.RTPInterleavedTransport.InterleavedOutput;
+
+class RTPInterleavedTransportTest {
+
+	private DirectBufferPool pool = new DirectBufferPool(RTPInterleavedTransport.FRAME_HEADER_SIZE + 100, 16);
+
+	@Test
+	void sendAllQueuesTheBurstAtOnce() {
+		RecordingOutput output = new RecordingOutput(Integer.MAX_VALUE);
+		RTPInterleavedTransport transport = new RTPInterleavedTransport(output, pool, 2, 3);
+
+		long sent = transport.sendAll(List.of(packet(10, 1), packet(20, 2), packet(30, 3)));
+
+		assertEquals(60, sent);
+		assertEquals(1, output.calls);
+		assertEquals(3, output.frames.size());
+		for(int i=0; i<3; i++) {
+			ByteBuffer frame = output.frames.get(i);
+			assertTrue(frame.isDirect());
+			assertEquals(RTPInterleavedTransport.MAGIC, frame.get(0));
+			assertEquals(2, frame.get(1));
+			assertEquals(10 * (i + 1), frame.getShort(2));
+			assertEquals(i + 1, frame.get(4));
+		}
+		assertEquals(0, transport.getDroppedCount());
+	}
+
+	@Test
+	void writtenFramesReturnToThePool() {
+		RecordingOutput output = new RecordingOutput(Integer.MAX_VALUE);
+		RTPInterleavedTransport transport = new RTPInterleavedTransport(output, pool, 0, 1);
+
+		transport.sendAll(List.of(packet(10, 1), packet(10, 2)));
+		output.writeQueue();
+		transport.sendAll(List.of(packet(10, 3), packet(10, 4)));
+
+		assertEquals(2, pool.getAllocatedCount());
+	}
+
+	@Test
+	void framesWhichDoNotFitAreDropped() {
+		RecordingOutput output = new RecordingOutput(2);
+		RTPInterleavedTransport transport = new RTPInterleavedTransport(output, pool, 0, 1);
+
+		long sent = transport.sendAll(List.of(packet(10, 1), packet(10, 2), packet(10, 3)));
+
+		assertEquals(20, sent);
+		assertEquals(1, transport.getDroppedCount());
+		assertEquals(1, pool.getPooledCount()); // the dropped frame went back right away
+	}
+
+	@Test
+	void largePacketIsFramedOutsideThePool() {
+		RecordingOutput output = new RecordingOutput(Integer.MAX_VALUE);
+		RTPInterleavedTransport transport = new RTPInterleavedTransport(output, pool, 0, 1);
+
+		transport.send(packet(500, 1));
+		output.writeQueue();
+
+		assertEquals(504, output.written.get(0).limit());
+		assertEquals(0, pool.getPooledCount());
+	}
+
+	private static ByteBuffer packet(int length, int first) {
+		ByteBuffer packet = ByteBuffer.allocate(length);
+		packet.put(0, (byte) first);
+		return packet;
+	}
+
+	/**
+	 * Output which queues at most the given number of frames and writes them when told to
+	 */
+	private static class RecordingOutput implements InterleavedOutput {
+
+		private int capacity;
+		private int calls;
+		private List<ByteBuffer> frames = new ArrayList<>();
+		private List<Consumer<ByteBuffer>> releases = new ArrayList<>();
+		private List<ByteBuffer> written = new ArrayList<>();
+
+		private RecordingOutput(int capacity) {
+			this.capacity = capacity;
+		}
+
+		@Override
+		public boolean write(ByteBuffer frame) {
+			return writeAll(List.of(frame), (f) -> {})==1;
+		}
+
+		@Override
+		public int writeAll(List<ByteBuffer> frames, Consumer<ByteBuffer> release) {
+			calls++;
+			int queued = Math.min(frames.size(), capacity - this.frames.size());
+			for(int i=0; i<queued; i++) {
+				this.frames.add(frames.get(i));
+				releases.add(release);
+			}
+			return queued;
+		}
+
+		private void writeQueue() {
+			for(int i=0; i<frames.size(); i++) {
+				written.add(frames.get(i));
+				releases.get(i).accept(frames.get(i));
+			}
+			frames.clear();
+			releases.clear();
+		}
+
+		@Override
+		public boolean isCongested() {
+			return false;
+		}
+
+	}
+
+}
@@ -0,0 +1,146 @@
+package hr.matija.rtpStreamer.rtp;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Collections;
+
+import org.junit.jupiter.api.Test;
+
+class RTPUdpTransportTest {
+
+	private static final long TIMEOUT_MILLIS = 2000;
+
+	@Test
+	void unicastPacketsReachTheDestination() throws IOException {
+		try (DatagramChannel receiver = DatagramChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+				RTPUdpTransport transport = new RTPUdpTransport(receiver.getLocalAddress(), new InetSocketAddress(InetAddress.getLoopbackAddress(), 9))) {
+			byte[] packet = {(byte) 0x80, 96, 0, 1, 1, 2, 3, 4};
+
+			assertEquals(packet.length, transport.send(ByteBuffer.wrap(packet)));
+			assertArrayEquals(packet, receive(receiver));
+			assertFalse(transport.isMulticast());
+		}
+	}
+
+	@Test
+	void multicastIsLoopedBackToTheReceiversOnThisHost() throws IOException {
+		NetworkInterface ni = findMulticastInterface();
+		assumeTrue(ni!=null, "no IPv4 multicast interface");
+
+		InetAddress group = InetAddress.getByName("239.255.42.99");
+		int port = freePort();
+		InetSocketAddress rtp = new InetSocketAddress(group, port);
+		InetSocketAddress rtcp = new InetSocketAddress(group, port + 1);
+
+		try (RTPUdpTransport transport = RTPUdpTransport.openMulticast(rtp, rtcp, 1, ni);
+				DatagramChannel receiver = joined(rtp, ni);
+				DatagramChannel reporter = DatagramChannel.open(StandardProtocolFamily.INET)) {
+			assertTrue(transport.isMulticast());
+			assertEquals(Boolean.TRUE, transport.getControlChannel().getOption(StandardSocketOptions.IP_MULTICAST_LOOP));
+
+			// RTP from the transport to a receiver which joined the group on this host
+			byte[] packet = {(byte) 0x80, (byte) (0x80 | 96), 0, 7, 0, 0, 0, 9, 0, 0, 0, 1, 0x65};
+			assertEquals(packet.length, transport.send(ByteBuffer.wrap(packet)));
+			assertArrayEquals(packet, receive(receiver));
+
+			// receiver report sent to the RTCP port of the group reaches the control channel of the transport
+			byte[] report = {(byte) 0x80, (byte) 201, 0, 1, 0, 0, 0, 2};
+			reporter.setOption(StandardSocketOptions.IP_MULTICAST_IF, ni);
+			reporter.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+			reporter.send(ByteBuffer.wrap(report), rtcp);
+			assertArrayEquals(report, receive(transport.getControlChannel()));
+		}
+	}
+
+	/**
+	 * Opens the channel bound to the port of the group which joined the group on the given interface
+	 */
+	private static DatagramChannel joined(InetSocketAddress group, NetworkInterface ni) throws IOException {
+		DatagramChannel channel = DatagramChannel.open(StandardProtocolFamily.INET);
+		try {
+			channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+			channel.bind(new InetSocketAddress(group.getPort()));
+			channel.join(group.getAddress(), ni);
+		} catch (IOException ex) {
+			channel.close();
+			throw ex;
+		}
+		return channel;
+	}
+
+	/**
+	 * Receives one datagram from the channel, failing after {@link #TIMEOUT_MILLIS}
+	 */
+	private static byte[] receive(DatagramChannel channel) throws IOException {
+		channel.configureBlocking(false);
+		try (Selector selector = Selector.open()) {
+			channel.register(selector, SelectionKey.OP_READ);
+			ByteBuffer buffer = ByteBuffer.allocate(1500);
+			long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+			SocketAddress from = null;
+			while(from==null && System.currentTimeMillis()<deadline) {
+				selector.select(Math.max(1, deadline - System.currentTimeMillis()));
+				selector.selectedKeys().clear();
+				from = channel.receive(buffer);
+			}
+			assertNotNull(from, "nothing received in " + TIMEOUT_MILLIS + " ms");
+			buffer.flip();
+			byte[] data = new byte[buffer.remaining()];
+			buffer.get(data);
+			return data;
+		}
+	}
+
+	/**
+	 * Returns an even port whose next port was also free
+	 */
+	private static int freePort() throws IOException {
+		for(int i=0; i<20; i++) {
+			int port;
+			try (DatagramChannel c = DatagramChannel.open().bind(new InetSocketAddress(0))) {
+				port = ((InetSocketAddress) c.getLocalAddress()).getPort() & ~1;
+			}
+			try (DatagramChannel rtp = DatagramChannel.open(); DatagramChannel rtcp = DatagramChannel.open()) {
+				rtp.bind(new InetSocketAddress(port));
+				rtcp.bind(new InetSocketAddress(port + 1));
+				return port;
+			} catch (IOException ex) {
+				// taken, try the next one
+			}
+		}
+		throw new IOException("No free port pair");
+	}
+
+	/**
+	 * Finds the interface which is up and supports IPv4 multicast, preferably the loopback
+	 */
+	private static NetworkInterface findMulticastInterface() throws SocketException {
+		NetworkInterface found = null;
+		for(NetworkInterface ni : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+			if(!ni.isUp() || !ni.supportsMulticast()) continue;
+			if(ni.inetAddresses().noneMatch((a) -> a instanceof Inet4Address)) continue;
+			if(ni.isLoopback()) return ni;
+			if(found==null) found = ni;
+		}
+		return found;
+	}
+
+}
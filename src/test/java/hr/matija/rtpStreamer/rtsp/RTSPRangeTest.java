@@ -0,0 +1,58 @@
+package hr.matija.rtpStreamer.rtsp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class RTSPRangeTest {
+
+	@Test
+	void openRangeInSeconds() {
+		RTSPRange range = RTSPRange.parse("npt=12.5-");
+
+		assertEquals(12.5, range.getStart());
+		assertTrue(Double.isNaN(range.getEnd()));
+		assertEquals("npt=12.500-", range.toString());
+	}
+
+	@Test
+	void closedRangeInHours() {
+		RTSPRange range = RTSPRange.parse("npt=0:01:30-1:00:00.25");
+
+		assertEquals(90, range.getStart());
+		assertEquals(3600.25, range.getEnd());
+		assertEquals("npt=90.000-3600.250", range.toString());
+	}
+
+	@Test
+	void nowAndMissingStartAreNow() {
+		assertTrue(RTSPRange.parse("npt=now-").isNow());
+		assertTrue(RTSPRange.parse("NPT = -30").isNow());
+		assertEquals(30, RTSPRange.parse("npt=-30").getEnd());
+		assertEquals("npt=now-", RTSPRange.parse("npt=now-").toString());
+	}
+
+	@Test
+	void timeOfTheRangeIsIgnored() {
+		assertEquals(5, RTSPRange.parse("npt=5-;time=19970123T143720Z").getStart());
+	}
+
+	@Test
+	void formattedRangeParsesBack() {
+		RTSPRange range = new RTSPRange(1.5, 61);
+
+		RTSPRange parsed = RTSPRange.parse(range.toString());
+		assertEquals(range.getStart(), parsed.getStart());
+		assertEquals(range.getEnd(), parsed.getEnd());
+	}
+
+	@Test
+	void malformedRangesAreRejected() {
+		for(String header : new String[] {"smpte=10:07:00-", "npt=5", "npt=-", "npt=1:30-", "npt=abc-", "npt=+5-", "npt=Infinity-"}) {
+			assertThrows(IllegalArgumentException.class, () -> RTSPRange.parse(header), header);
+		}
+	}
+
+}
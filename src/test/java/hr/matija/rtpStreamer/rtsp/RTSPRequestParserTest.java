@@ -0,0 +1,84 @@
+package hr.matija.rtpStreamer.rtsp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import hr.matija.rtpStreamer.rtsp.RTSPUtil.RTSPMethod;
+import hr.matija.rtpStreamer.rtsp.RTSPUtil.RTSPRequest;
+
+class RTSPRequestParserTest {
+
+	private List<String> frames = new ArrayList<>();
+	private RTSPRequestParser parser = new RTSPRequestParser((channel, data) -> {
+		frames.add(channel + ":" + StandardCharsets.ISO_8859_1.decode(data));
+	});
+
+	@Test
+	void requestSplitAcrossReads() {
+		ByteBuffer buffer = bytes("DESCRIBE rtsp://host/a RTSP/1.0\r\nCSe");
+		assertNull(parser.parse(buffer));
+
+		RTSPRequest request = parser.parse(bytes("q: 2\r\nRange: npt=0.000-\r\n\r\n"));
+		assertEquals(RTSPMethod.DESCRIBE, request.getMethod());
+		assertEquals("rtsp://host/a", request.getUri());
+		assertEquals("2", request.getValue("cseq"));
+		assertEquals("npt=0.000-", request.getValue("Range"));
+	}
+
+	@Test
+	void bodyOfTheContentLength() {
+		ByteBuffer buffer = bytes("ANNOUNCE rtsp://host/a RTSP/1.0\r\nContent-Length: 5\r\n\r\nv=0\r\nOPTIONS * RTSP/1.0\r\n\r\n");
+
+		RTSPRequest announce = parser.parse(buffer);
+		assertEquals(RTSPMethod.ANNOUNCE, announce.getMethod());
+		assertEquals("v=0\r\n", announce.getBody());
+		assertEquals(RTSPMethod.OPTIONS, parser.parse(buffer).getMethod());
+	}
+
+	@Test
+	void headersDoNotCarryOverToTheNextRequest() {
+		ByteBuffer buffer = bytes("OPTIONS * RTSP/1.0\r\nSession: 1\r\n\r\nOPTIONS * RTSP/1.0\r\nCSeq: 3\r\n\r\n");
+
+		assertEquals("1", parser.parse(buffer).getValue("Session"));
+		RTSPRequest second = parser.parse(buffer);
+		assertNull(second.getValue("Session"));
+		assertEquals("3", second.getValue("CSeq"));
+	}
+
+	@Test
+	void malformedHeaderIsRejected() {
+		assertThrows(IllegalArgumentException.class, () -> parser.parse(bytes("OPTIONS * RTSP/1.0\r\nno colon\r\n\r\n")));
+	}
+
+	@Test
+	void framesBetweenRequests() {
+		ByteBuffer buffer = bytes("$\u0001\u0000\u0003abc$\u0003\u0000\u0000OPTIONS * RTSP/1.0\r\n\r\n");
+
+		assertEquals(RTSPMethod.OPTIONS, parser.parse(buffer).getMethod());
+		assertEquals(List.of("1:abc", "3:"), frames);
+	}
+
+	@Test
+	void frameSplitAcrossReads() {
+		assertNull(parser.parse(bytes("$\u0001\u0000\u0005ab")));
+		assertNull(parser.parse(bytes("cd")));
+		assertEquals(List.of(), frames);
+
+		RTSPRequest request = parser.parse(bytes("eOPTIONS * RTSP/1.0\r\n\r\n"));
+		assertEquals(List.of("1:abcde"), frames);
+		assertEquals(RTSPMethod.OPTIONS, request.getMethod());
+	}
+
+	private static ByteBuffer bytes(String s) {
+		return ByteBuffer.wrap(s.getBytes(StandardCharsets.ISO_8859_1));
+	}
+
+}
@@ -0,0 +1,150 @@
+package hr.matija.rtpStreamer.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import hr.matija.rtpStreamer.rtp.DirectBufferPool;
+import hr.matija.rtpStreamer.rtp.RTPTransport;
+import hr.matija.rtpStreamer.rtp.RTPUtil;
+
+class H264RtpImpairmentProfileTest {
+
+	private DirectBufferPool pool = new DirectBufferPool(RTPUtil.HEADER_SIZE + 1, 16);
+	private H264RtpStreamScheduler scheduler = new H264RtpStreamScheduler(1);
+
+	@AfterEach
+	void close() {
+		scheduler.close();
+	}
+
+	@Test
+	void parsesEverySetting() {
+		H264RtpImpairmentProfile profile = H264RtpImpairmentProfile.parse("seed=7 gilbert=1,25 delay=40 jitter=10 reorder=5 duplicate=0.5 rate=4000 queue=200 protect");
+
+		assertEquals(7, profile.getSeed());
+		assertTrue(profile.isGilbert());
+		assertEquals(0.01, profile.getGoodToBad(), 1e-12);
+		assertEquals(0.25, profile.getBadToGood(), 1e-12);
+		assertEquals(1, profile.getBadLoss());
+		assertEquals(0, profile.getGoodLoss());
+		assertEquals(40, profile.getDelayMillis());
+		assertEquals(10, profile.getJitterMillis());
+		assertEquals(0.05, profile.getReorder(), 1e-12);
+		assertEquals(0.005, profile.getDuplicate(), 1e-12);
+		assertEquals(4000, profile.getRateKbps());
+		assertEquals(200, profile.getQueueMillis());
+		assertTrue(profile.isProtect());
+		assertFalse(profile.isNone());
+	}
+
+	@Test
+	void formattedProfileParsesBack() {
+		String spec = "seed=3 gilbert=2.5,30,80,1 delay=20 duplicate=1 rate=1000 queue=500 protect";
+
+		H264RtpImpairmentProfile profile = H264RtpImpairmentProfile.parse(spec);
+		assertEquals(spec, profile.toString());
+		assertEquals(spec, H264RtpImpairmentProfile.parse(profile.toString()).toString());
+	}
+
+	@Test
+	void emptyProfileIsNone() {
+		assertSame(H264RtpImpairmentProfile.NONE, H264RtpImpairmentProfile.parse(null));
+		assertSame(H264RtpImpairmentProfile.NONE, H264RtpImpairmentProfile.parse("  "));
+		assertSame(H264RtpImpairmentProfile.NONE, H264RtpImpairmentProfile.parse("None"));
+		assertSame(H264RtpImpairmentProfile.NONE, H264RtpImpairmentProfile.parse("loss=0"));
+		assertEquals("none", H264RtpImpairmentProfile.NONE.toString());
+		assertTrue(H264RtpImpairmentProfile.parse("seed=1").isNone());
+	}
+
+	@Test
+	void invalidProfilesAreRejected() {
+		String[] specs = {"loss=1 loss=2", "latency=5", "loss", "loss=101", "loss=-1", "loss=x", "gilbert=1",
+				"loss=1 gilbert=1,2", "reorder=5", "queue=100", "rate=0", "delay=60001", "protect=1"};
+		for(String spec : specs) {
+			assertThrows(IllegalArgumentException.class, () -> H264RtpImpairmentProfile.parse(spec), spec);
+		}
+	}
+
+	@Test
+	void seededLossIsReproducible() throws IOException {
+		H264RtpImpairmentProfile profile = H264RtpImpairmentProfile.parse("seed=42 loss=20");
+
+		List<Integer> first = impair(profile, 5, 1000, 1);
+		List<Integer> second = impair(profile, 5, 1000, 1);
+		List<Integer> otherStream = impair(profile, 6, 1000, 1);
+
+		assertEquals(first, second);
+		assertNotEquals(first, otherStream);
+		assertEquals(800, first.size(), 50);
+	}
+
+	@Test
+	void burstLossIsReproducible() throws IOException {
+		H264RtpImpairmentProfile profile = H264RtpImpairmentProfile.parse("seed=9 gilbert=5,20");
+
+		assertEquals(impair(profile, 1, 1000, 1), impair(profile, 1, 1000, 1));
+	}
+
+	@Test
+	void protectedSlicesAreNeverLost() throws IOException {
+		H264RtpImpairmentProfile profile = H264RtpImpairmentProfile.parse("loss=100 protect");
+
+		assertEquals(List.of(), impair(profile, 1, 100, 0x41));
+		assertEquals(100, impair(profile, 1, 100, 0x65).size());
+	}
+
+	/**
+	 * Sends the packets of single nal units with the given header through the stage of the profile
+	 * @return sequence numbers of the packets which reached the transport
+	 */
+	private List<Integer> impair(H264RtpImpairmentProfile profile, long streamId, int packets, int nalHeader) throws IOException {
+		RecordingTransport transport = new RecordingTransport();
+		try (H264RtpImpairment stage = new H264RtpImpairment(profile, streamId, transport, pool, scheduler)) {
+			for(int i=0; i<packets; i++) {
+				ByteBuffer packet = ByteBuffer.allocate(RTPUtil.HEADER_SIZE + 1);
+				packet.putShort(2, (short) i);
+				packet.put(RTPUtil.HEADER_SIZE, (byte) nalHeader);
+				stage.sendAll(List.of(packet));
+			}
+		}
+		return transport.sent;
+	}
+
+	private static class RecordingTransport implements RTPTransport {
+
+		private List<Integer> sent = new ArrayList<>();
+
+		@Override
+		public int send(ByteBuffer packet) {
+			sent.add(packet.getShort(2) & 0xFFFF);
+			return packet.limit();
+		}
+
+		@Override
+		public void sendControl(ByteBuffer packet) {
+		}
+
+		@Override
+		public void setControlListener(Consumer<ByteBuffer> listener) {
+		}
+
+		@Override
+		public void close() {
+		}
+
+	}
+
+}
@@ -0,0 +1,94 @@
+package hr.matija.rtpStreamer.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import hr.matija.rtpStreamer.server.H264RtspSessionTimer.Timeout;
+
+class H264RtspSessionTimerTest {
+
+	// four buckets of 10 ms, so a delay of 100 ms waits for more than two turns of the wheel
+	private H264RtspSessionTimer timer = new H264RtspSessionTimer(10, 4);
+
+	@AfterEach
+	void close() {
+		timer.close();
+	}
+
+	@Test
+	void expiresNoSoonerThanTheDelay() throws InterruptedException {
+		AtomicLong expired = new AtomicLong();
+		CountDownLatch latch = new CountDownLatch(1);
+		long start = System.nanoTime();
+
+		Timeout timeout = timer.schedule(() -> {
+			expired.set(System.nanoTime());
+			latch.countDown();
+		}, 100);
+
+		assertTrue(latch.await(1, TimeUnit.SECONDS));
+		assertTrue(expired.get() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+		assertTrue(timeout.isExpired());
+		assertFalse(timeout.cancel());
+		assertEquals(0, timer.getPending());
+	}
+
+	@Test
+	void cancelledTimeoutDoesNotExpire() throws InterruptedException {
+		CountDownLatch latch = new CountDownLatch(1);
+
+		Timeout timeout = timer.schedule(latch::countDown, 30);
+		assertEquals(1, timer.getPending());
+		assertTrue(timeout.cancel());
+
+		assertFalse(latch.await(100, TimeUnit.MILLISECONDS));
+		assertTrue(timeout.isCancelled());
+		assertEquals(0, timer.getPending());
+	}
+
+	@Test
+	void taskReArmsItselfForTheRemainingTime() throws InterruptedException {
+		// like the idle check of a session which was active since the timeout was scheduled
+		CountDownLatch latch = new CountDownLatch(3);
+		Runnable[] check = new Runnable[1];
+		check[0] = () -> {
+			latch.countDown();
+			if(latch.getCount()>0) timer.schedule(check[0], 20);
+		};
+
+		timer.schedule(check[0], 20);
+
+		assertTrue(latch.await(1, TimeUnit.SECONDS));
+		Thread.sleep(50);
+		assertEquals(0, timer.getPending());
+	}
+
+	@Test
+	void failingTaskDoesNotStopTheOthers() throws InterruptedException {
+		CountDownLatch latch = new CountDownLatch(1);
+
+		timer.schedule(() -> {
+			throw new IllegalStateException("failed");
+		}, 10);
+		timer.schedule(latch::countDown, 10);
+
+		assertTrue(latch.await(1, TimeUnit.SECONDS));
+	}
+
+	@Test
+	void closedTimerRejectsTimeouts() {
+		timer.close();
+
+		assertThrows(IllegalStateException.class, () -> timer.schedule(() -> {}, 10));
+	}
+
+}